@@ -0,0 +1,51 @@
+/*
+ * IIncrementalTaxa.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms;
+
+import splitstree6.data.TaxaBlock;
+import splitstree6.workflow.TaxaDelta;
+
+/**
+ * algorithm that can update its previous result when only a few taxa have been removed or added,
+ * rather than recomputing everything from scratch
+ */
+public interface IIncrementalTaxa {
+	/**
+	 * gets the largest proportion of changed taxa for which an incremental update is attempted
+	 *
+	 * @return proportion, between 0 and 1
+	 */
+	default double getMaxIncrementalChange() {
+		return 0.1;
+	}
+
+	/**
+	 * determines whether the change between the previously used and the current taxa is small enough to
+	 * warrant an incremental update
+	 *
+	 * @param delta     the change in taxa, or null, if there is no previous result
+	 * @param taxaBlock the current taxa
+	 * @return true, if incremental update should be attempted
+	 */
+	default boolean isIncrementalUpdate(TaxaDelta delta, TaxaBlock taxaBlock) {
+		return delta != null && !delta.isEmpty() && delta.common() >= 3
+			   && delta.size() <= getMaxIncrementalChange() * Math.max(1, taxaBlock.getNtax());
+	}
+}
@@ -21,7 +21,6 @@ package splitstree6.algorithms.characters.characters2characters;
 
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
-import jloda.util.BitSetUtils;
 import jloda.util.progress.ProgressListener;
 import splitstree6.data.CharactersBlock;
 import splitstree6.data.CharactersFormat;
@@ -50,7 +49,6 @@ public class CharactersTaxaFilter extends DataTaxaFilter<CharactersBlock, Charac
 	@Override
 	public void filter(ProgressListener progress, TaxaBlock inputTaxa, TaxaBlock workingTaxa, CharactersBlock inputCharacters, CharactersBlock workingCharacters) throws IOException {
 		progress.setMaximum(workingTaxa.size());
-		// todo: implement direct copy?
 
 		var enabledSites = new BitSet();
 		if (getOptionDisabledCharacters().length > 0) {
@@ -60,26 +58,28 @@ public class CharactersTaxaFilter extends DataTaxaFilter<CharactersBlock, Charac
 			}
 		}
 
+		final var working2input = computeModified2Original(inputTaxa, workingTaxa);
+
 		if (enabledSites.cardinality() == 0 || enabledSites.cardinality() >= inputCharacters.getNchar()) {
+			// rows are copied whole, as downstream algorithms may modify the working block in place
 			workingCharacters.setDimension(workingTaxa.getNtax(), 0);
-			for (var taxon : workingTaxa.getTaxa()) {
-				var tIn = inputTaxa.indexOf(taxon);
-				var tOut = workingTaxa.indexOf(taxon);
-				workingCharacters.copyRow(inputCharacters, tIn, tOut);
+			for (var tOut = 1; tOut <= workingTaxa.getNtax(); tOut++) {
+				workingCharacters.copyRow(inputCharacters, working2input[tOut], tOut);
 				progress.incrementProgress();
 			}
 		} else {
 			workingCharacters.setDimension(workingTaxa.getNtax(), enabledSites.cardinality());
-			for (var taxon : workingTaxa.getTaxa()) {
-				var tIn = inputTaxa.indexOf(taxon);
-				var tOut = workingTaxa.indexOf(taxon);
-				var cOut = 1;
-				for (var cIn : BitSetUtils.members(enabledSites)) {
-					workingCharacters.set(tOut, cOut++, inputCharacters.get(tIn, cIn));
+			final var sites = enabledSites.stream().toArray();
+			final var inputMatrix = inputCharacters.getMatrix();
+			final var matrix = workingCharacters.getMatrix();
+			for (var tOut = 1; tOut <= workingTaxa.getNtax(); tOut++) {
+				final var inputRow = inputMatrix[working2input[tOut] - 1];
+				final var row = matrix[tOut - 1];
+				for (var c = 0; c < sites.length; c++) {
+					row[c] = inputRow[sites[c] - 1];
 				}
 				progress.incrementProgress();
 			}
-
 		}
 		workingCharacters.setDataType(inputCharacters.getDataType());
 
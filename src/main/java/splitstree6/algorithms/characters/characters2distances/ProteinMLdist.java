@@ -27,8 +27,7 @@ import jloda.fx.window.NotificationManager;
 import jloda.util.StringUtils;
 import jloda.util.progress.ProgressListener;
 import splitstree6.algorithms.characters.characters2distances.utils.FixUndefinedDistances;
-import splitstree6.algorithms.characters.characters2distances.utils.PairwiseCompare;
-import splitstree6.algorithms.characters.characters2distances.utils.SaturatedDistancesException;
+import splitstree6.algorithms.characters.characters2distances.utils.ProteinMLDistances;
 import splitstree6.data.CharactersBlock;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
@@ -79,44 +78,13 @@ public class ProteinMLdist extends Characters2Distances {
 
 	@Override
 	public void compute(ProgressListener progress, TaxaBlock taxaBlock, CharactersBlock charactersBlock, DistancesBlock distancesBlock) throws IOException {
-		int ntax = charactersBlock.getNtax();
-		int npairs = ntax * (ntax - 1) / 2;
-
-		distancesBlock.setNtax(ntax);
 		progress.setTasks("Protein ML distance", "Init.");
-		progress.setMaximum(npairs);
 
 		ProteinModel model = selectModel(optionModel.getValue());
 		model.setPinv(this.getOptionPropInvariableSites());
 		model.setGamma(this.getOptionGamma());
 
-        /*if (model == null) {
-            throw new SplitsException("Incorrect model name");
-        }*/
-		var maxValue = 0.0;
-		for (int s = 1; s <= ntax; s++) {
-			for (int t = s + 1; t <= ntax; t++) {
-				final var seqPair = new PairwiseCompare(charactersBlock, s, t);
-				var dist = -1.0;
-
-				//Maximum likelihood distance. Note we want to ignore sites
-				//with the stop codon.
-				try {
-					dist = seqPair.mlDistance(model);
-				} catch (SaturatedDistancesException ignored) {
-				}
-
-				distancesBlock.set(s, t, dist);
-				distancesBlock.set(t, s, dist);
-
-				if (dist != -1.0) {
-					var variance = seqPair.bulmerVariance(dist, 0.93);
-					distancesBlock.setVariance(s, t, variance);
-					distancesBlock.setVariance(t, s, variance);
-				}
-				progress.incrementProgress();
-			}
-		}
+		new ProteinMLDistances(model).compute(progress, charactersBlock, distancesBlock);
 
 		FixUndefinedDistances.apply(distancesBlock);
 		progress.reportTaskCompleted();
@@ -219,10 +219,22 @@ public class PairwiseCompare { // todo: add support for character weights
 
 		int numstates = model.getNstates();
 		double logL = 0.0;
-		for (int i = 0; i < numstates; i++) {
-			for (int j = 0; j < numstates; j++) {
-				if (F[i][j] != 0.0)
-					logL += F[i][j] * Math.log(model.getX(i, j, t));
+		final var transitionProbabilities = model.getTransitionProbabilities();
+		if (transitionProbabilities != null) {
+			final var P = transitionProbabilities.getP(t);
+			for (int i = 0; i < numstates; i++) {
+				final var pi = model.getPi(i);
+				for (int j = 0; j < numstates; j++) {
+					if (F[i][j] != 0.0)
+						logL += F[i][j] * Math.log(pi * P[i][j]);
+				}
+			}
+		} else {
+			for (int i = 0; i < numstates; i++) {
+				for (int j = 0; j < numstates; j++) {
+					if (F[i][j] != 0.0)
+						logL += F[i][j] * Math.log(model.getX(i, j, t));
+				}
 			}
 		}
 		return -logL;
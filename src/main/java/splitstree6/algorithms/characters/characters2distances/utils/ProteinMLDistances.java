@@ -0,0 +1,310 @@
+/*
+ * ProteinMLDistances.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.characters.characters2distances.utils;
+
+import jloda.util.progress.ProgressListener;
+import splitstree6.algorithms.utils.SplitsException;
+import splitstree6.data.CharactersBlock;
+import splitstree6.data.DistancesBlock;
+import splitstree6.models.TransitionProbabilities;
+import splitstree6.models.proteinModels.ProteinModel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+/**
+ * computes maximum likelihood distances and Bulmer variances for all pairs of protein sequences, in parallel.
+ * <p>
+ * Uses the same golden section search as PairwiseCompare.mlDistance, but the likelihood is evaluated from the
+ * transition probabilities of the model, only for the pairs of states that are actually observed, and
+ * the sequences are compressed to site patterns and encoded as state indices once
+ */
+public class ProteinMLDistances {
+	private final int nStates;
+	private final double[] freqs;
+	private final double rate;
+	private final TransitionProbabilities transitionProbabilities;
+
+	/**
+	 * constructor
+	 *
+	 * @param model the protein model, with pinv and gamma set
+	 */
+	public ProteinMLDistances(ProteinModel model) {
+		nStates = model.getNstates();
+		freqs = new double[nStates];
+		for (var i = 0; i < nStates; i++) {
+			freqs[i] = model.getPi(i);
+		}
+		rate = model.getRate();
+		transitionProbabilities = model.getTransitionProbabilities();
+	}
+
+	/**
+	 * compute all pairwise distances and variances. Undefined distances are set to -1
+	 */
+	public void compute(ProgressListener progress, CharactersBlock characters, DistancesBlock distancesBlock) throws IOException {
+		final var patterns = SitePatterns.compute(characters);
+		final var ntax = characters.getNtax();
+
+		distancesBlock.setNtax(ntax);
+		final var distances = distancesBlock.getDistances();
+		final var variances = new double[ntax][ntax];
+		final var hasVariances = new boolean[ntax];
+
+		progress.setMaximum((long) ntax * (ntax - 1) / 2);
+		progress.setProgress(0);
+
+		final var workspace = ThreadLocal.withInitial(() -> new Workspace(patterns.numStates(), nStates));
+
+		// process blocks of rows in parallel, so that progress and cancel can be handled between blocks:
+		final var blockSize = Math.max(1, 4 * Runtime.getRuntime().availableProcessors());
+		var done = 0L;
+		for (var start = 0; start < ntax; start += blockSize) {
+			final var end = Math.min(ntax, start + blockSize);
+			IntStream.range(start, end).parallel().forEach(s -> {
+				final var work = workspace.get();
+				for (var t = s + 1; t < ntax; t++) {
+					final var notMissing = work.count(patterns, s, t);
+					var dist = -1.0;
+					if (notMissing > 0 && work.setupFrequencies()) {
+						dist = mlDistance(work);
+					}
+					distances[s][t] = distances[t][s] = dist;
+					if (dist != -1.0) {
+						variances[s][t] = variances[t][s] = bulmerVariance(dist, 0.93, notMissing);
+						hasVariances[s] = true;
+					}
+				}
+			});
+			for (var s = start; s < end; s++)
+				done += ntax - s - 1;
+			progress.setProgress(done);
+		}
+
+		for (var s = 0; s < ntax; s++) {
+			if (hasVariances[s]) {
+				distancesBlock.setVariances(variances);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * maximum likelihood distance, using the same search as PairwiseCompare.mlDistance
+	 *
+	 * @return distance, or -1, if saturated
+	 */
+	private double mlDistance(Workspace work) {
+		var t = goldenSection(work, 0.00000001, 2.0);
+		if (t == 2.0) {
+			t = goldenSection(work, 2.0, 10.0);
+			if (t == 10.0) {
+				return -1.0;
+			}
+		}
+		return t * rate;
+	}
+
+	/**
+	 * golden section
+	 */
+	private double goldenSection(Workspace work, double tmin, double tmax) {
+		final double GS_EPSILON = 0.000001;
+		final double tau = 2.0 / (1.0 + Math.sqrt(5.0)); //Golden ratio
+
+		double a = tmin;
+		double b = tmax;
+		double aa = a + (1.0 - tau) * (b - a);
+		double bb = a + tau * (b - a);
+		double faa = evalL(work, aa);
+		double fbb = evalL(work, bb);
+
+		while ((b - a) > GS_EPSILON) {
+			if (faa < fbb) {
+				b = bb;
+				bb = aa;
+				fbb = faa;
+				aa = a + (1.0 - tau) * (b - a);
+				faa = evalL(work, aa);
+			} else {
+				a = aa;
+				aa = bb;
+				faa = fbb;
+				bb = a + tau * (b - a);
+				fbb = evalL(work, bb);
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * negative log likelihood of the observed frequencies at time t.
+	 * Uses that X_ij(t) = pi_i P_ij(t) is symmetric, so only pairs i<=j are evaluated
+	 */
+	private double evalL(Workspace work, double t) {
+		final var expD = work.expD;
+		transitionProbabilities.computeExpD(t, expD);
+
+		var logL = 0.0;
+		for (var p = 0; p < work.numObserved; p++) {
+			final var pair = work.observedPairs[p];
+			final var i = pair / nStates;
+			final var x = freqs[i] * transitionProbabilities.getP(i, pair % nStates, expD);
+			logL += work.observedFrequencies[p] * Math.log(x);
+		}
+		return -logL;
+	}
+
+	private static double bulmerVariance(double dist, double b, int numNotMissing) {
+		return (Math.exp(2 * dist / b) * b * (1 - Math.exp(-dist / b)) * (1 - b + b * Math.exp(-dist / b))) / ((double) numNotMissing);
+	}
+
+	/**
+	 * per-thread buffers
+	 */
+	private static class Workspace {
+		private final int size;
+		private final int nStates;
+		private final double[] counts;
+		private final int[] observedPairs;
+		private final double[] observedFrequencies;
+		private int numObserved;
+		private final double[] expD;
+
+		Workspace(int numStates, int nStates) {
+			this.size = numStates + 2;
+			this.nStates = nStates;
+			counts = new double[size * size];
+			observedPairs = new int[nStates * nStates];
+			observedFrequencies = new double[nStates * nStates];
+			expD = new double[nStates];
+		}
+
+		/**
+		 * count pairs of states of two sequences
+		 *
+		 * @return number of sites at which neither sequence has a gap or missing character
+		 */
+		int count(SitePatterns patterns, int s, int t) {
+			Arrays.fill(counts, 0.0);
+			final var rowS = patterns.rows()[s];
+			final var rowT = patterns.rows()[t];
+			final var weights = patterns.weights();
+			final var sites = patterns.sites();
+			final var numStates = patterns.numStates();
+			var notMissing = 0;
+			for (var p = 0; p < weights.length; p++) {
+				final var a = rowS[p];
+				final var b = rowT[p];
+				counts[a * size + b] += weights[p];
+				if (a < numStates && b < numStates)
+					notMissing += sites[p];
+			}
+			return notMissing;
+		}
+
+		/**
+		 * setup the frequencies of observed pairs of model states, symmetrized
+		 *
+		 * @return false, if there are no observed pairs
+		 */
+		boolean setupFrequencies() {
+			var total = 0.0;
+			for (var i = 0; i < nStates; i++) {
+				for (var j = 0; j < nStates; j++) {
+					total += counts[i * size + j];
+				}
+			}
+			numObserved = 0;
+			if (total <= 0)
+				return false;
+			for (var i = 0; i < nStates; i++) {
+				for (var j = i; j < nStates; j++) {
+					final var value = (i == j ? counts[i * size + i] : counts[i * size + j] + counts[j * size + i]);
+					if (value != 0.0) {
+						observedPairs[numObserved] = i * nStates + j;
+						observedFrequencies[numObserved++] = value / total;
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * the distinct site patterns of an alignment, encoded as state indices, with gap=numStates and missing=numStates+1
+	 *
+	 * @param rows      encoded sequences, 0-based
+	 * @param weights   sum of character weights of all sites with the pattern
+	 * @param sites     number of sites with the pattern
+	 * @param numStates number of states
+	 */
+	private record SitePatterns(byte[][] rows, double[] weights, int[] sites, int numStates) {
+		static SitePatterns compute(CharactersBlock characters) throws SplitsException {
+			final var states = characters.getSymbols();
+			final var numStates = states.length();
+			if (numStates + 2 > Byte.MAX_VALUE)
+				throw new SplitsException("Too many states: " + numStates);
+			final var gapChar = characters.getGapCharacter();
+			final var missingChar = characters.getMissingCharacter();
+			final var ntax = characters.getNtax();
+			final var nchar = characters.getNchar();
+
+			final var code = new byte[Character.MAX_VALUE + 1];
+			Arrays.fill(code, (byte) -1);
+			for (var i = 0; i < numStates; i++) {
+				if (code[states.charAt(i)] == -1)
+					code[states.charAt(i)] = (byte) i;
+			}
+			code[missingChar] = (byte) (numStates + 1);
+			code[gapChar] = (byte) numStates;
+
+			final var pattern2index = new HashMap<String, Integer>();
+			final var siteToPattern = new int[nchar];
+			final var column = new char[ntax];
+			for (var k = 1; k <= nchar; k++) {
+				for (var t = 1; t <= ntax; t++) {
+					final var ch = characters.get(t, k);
+					if (code[ch] == -1)
+						throw new SplitsException("Position " + k + " for taxa " + t + ": invalid character '" + ch + "'");
+					column[t - 1] = (char) code[ch];
+				}
+				siteToPattern[k - 1] = pattern2index.computeIfAbsent(new String(column), key -> pattern2index.size());
+			}
+
+			final var npatterns = pattern2index.size();
+			final var rows = new byte[ntax][npatterns];
+			final var weights = new double[npatterns];
+			final var sites = new int[npatterns];
+			for (var k = 1; k <= nchar; k++) {
+				final var p = siteToPattern[k - 1];
+				if (sites[p]++ == 0) {
+					for (var t = 1; t <= ntax; t++)
+						rows[t - 1][p] = code[characters.get(t, k)];
+				}
+				weights[p] += characters.getCharacterWeight(k);
+			}
+			return new SitePatterns(rows, weights, sites, numStates);
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * EncodedHaplotypes.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.characters.characters2network;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * a set of haplotypes (condensed sequences), encoded as bit planes: each state is given a small code per position and bit p of the
+ * codes of all positions is stored in plane p, 64 positions per word. This allows comparisons and quasi-medians to be computed
+ * on whole words.
+ * <p>
+ * Every haplotype ever added keeps its id and is found by hash, and distances to all other haplotypes are computed once, when
+ * it is added. Haplotypes can be removed from and re-added to the current set
+ */
+public class EncodedHaplotypes {
+	private final int length;
+	private final int words;
+	private final int planes;
+	private final char[][] alphabet;
+	private final long[] validMask;
+	private final double[] classWeights;
+	private final long[][] classMasks;
+
+	private final ArrayList<long[]> encoded = new ArrayList<>();
+	private final ArrayList<double[]> distances = new ArrayList<>();
+	private final HashMap<Key, Integer> key2id = new HashMap<>();
+	private final BitSet present = new BitSet();
+	private final BitSet input = new BitSet();
+	private int numComputed = 0;
+
+	/**
+	 * constructor
+	 *
+	 * @param sequences the input sequences, all of the same length
+	 * @param weights   weights for positions, or null
+	 */
+	public EncodedHaplotypes(Collection<String> sequences, double[] weights) {
+		length = (sequences.isEmpty() ? 0 : sequences.iterator().next().length());
+		words = Math.max(1, (length + 63) >>> 6);
+
+		alphabet = new char[length][];
+		var maxStates = 1;
+		for (var pos = 0; pos < length; pos++) {
+			var states = new StringBuilder();
+			for (var sequence : sequences) {
+				final var ch = sequence.charAt(pos);
+				if (states.indexOf(String.valueOf(ch)) == -1)
+					states.append(ch);
+			}
+			alphabet[pos] = states.toString().toCharArray();
+			maxStates = Math.max(maxStates, alphabet[pos].length);
+		}
+		planes = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxStates - 1));
+
+		validMask = new long[words];
+		for (var pos = 0; pos < length; pos++)
+			validMask[pos >>> 6] |= 1L << pos;
+
+		// positions with the same weight are grouped, so that a weighted distance is a few popcounts per word
+		var weight2positions = new TreeMap<Double, long[]>();
+		for (var pos = 0; pos < length; pos++) {
+			final var weight = (weights != null ? weights[pos] : 1.0);
+			weight2positions.computeIfAbsent(weight, k -> new long[words])[pos >>> 6] |= 1L << pos;
+		}
+		classWeights = new double[weight2positions.size()];
+		classMasks = new long[weight2positions.size()][];
+		var c = 0;
+		for (var entry : weight2positions.entrySet()) {
+			classWeights[c] = entry.getKey();
+			classMasks[c++] = entry.getValue();
+		}
+
+		for (var sequence : sequences) {
+			input.set(add(encode(sequence)));
+		}
+		updateDistances();
+	}
+
+	/**
+	 * encode a sequence
+	 */
+	public long[] encode(String sequence) {
+		final var bits = new long[planes * words];
+		for (var pos = 0; pos < length; pos++) {
+			final var ch = sequence.charAt(pos);
+			var code = 0;
+			while (alphabet[pos][code] != ch)
+				code++;
+			setCode(bits, pos, code);
+		}
+		return bits;
+	}
+
+	/**
+	 * decode a haplotype
+	 */
+	public String decode(int id) {
+		final var bits = encoded.get(id);
+		final var buf = new StringBuilder(length);
+		for (var pos = 0; pos < length; pos++) {
+			buf.append(alphabet[pos][getCode(bits, pos)]);
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * adds a haplotype to the current set. Call updateDistances() before accessing distances of new haplotypes
+	 *
+	 * @return its id
+	 */
+	public int add(long[] bits) {
+		final var id = key2id.computeIfAbsent(new Key(bits), k -> {
+			encoded.add(bits);
+			return encoded.size() - 1;
+		});
+		present.set(id);
+		return id;
+	}
+
+	/**
+	 * removes a haplotype from the current set, it keeps its id and distances
+	 */
+	public void remove(int id) {
+		present.clear(id);
+	}
+
+	/**
+	 * is the given haplotype contained in the current set?
+	 */
+	public boolean contains(long[] bits) {
+		final var id = key2id.get(new Key(bits));
+		return id != null && present.get(id);
+	}
+
+	public boolean isInput(int id) {
+		return input.get(id);
+	}
+
+	/**
+	 * gets the ids of the current set, in ascending order
+	 */
+	public int[] getIds() {
+		return present.stream().toArray();
+	}
+
+	/**
+	 * gets the number of ids whose distances have been computed, these are 0..n-1
+	 */
+	public int getNumberOfIds() {
+		return numComputed;
+	}
+
+	public long[] getEncoded(int id) {
+		return encoded.get(id);
+	}
+
+	/**
+	 * computes the distances from all newly added haplotypes to all others, in parallel
+	 */
+	public void updateDistances() {
+		final var first = numComputed;
+		final var last = encoded.size();
+		for (var i = first; i < last; i++)
+			distances.add(null);
+		IntStream.range(first, last).parallel().forEach(i -> {
+			final var row = new double[i];
+			final var bits = encoded.get(i);
+			for (var j = 0; j < i; j++)
+				row[j] = distance(bits, encoded.get(j));
+			distances.set(i, row);
+		});
+		numComputed = last;
+	}
+
+	/**
+	 * gets the weighted distance between two haplotypes
+	 */
+	public double getDistance(int i, int j) {
+		if (i == j)
+			return 0;
+		else if (i > j)
+			return distances.get(i)[j];
+		else
+			return distances.get(j)[i];
+	}
+
+	/**
+	 * computes the weighted number of positions at which two haplotypes differ
+	 */
+	public double distance(long[] a, long[] b) {
+		var cost = 0.0;
+		for (var w = 0; w < words; w++) {
+			final var diff = differences(a, b, w);
+			if (diff != 0) {
+				for (var c = 0; c < classWeights.length; c++) {
+					cost += classWeights[c] * Long.bitCount(diff & classMasks[c][w]);
+				}
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * computes the quasi-medians of three haplotypes: at each position, the majority state, or, if all three differ,
+	 * each of the three states
+	 *
+	 * @return all quasi-medians
+	 */
+	public Collection<long[]> computeQuasiMedians(long[] a, long[] b, long[] c) {
+		final var median = new long[planes * words];
+		var stars = new ArrayList<Integer>();
+		for (var w = 0; w < words; w++) {
+			final var eqAB = ~differences(a, b, w);
+			final var eqAC = ~differences(a, c, w);
+			final var eqBC = ~differences(b, c, w);
+			final var useA = (eqAB | eqAC) & validMask[w];
+			final var useB = eqBC & ~useA & validMask[w];
+			for (var p = 0; p < planes; p++) {
+				final var k = p * words + w;
+				median[k] = (a[k] & useA) | (b[k] & useB);
+			}
+			for (var star = validMask[w] & ~(useA | useB); star != 0; star &= star - 1) {
+				stars.add((w << 6) + Long.numberOfTrailingZeros(star));
+			}
+		}
+		if (stars.isEmpty())
+			return List.of(median);
+
+		final var result = new HashMap<Key, long[]>();
+		expandStars(median, stars, 0, a, b, c, result);
+		return result.values();
+	}
+
+	private void expandStars(long[] median, List<Integer> stars, int which, long[] a, long[] b, long[] c, Map<Key, long[]> result) {
+		if (which == stars.size()) {
+			final var copy = median.clone();
+			result.put(new Key(copy), copy);
+		} else {
+			final var pos = stars.get(which);
+			for (var source : new long[][]{a, b, c}) {
+				setCode(median, pos, getCode(source, pos));
+				expandStars(median, stars, which + 1, a, b, c, result);
+			}
+		}
+	}
+
+	private long differences(long[] a, long[] b, int w) {
+		var diff = 0L;
+		for (var p = 0; p < planes; p++) {
+			final var k = p * words + w;
+			diff |= a[k] ^ b[k];
+		}
+		return diff;
+	}
+
+	private int getCode(long[] bits, int pos) {
+		final var w = pos >>> 6;
+		var code = 0;
+		for (var p = 0; p < planes; p++) {
+			if ((bits[p * words + w] & (1L << pos)) != 0)
+				code |= 1 << p;
+		}
+		return code;
+	}
+
+	private void setCode(long[] bits, int pos, int code) {
+		final var w = pos >>> 6;
+		for (var p = 0; p < planes; p++) {
+			if ((code & (1 << p)) != 0)
+				bits[p * words + w] |= 1L << pos;
+			else
+				bits[p * words + w] &= ~(1L << pos);
+		}
+	}
+
+	/**
+	 * hash key for an encoded haplotype
+	 */
+	private record Key(long[] bits) {
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key that && Arrays.equals(bits, that.bits);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(bits);
+		}
+	}
+}
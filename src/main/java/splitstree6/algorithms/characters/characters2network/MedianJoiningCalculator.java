@@ -19,16 +19,18 @@
 
 package splitstree6.algorithms.characters.characters2network;
 
-import jloda.graph.Edge;
-import jloda.graph.EdgeSet;
 import jloda.graph.Node;
-import jloda.graph.NodeSet;
 import jloda.phylo.PhyloGraph;
 import jloda.util.CanceledException;
-import jloda.util.Pair;
 import jloda.util.progress.ProgressListener;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Median Joining Algorithm
@@ -42,210 +44,172 @@ public class MedianJoiningCalculator extends QuasiMedianBase {
 	 */
 	public void computeGraph(ProgressListener progressListener, Set<String> inputSequences, double[] weights, PhyloGraph graph) throws CanceledException {
 		System.err.println("Computing the median joining network for epsilon=" + getOptionEpsilon());
-		var outputSequences = new HashSet<String>();
-		computeMedianJoiningMainLoop(progressListener, inputSequences, weights, getOptionEpsilon(), outputSequences);
+		var haplotypes = new EncodedHaplotypes(inputSequences, weights);
+		var pairs = new SortedPairs();
+		computeMedianJoiningMainLoop(progressListener, haplotypes, pairs, getOptionEpsilon());
 
-		var feasibleLinks = new EdgeSet(graph);
-		boolean changed;
+		Network network;
 		do {
-			graph.clear();
-			feasibleLinks.clear();
-			computeMinimumSpanningNetwork(outputSequences, weights, 0, graph, feasibleLinks);
-			for (var e : graph.edges()) {
-				if (!feasibleLinks.contains(e))
-					graph.deleteEdge(e);
-			}
-			changed = removeObsoleteNodes(graph, inputSequences, outputSequences, feasibleLinks);
+			network = computeMinimumSpanningNetwork(progressListener, haplotypes, pairs, 0);
 			progressListener.incrementProgress();
 		}
-		while (changed);
+		while (removeObsoleteNodes(haplotypes, network));
+
+		graph.clear();
+		var nodes = new Node[network.ids().length];
+		for (var i = 0; i < nodes.length; i++) {
+			var sequence = haplotypes.decode(network.ids()[i]);
+			nodes[i] = graph.newNode(sequence);
+			graph.setLabel(nodes[i], sequence);
+		}
+		for (var e = 0; e < network.numEdges(); e++) {
+			if (network.feasible()[e]) {
+				var edge = graph.newEdge(nodes[network.sources()[e]], nodes[network.targets()[e]]);
+				graph.setWeight(edge, network.weights()[e]);
+			}
+		}
 	}
 
 	/**
 	 * Main loop of the median joining algorithm
 	 */
-	private void computeMedianJoiningMainLoop(ProgressListener progress, Set<String> input, double[] weights, int epsilon, Set<String> outputSequences) throws CanceledException {
-		outputSequences.addAll(input);
-
+	private void computeMedianJoiningMainLoop(ProgressListener progress, EncodedHaplotypes haplotypes, SortedPairs pairs, int epsilon) throws CanceledException {
 		boolean changed = true;
 		while (changed) {
-			System.err.println("Median joining: " + outputSequences.size() + " sequences");
 			progress.incrementProgress();
 			changed = false;
 
-			var graph = new PhyloGraph();
-			var feasibleLinks = new EdgeSet(graph);
-
-			computeMinimumSpanningNetwork(outputSequences, weights, epsilon, graph, feasibleLinks);
+			var network = computeMinimumSpanningNetwork(progress, haplotypes, pairs, epsilon);
 
-			if (removeObsoleteNodes(graph, input, outputSequences, feasibleLinks)) {
+			if (removeObsoleteNodes(haplotypes, network)) {
 				changed = true;   // sequences have been changed, recompute graph
 			} else {
-				// determine min connection cost:
-				double minConnectionCost = Double.POSITIVE_INFINITY;
-
-				for (var u : graph.nodes()) {
-					var seqU = (String) u.getInfo();
-					for (Edge e = u.getFirstAdjacentEdge(); e != null; e = u.getNextAdjacentEdge(e)) {
-						Node v = e.getOpposite(u);
-						String seqV = (String) v.getInfo();
-						for (Edge f = u.getNextAdjacentEdge(e); f != null; f = u.getNextAdjacentEdge(f)) {
-							Node w = f.getOpposite(u);
-							String seqW = (String) w.getInfo();
-							String[] qm = computeQuasiMedian(seqU, seqV, seqW);
-							for (String aQm : qm) {
-								if (!outputSequences.contains(aQm)) {
-									double cost = computeConnectionCost(seqU, seqV, seqW, aQm, weights);
-									if (cost < minConnectionCost)
-										minConnectionCost = cost;
+				var ids = network.ids();
+
+				// determine min connection cost over all pairs of adjacent edges:
+				var allAdjacent = network.adjacency(false);
+				var minConnectionCost = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+				forEachInParallel(progress, ids.length, u -> {
+					var neighbors = allAdjacent[u];
+					for (var a = 0; a < neighbors.length; a++) {
+						for (var b = a + 1; b < neighbors.length; b++) {
+							var seqU = haplotypes.getEncoded(ids[u]);
+							var seqV = haplotypes.getEncoded(ids[neighbors[a]]);
+							var seqW = haplotypes.getEncoded(ids[neighbors[b]]);
+							for (var qm : haplotypes.computeQuasiMedians(seqU, seqV, seqW)) {
+								if (!haplotypes.contains(qm)) {
+									minConnectionCost.accumulate(computeConnectionCost(haplotypes, seqU, seqV, seqW, qm));
 								}
 							}
 						}
-						progress.checkForCancel();
 					}
-				}
-				for (var e : feasibleLinks) {
-					final var u = e.getSource();
-					final var v = e.getTarget();
-					final var seqU = (String) u.getInfo();
-					final var seqV = (String) v.getInfo();
-					for (var f : feasibleLinks.successors(e)) {
-						Node w;
-						if (f.getSource() == u || f.getSource() == v)
-							w = f.getTarget();
-						else if (f.getTarget() == u || f.getTarget() == v)
-							w = f.getSource();
-						else
-							continue;
-						var seqW = (String) w.getInfo();
-						String[] qm = computeQuasiMedian(seqU, seqV, seqW);
-						for (var aQm : qm) {
-							if (!outputSequences.contains(aQm)) {
-								double cost = computeConnectionCost(seqU, seqV, seqW, aQm, weights);
-								if (cost <= minConnectionCost + epsilon) {
-									outputSequences.add(aQm);
-									changed = true;
+				});
+
+				// add all quasi-medians of pairs of adjacent feasible links that are within epsilon of the min cost:
+				var feasibleAdjacent = network.adjacency(true);
+				var threshold = minConnectionCost.get() + epsilon;
+				var toAdd = new ConcurrentLinkedQueue<long[]>();
+				forEachInParallel(progress, ids.length, u -> {
+					var neighbors = feasibleAdjacent[u];
+					for (var a = 0; a < neighbors.length; a++) {
+						for (var b = a + 1; b < neighbors.length; b++) {
+							var seqU = haplotypes.getEncoded(ids[u]);
+							var seqV = haplotypes.getEncoded(ids[neighbors[a]]);
+							var seqW = haplotypes.getEncoded(ids[neighbors[b]]);
+							for (var qm : haplotypes.computeQuasiMedians(seqU, seqV, seqW)) {
+								if (!haplotypes.contains(qm) && computeConnectionCost(haplotypes, seqU, seqV, seqW, qm) <= threshold) {
+									toAdd.add(qm);
 								}
 							}
 						}
 					}
-					progress.checkForCancel();
+				});
+				for (var qm : toAdd) {
+					if (!haplotypes.contains(qm)) {
+						haplotypes.add(qm);
+						changed = true;
+					}
 				}
+				haplotypes.updateDistances();
 			}
 		}
 	}
 
 	/**
-	 * computes the minimum spanning network upto a tolerance of epsilon
+	 * computes the minimum spanning network upto a tolerance of epsilon, on the current set of haplotypes.
+	 * Edges of the same length are processed together, in ascending order of lengths. The sorted pairs are
+	 * updated incrementally, so only pairs involving haplotypes added since the previous call are sorted
 	 */
-	private void computeMinimumSpanningNetwork(Set<String> sequences, double[] weights, int epsilon, PhyloGraph graph, EdgeSet feasibleLinks) {
-		var array = sequences.toArray(new String[0]);
-		// compute a distance matrix between all sequences:
-		var matrix = new double[array.length][array.length];
-
-		var value2pairs = new TreeMap<Double, List<Pair<Integer, Integer>>>();
-
-		for (var i = 0; i < array.length; i++) {
-			for (var j = i + 1; j < array.length; j++) {
-				matrix[i][j] = computeDistance(array[i], array[j], weights);
-				var value = matrix[i][j];
-				var pairs = value2pairs.computeIfAbsent(value, k -> new LinkedList<>());
-				pairs.add(new Pair<>(i, j));
+	private Network computeMinimumSpanningNetwork(ProgressListener progress, EncodedHaplotypes haplotypes, SortedPairs pairs, int epsilon) throws CanceledException {
+		pairs.update(haplotypes);
+		progress.checkForCancel();
+
+		var ids = haplotypes.getIds();
+		var n = ids.length;
+
+		var global2local = new int[pairs.numIds()];
+		Arrays.fill(global2local, -1);
+		for (var i = 0; i < n; i++)
+			global2local[ids[i]] = i;
+
+		// pairs i<j of current haplotypes, sorted by distance and then lexicographically, as ids are in ascending order:
+		var npairs = n * (n - 1) / 2;
+		var sources = new int[npairs];
+		var targets = new int[npairs];
+		var pairDistances = new double[npairs];
+		var count = 0;
+		for (var p = 0; p < pairs.size(); p++) {
+			var i = global2local[pairs.first(p)];
+			var j = global2local[pairs.second(p)];
+			if (i != -1 && j != -1) {
+				sources[count] = i;
+				targets[count] = j;
+				pairDistances[count++] = pairs.distance(p);
 			}
 		}
+		progress.checkForCancel();
 
-		var nodes = new Node[array.length];
-		var componentsOfMSN = new int[array.length];
-		var componentsOfThresholdGraph = new int[array.length];
-
-		for (var i = 0; i < array.length; i++) {
-			nodes[i] = graph.newNode(array[i]);
-			graph.setLabel(nodes[i], array[i]);
-			componentsOfMSN[i] = i;
-			componentsOfThresholdGraph[i] = i;
-		}
+		var componentsOfMSN = new UnionFind(n);
+		var componentsOfThresholdGraph = new UnionFind(n);
+		var numComponentsMSN = n;
 
-		var numComponentsMSN = array.length;
+		var network = new Network(ids);
+		var thresholdPointer = 0;
 
 		// TODO: This implementation of the minimum spanning network is wrong, add only edges between different connected components
 
 		var maxValue = Double.POSITIVE_INFINITY;
-		// all sets of edges in ascending order of lengths
-		for (var value : value2pairs.keySet()) {
+		for (var start = 0; start < count; ) {
+			var value = pairDistances[start];
 			if (value > maxValue)
 				break;
-			var ijPairs = value2pairs.get(value);
+			var end = start + 1;
+			while (end < count && pairDistances[end] == value)
+				end++;
 
 			// update threshold graph components:
-			for (int i = 0; i < array.length; i++) {
-				for (int j = i + 1; j < array.length; j++) {
-					if (componentsOfThresholdGraph[i] != componentsOfThresholdGraph[j] && matrix[i][j] < value - epsilon) {
-						int oldComponent = componentsOfThresholdGraph[i];
-						int newComponent = componentsOfThresholdGraph[j];
-						for (int k = 0; k < array.length; k++) {
-							if (componentsOfThresholdGraph[k] == oldComponent)
-								componentsOfThresholdGraph[k] = newComponent;
-						}
-					}
-				}
+			while (thresholdPointer < count && pairDistances[thresholdPointer] < value - epsilon) {
+				componentsOfThresholdGraph.union(sources[thresholdPointer], targets[thresholdPointer]);
+				thresholdPointer++;
 			}
 
 			// determine new edges for minimum spanning network and determine feasible links
-			var newPairs = new ArrayList<Pair<Integer, Integer>>();
-			for (var ijPair : ijPairs) {
-				var i = ijPair.getFirst();
-				var j = ijPair.getSecond();
-
-				var e = graph.newEdge(nodes[i], nodes[j]);
-				graph.setWeight(e, matrix[i][j]);
-
-				if (feasibleLinks != null && componentsOfThresholdGraph[i] != componentsOfThresholdGraph[j]) {
-					feasibleLinks.add(e);
-					if (false)
-						System.err.println("ERROR nodes are connected: " + i + ", " + j);
-				}
-				newPairs.add(new Pair<>(i, j));
+			for (var k = start; k < end; k++) {
+				var i = sources[k];
+				var j = targets[k];
+				network.addEdge(i, j, value, componentsOfThresholdGraph.find(i) != componentsOfThresholdGraph.find(j));
 			}
 
 			// update MSN components
-			for (var pair : newPairs) {
-				var i = pair.getFirst();
-				var j = pair.getSecond();
-				if (componentsOfMSN[i] != componentsOfMSN[j]) {
+			for (var k = start; k < end; k++) {
+				if (componentsOfMSN.union(sources[k], targets[k]))
 					numComponentsMSN--;
-					var oldComponent = componentsOfMSN[i];
-					var newComponent = componentsOfMSN[j];
-					for (var k = 0; k < array.length; k++)
-						if (componentsOfMSN[k] == oldComponent)
-							componentsOfMSN[k] = newComponent;
-				}
 			}
 			if (numComponentsMSN == 1 && maxValue == Double.POSITIVE_INFINITY)
 				maxValue = value + epsilon; // once network is connected, add all edges upto threshold+epsilon
+			start = end;
 		}
-	}
-
-	/**
-	 * determine whether v and target are connected by a chain of edges all of weight-threshold. Use for debugging
-	 *
-	 * @return true, if connected
-	 */
-	private boolean areConnected(PhyloGraph graph, Node v, Node target, NodeSet visited, double threshold) {
-		if (v == target)
-			return true;
-
-		if (!visited.contains(v)) {
-			visited.add(v);
-
-			for (var e : v.adjacentEdges()) {
-				if (graph.getWeight(e) < threshold) {
-					var w = e.getOpposite(v);
-					if (areConnected(graph, w, target, visited, threshold))
-						return true;
-				}
-			}
-		}
-		return false;
+		return network;
 	}
 
 	/**
@@ -253,114 +217,282 @@ public class MedianJoiningCalculator extends QuasiMedianBase {
 	 *
 	 * @return true, if anything was removed
 	 */
-	private boolean removeObsoleteNodes(PhyloGraph graph, Set<String> input, Set<String> sequences, EdgeSet feasibleLinks) {
+	private boolean removeObsoleteNodes(EncodedHaplotypes haplotypes, Network network) {
+		var ids = network.ids();
+		var deleted = new boolean[ids.length];
 		var removed = 0;
 		var changed = true;
 		while (changed) {
 			changed = false;
-			var toDelete = new ArrayList<Node>();
-
-			for (var v : graph.nodes()) {
-				var seqV = (String) v.getInfo();
-				if (!input.contains(seqV)) {
-					int count = 0;
-					for (Edge e = v.getFirstAdjacentEdge(); count <= 2 && e != null; e = v.getNextAdjacentEdge(e)) {
-						if (feasibleLinks.contains(e))
-							count++;
-					}
-					if (count <= 2)
-						toDelete.add(v);
+			var count = new int[ids.length];
+			for (var e = 0; e < network.numEdges(); e++) {
+				var i = network.sources()[e];
+				var j = network.targets()[e];
+				if (network.feasible()[e] && !deleted[i] && !deleted[j]) {
+					count[i]++;
+					count[j]++;
 				}
 			}
+			var toDelete = new ArrayList<Integer>();
+			for (var i = 0; i < ids.length; i++) {
+				if (!deleted[i] && !haplotypes.isInput(ids[i]) && count[i] <= 2)
+					toDelete.add(i);
+			}
 			if (toDelete.size() > 0) {
 				changed = true;
 				removed += toDelete.size();
-				for (var v : toDelete) {
-					sequences.remove((String) v.getInfo());
-					graph.deleteNode(v);
+				for (var i : toDelete) {
+					deleted[i] = true;
+					haplotypes.remove(ids[i]);
 				}
 			}
 		}
 		return removed > 0;
 	}
 
-
 	/**
 	 * compute the cost of connecting seqM to the other three sequences
 	 *
 	 * @return cost
 	 */
-	private double computeConnectionCost(String seqU, String seqV, String seqW, String seqM, double[] weights) {
-		return computeDistance(seqU, seqM, weights) + computeDistance(seqV, seqM, weights) + computeDistance(seqW, seqM, weights);
+	private static double computeConnectionCost(EncodedHaplotypes haplotypes, long[] seqU, long[] seqV, long[] seqW, long[] seqM) {
+		return haplotypes.distance(seqU, seqM) + haplotypes.distance(seqV, seqM) + haplotypes.distance(seqW, seqM);
 	}
 
 	/**
-	 * compute weighted distance between two sequences
-	 *
-	 * @return distance
+	 * runs the consumer on all nodes in parallel, in chunks, checking for cancel between chunks
 	 */
-	private double computeDistance(String seqA, String seqB, double[] weights) {
-		double cost = 0;
-		for (int i = 0; i < seqA.length(); i++) {
-			if (seqA.charAt(i) != seqB.charAt(i))
-				if (weights != null)
-					cost += weights[i];
-				else
-					cost++;
+	private static void forEachInParallel(ProgressListener progress, int n, IntConsumer consumer) throws CanceledException {
+		final var chunkSize = 256;
+		for (var start = 0; start < n; start += chunkSize) {
+			IntStream.range(start, Math.min(n, start + chunkSize)).parallel().forEach(consumer);
+			progress.checkForCancel();
 		}
-		return cost;
 	}
 
+	public int getOptionEpsilon() {
+		return optionEpsilon;
+	}
+
+	public void setOptionEpsilon(int optionEpsilon) {
+		this.optionEpsilon = optionEpsilon;
+	}
 
 	/**
-	 * computes the quasi median for three sequences
-	 *
-	 * @return quasi median
+	 * edges of a minimum spanning network, on nodes 0..ids.length-1
 	 */
-	private String[] computeQuasiMedian(String seqA, String seqB, String seqC) {
-		var buf = new StringBuilder();
-		var hasStar = false;
-		for (var i = 0; i < seqA.length(); i++) {
-			if (seqA.charAt(i) == seqB.charAt(i) || seqA.charAt(i) == seqC.charAt(i))
-				buf.append(seqA.charAt(i));
-			else if (seqB.charAt(i) == seqC.charAt(i))
-				buf.append(seqB.charAt(i));
-			else {
-				buf.append("*");
-				hasStar = true;
+	private static class Network {
+		private final int[] ids;
+		private int[] sources = new int[16];
+		private int[] targets = new int[16];
+		private double[] weights = new double[16];
+		private boolean[] feasible = new boolean[16];
+		private int numEdges = 0;
+
+		Network(int[] ids) {
+			this.ids = ids;
+		}
+
+		void addEdge(int i, int j, double weight, boolean isFeasible) {
+			if (numEdges == sources.length) {
+				var capacity = 2 * numEdges;
+				sources = Arrays.copyOf(sources, capacity);
+				targets = Arrays.copyOf(targets, capacity);
+				weights = Arrays.copyOf(weights, capacity);
+				feasible = Arrays.copyOf(feasible, capacity);
 			}
+			sources[numEdges] = i;
+			targets[numEdges] = j;
+			weights[numEdges] = weight;
+			feasible[numEdges++] = isFeasible;
 		}
-		if (!hasStar)
-			return new String[]{buf.toString()};
-
-		var median = new HashSet<String>();
-		var stack = new Stack<String>();
-		stack.add(buf.toString());
-		while (!stack.empty()) {
-			var seq = stack.pop();
-			var pos = seq.indexOf('*');
-			var pos2 = seq.indexOf('*', pos + 1);
-			var first = seq.substring(0, pos) + seqA.charAt(pos) + seq.substring(pos + 1);
-			var second = seq.substring(0, pos) + seqB.charAt(pos) + seq.substring(pos + 1);
-			var third = seq.substring(0, pos) + seqC.charAt(pos) + seq.substring(pos + 1);
-			if (pos2 == -1) {
-				median.add(first);
-				median.add(second);
-				median.add(third);
-			} else {
-				stack.add(first);
-				stack.add(second);
-				stack.add(third);
+
+		/**
+		 * gets the neighbors of all nodes, in order of edge creation
+		 */
+		int[][] adjacency(boolean feasibleOnly) {
+			var degree = new int[ids.length];
+			for (var e = 0; e < numEdges; e++) {
+				if (!feasibleOnly || feasible[e]) {
+					degree[sources[e]]++;
+					degree[targets[e]]++;
+				}
+			}
+			var adjacency = new int[ids.length][];
+			for (var i = 0; i < ids.length; i++)
+				adjacency[i] = new int[degree[i]];
+			Arrays.fill(degree, 0);
+			for (var e = 0; e < numEdges; e++) {
+				if (!feasibleOnly || feasible[e]) {
+					adjacency[sources[e]][degree[sources[e]]++] = targets[e];
+					adjacency[targets[e]][degree[targets[e]]++] = sources[e];
+				}
 			}
+			return adjacency;
+		}
+
+		int[] ids() {
+			return ids;
+		}
+
+		int[] sources() {
+			return sources;
+		}
+
+		int[] targets() {
+			return targets;
+		}
+
+		double[] weights() {
+			return weights;
+		}
+
+		boolean[] feasible() {
+			return feasible;
+		}
+
+		int numEdges() {
+			return numEdges;
 		}
-		return median.toArray(new String[0]);
 	}
 
-	public int getOptionEpsilon() {
-		return optionEpsilon;
+	/**
+	 * all pairs of haplotype ids whose distances have been computed, sorted by distance and then lexicographically.
+	 * Haplotypes keep their ids when removed, so the pairs are kept between computations of the minimum spanning network:
+	 * pairs involving newly added haplotypes are sorted on their own and merged in, and pairs involving haplotypes that
+	 * are not currently present are skipped by the caller
+	 */
+	private static class SortedPairs {
+		private long[] keys = new long[0];
+		private double[] distances = new double[0];
+		private int numIds = 0;
+
+		/**
+		 * adds all pairs involving haplotypes whose distances have been computed since the last update
+		 */
+		void update(EncodedHaplotypes haplotypes) {
+			final var total = haplotypes.getNumberOfIds();
+			final var first = numIds;
+			if (total <= first)
+				return;
+
+			// new pairs, in lexicographic order:
+			final var rowStart = new int[total];
+			var count = 0L;
+			for (var i = 0; i < total; i++) {
+				rowStart[i] = (int) count;
+				count += total - Math.max(i + 1, first);
+			}
+			final var m = Math.toIntExact(count);
+			final var newKeys = new long[m];
+			final var newDistances = new double[m];
+			IntStream.range(0, total).parallel().forEach(i -> {
+				var k = rowStart[i];
+				for (var j = Math.max(i + 1, first); j < total; j++) {
+					newKeys[k] = ((long) i << 32) | j;
+					newDistances[k++] = haplotypes.getDistance(i, j);
+				}
+			});
+
+			// sort new pairs by distance, keeping the lexicographic order of pairs of the same distance:
+			var values = newDistances.clone();
+			Arrays.parallelSort(values);
+			var numValues = 0;
+			for (var k = 0; k < values.length; k++) {
+				if (k == 0 || values[k] != values[numValues - 1])
+					values[numValues++] = values[k];
+			}
+			var next = new int[numValues + 1];
+			var bucketOfPair = new int[m];
+			for (var p = 0; p < m; p++) {
+				bucketOfPair[p] = Arrays.binarySearch(values, 0, numValues, newDistances[p]);
+				next[bucketOfPair[p] + 1]++;
+			}
+			for (var b = 0; b < numValues; b++)
+				next[b + 1] += next[b];
+			var sortedKeys = new long[m];
+			for (var p = 0; p < m; p++)
+				sortedKeys[next[bucketOfPair[p]]++] = newKeys[p];
+			var sortedDistances = new double[m];
+			for (var p = 0; p < m; p++)
+				sortedDistances[p] = haplotypes.getDistance((int) (sortedKeys[p] >>> 32), (int) sortedKeys[p]);
+
+			// merge with previous pairs:
+			var mergedKeys = new long[keys.length + m];
+			var mergedDistances = new double[keys.length + m];
+			var a = 0;
+			var b = 0;
+			var c = 0;
+			while (a < keys.length && b < m) {
+				if (distances[a] < sortedDistances[b] || (distances[a] == sortedDistances[b] && keys[a] < sortedKeys[b])) {
+					mergedKeys[c] = keys[a];
+					mergedDistances[c++] = distances[a++];
+				} else {
+					mergedKeys[c] = sortedKeys[b];
+					mergedDistances[c++] = sortedDistances[b++];
+				}
+			}
+			System.arraycopy(keys, a, mergedKeys, c, keys.length - a);
+			System.arraycopy(distances, a, mergedDistances, c, keys.length - a);
+			c += keys.length - a;
+			System.arraycopy(sortedKeys, b, mergedKeys, c, m - b);
+			System.arraycopy(sortedDistances, b, mergedDistances, c, m - b);
+			keys = mergedKeys;
+			distances = mergedDistances;
+			numIds = total;
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		int numIds() {
+			return numIds;
+		}
+
+		int first(int p) {
+			return (int) (keys[p] >>> 32);
+		}
+
+		int second(int p) {
+			return (int) keys[p];
+		}
+
+		double distance(int p) {
+			return distances[p];
+		}
 	}
 
-	public void setOptionEpsilon(int optionEpsilon) {
-		this.optionEpsilon = optionEpsilon;
+	/**
+	 * union-find with path halving
+	 */
+	private static class UnionFind {
+		private final int[] parent;
+
+		UnionFind(int n) {
+			parent = new int[n];
+			for (var i = 0; i < n; i++)
+				parent[i] = i;
+		}
+
+		int find(int i) {
+			while (parent[i] != i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		/**
+		 * @return true, if the two were in different components
+		 */
+		boolean union(int i, int j) {
+			var a = find(i);
+			var b = find(j);
+			if (a == b)
+				return false;
+			parent[a] = b;
+			return true;
+		}
 	}
-}
\ No newline at end of file
+}
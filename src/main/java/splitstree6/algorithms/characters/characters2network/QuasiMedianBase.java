@@ -98,15 +98,18 @@ public abstract class QuasiMedianBase {
 		computeGraph(progress, condensedInputSet, weights, graph);
 
 
+		final Map<String, List<Integer>> condensed2taxa = new HashMap<>();
+		for (var t = 1; t <= taxa.getNtax(); t++) {
+			condensed2taxa.computeIfAbsent(condensedCharacters[orig2CondensedTaxa[t]], k -> new ArrayList<>()).add(t);
+		}
+		final Map<String, String> condensed2full = new HashMap<>();
+
 		for (var v : graph.nodes()) {
 			var condensed = (String) v.getInfo();
 			graph.setLabel(v, null);
 			if (condensedInputSet.contains(condensed)) {
-				for (var t = 1; t <= taxa.getNtax(); t++) {
-					var o = orig2CondensedTaxa[t];
-					if (condensedCharacters[o].equals(condensed)) {
-						graph.addTaxon(v, t);
-					}
+				for (var t : condensed2taxa.getOrDefault(condensed, Collections.emptyList())) {
+					graph.addTaxon(v, t);
 				}
 
 				if (graph.hasTaxa(v)) {
@@ -124,12 +127,12 @@ public abstract class QuasiMedianBase {
 						graph.setLabel(v, "{" + buf + "}");
 				}
 			}
-			var full = expandCondensed(condensed, orig2CondensedPos, translator);
+			var full = condensed2full.computeIfAbsent(condensed, k -> expandCondensed(k, orig2CondensedPos, translator));
 			networkBlock.getNodeData(v).put(NetworkBlock.NODE_STATES_KEY, full);
 		}
 
 		for (var e : graph.edges()) {
-			var label = computeEdgeLabel(characterLabels, (String) e.getSource().getInfo(), (String) e.getTarget().getInfo(), orig2CondensedPos, translator);
+			var label = computeEdgeLabel(characterLabels, condensed2full.get((String) e.getSource().getInfo()), condensed2full.get((String) e.getTarget().getInfo()));
 			networkBlock.getEdgeData(e).put(NetworkBlock.EDGE_SITES_KEY, label);
 		}
 		networkBlock.setNetworkType(NetworkBlock.Type.HaplotypeNetwork);
@@ -220,16 +223,13 @@ public abstract class QuasiMedianBase {
 	public abstract void computeGraph(ProgressListener progressListener, Set<String> inputSequences, double[] weights, PhyloGraph graph) throws CanceledException;
 
 	/**
-	 * computes all original positions at which the two sequences differ in display coordinates 1--length
+	 * computes all original positions at which the two expanded sequences differ in display coordinates 1--length
 	 *
 	 * @return positions at which orig sequences differ
 	 */
-	private String computeEdgeLabel(String[] labels, String conA, String conB, int[] orig2CondensedPos, Translator translator) {
+	private String computeEdgeLabel(String[] labels, String seqA, String seqB) {
 		StringBuilder buf = new StringBuilder();
 
-		String seqA = expandCondensed(conA, orig2CondensedPos, translator);
-		String seqB = expandCondensed(conB, orig2CondensedPos, translator);
-
 		boolean first = true;
 		for (int i = 0; i < seqA.length(); i++) {
 			if (seqA.charAt(i) != seqB.charAt(i)) {
@@ -20,7 +20,9 @@
 package splitstree6.algorithms.characters.characters2report;
 
 
+import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import jloda.fx.util.ProgramProperties;
 import jloda.util.CanceledException;
@@ -29,9 +31,10 @@ import splitstree6.data.CharactersBlock;
 import splitstree6.data.TaxaBlock;
 import splitstree6.data.parts.Taxon;
 
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 /**
  * Estimates the proportion of invariant sites using capture-recapture
@@ -39,9 +42,28 @@ import java.util.Random;
  */
 public class EstimateInvariableSites extends AnalyzeCharactersBase {
 	private final IntegerProperty optionFullTaxaCutoff = new SimpleIntegerProperty(this, "optionFullTaxaCutoff");
+	private final DoubleProperty optionTolerance = new SimpleDoubleProperty(this, "optionTolerance");
 
 	{
 		ProgramProperties.track(optionFullTaxaCutoff, 20);
+		ProgramProperties.track(optionTolerance, 0.005);
+	}
+
+	/**
+	 * number of quartets sampled per round in sampling mode
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * an estimate of the proportion of invariable sites
+	 *
+	 * @param proportion the estimated proportion
+	 * @param lower      lower bound of the 95% confidence interval, equals proportion, if computed exactly
+	 * @param upper      upper bound of the 95% confidence interval, equals proportion, if computed exactly
+	 * @param quartets   number of quartets used
+	 * @param exact      true, if all quartets were used
+	 */
+	public record Estimate(double proportion, double lower, double upper, long quartets, boolean exact) {
 	}
 
 	@Override
@@ -52,178 +74,306 @@ public class EstimateInvariableSites extends AnalyzeCharactersBase {
 
 	@Override
 	String runAnalysis(ProgressListener progress, TaxaBlock taxaBlock, CharactersBlock charactersBlock, Collection<Taxon> selectedTaxa) throws CanceledException {
-		var proportion = estimatePropInvariableSites(progress, charactersBlock);
-		return "Invariable sites: %,d of %,d (%.1f%%)%n".formatted(Math.round(charactersBlock.getNchar() * proportion), charactersBlock.getNchar(), 100 * proportion);
+		var estimate = estimate(progress, charactersBlock);
+		var proportion = estimate.proportion();
+		var text = "Invariable sites: %,d of %,d (%.1f%%)%n".formatted(Math.round(charactersBlock.getNchar() * proportion), charactersBlock.getNchar(), 100 * proportion);
+		if (!estimate.exact())
+			text += "95%% confidence interval: %.1f%% - %.1f%% (%,d sampled quartets)%n".formatted(100 * estimate.lower(), 100 * estimate.upper(), estimate.quartets());
+		return text;
 	}
 
 	/**
-	 * Chooses a random (small) subset of size elements in [1...n]
+	 * Computes the proportion of Invariance sites using Steel et al.'s method
 	 *
-	 * @return array of size with numbers from [1...n]
+	 * @return proportion assumed invariant
 	 */
-	private static int[] randomSubset(int size, int n, Random random) {
-		var s = new int[size];
-		for (var i = 0; i < size; i++) {
-			var x = random.nextInt(n - i) + 1; //random integer from 1 to n-i
-			for (var j = 0; j < i; j++) {      //Make sure that its unique
-				if (x >= s[j])
-					x++;
-			}
-			s[i] = x;
-		}
-		Arrays.sort(s);
-		return s;
+	public double estimatePropInvariableSites(ProgressListener progress, CharactersBlock chars) throws CanceledException {
+		return estimate(progress, chars).proportion();
 	}
 
 	/**
-	 * Checks to see that, for site m, the taxa in q are not missing, gaps, etc.
+	 * Computes the proportion of Invariance sites using Steel et al.'s method. For small numbers of taxa, all quartets
+	 * are used, otherwise quartets are sampled until the 95% confidence interval is narrow enough
 	 *
-	 * @param q     array of taxa ids
-	 * @param m     site
-	 * @return true iff all not missing, not gaps, and site not masked
+	 * @return estimate
+	 */
+	public Estimate estimate(ProgressListener progress, CharactersBlock chars) throws CanceledException {
+		final var patterns = SitePatterns.compute(chars);
+		final var ntax = chars.getNtax();
+
+		if (ntax < 4)
+			return new Estimate(0, 0, 0, 0, true);
+		else if (ntax > getOptionFullTaxaCutoff())
+			return estimateBySampling(progress, patterns, ntax);
+		else
+			return estimateExactly(progress, patterns, ntax);
+	}
+
+	/**
+	 * average v score over all quartets, computed in parallel
 	 */
-	private static boolean goodSite(CharactersBlock block, int[] q, int m) {
-		for (var aQ : q) {
-			var ch = block.get(aQ, m);
-			if (ch == block.getMissingCharacter())
-				return false;
-			if (ch == block.getGapCharacter())
-				return false;
+	private static Estimate estimateExactly(ProgressListener progress, SitePatterns patterns, int ntax) throws CanceledException {
+		progress.setMaximum(ntax);
+		progress.setProgress(0);
+
+		var vsum = 0.0;
+		var count = 0L;
+
+		for (var i = 1; i <= ntax - 3; i++) {
+			final var ti = i;
+			// for each j, the sum of scores of all valid quartets i<j<k<l and their number:
+			final var sums = new double[ntax + 1];
+			final var counts = new long[ntax + 1];
+			IntStream.rangeClosed(i + 1, ntax - 2).parallel().forEach(j -> {
+				var sum = 0.0;
+				var number = 0L;
+				for (var k = j + 1; k <= ntax; k++) {
+					for (var l = k + 1; l <= ntax; l++) {
+						var v = patterns.vscore(ti, j, k, l);
+						if (v <= 1.0) {
+							sum += v;
+							number++;
+						}
+					}
+				}
+				sums[j] = sum;
+				counts[j] = number;
+			});
+			for (var j = i + 1; j <= ntax - 2; j++) {
+				vsum += sums[j];
+				count += counts[j];
+			}
+			progress.setProgress(i);
 		}
-		return true;
+		final var proportion = (count > 0 ? vsum / count : 0.0);
+		return new Estimate(proportion, proportion, proportion, count, true);
 	}
 
 	/**
-	 * Computes v statistic (Steel etal) for the quartet q
-	 *
-	 * @return v score
+	 * estimate the average v score by stratified sampling of quartets. Quartets are stratified by their smallest taxon,
+	 * and each round allocates samples to strata in proportion to the number of quartets in the stratum.
+	 * Sampling stops once the half-width of the 95% confidence interval falls below the tolerance.
 	 */
+	private Estimate estimateBySampling(ProgressListener progress, SitePatterns patterns, int ntax) throws CanceledException {
+		progress.setMaximum(-1);
+		progress.setProgress(0);
 
-	private static double vscore(int[] q, CharactersBlock block) {
-		final var nsites = block.getNchar();
-		var ngood = 0; //Number of sites without gaps in all four
-
-		int f_ij_kl = 0, f_ik_jl = 0, f_il_jk = 0, f_ij = 0, f_ik = 0, f_il = 0, f_jk = 0, f_jl = 0, f_kl = 0;
-
-		int nconst = 0;
-
-		final char[] s = new char[4];
-
-		for (int m = 1; m <= nsites; m++) {
-			if (!goodSite(block, q, m))
-				continue;
-			ngood++;
-
-			for (int a = 0; a < 4; a++)
-				s[a] = block.get(q[a], m);
-
-
-			if (s[0] != s[1])
-				f_ij++;
-			if (s[0] != s[2])
-				f_ik++;
-			if (s[0] != s[3])
-				f_il++;
-			if (s[1] != s[2])
-				f_jk++;
-			if (s[1] != s[3])
-				f_jl++;
-			if (s[2] != s[3])
-				f_kl++;
-			if ((s[0] != s[1]) && (s[2] != s[3]))
-				f_ij_kl++;
-			if ((s[0] != s[2]) && (s[1] != s[3]))
-				f_ik_jl++;
-			if ((s[0] != s[3]) && (s[1] != s[2]))
-				f_il_jk++;
-			if (s[0] == s[1] && s[0] == s[2] && s[0] == s[3])
-				nconst++;
+		// stratum i contains all quartets whose smallest taxon is i:
+		final var cumulative = new double[ntax - 2];
+		for (var i = 1; i <= ntax - 3; i++) {
+			cumulative[i] = cumulative[i - 1] + choose3(ntax - i);
 		}
+		final var total = cumulative[ntax - 3];
+		final var maxSamples = total; // sum of C(n-i,3) = C(n,4)
+
+		final var sum = new double[ntax - 2];
+		final var sum2 = new double[ntax - 2];
+		final var count = new long[ntax - 2];
+
+		final var random = new Random(666);
+		final var quartets = new int[4 * BATCH_SIZE];
+		final var scores = new double[BATCH_SIZE];
 
-		if (ngood == 0)
-			return 100.0;   //Returns an impossible amount - says choose another.
+		var samples = 0L;
+		var proportion = 0.0;
+		var halfWidth = 1.0;
 
-		double v = 1.0 - (double) nconst / ngood;
-		if (f_ij_kl > 0)
-			v = Math.max(v, (double) f_ij * f_kl / f_ij_kl / ngood);
-		if (f_ik_jl > 0)
-			v = Math.max(v, (double) f_ik * f_jl / f_ik_jl / ngood);
-		if (f_il_jk > 0)
-			v = Math.max(v, (double) f_il * f_jk / f_il_jk / ngood);
+		while (true) {
+			// systematic allocation of samples to strata, then a random triple of larger taxa within each stratum:
+			final var offset = random.nextDouble();
+			var stratum = 1;
+			for (var s = 0; s < BATCH_SIZE; s++) {
+				final var u = (s + offset) / BATCH_SIZE * total;
+				while (stratum < ntax - 3 && cumulative[stratum] <= u)
+					stratum++;
+				randomQuartet(stratum, ntax, random, quartets, 4 * s);
+			}
+
+			IntStream.range(0, BATCH_SIZE).parallel().forEach(s -> scores[s] = patterns.vscore(quartets[4 * s], quartets[4 * s + 1], quartets[4 * s + 2], quartets[4 * s + 3]));
+
+			for (var s = 0; s < BATCH_SIZE; s++) {
+				final var v = scores[s];
+				if (v <= 1.0) { // otherwise invalid quartet
+					final var i = quartets[4 * s];
+					sum[i] += v;
+					sum2[i] += v * v;
+					count[i]++;
+				}
+			}
+			samples += BATCH_SIZE;
 
-		v = Math.min(v, 1.0);
-		//System.err.println(q+"\tv = "+ v);
-		return v;
+			// stratified estimate and its variance:
+			var weightSum = 0.0;
+			var mean = 0.0;
+			var pooledSum = 0.0;
+			var pooledSum2 = 0.0;
+			var pooledCount = 0L;
+			for (var i = 1; i <= ntax - 3; i++) {
+				if (count[i] > 0) {
+					final var weight = cumulative[i] - cumulative[i - 1];
+					weightSum += weight;
+					mean += weight * sum[i] / count[i];
+					pooledSum += sum[i];
+					pooledSum2 += sum2[i];
+					pooledCount += count[i];
+				}
+			}
+			if (pooledCount > 0) {
+				mean /= weightSum;
+				final var pooledVariance = Math.max(0, (pooledSum2 - pooledSum * pooledSum / pooledCount) / Math.max(1, pooledCount - 1));
+				var variance = 0.0;
+				for (var i = 1; i <= ntax - 3; i++) {
+					if (count[i] > 0) {
+						final var weight = (cumulative[i] - cumulative[i - 1]) / weightSum;
+						final var stratumVariance = (count[i] > 1 ? Math.max(0, (sum2[i] - sum[i] * sum[i] / count[i]) / (count[i] - 1)) : pooledVariance);
+						variance += weight * weight * stratumVariance / count[i];
+					}
+				}
+				proportion = mean;
+				halfWidth = 1.96 * Math.sqrt(variance);
+			}
+
+			progress.checkForCancel();
+			if ((pooledCount >= BATCH_SIZE && halfWidth <= getOptionTolerance()) || samples >= maxSamples)
+				break;
+		}
+		return new Estimate(proportion, Math.max(0, proportion - halfWidth), Math.min(1, proportion + halfWidth), samples, false);
 	}
 
 	/**
-	 * Computes the proportion of Invariance sites using Steel et al.'s method
-	 *
-	 * @return proportion assumed invariant
+	 * number of 3-subsets of an m-set
 	 */
-	public double estimatePropInvariableSites(ProgressListener progress, CharactersBlock chars) throws CanceledException {
-		final int nchar = chars.getNtax();
-		final int maxsample = (nchar * (nchar - 1) * (nchar - 2) * (nchar - 3)) / 24;
-
-		double vsum = 0.0;
-		int count = 0;
-
-		if (nchar > getOptionFullTaxaCutoff()) {
-			//Sampling          - we do a minimum of 1000, and stop once |sd| is less than 0.05 |mean|
-			progress.setMaximum(2000);
-			progress.setProgress(0);
-
-			final Random random = new Random();
-			int[] q;
-			double sum2 = 0.0;
-			boolean done = false;
-			int iter = 0;
-
-			while (!done) {
-				iter++;
-				q = randomSubset(4, nchar, random);
-				double v = vscore(q, chars);
-				if (v > 1.0)
-					continue; //Invalid quartet.
-				vsum += v;
-				sum2 += v * v;
-				count++;
-				if (count > 1000) {
-					//Evaluate how good the stdev is.
-					double mean = vsum / count;
-					double var = sum2 / count - mean * mean;
-					double sd = Math.sqrt(var);
-					if (Math.abs(sd / mean) < 0.05)
-						done = true;
-					// System.err.println("Mean = " + mean + " sd = " + sd);
-				}
-				if (iter > maxsample) {
-					done = true; //Safety check to prevent infinite loop
+	private static double choose3(int m) {
+		return m < 3 ? 0 : (double) m * (m - 1) * (m - 2) / 6.0;
+	}
+
+	/**
+	 * writes a random quartet with smallest taxon i into the given array, in increasing order
+	 */
+	private static void randomQuartet(int i, int ntax, Random random, int[] quartets, int pos) {
+		final var m = ntax - i;
+		var a = random.nextInt(m);
+		var b = random.nextInt(m - 1);
+		if (b >= a)
+			b++;
+		var c = random.nextInt(m - 2);
+		if (c >= Math.min(a, b))
+			c++;
+		if (c >= Math.max(a, b))
+			c++;
+		final var min = Math.min(a, Math.min(b, c));
+		final var max = Math.max(a, Math.max(b, c));
+		quartets[pos] = i;
+		quartets[pos + 1] = i + 1 + min;
+		quartets[pos + 2] = i + 1 + (a + b + c - min - max);
+		quartets[pos + 3] = i + 1 + max;
+	}
+
+	/**
+	 * the distinct site patterns of an alignment and their multiplicities.
+	 * Gaps and missing characters are replaced by 0
+	 */
+	private record SitePatterns(char[][] rows, int[] weights) {
+		static SitePatterns compute(CharactersBlock chars) {
+			final var ntax = chars.getNtax();
+			final var nchar = chars.getNchar();
+			final var missing = chars.getMissingCharacter();
+			final var gap = chars.getGapCharacter();
+
+			final var pattern2index = new HashMap<String, Integer>();
+			final var columns = new int[nchar];
+			final var column = new char[ntax];
+			for (var c = 1; c <= nchar; c++) {
+				for (var t = 1; t <= ntax; t++) {
+					final var ch = chars.get(t, c);
+					column[t - 1] = (ch == missing || ch == gap ? 0 : ch);
 				}
-				progress.incrementProgress();
+				columns[c - 1] = pattern2index.computeIfAbsent(new String(column), k -> pattern2index.size());
 			}
-		} else { //Exact count
-			progress.setMaximum(nchar);
-			progress.setProgress(0);
-			for (int i = 1; i <= nchar; i++) {
-				for (int j = i + 1; j <= nchar; j++) {
-					for (int k = j + 1; k <= nchar; k++) {
-						for (int l = k + 1; l <= nchar; l++) {
-							int[] q = new int[4];
-							q[0] = i;
-							q[1] = j;
-							q[2] = k;
-							q[3] = l;
-							vsum += vscore(q, chars);
-							count++;
-						}
+
+			final var npatterns = pattern2index.size();
+			final var rows = new char[ntax + 1][npatterns];
+			final var weights = new int[npatterns];
+			for (var c = 1; c <= nchar; c++) {
+				final var p = columns[c - 1];
+				if (weights[p]++ == 0) {
+					for (var t = 1; t <= ntax; t++) {
+						final var ch = chars.get(t, c);
+						rows[t][p] = (ch == missing || ch == gap ? 0 : ch);
 					}
 				}
-				progress.incrementProgress();
 			}
+			return new SitePatterns(rows, weights);
 		}
 
-		return vsum / count;
+		/**
+		 * Computes v statistic (Steel etal) for the quartet i,j,k,l
+		 *
+		 * @return v score, or 100, if no site is without gaps in all four taxa
+		 */
+		double vscore(int i, int j, int k, int l) {
+			final var a = rows[i];
+			final var b = rows[j];
+			final var c = rows[k];
+			final var d = rows[l];
+
+			var ngood = 0; //Number of sites without gaps in all four
+
+			long f_ij_kl = 0, f_ik_jl = 0, f_il_jk = 0, f_ij = 0, f_ik = 0, f_il = 0, f_jk = 0, f_jl = 0, f_kl = 0;
+			var nconst = 0;
+
+			for (var p = 0; p < weights.length; p++) {
+				final var s0 = a[p];
+				final var s1 = b[p];
+				final var s2 = c[p];
+				final var s3 = d[p];
+				if (s0 == 0 || s1 == 0 || s2 == 0 || s3 == 0)
+					continue;
+				final var w = weights[p];
+				ngood += w;
+
+				final var d01 = (s0 != s1);
+				final var d02 = (s0 != s2);
+				final var d03 = (s0 != s3);
+				final var d12 = (s1 != s2);
+				final var d13 = (s1 != s3);
+				final var d23 = (s2 != s3);
+
+				if (d01)
+					f_ij += w;
+				if (d02)
+					f_ik += w;
+				if (d03)
+					f_il += w;
+				if (d12)
+					f_jk += w;
+				if (d13)
+					f_jl += w;
+				if (d23)
+					f_kl += w;
+				if (d01 && d23)
+					f_ij_kl += w;
+				if (d02 && d13)
+					f_ik_jl += w;
+				if (d03 && d12)
+					f_il_jk += w;
+				if (!d01 && !d02 && !d03)
+					nconst += w;
+			}
+
+			if (ngood == 0)
+				return 100.0;   //Returns an impossible amount - says choose another.
+
+			double v = 1.0 - (double) nconst / ngood;
+			if (f_ij_kl > 0)
+				v = Math.max(v, (double) f_ij * f_kl / f_ij_kl / ngood);
+			if (f_ik_jl > 0)
+				v = Math.max(v, (double) f_ik * f_jl / f_ik_jl / ngood);
+			if (f_il_jk > 0)
+				v = Math.max(v, (double) f_il * f_jk / f_il_jk / ngood);
+
+			return Math.min(v, 1.0);
+		}
 	}
 
 	public int getOptionFullTaxaCutoff() {
@@ -237,4 +387,16 @@ public class EstimateInvariableSites extends AnalyzeCharactersBase {
 	public void setOptionFullTaxaCutoff(int optionFullTaxaCutoff) {
 		this.optionFullTaxaCutoff.set(optionFullTaxaCutoff);
 	}
+
+	public double getOptionTolerance() {
+		return optionTolerance.get();
+	}
+
+	public DoubleProperty optionToleranceProperty() {
+		return optionTolerance;
+	}
+
+	public void setOptionTolerance(double optionTolerance) {
+		this.optionTolerance.set(optionTolerance);
+	}
 }
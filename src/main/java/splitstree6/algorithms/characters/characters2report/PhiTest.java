@@ -20,6 +20,9 @@
 package splitstree6.algorithms.characters.characters2report;
 
 
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import jloda.fx.util.ProgramProperties;
 import jloda.util.CanceledException;
 import jloda.util.NumberUtils;
 import jloda.util.progress.ProgressListener;
@@ -32,7 +35,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Collection;
+import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * Estimates the proportion of invariant sites using capture-recapture
@@ -43,12 +47,35 @@ public class PhiTest extends AnalyzeCharactersBase {
 
 	final static int WINDOWSIZE = 100;
 
+	/**
+	 * maximum number of site patterns for which all pairwise scores are kept in a table
+	 */
+	private static final int MAX_TABLE_PATTERNS = 4096;
+	private static final int PERMUTATION_BATCH_SIZE = 100;
+	private static final double SIGNIFICANCE_LEVEL = 0.05;
+
+	private final IntegerProperty optionPermutations = new SimpleIntegerProperty(this, "optionPermutations");
+	private final IntegerProperty optionSeed = new SimpleIntegerProperty(this, "optionSeed");
+
+	{
+		ProgramProperties.track(optionPermutations, 0);
+		ProgramProperties.track(optionSeed, 42);
+	}
+
 	private int num_inform;
 	private int ntax;
-	private int[] nstates;
-	private char[][] alignment;
+	private int words;
+	private int[] pattern;
+	private int numPatterns;
+	private long[][] patternMasks;
+	private int[] patternStates;
+	private int[] patternCounts;
+	private int maxStates;
 	private int[] sitePositions;
-	private char missing;
+	private short[] scoreTable;
+
+	private double permutationPval;
+	private int permutationsDone;
 
 	@Override
 	public String getCitation() {
@@ -58,14 +85,20 @@ public class PhiTest extends AnalyzeCharactersBase {
 
 	@Override
 	String runAnalysis(ProgressListener progress, TaxaBlock taxaBlock, CharactersBlock charactersBlock, Collection<Taxon> selectedTaxa) throws CanceledException {
+		if (charactersBlock.getSymbols().length() > 64)
+			return "The Phi Test as implemented here supports at most 64 states.";
 
-		var pval = approxPhi(charactersBlock);
+		var pval = approxPhi(progress, charactersBlock);
 		pval = NumberUtils.roundSigFig(pval, 4);
 		String result;
 
 		if (pval < 0)
 			result = "There are too few informative characters to use the Phi Test as implemented here.";
-		else if (pval < 0.05)
+		else if (permutationsDone > 0) {
+			final var permutationPval = NumberUtils.roundSigFig(this.permutationPval, 4);
+			result = "The phi test " + (permutationPval < SIGNIFICANCE_LEVEL ? "did" : "did not") + " find statistically significant evidence for recombination"
+					 + " (permutation test with " + permutationsDone + " permutations, p = " + permutationPval + "; normal approximation, p = " + pval + ")";
+		} else if (pval < SIGNIFICANCE_LEVEL)
 			result = "The phi test did find statistically significant evidence for recombination (p = " + pval + ")";
 		else
 			result = "The phi test did not find statistically significant evidence for recombination (p = " + pval + ")";
@@ -77,159 +110,76 @@ public class PhiTest extends AnalyzeCharactersBase {
 		return result;
 	}
 
-	/* Node_struct for graph */
-
-	public static class node {
-		public int neighbourindex;
-		public node next;
-	}
-
+	/**
+	 * the incompatibility score of two sites, that is, edges - vertices + components of the graph whose vertices are the
+	 * states of the two sites and that has an edge between two states, if some taxon has both
+	 */
 	private int pair_score(int char_a, int char_b) {
-		/* Keep both list & matrix - one for quick adding, other for quick DFS */
-		node[] adjacency_list;
-		boolean[][] adjacency_matrix;
-
-		node cur_node, new_node;
-
-
-		var char_a_states = nstates[char_a];
-		var char_b_states = nstates[char_b];
-		var total_states = char_a_states + char_b_states;
-		int char_a_val, char_b_val, i, j, edge_count;
-
-		/* For DFS */
-		node[] DFS_adjacency;
-		int[] array_stack;
-		boolean[] marked;      //??
-		int potential_neighbour;
-		boolean has_valid_neighbour;
-		int comp_count;
-		int top, cur_vertex;
-
-		/* For score */
-
-		int inc_score;
-
-		/* Initialize list and matrix */
-		adjacency_list = new node[total_states];
-		for (i = 0; i < total_states; i++)
-			adjacency_list[i] = null;
-
-		adjacency_matrix = new boolean[total_states][total_states];
-
-
-		for (i = 0; i < total_states; i++) {
-			for (j = 0; j < total_states; j++) {
-				adjacency_matrix[i][j] = false;
-			}
-		}
-
-		/* Initialize stuff for DFS... */
-		DFS_adjacency = new node[total_states];
-		array_stack = new int[total_states];
-		marked = new boolean[total_states];
-
-		/* Build adjacency list */
-		edge_count = 0;
-
-
-		for (i = 0; i < ntax; i++) {
-			char_a_val = alignment[char_a][i];
-			/* Number vertices [0...char_a_states-1] then [char_a_states..total_states] */
-			char_b_val = alignment[char_b][i];
-
-			/* Add the edge - if necessary */
-
-			if ((char_a_val != missing) && (char_b_val != missing))   //Both states are valid.
-			{
-				/* Increase index to "global index" */
-				char_b_val = char_b_val + char_a_states;
-
-
-				if (!adjacency_matrix[char_a_val][char_b_val]) {
-
-					/* Update symmetric adjacency matrix (undirected graph)*/
-					adjacency_matrix[char_a_val][char_b_val] = true;
-					adjacency_matrix[char_b_val][char_a_val] = true;
-					edge_count++;
-
-					/* Add to adjacency lists */
-					cur_node = adjacency_list[char_a_val];
-					new_node = new node();
-
-					new_node.neighbourindex = char_b_val;
-					new_node.next = cur_node;
-					adjacency_list[char_a_val] = new_node;
-
-					/* And other list */
-					cur_node = adjacency_list[char_b_val];
-					new_node = new node();
-					new_node.neighbourindex = char_a_val;
-					new_node.next = cur_node;
-					adjacency_list[char_b_val] = new_node;
-
+		return patternScore(pattern[char_a], pattern[char_b], new long[maxStates]);
+	}
 
+	/**
+	 * computes the incompatibility score of two site patterns using word operations on their state masks
+	 *
+	 * @param adjacency buffer of at least maxStates entries
+	 */
+	private int patternScore(int p, int q, long[] adjacency) {
+		if (p == q)
+			return 0;
+		final var masksA = patternMasks[p];
+		final var masksB = patternMasks[q];
+		final var statesA = patternStates[p];
+		final var statesB = patternStates[q];
+
+		// adjacency[a] has bit b set, if some taxon has state a in the first site and state b in the second one
+		var edges = 0;
+		var usedB = 0L;
+		for (var a = 0; a < statesA; a++) {
+			var adjacent = 0L;
+			for (var b = 0; b < statesB; b++) {
+				for (var w = 0; w < words; w++) {
+					if ((masksA[a * words + w] & masksB[b * words + w]) != 0) {
+						adjacent |= 1L << b;
+						break;
+					}
 				}
 			}
+			adjacency[a] = adjacent;
+			edges += Long.bitCount(adjacent);
+			usedB |= adjacent;
 		}
-		/* Now do DFS to count components */
 
-		for (i = 0; i < total_states; i++) {
-			marked[i] = false;
-			DFS_adjacency[i] = adjacency_list[i];
-		}
-
-		top = -1;
-
-		comp_count = 0;
-
-		for (i = 0; i < total_states; i++) {
-			if (!marked[i]) {
-
-				comp_count++;
-				/* "push" index onto stack */
-				array_stack[++top] = i;
-
-				while (top >= 0) {
-					cur_vertex = array_stack[top];
-					marked[cur_vertex] = true;
-					has_valid_neighbour = false;
-					while ((DFS_adjacency[cur_vertex] != null) && (!has_valid_neighbour)) {
-						potential_neighbour = (DFS_adjacency[cur_vertex]).neighbourindex;
-						if (!marked[potential_neighbour]) {
-
-							array_stack[++top] = potential_neighbour;
-							has_valid_neighbour = true;
-						} else {
-							DFS_adjacency[cur_vertex] = DFS_adjacency[cur_vertex].next;
-						}
+		// states of the second site without edges are components of their own:
+		var components = statesB - Long.bitCount(usedB);
+		var remaining = (statesA == 64 ? -1L : (1L << statesA) - 1);
+		while (remaining != 0) {
+			final var a = Long.numberOfTrailingZeros(remaining);
+			remaining &= ~(1L << a);
+			components++;
+			var reached = adjacency[a];
+			var changed = (reached != 0);
+			while (changed) {
+				changed = false;
+				for (var rest = remaining; rest != 0; rest &= rest - 1) {
+					final var other = Long.numberOfTrailingZeros(rest);
+					if ((adjacency[other] & reached) != 0) {
+						reached |= adjacency[other];
+						remaining &= ~(1L << other);
+						changed = true;
 					}
-
-					if (!has_valid_neighbour) {
-						top--;
-					}
-
 				}
 			}
 		}
-
-		/* For the pairwise incompatibility */
-
-		inc_score = edge_count - total_states + comp_count;
-
-		return inc_score;
+		return edges - (statesA + statesB) + components;
 	}
 
 
 	/**
-	 * Takes a characters block and returns an array for the sequences where the states in every character
-	 * are numbered 0,1,2,...,k-1,  where k is the number of states appearing for this character.
-	 * If removeUninformative is true then
-	 * <p/>
-	 * Note - in this array the rows are 0...ntax-1 and the characters are 0..nchar-1
-	 * so entry i,j corresponds to taxa i+1 and character j+1.
-	 * If a sequence has a missing or invalid character, the entry in the array is set to nstates,
-	 * where nstates is the number of symbols in the Format block of the characters block.
+	 * Determines the informative sites of a characters block. In every site, the states
+	 * are numbered 0,1,2,...,k-1,  where k is the number of states appearing for this character, in order of first appearance,
+	 * so that sites that induce the same partition of the taxa have the same numbering. Such sites share a site pattern, and
+	 * pattern[i] is the pattern of site i. For each pattern and state, the taxa that have the state are stored as a bit mask.
+	 * Missing or invalid characters are not contained in any mask.
 	 * <p/>
 	 * For each site i in the resulting alignment, sitePositions[i] is the corresponding site
 	 * in the original alignment
@@ -240,21 +190,32 @@ public class PhiTest extends AnalyzeCharactersBase {
 		int nchar = characters.getNchar();
 		var symbols = characters.getSymbols();
 		int nstates = symbols.length();
+		words = Math.max(1, (ntax + 63) >>> 6);
+
+		final var symbolIndex = new int[Character.MAX_VALUE + 1];
+		Arrays.fill(symbolIndex, -1);
+		for (var s = 0; s < nstates; s++)
+			symbolIndex[symbols.charAt(s)] = s;
+
+		final int unassigned = -1;
+		final char missing = (char) nstates;
 		int[] symbol_map = new int[nstates];
 		sitePositions = new int[nchar];
+		pattern = new int[nchar];
 
-		final int unassigned = -1;
-		this.missing = (char) nstates;
-		this.alignment = new char[nchar][];
-		this.nstates = new int[nchar];
+		final var pattern2index = new HashMap<String, Integer>();
+		final var masksList = new ArrayList<long[]>();
+		final var statesList = new ArrayList<Integer>();
+		final var countsList = new ArrayList<Integer>();
+		maxStates = 1;
 
 		int charCount = 0;
 		int appearsTwice;
 		boolean informative;
+		char[] thisSite = new char[ntax];
 
 		for (int j = 1; j <= nchar; j++) {
 			//Form a table of states in this character - array mapping states to ids.
-			char[] thisSite = new char[ntax];
 			for (int s = 0; s < nstates; s++) {
 				symbol_map[s] = unassigned;
 			}
@@ -262,7 +223,7 @@ public class PhiTest extends AnalyzeCharactersBase {
 			int numassigned = 0;
 			appearsTwice = -1;
 			for (int i = 1; i <= ntax; i++) {
-				int state = symbols.lastIndexOf(characters.get(i, j));
+				int state = symbolIndex[characters.get(i, j)];
 				int index = -1;
 				if (state >= 0) {
 					index = symbol_map[state];
@@ -283,42 +244,88 @@ public class PhiTest extends AnalyzeCharactersBase {
 			}
 			//Check if informative or not
 			if (informative || !removeUninformative) {
-				this.nstates[charCount] = numassigned;
-				this.alignment[charCount] = thisSite;
+				final var numStates = numassigned;
+				final var p = pattern2index.computeIfAbsent(new String(thisSite), key -> {
+					final var masks = new long[numStates * words];
+					for (var t = 0; t < ntax; t++) {
+						if (key.charAt(t) != missing)
+							masks[key.charAt(t) * words + (t >>> 6)] |= 1L << t;
+					}
+					masksList.add(masks);
+					statesList.add(numStates);
+					countsList.add(0);
+					return masksList.size() - 1;
+				});
+				countsList.set(p, countsList.get(p) + 1);
+				maxStates = Math.max(maxStates, numStates);
+				pattern[charCount] = p;
 				sitePositions[charCount] = j;
 				charCount++;
 			}
 		}
-		System.err.println("Found " + charCount + " informative sites");
+		System.err.println("Found " + charCount + " informative sites (" + masksList.size() + " distinct)");
 
 		this.num_inform = charCount;
-
+		this.numPatterns = masksList.size();
+		this.patternMasks = masksList.toArray(new long[0][]);
+		this.patternStates = statesList.stream().mapToInt(Integer::intValue).toArray();
+		this.patternCounts = countsList.stream().mapToInt(Integer::intValue).toArray();
 	}
 
-	private double computePval(int optk) {
-		int[] fi = new int[this.num_inform];
-		int[] gi = new int[this.num_inform];
-		double u, v, w;
-
-		int phi_sum = 0;
-
-		for (int i = 0; i < num_inform; i++) {
-			for (int j = i + 1; j < num_inform; j++) {
-				int inc = pair_score(i, j);
-				fi[i] += inc;
-				fi[j] += inc;    //Note... we are only looping over the upper triangle here
-				gi[i] += inc * inc;
-				gi[j] += inc * inc;
-				if (j - i <= optk)
-					phi_sum += inc;
+	/**
+	 * computes the analytical p-value. As the sums over all pairs of sites only depend on the site patterns,
+	 * pairs of patterns are scored, in parallel, rather than pairs of sites
+	 */
+	private double computePval(ProgressListener progress, int optk, long phi_sum) throws CanceledException {
+		// for each pattern p, the sum of scores, and squared scores, against all sites. Each pair of patterns is scored once,
+		// the rows are processed in blocks that contain about the same number of pairs, and each thread accumulates separately:
+		final var patternF = new long[numPatterns];
+		final var patternG = new long[numPatterns];
+
+		progress.setSubtask("scoring pairs of sites");
+		final var totalPairs = (long) numPatterns * (numPatterns - 1) / 2;
+		final var numBlocks = Math.max(1, Math.min(numPatterns, 100));
+		progress.setMaximum(totalPairs);
+		progress.setProgress(0);
+
+		var pairsDone = 0L;
+		for (var start = 0; start < numPatterns; ) {
+			var end = start;
+			var pairs = 0L;
+			while (end < numPatterns && (pairs == 0 || pairs < totalPairs / numBlocks)) {
+				pairs += numPatterns - end - 1;
+				end++;
+			}
+			final var sums = IntStream.range(start, end).parallel().collect(() -> new long[2 * numPatterns], (acc, p) -> {
+				final var adjacency = new long[maxStates];
+				for (var q = p + 1; q < numPatterns; q++) {
+					final long inc = (scoreTable != null ? scoreTable[p * numPatterns + q] : patternScore(p, q, adjacency));
+					if (inc != 0) {
+						acc[p] += patternCounts[q] * inc;
+						acc[q] += patternCounts[p] * inc;
+						acc[numPatterns + p] += patternCounts[q] * inc * inc;
+						acc[numPatterns + q] += patternCounts[p] * inc * inc;
+					}
+				}
+			}, (acc, other) -> {
+				for (var i = 0; i < acc.length; i++)
+					acc[i] += other[i];
+			});
+			for (var p = 0; p < numPatterns; p++) {
+				patternF[p] += sums[p];
+				patternG[p] += sums[numPatterns + p];
 			}
+			pairsDone += pairs;
+			progress.setProgress(pairsDone);
+			start = end;
 		}
 
+		double u, v, w;
 		u = v = w = 0.0;
 		for (int i = 0; i < num_inform; i++) {
-			u += fi[i];
-			v += gi[i];
-			int x = fi[i];
+			final double x = patternF[pattern[i]];
+			u += x;
+			v += patternG[pattern[i]];
 			w += (x * x);
 		}
 
@@ -410,11 +417,12 @@ public class PhiTest extends AnalyzeCharactersBase {
 	}
 
 
-	double approxPhi(CharactersBlock characters) {
+	double approxPhi(ProgressListener progress, CharactersBlock characters) throws CanceledException {
 
-		//Get a sorted alignment... each row corresponds to a character, and the array contains
-		//only informative characters.
+		//Get the informative sites, encoded as site patterns
 		get_sorted_alignment(characters, true);
+		permutationPval = -1;
+		permutationsDone = 0;
 
 		//Compute the optK value used in the Phi test (number of off-diagonal rows)
 		int num_sites = characters.getNchar();
@@ -427,11 +435,109 @@ public class PhiTest extends AnalyzeCharactersBase {
 
 		System.err.println("Using windowsize of " + WINDOWSIZE + " with k as " + optk);
 
-		double pval = computePval(optk);
+		// the permutation test scores the same pairs of patterns many times, so keep a table of scores, if small enough
+		scoreTable = (getOptionPermutations() > 0 && numPatterns <= MAX_TABLE_PATTERNS ? computeScoreTable(progress) : null);
+
+		final var phi_sum = computePhiSum(pattern, optk, true);
+		double pval = computePval(progress, optk, phi_sum);
 		System.err.println("P-value:\t" + pval);
+
+		if (getOptionPermutations() > 0) {
+			computePermutationPval(progress, optk, phi_sum);
+			System.err.println("Permutation p-value:\t" + permutationPval + " (" + permutationsDone + " permutations)");
+		}
+		scoreTable = null;
 		return pval;
 	}
 
+	/**
+	 * computes the scores of all pairs of site patterns, in parallel
+	 */
+	private short[] computeScoreTable(ProgressListener progress) throws CanceledException {
+		final var table = new short[numPatterns * numPatterns];
+		progress.setSubtask("scoring pairs of site patterns");
+		progress.setMaximum(numPatterns);
+		progress.setProgress(0);
+		final var chunkSize = Math.max(1, 4 * Runtime.getRuntime().availableProcessors());
+		for (var start = 0; start < numPatterns; start += chunkSize) {
+			IntStream.range(start, Math.min(numPatterns, start + chunkSize)).parallel().forEach(p -> {
+				final var adjacency = new long[maxStates];
+				for (var q = 0; q < p; q++) {
+					table[p * numPatterns + q] = table[q * numPatterns + p] = (short) patternScore(p, q, adjacency);
+				}
+			});
+			progress.setProgress(Math.min(numPatterns, start + chunkSize));
+		}
+		return table;
+	}
+
+	/**
+	 * computes the sum of scores of all pairs of sites that are at most k apart
+	 *
+	 * @param order    the pattern of each site, in the order to be used
+	 * @param parallel process sites in parallel?
+	 */
+	private long computePhiSum(int[] order, int k, boolean parallel) {
+		final var chunkSize = 1024;
+		final var numChunks = (num_inform + chunkSize - 1) / chunkSize;
+		var chunks = IntStream.range(0, numChunks);
+		if (parallel)
+			chunks = chunks.parallel();
+		return chunks.mapToLong(c -> {
+			final var adjacency = new long[maxStates];
+			var sum = 0L;
+			for (var i = c * chunkSize; i < Math.min(num_inform, (c + 1) * chunkSize); i++) {
+				final var p = order[i];
+				for (var j = i + 1; j <= Math.min(num_inform - 1, i + k); j++) {
+					sum += (scoreTable != null ? scoreTable[p * numPatterns + order[j]] : patternScore(p, order[j], adjacency));
+				}
+			}
+			return sum;
+		}).sum();
+	}
+
+	/**
+	 * computes the proportion of random orderings of the sites that have at most the observed sum of scores of pairs of sites
+	 * within the window. Permutations are processed in parallel, in batches, and each permutation uses its own seeded
+	 * random number generator, so the result does not depend on the number of threads. Stops early, once a 99% confidence interval
+	 * for the p-value no longer contains the significance level
+	 */
+	private void computePermutationPval(ProgressListener progress, int optk, long observedPhiSum) throws CanceledException {
+		final var maxPermutations = getOptionPermutations();
+		final var seed = getOptionSeed();
+		final var batchSize = Math.max(PERMUTATION_BATCH_SIZE, Runtime.getRuntime().availableProcessors());
+
+		progress.setSubtask("permutation test");
+		progress.setMaximum(maxPermutations);
+		progress.setProgress(0);
+
+		var count = 0L;
+		var done = 0;
+		while (done < maxPermutations) {
+			final var first = done;
+			final var last = Math.min(maxPermutations, done + batchSize);
+			count += IntStream.range(first, last).parallel().filter(permutation -> {
+				final var random = new Random(seed + 1000003L * permutation);
+				final var order = Arrays.copyOf(pattern, num_inform);
+				for (var i = num_inform - 1; i > 0; i--) {
+					final var j = random.nextInt(i + 1);
+					final var tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+				}
+				return computePhiSum(order, optk, false) <= observedPhiSum;
+			}).count();
+			done = last;
+			progress.setProgress(done);
+
+			final var p = (double) count / done;
+			if (Math.abs(p - SIGNIFICANCE_LEVEL) > 2.576 * Math.sqrt(Math.max(p * (1 - p), 1.0 / done) / done))
+				break;
+		}
+		permutationPval = (count + 1.0) / (done + 1.0);
+		permutationsDone = done;
+	}
+
 
 	public void findBlocks(CharactersBlock characters, int numBreakPoints) {
 		//ToDo: check to see if this is already done. Perhaps Characters should be passed
@@ -480,4 +586,31 @@ public class PhiTest extends AnalyzeCharactersBase {
 			System.err.println();
 		}
 	}
+
+	/**
+	 * maximum number of permutations used to compute a permutation-test p-value, 0 to only use the normal approximation
+	 */
+	public int getOptionPermutations() {
+		return optionPermutations.get();
+	}
+
+	public IntegerProperty optionPermutationsProperty() {
+		return optionPermutations;
+	}
+
+	public void setOptionPermutations(int optionPermutations) {
+		this.optionPermutations.set(optionPermutations);
+	}
+
+	public int getOptionSeed() {
+		return optionSeed.get();
+	}
+
+	public IntegerProperty optionSeedProperty() {
+		return optionSeed;
+	}
+
+	public void setOptionSeed(int optionSeed) {
+		this.optionSeed.set(optionSeed);
+	}
 }
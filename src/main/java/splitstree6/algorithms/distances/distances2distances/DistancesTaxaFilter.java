@@ -22,7 +22,6 @@ package splitstree6.algorithms.distances.distances2distances;
 import jloda.util.progress.ProgressListener;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
-import splitstree6.data.parts.Taxon;
 import splitstree6.workflow.DataTaxaFilter;
 
 import java.io.IOException;
@@ -35,26 +34,39 @@ public class DistancesTaxaFilter extends DataTaxaFilter<DistancesBlock, Distance
 
 	@Override
 	public void filter(ProgressListener progress, TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock, DistancesBlock inputData, DistancesBlock outputData) throws IOException {
-		if (originalTaxaBlock.getTaxa().equals(modifiedTaxaBlock.getTaxa())) {
+		if (isSameTaxa(originalTaxaBlock, modifiedTaxaBlock)) {
 			outputData.copy(inputData);
-			setShortDescription("using all " + modifiedTaxaBlock.size() + " taxa");
+			setShortDescription("using all " + originalTaxaBlock.size() + " taxa");
 
 		} else {
-			progress.setMaximum(modifiedTaxaBlock.getNtax());
-			outputData.setNtax(modifiedTaxaBlock.getNtax());
-
-			for (Taxon a : modifiedTaxaBlock.getTaxa()) {
-				final int originalI = originalTaxaBlock.indexOf(a);
-				final int modifiedI = modifiedTaxaBlock.indexOf(a);
-				for (Taxon b : modifiedTaxaBlock.getTaxa()) {
-					final int originalJ = originalTaxaBlock.indexOf(b);
-					final int modifiedJ = modifiedTaxaBlock.indexOf(b);
-					outputData.set(modifiedI, modifiedJ, inputData.get(originalI, originalJ));
-					if (inputData.isVariances())
-						outputData.setVariance(modifiedI, modifiedJ, inputData.getVariance(originalI, originalJ));
+			final var ntax = modifiedTaxaBlock.getNtax();
+			progress.setMaximum(ntax);
+
+			// gather rows by index remapping, rather than looking up each pair of taxa:
+			final var modified2original = computeModified2Original(originalTaxaBlock, modifiedTaxaBlock);
+			final var inputDistances = inputData.getDistances();
+			outputData.setNtax(ntax);
+			final var distances = outputData.getDistances();
+			final var inputVariances = inputData.getVariances();
+			final var variances = (inputVariances != null ? new double[ntax][ntax] : null);
+
+			for (var i = 1; i <= ntax; i++) {
+				final var inputRow = inputDistances[modified2original[i] - 1];
+				final var row = distances[i - 1];
+				for (var j = 1; j <= ntax; j++) {
+					row[j - 1] = inputRow[modified2original[j] - 1];
+				}
+				if (variances != null) {
+					final var inputVarianceRow = inputVariances[modified2original[i] - 1];
+					final var varianceRow = variances[i - 1];
+					for (var j = 1; j <= ntax; j++) {
+						varianceRow[j - 1] = inputVarianceRow[modified2original[j] - 1];
+					}
 				}
 				progress.incrementProgress();
 			}
+			outputData.setVariances(variances);
+			outputData.setFormat(inputData.getFormat());
 			setShortDescription("using " + modifiedTaxaBlock.size() + " of " + originalTaxaBlock.size() + " taxa");
 		}
 	}
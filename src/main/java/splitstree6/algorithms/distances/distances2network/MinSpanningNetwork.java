@@ -24,18 +24,18 @@ import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleDoubleProperty;
 import jloda.graph.Node;
-import jloda.util.Pair;
 import jloda.util.StringUtils;
 import jloda.util.progress.ProgressListener;
+import splitstree6.algorithms.utils.IntHeap;
 import splitstree6.data.CharactersBlock;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.NetworkBlock;
 import splitstree6.data.TaxaBlock;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 /**
  * computes a minimum spanning network
@@ -68,85 +68,79 @@ public class MinSpanningNetwork extends Distances2Network {
 		final var ntax = taxaBlock.getNtax();
 		final var graph = networkBlock.getGraph();
 
-		final var distancesToTaxonPairs = new TreeMap<Double, List<Pair<Integer, Integer>>>();
-		for (var a = 1; a <= taxaBlock.getNtax(); a++) {
-			for (var b = a + 1; b <= taxaBlock.getNtax(); b++) {
-				distancesToTaxonPairs.computeIfAbsent(distancesBlock.get(a, b), k -> new ArrayList<>()).add((new Pair<>(a, b)));
-			}
-		}
+		final var matrix = distancesBlock.getDistances(); // 0-based, we use the upper triangle, as before
 
 		final var node = new Node[ntax + 1];
-		final var component = new int[ntax + 1];
 
 		for (var t = 1; t <= ntax; t++) {
 			final var v = graph.newNode(t);
 			node[t] = v;
 			graph.addTaxon(v, t);
 			graph.setLabel(v, taxaBlock.get(t).getDisplayLabelOrName());
-			component[t] = t;
 		}
 
-		var numComponentsMSN = ntax;
-
-
-		var maxValue = Double.POSITIVE_INFINITY;
-		// all sets of edges in ascending order of lengths
-
-		progress.setMaximum(distancesToTaxonPairs.size());
-
-		for (var value : distancesToTaxonPairs.keySet()) {
-			progress.incrementProgress();
-
-			double threshold = value;
-			if (threshold > maxValue)
-				break;
-
-			var mustUpdateMSNComponents = false;
-
-			// create edges:
-			for (var pair : distancesToTaxonPairs.get(value)) {
-				final var a = pair.getFirst();
-				final var b = pair.getSecond();
-
-				if (!optionMinSpanningTree.getValue() || component[a] != component[b]) {
-					var e = graph.newEdge(node[a], node[b]);
-					graph.setWeight(e, distancesBlock.get(a, b));
-
-					if (!optionMinSpanningTree.getValue())
-						mustUpdateMSNComponents = true;
-					else { // need to update immediately for tree
-						numComponentsMSN--;
-						var oldComponent = component[a];
-						var newComponent = component[b];
-						for (var k = 1; k <= ntax; k++)
-							if (component[k] == oldComponent)
-								component[k] = newComponent;
-					}
-				}
+		// the network contains all edges up to the largest edge of a minimum spanning tree (plus epsilon), so determine that first
+		final var threshold = computeLargestMinSpanningTreeEdge(matrix, ntax) + (isOptionMinSpanningTree() ? 0 : getOptionEpsilon());
+
+		// candidate edges, in lexicographic order of taxon pairs
+		final var rows = new int[ntax][];
+		IntStream.range(0, ntax).parallel().forEach(a -> {
+			var row = new int[ntax - a - 1];
+			var count = 0;
+			for (var b = a + 1; b < ntax; b++) {
+				if (matrix[a][b] <= threshold)
+					row[count++] = b;
+			}
+			rows[a] = Arrays.copyOf(row, count);
+		});
+		var numCandidates = 0;
+		for (var row : rows)
+			numCandidates += row.length;
+		final var candidateA = new int[numCandidates];
+		final var candidateB = new int[numCandidates];
+		final var candidateValue = new double[numCandidates];
+		for (int a = 0, id = 0; a < ntax; a++) {
+			for (var b : rows[a]) {
+				candidateA[id] = a;
+				candidateB[id] = b;
+				candidateValue[id++] = matrix[a][b];
 			}
+			rows[a] = null;
+		}
 
-			// update MSN components
-			if (mustUpdateMSNComponents) {
-				for (var pair : distancesToTaxonPairs.get(value)) {
-					final var a = pair.getFirst();
-					final var b = pair.getSecond();
-
-					if (component[a] != component[b]) {
-						numComponentsMSN--;
-						var oldComponent = component[a];
-						var newComponent = component[b];
-						for (var k = 1; k <= ntax; k++)
-							if (component[k] == oldComponent)
-								component[k] = newComponent;
-					}
-				}
+		// all edges in ascending order of lengths, ties broken by taxon pairs
+		final var ids = new int[numCandidates];
+		for (var id = 0; id < numCandidates; id++)
+			ids[id] = id;
+		final var heap = IntHeap.heapify(ids, (x, y) -> {
+			var result = Double.compare(candidateValue[x], candidateValue[y]);
+			return (result != 0 ? result : Integer.compare(x, y));
+		});
+
+		final var component = new int[ntax]; // union-find
+		for (var t = 0; t < ntax; t++)
+			component[t] = t;
+		var numComponents = ntax;
+
+		progress.setMaximum(numCandidates);
+
+		while (!heap.isEmpty()) {
+			final var id = heap.poll();
+			final var a = candidateA[id];
+			final var b = candidateB[id];
+			final var componentA = find(component, a);
+			final var componentB = find(component, b);
+			if (componentA != componentB) {
+				component[componentA] = componentB;
+				numComponents--;
 			}
-			if (numComponentsMSN == 1) {
-				if (optionMinSpanningTree.getValue())
-					break; // tree
-				if (maxValue == Double.POSITIVE_INFINITY)
-					maxValue = threshold + getOptionEpsilon(); // once network is connected, add all edges upto threshold+epsilon
+			if (!optionMinSpanningTree.getValue() || componentA != componentB) {
+				final var e = graph.newEdge(node[a + 1], node[b + 1]);
+				graph.setWeight(e, candidateValue[id]);
 			}
+			if (optionMinSpanningTree.getValue() && numComponents == 1)
+				break;
+			progress.incrementProgress();
 		}
 
 		var parent = distancesBlock.getNode().getPreferredParent();
@@ -173,6 +167,45 @@ public class MinSpanningNetwork extends Distances2Network {
 					", epsilon=" + StringUtils.removeTrailingZerosAfterDot(getOptionEpsilon()) : ""));
 	}
 
+	/**
+	 * computes the length of the longest edge in a minimum spanning tree, using Prim's algorithm
+	 *
+	 * @param matrix 0-based distances, only the upper triangle is used
+	 * @return longest edge, or 0, if less than two taxa
+	 */
+	private static double computeLargestMinSpanningTreeEdge(double[][] matrix, int ntax) {
+		final var inTree = new boolean[ntax];
+		final var closest = new double[ntax];
+		Arrays.fill(closest, Double.POSITIVE_INFINITY);
+		var largest = 0.0;
+		var next = 0;
+		for (var count = 0; count < ntax; count++) {
+			final var v = next;
+			inTree[v] = true;
+			if (count > 0)
+				largest = Math.max(largest, closest[v]);
+			next = -1;
+			for (var w = 0; w < ntax; w++) {
+				if (!inTree[w]) {
+					final var d = (v < w ? matrix[v][w] : matrix[w][v]);
+					if (d < closest[w])
+						closest[w] = d;
+					if (next == -1 || closest[w] < closest[next])
+						next = w;
+				}
+			}
+		}
+		return largest;
+	}
+
+	private static int find(int[] component, int t) {
+		while (component[t] != t) {
+			component[t] = component[component[t]];
+			t = component[t];
+		}
+		return t;
+	}
+
 	private static String computeEdgeLabel(String sequence1, String sequence2) {
 		var buf = new StringBuilder();
 		for (var i = 0; i < sequence1.length(); i++) {
@@ -21,9 +21,12 @@ package splitstree6.algorithms.distances.distances2network;
 
 import jama.EigenvalueDecomposition;
 import jama.Matrix;
+import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import jloda.phylo.PhyloGraph;
+import jloda.util.CanceledException;
 import jloda.util.StringUtils;
 import jloda.util.progress.ProgressListener;
 import splitstree6.data.DistancesBlock;
@@ -31,6 +34,7 @@ import splitstree6.data.NetworkBlock;
 import splitstree6.data.TaxaBlock;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,7 +43,7 @@ import java.util.Map;
  * computes a minimum spanning network
  */
 public class PCoA extends Distances2Network {
-	private Matrix distanceMatrix;
+	private double[][] distances;
 	private double totalSquaredDistance;
 	private int rank;
 	private int numberOfPositiveEigenValues;
@@ -51,6 +55,7 @@ public class PCoA extends Distances2Network {
 
 	private final IntegerProperty optionFirstCoordinate = new SimpleIntegerProperty(this, "optionFirstCoordinate", 1);
 	private final IntegerProperty optionSecondCoordinate = new SimpleIntegerProperty(this, "optionSecondCoordinate", 2);
+	private final BooleanProperty optionLeadingAxesOnly = new SimpleBooleanProperty(this, "optionLeadingAxesOnly", false);
 
 
 	@Override
@@ -59,7 +64,7 @@ public class PCoA extends Distances2Network {
 	}
 
 	public List<String> listOptions() {
-		return List.of(optionFirstCoordinate.getName(), optionSecondCoordinate.getName());
+		return List.of(optionFirstCoordinate.getName(), optionSecondCoordinate.getName(), optionLeadingAxesOnly.getName());
 	}
 
 	@Override
@@ -67,6 +72,7 @@ public class PCoA extends Distances2Network {
 		return switch (optionName) {
 			case "FirstCoordinate" -> "Choose principal component for the x Axis";
 			case "SecondCoordinate" -> "Choose principal component for the y Axis";
+			case "LeadingAxesOnly" -> "Only compute the leading principal components, using an iterative eigen-solver (fast for many taxa)";
 			default -> optionName;
 		};
 	}
@@ -77,15 +83,12 @@ public class PCoA extends Distances2Network {
 		progress.setProgress(0);
 
 		rank = taxaBlock.getNtax();
-		distanceMatrix = new Matrix(rank, rank);
+		distances = distancesBlock.getDistances();
 		double sum = 0;
 		for (int i = 0; i < rank; i++) {
 			for (int j = 0; j < rank; j++) {
-				if (i == j)
-					distanceMatrix.set(i, j, 0);
-				else {
-					double d = distancesBlock.get(i + 1, j + 1);
-					distanceMatrix.set(i, j, d);
+				if (i != j) {
+					double d = distances[i][j];
 					sum += d * d;
 				}
 			}
@@ -95,7 +98,45 @@ public class PCoA extends Distances2Network {
 
 		progress.incrementProgress();
 
-		final Matrix centered = computeDoubleCenteringOfSquaredMatrix(distanceMatrix);
+		if (isOptionLeadingAxesOnly())
+			computeLeadingAxes(progress, taxaBlock);
+		else
+			computeAllAxes(progress, taxaBlock);
+
+		done = true;
+
+		setOptionFirstCoordinate(Math.min(numberOfPositiveEigenValues, getOptionFirstCoordinate()));
+		setOptionSecondCoordinate(Math.min(numberOfPositiveEigenValues, getOptionSecondCoordinate()));
+
+		progress.incrementProgress();
+
+		networkBlock.setNetworkType(NetworkBlock.Type.Points);
+
+		final PhyloGraph graph = networkBlock.getGraph();
+		System.err.printf("Stress: %.6f%n", getStress(getOptionFirstCoordinate() - 1, getOptionSecondCoordinate() - 1));
+
+
+		for (var t = 1; t <= taxaBlock.getNtax(); t++) {
+			final double[] coordinates = getProjection(getOptionFirstCoordinate() - 1, getOptionSecondCoordinate() - 1, taxaBlock.get(t).getName());
+			final var v = graph.newNode(t);
+			graph.addTaxon(v, t);
+			graph.setLabel(v, taxaBlock.get(t).getDisplayLabelOrName());
+			networkBlock.getNodeData(v).put(NetworkBlock.NodeData.BasicKey.x.name(), String.valueOf(100 * coordinates[0]));
+			networkBlock.getNodeData(v).put(NetworkBlock.NodeData.BasicKey.y.name(), String.valueOf(100 * coordinates[1]));
+		}
+		progress.incrementProgress();
+
+		networkBlock.setInfoString("PCoA on %,d taxa,  PC-%d (%s%%) vs PC-%d (%s%%)".formatted(taxaBlock.getNtax(),
+				getOptionFirstCoordinate(), StringUtils.removeTrailingZerosAfterDot("%.1f", percentExplained[getOptionFirstCoordinate() - 1]),
+				getOptionSecondCoordinate(), StringUtils.removeTrailingZerosAfterDot("%.1f", percentExplained[getOptionSecondCoordinate() - 1])));
+	}
+
+
+	/**
+	 * computes all eigenvalues and eigenvectors of the double-centered matrix
+	 */
+	private void computeAllAxes(ProgressListener progress, TaxaBlock taxaBlock) throws CanceledException {
+		final Matrix centered = computeDoubleCenteringOfSquaredMatrix(distances);
 
 		final EigenvalueDecomposition eigenValueDecomposition = centered.eig();
 		final Matrix eigenVectors = eigenValueDecomposition.getV();
@@ -128,21 +169,10 @@ public class PCoA extends Distances2Network {
 		eigenValues = new double[numberOfPositiveEigenValues];
 		percentExplained = new double[numberOfPositiveEigenValues];
 
-		double total = 0;
 		for (int j = 0; j < numberOfPositiveEigenValues; j++) {
-			total += eigenValues[j] = positiveEigenValues.get(indices[j], indices[j]);
-		}
-		System.err.println("Positive eigenvalues:");
-		System.err.println(StringUtils.toString("%.6f", eigenValues, ", "));
-
-		if (total > 0) {
-			for (int j = 0; j < eigenValues.length; j++) {
-				percentExplained[j] = 100.0 * eigenValues[j] / total;
-			}
-
-			System.err.println("Percent explained:");
-			System.err.println(StringUtils.toString("%.1f%%", percentExplained, ", "));
+			eigenValues[j] = positiveEigenValues.get(indices[j], indices[j]);
 		}
+		reportEigenValues(getTrace());
 
 		progress.incrementProgress();
 
@@ -155,34 +185,68 @@ public class PCoA extends Distances2Network {
 				vector[j] = scaledEigenVectors.get(i, indices[j]);
 			}
 		}
-		done = true;
+	}
 
-		setOptionFirstCoordinate(Math.min(numberOfPositiveEigenValues, getOptionFirstCoordinate()));
-		setOptionSecondCoordinate(Math.min(numberOfPositiveEigenValues, getOptionSecondCoordinate()));
+	/**
+	 * computes only the leading eigenvalues and eigenvectors, enough for the chosen coordinates and 3D projections.
+	 * Falls back to computing all axes, if the iterative solver does not provide enough positive eigenvalues
+	 */
+	private void computeLeadingAxes(ProgressListener progress, TaxaBlock taxaBlock) throws CanceledException {
+		final var k = Math.max(3, Math.max(getOptionFirstCoordinate(), getOptionSecondCoordinate()));
+		final var result = PCoAEigenSolver.compute(progress, distances, k);
+		if (result == null) {
+			progress.setMaximum(6);
+			progress.setProgress(1);
+			computeAllAxes(progress, taxaBlock);
+			return;
+		}
 
-		progress.incrementProgress();
+		progress.setMaximum(6);
+		progress.setProgress(3);
 
-		networkBlock.setNetworkType(NetworkBlock.Type.Points);
+		numberOfPositiveEigenValues = 0;
+		while (numberOfPositiveEigenValues < result.eigenValues().length && result.eigenValues()[numberOfPositiveEigenValues] > 0)
+			numberOfPositiveEigenValues++;
 
-		final PhyloGraph graph = networkBlock.getGraph();
-		System.err.printf("Stress: %.6f%n", getStress(getOptionFirstCoordinate() - 1, getOptionSecondCoordinate() - 1));
+		eigenValues = Arrays.copyOf(result.eigenValues(), numberOfPositiveEigenValues);
+		percentExplained = new double[numberOfPositiveEigenValues];
+		reportEigenValues(getTrace());
 
+		progress.incrementProgress();
 
-		for (var t = 1; t <= taxaBlock.getNtax(); t++) {
-			final double[] coordinates = getProjection(getOptionFirstCoordinate() - 1, getOptionSecondCoordinate() - 1, taxaBlock.get(t).getName());
-			final var v = graph.newNode(t);
-			graph.addTaxon(v, t);
-			graph.setLabel(v, taxaBlock.get(t).getDisplayLabelOrName());
-			networkBlock.getNodeData(v).put(NetworkBlock.NodeData.BasicKey.x.name(), String.valueOf(100 * coordinates[0]));
-			networkBlock.getNodeData(v).put(NetworkBlock.NodeData.BasicKey.y.name(), String.valueOf(100 * coordinates[1]));
+		for (int i = 0; i < rank; i++) {
+			String name = taxaBlock.getLabel(i + 1);
+			double[] vector = new double[numberOfPositiveEigenValues];
+			name2vector.put(name, vector);
+			vectors[i] = vector;
+			for (int j = 0; j < numberOfPositiveEigenValues; j++) {
+				vector[j] = result.eigenVectors()[i][j] * Math.sqrt(eigenValues[j]);
+			}
 		}
-		progress.incrementProgress();
+	}
 
-		networkBlock.setInfoString("PCoA on %,d taxa,  PC-%d (%s%%) vs PC-%d (%s%%)".formatted(taxaBlock.getNtax(),
-				getOptionFirstCoordinate(), StringUtils.removeTrailingZerosAfterDot("%.1f", percentExplained[getOptionFirstCoordinate() - 1]),
-				getOptionSecondCoordinate(), StringUtils.removeTrailingZerosAfterDot("%.1f", percentExplained[getOptionSecondCoordinate() - 1])));
+	/**
+	 * the trace of the double-centered matrix, which equals the sum of all its eigenvalues. Percent explained is relative
+	 * to this in both modes. For non-Euclidean distances, some eigenvalues are negative and the percentages of the
+	 * positive axes add up to more than 100%
+	 */
+	private double getTrace() {
+		return totalSquaredDistance / (4.0 * rank);
 	}
 
+	private void reportEigenValues(double total) {
+		System.err.println("Positive eigenvalues:");
+		System.err.println(StringUtils.toString("%.6f", eigenValues, ", "));
+
+		if (total > 0) {
+			for (int j = 0; j < eigenValues.length; j++) {
+				percentExplained[j] = 100.0 * eigenValues[j] / total;
+			}
+
+			System.err.println("Percent explained:");
+			System.err.println(StringUtils.toString("%.1f%%", percentExplained, ", "));
+		}
+	}
 
 	/**
 	 * get coordinates for given name
@@ -228,27 +292,24 @@ public class PCoA extends Distances2Network {
 	 *
 	 * @return new matrix
 	 */
-	private Matrix computeDoubleCenteringOfSquaredMatrix(Matrix matrix) {
-		int size = matrix.getColumnDimension();
-		Matrix result = new Matrix(matrix.getColumnDimension(), matrix.getRowDimension());
+	private static Matrix computeDoubleCenteringOfSquaredMatrix(double[][] distances) {
+		final int size = distances.length;
+		final double[] rowMeans = new double[size];
+		for (int i = 0; i < size; i++) {
+			for (int k = 0; k < size; k++) {
+				if (i != k)
+					rowMeans[i] += distances[i][k] * distances[i][k] / size;
+			}
+		}
+		double grandMean = 0;
+		for (int i = 0; i < size; i++)
+			grandMean += rowMeans[i] / size;
+
+		final Matrix result = new Matrix(size, size);
 		for (int i = 0; i < size; i++) {
 			for (int j = 0; j < size; j++) {
-				double v1 = 0;
-				for (int k = 0; k < size; k++) {
-					v1 += matrix.get(k, j) * matrix.get(k, j) / size;
-				}
-				double v2 = 0;
-				for (int k = 0; k < size; k++) {
-					v2 += matrix.get(i, k) * matrix.get(i, k) / size;
-				}
-				double v3 = 0;
-				for (int k = 0; k < size; k++) {
-					for (int l = 0; l < size; l++) {
-						v3 += matrix.get(k, l) * matrix.get(k, l) / (size * size);
-					}
-				}
-				double v4 = matrix.get(i, j);
-				result.set(i, j, 0.5 * (v1 + v2 - v3 - (v4 * v4)));
+				double v4 = (i == j ? 0 : distances[i][j]);
+				result.set(i, j, 0.5 * (rowMeans[j] + rowMeans[i] - grandMean - (v4 * v4)));
 			}
 		}
 		return result;
@@ -310,13 +371,25 @@ public class PCoA extends Distances2Network {
 						d += (vectors[a][z] - vectors[b][z]) * (vectors[a][z] - vectors[b][z]);
 					}
 					d = Math.sqrt(d);
-					squaredSum += (d - distanceMatrix.get(a, b)) * (d - distanceMatrix.get(a, b));
+					squaredSum += (d - distances[a][b]) * (d - distances[a][b]);
 				}
 			}
 		}
 		return Math.sqrt(squaredSum / totalSquaredDistance);
 	}
 
+	public boolean isOptionLeadingAxesOnly() {
+		return optionLeadingAxesOnly.get();
+	}
+
+	public BooleanProperty optionLeadingAxesOnlyProperty() {
+		return optionLeadingAxesOnly;
+	}
+
+	public void setOptionLeadingAxesOnly(boolean optionLeadingAxesOnly) {
+		this.optionLeadingAxesOnly.set(optionLeadingAxesOnly);
+	}
+
 	public int getOptionFirstCoordinate() {
 		return optionFirstCoordinate.getValue();
 	}
@@ -0,0 +1,238 @@
+/*
+ * PCoAEigenSolver.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.distances.distances2network;
+
+import jama.EigenvalueDecomposition;
+import jama.Matrix;
+import jloda.util.CanceledException;
+import jloda.util.progress.ProgressListener;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * computes the leading eigenvalues and eigenvectors of the double-centered matrix of squared distances, as used by PCoA,
+ * using randomized subspace iteration with Rayleigh-Ritz projection.
+ * The centered matrix is never materialized, its products with a block of vectors are computed on the fly from the distances.
+ * For non-Euclidean distances, the centered matrix is indefinite, so it is shifted by a Gershgorin bound on its spectrum
+ * to make it positive semi-definite. The iteration then finds the algebraically largest eigenvalues, rather than those
+ * of largest magnitude
+ */
+public class PCoAEigenSolver {
+	private static final int OVERSAMPLING = 10;
+	private static final int MAX_ITERATIONS = 500;
+	private static final double TOLERANCE = 1e-6;
+
+	/**
+	 * eigenvalues in descending order and corresponding eigenvectors, eigenVectors[i][c] is the i-th entry of the c-th vector
+	 */
+	public record Result(double[] eigenValues, double[][] eigenVectors) {
+	}
+
+	/**
+	 * compute the k largest eigenvalues and their eigenvectors of the double-centered squared distance matrix
+	 *
+	 * @param distances symmetric 0-based distances, diagonal is ignored
+	 * @param k         number of eigenpairs required
+	 * @return result, or null, if the iteration did not converge to k positive eigenvalues, in which case a dense solver should be used
+	 */
+	public static Result compute(ProgressListener progress, double[][] distances, int k) throws CanceledException {
+		final var n = distances.length;
+		k = Math.min(k, n);
+		final var l = Math.min(n, k + OVERSAMPLING);
+
+		// row means and grand mean of squared distances, used to center on the fly
+		final var rowMeans = new double[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var sum = 0.0;
+			for (var j = 0; j < n; j++) {
+				if (i != j)
+					sum += distances[i][j] * distances[i][j];
+			}
+			rowMeans[i] = sum / n;
+		});
+		final var grandMean = Arrays.stream(rowMeans).sum() / n;
+
+		// Gershgorin bound on the magnitude of all eigenvalues
+		final var shift = IntStream.range(0, n).parallel().mapToDouble(i -> {
+			var sum = 0.0;
+			for (var j = 0; j < n; j++) {
+				final var d2 = (i != j ? distances[i][j] * distances[i][j] : 0.0);
+				sum += Math.abs(-0.5 * (d2 - rowMeans[i] - rowMeans[j] + grandMean));
+			}
+			return sum;
+		}).max().orElse(0.0);
+
+		var random = new Random(666);
+		var q = new double[n][l];
+		for (var i = 0; i < n; i++) {
+			for (var c = 0; c < l; c++)
+				q[i][c] = random.nextGaussian();
+		}
+		orthonormalize(q, random);
+
+		progress.setMaximum(MAX_ITERATIONS);
+		progress.setProgress(0);
+
+		for (var iteration = 1; ; iteration++) {
+			final var z = times(distances, rowMeans, grandMean, shift, q);
+
+			// Rayleigh-Ritz
+			final var t = new Matrix(l, l);
+			for (var a = 0; a < l; a++) {
+				for (var b = a; b < l; b++) {
+					var sum = 0.0;
+					for (var i = 0; i < n; i++)
+						sum += q[i][a] * z[i][b];
+					t.set(a, b, sum);
+					t.set(b, a, sum);
+				}
+			}
+			final var eig = new EigenvalueDecomposition(t);
+			final var values = eig.getRealEigenvalues();
+			final var order = IntStream.range(0, l).boxed().sorted(Comparator.comparingDouble(c -> -values[c])).mapToInt(c -> c).toArray();
+
+			final var v = eig.getV();
+			final var current = new double[k];
+			for (var c = 0; c < k; c++)
+				current[c] = values[order[c]];
+
+			// when l==n, the Ritz pairs are exact, otherwise we require k positive eigenvalues to have converged
+			final var exact = (l == n);
+			final var converged = (exact || hasConverged(q, z, v, order, current, shift));
+			if (converged && !exact && current[k - 1] - shift <= 0 || !converged && iteration == MAX_ITERATIONS) {
+				progress.setProgress(MAX_ITERATIONS);
+				return null;
+			}
+			if (converged) {
+				final var basis = q;
+				final var eigenVectors = new double[n][k];
+				IntStream.range(0, n).parallel().forEach(i -> {
+					for (var c = 0; c < eigenVectors[i].length; c++) {
+						var sum = 0.0;
+						for (var a = 0; a < l; a++)
+							sum += basis[i][a] * v.get(a, order[c]);
+						eigenVectors[i][c] = sum;
+					}
+				});
+				for (var c = 0; c < k; c++)
+					current[c] -= shift;
+				progress.setProgress(MAX_ITERATIONS);
+				return new Result(current, eigenVectors);
+			}
+			orthonormalize(z, random);
+			q = z;
+			progress.setProgress(iteration);
+		}
+	}
+
+	/**
+	 * determines whether the residuals |Bx-λx| of all Ritz pairs are small, relative to the largest unshifted eigenvalue.
+	 * As z=Bq, Bx is obtained as zv without a further product
+	 */
+	private static boolean hasConverged(double[][] q, double[][] z, Matrix v, int[] order, double[] values, double shift) {
+		final var n = q.length;
+		final var l = q[0].length;
+		final var scale = Math.max(Math.abs(values[0] - shift), Double.MIN_NORMAL);
+		for (var c = 0; c < values.length; c++) {
+			var squaredResidual = 0.0;
+			for (var i = 0; i < n; i++) {
+				var bx = 0.0;
+				var x = 0.0;
+				for (var a = 0; a < l; a++) {
+					bx += z[i][a] * v.get(a, order[c]);
+					x += q[i][a] * v.get(a, order[c]);
+				}
+				squaredResidual += (bx - values[c] * x) * (bx - values[c] * x);
+			}
+			if (Math.sqrt(squaredResidual) > TOLERANCE * scale)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * multiplies the shifted double-centered matrix -1/2 J D^2 J + shift I by the columns of x
+	 */
+	private static double[][] times(double[][] distances, double[] rowMeans, double grandMean, double shift, double[][] x) {
+		final var n = x.length;
+		final var l = x[0].length;
+
+		final var columnSums = new double[l];
+		final var weightedSums = new double[l];
+		for (var j = 0; j < n; j++) {
+			for (var c = 0; c < l; c++) {
+				columnSums[c] += x[j][c];
+				weightedSums[c] += rowMeans[j] * x[j][c];
+			}
+		}
+
+		final var result = new double[n][l];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			final var row = result[i];
+			final var distancesI = distances[i];
+			for (var j = 0; j < n; j++) {
+				if (i != j) {
+					final var d2 = distancesI[j] * distancesI[j];
+					final var xj = x[j];
+					for (var c = 0; c < l; c++)
+						row[c] += d2 * xj[c];
+				}
+			}
+			for (var c = 0; c < l; c++)
+				row[c] = -0.5 * (row[c] - rowMeans[i] * columnSums[c] - weightedSums[c] + grandMean * columnSums[c]) + shift * x[i][c];
+		});
+		return result;
+	}
+
+	/**
+	 * orthonormalize the columns of x using modified Gram-Schmidt, applied twice for numerical stability.
+	 * Columns that become dependent are replaced by random ones
+	 */
+	private static void orthonormalize(double[][] x, Random random) {
+		final var n = x.length;
+		final var l = x[0].length;
+		for (var c = 0; c < l; c++) {
+			for (var pass = 0; pass < 2; pass++) {
+				for (var b = 0; b < c; b++) {
+					var dot = 0.0;
+					for (var i = 0; i < n; i++)
+						dot += x[i][b] * x[i][c];
+					for (var i = 0; i < n; i++)
+						x[i][c] -= dot * x[i][b];
+				}
+				var norm = 0.0;
+				for (var i = 0; i < n; i++)
+					norm += x[i][c] * x[i][c];
+				norm = Math.sqrt(norm);
+				if (norm > 1e-12) {
+					for (var i = 0; i < n; i++)
+						x[i][c] /= norm;
+				} else {
+					for (var i = 0; i < n; i++)
+						x[i][c] = random.nextGaussian();
+					pass = -1; // redo both passes with the random column
+				}
+			}
+		}
+	}
+}
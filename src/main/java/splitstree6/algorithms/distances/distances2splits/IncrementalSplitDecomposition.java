@@ -0,0 +1,184 @@
+/*
+ * IncrementalSplitDecomposition.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.distances.distances2splits;
+
+import jloda.util.CanceledException;
+import jloda.util.progress.ProgressListener;
+import splitstree6.data.DistancesBlock;
+import splitstree6.splits.ASplit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * computes the splits of the split decomposition, or of the Buneman tree, by adding one taxon at a time.
+ * <p>
+ * The weight of each split is the minimum score of all quartets seen so far, so when taxon t is added,
+ * only the quartets that contain t need to be scored. Candidate splits are scored in parallel, and distances are
+ * read from a flat 0-based array
+ */
+public class IncrementalSplitDecomposition {
+	private final int ntax;
+	private final double[] distances;
+	private final boolean buneman;
+
+	/**
+	 * constructor
+	 *
+	 * @param distancesBlock the distances
+	 * @param buneman        if true, use the Buneman index (minimum of the two sums) rather than the isolation index (maximum)
+	 */
+	private IncrementalSplitDecomposition(DistancesBlock distancesBlock, boolean buneman) {
+		this.ntax = distancesBlock.getNtax();
+		this.buneman = buneman;
+		this.distances = new double[ntax * ntax];
+		final var matrix = distancesBlock.getDistances();
+		for (var i = 0; i < ntax; i++)
+			System.arraycopy(matrix[i], 0, distances, i * ntax, ntax);
+	}
+
+	/**
+	 * computes all splits with positive weight
+	 *
+	 * @param progress       progress listener
+	 * @param distancesBlock the distances
+	 * @param buneman        compute the Buneman tree rather than the split decomposition
+	 * @return splits, not including missing trivial splits
+	 */
+	public static ArrayList<ASplit> apply(ProgressListener progress, DistancesBlock distancesBlock, boolean buneman) throws CanceledException {
+		return new IncrementalSplitDecomposition(distancesBlock, buneman).computeSplits(progress);
+	}
+
+	private ArrayList<ASplit> computeSplits(ProgressListener progress) throws CanceledException {
+		progress.setMaximum(ntax);
+		progress.setProgress(0);
+
+		// previous splits, each given by the side that contains taxon 1, and the sides as arrays of taxa
+		var previousSplits = new ArrayList<Split>();
+
+		final var previousTaxa = new BitSet(); // taxa already processed
+		previousTaxa.set(1);
+
+		for (var t = 2; t <= ntax; t++) {
+			final var nextSplits = new ArrayList<Split>(2 * previousSplits.size() + 1);
+
+			// Does t vs previous set of taxa form a split?
+			{
+				final var wgt = getIsolationIndex(t, new int[0], previousTaxa.stream().toArray());
+				if (wgt > 0) {
+					nextSplits.add(new Split((BitSet) previousTaxa.clone(), wgt));
+				}
+			}
+
+			// consider all previously computed splits, Au{t} vs B and A vs Bu{t}:
+			final var tt = t;
+			final var splits = previousSplits;
+			final var weights = new float[2 * splits.size()];
+			IntStream.range(0, weights.length).parallel().forEach(c -> {
+				final var split = splits.get(c / 2);
+				final var A = split.part().stream().toArray();
+				final var B = getComplement(split.part(), tt - 1);
+				if (c % 2 == 0)
+					weights[c] = Math.min(split.weight(), getIsolationIndex(tt, A, B));
+				else
+					weights[c] = Math.min(split.weight(), getIsolationIndex(tt, B, A));
+			});
+
+			for (var c = 0; c < weights.length; c++) {
+				if (weights[c] > 0) {
+					final var part = (BitSet) splits.get(c / 2).part().clone();
+					if (c % 2 == 0)
+						part.set(t);
+					nextSplits.add(new Split(part, weights[c]));
+				}
+			}
+			previousSplits = nextSplits;
+
+			previousTaxa.set(t);
+
+			progress.setProgress(t);
+		}
+
+		final var result = new ArrayList<ASplit>(previousSplits.size());
+		for (var split : previousSplits) {
+			result.add(new ASplit(split.part(), ntax, split.weight()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the isolation index (or Buneman index) for Su{t} vs O, considering only quartets that contain t
+	 *
+	 * @param t     the new taxon
+	 * @param side  taxa on the side of t, not including t
+	 * @param other taxa on the other side
+	 * @return the index, or 0, if some quartet has a score of at most 0.0000001
+	 */
+	private float getIsolationIndex(int t, int[] side, int[] other) {
+		var min_val = Float.MAX_VALUE;
+		final var m = other.length;
+		final var rowT = (t - 1) * ntax;
+
+		final var dt = new double[m];
+		final var di = new double[m];
+		for (var jj = 0; jj < m; jj++)
+			dt[jj] = distances[rowT + other[jj] - 1];
+
+		for (var ii = 0; ii <= side.length; ii++) {
+			final var i = (ii < side.length ? side[ii] : t);
+			final var rowI = (i - 1) * ntax;
+			final var dti = distances[rowT + i - 1];
+			for (var jj = 0; jj < m; jj++)
+				di[jj] = distances[rowI + other[jj] - 1];
+
+			for (var jj = 0; jj < m; jj++) {
+				final var rowJ = (other[jj] - 1) * ntax;
+				final var dtj = dt[jj];
+				final var dij = di[jj];
+				for (var kk = jj; kk < m; kk++) {
+					final var sum1 = dtj + di[kk];
+					final var sum2 = dt[kk] + dij;
+					final var val = (float) (0.5 * ((buneman ? Math.min(sum1, sum2) : Math.max(sum1, sum2)) - dti - distances[rowJ + other[kk] - 1]));
+					if (val < min_val) {
+						if (val <= 0.0000001)
+							return 0;
+						min_val = val;
+					}
+				}
+			}
+		}
+		return min_val;
+	}
+
+	private static int[] getComplement(BitSet A, int ntax) {
+		final var result = new int[ntax - A.cardinality()];
+		var count = 0;
+		for (var t = A.nextClearBit(1); t <= ntax; t = A.nextClearBit(t + 1))
+			result[count++] = t;
+		return result;
+	}
+
+	/**
+	 * a split, given by the side that contains taxon 1, and its weight
+	 */
+	private record Split(BitSet part, float weight) {
+	}
+}
@@ -24,8 +24,10 @@ import jloda.util.progress.ProgressListener;
 import jloda.util.progress.ProgressSilent;
 import splitstree6.algorithms.distances.distances2splits.neighbornet.NeighborNetCycle2023;
 import splitstree6.algorithms.distances.distances2splits.neighbornet.NeighborNetCycleSplitsTree4;
+import splitstree6.algorithms.distances.distances2splits.neighbornet.NeighborNetIncremental;
 import splitstree6.algorithms.distances.distances2splits.neighbornet.NeighborNetSplitWeightOptimizerSplitsTree4;
 import splitstree6.algorithms.distances.distances2splits.neighbornet.NeighborNetSplitWeightsClean;
+import splitstree6.algorithms.IIncrementalTaxa;
 import splitstree6.algorithms.splits.IToCircularSplits;
 import splitstree6.algorithms.utils.SplitsBlockUtilities;
 import splitstree6.data.DistancesBlock;
@@ -33,12 +35,14 @@ import splitstree6.data.SplitsBlock;
 import splitstree6.data.TaxaBlock;
 import splitstree6.splits.ASplit;
 import splitstree6.splits.Compatibility;
+import splitstree6.workflow.TaxaDelta;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
-public class NeighborNet extends Distances2Splits implements IToCircularSplits {
+public class NeighborNet extends Distances2Splits implements IToCircularSplits, IIncrementalTaxa {
 
 	public enum InferenceAlgorithm {GradientProjection, ActiveSet, APGD, SplitsTree4}
 
@@ -49,8 +53,27 @@ public class NeighborNet extends Distances2Splits implements IToCircularSplits {
 
 	private final BooleanProperty optionActiveCleanup = new SimpleBooleanProperty(this, "optionActiveCleanup", false);
 
+	private final BooleanProperty optionIncremental = new SimpleBooleanProperty(this, "optionIncremental", false);
+	private final DoubleProperty optionIncrementalFitLoss = new SimpleDoubleProperty(this, "optionIncrementalFitLoss", 0.5);
+
+	// state of the previous run, used for incremental updates:
+	private List<String> previousTaxa;
+	private int[] previousCycle;
+	private List<ASplit> previousSplits;
+	private double referenceFit;
+
 	public List<String> listOptions() {
-		return List.of(optionInferenceAlgorithm.getName()/*, optionThreshold.getName()*/ /*, optionCircularOrdering.getName()*/ /*, optionActiveCleanup.getName()*/);
+		return List.of(optionInferenceAlgorithm.getName()/*, optionThreshold.getName()*/ /*, optionCircularOrdering.getName()*/ /*, optionActiveCleanup.getName()*/, optionIncremental.getName(), optionIncrementalFitLoss.getName());
+	}
+
+	@Override
+	public String getToolTip(String optionName) {
+		if (optionName.equals(optionIncremental.getName()))
+			return "When only a few taxa are removed or added, insert new taxa into the previous cycle and start the split weight optimization from the previous weights";
+		else if (optionName.equals(optionIncrementalFitLoss.getName()))
+			return "Recompute from scratch, if the fit of an incremental update is worse than that of the last full computation by more than this many percent";
+		else
+			return super.getToolTip(optionName);
 	}
 
 	@Override
@@ -70,11 +93,70 @@ public class NeighborNet extends Distances2Splits implements IToCircularSplits {
 		progress.setMaximum(-1);
 		long start = System.currentTimeMillis();
 
-		var cycle = switch (getOptionCircularOrdering()) {
-			case SplitsTree4 -> NeighborNetCycleSplitsTree4.compute(distancesBlock.size(), distancesBlock.getDistances());
-			case BryantHuson2023 -> NeighborNetCycle2023.computeOrdering(distancesBlock);
-		};
+		final var delta = (isOptionIncremental() ? TaxaDelta.compute(previousTaxa, taxaBlock) : null);
+		var incremental = previousCycle != null && isIncrementalUpdate(delta, taxaBlock);
+
+		int[] cycle;
+		ArrayList<ASplit> splits;
+		float fit;
+
+		if (incremental) {
+			progress.setTasks("NNet", "updating cycle");
+			var name2new = new HashMap<String, Integer>();
+			for (var t = 1; t <= taxaBlock.getNtax(); t++)
+				name2new.put(taxaBlock.getLabel(t), t);
+			var previous2new = NeighborNetIncremental.computePrevious2New(previousTaxa.toArray(new String[0]), name2new);
+			var added = delta.added().stream().map(name2new::get).toList();
+			cycle = NeighborNetIncremental.computeCycle(previousCycle, previous2new, added, distancesBlock.getDistances());
+			var initialWeights = NeighborNetIncremental.computeInitialWeights(previousCycle, previous2new, previousSplits, cycle);
+			splits = computeSplitWeights(progress, cycle, distancesBlock, initialWeights);
+			fit = SplitsBlockUtilities.computeLeastSquaresFit(distancesBlock, splits);
+			if (fit < referenceFit - getOptionIncrementalFitLoss())
+				incremental = false;
+		} else {
+			cycle = null;
+			splits = null;
+			fit = 0;
+		}
+
+		if (!incremental) {
+			cycle = switch (getOptionCircularOrdering()) {
+				case SplitsTree4 -> NeighborNetCycleSplitsTree4.compute(distancesBlock.size(), distancesBlock.getDistances());
+				case BryantHuson2023 -> NeighborNetCycle2023.computeOrdering(distancesBlock);
+			};
+			splits = computeSplitWeights(progress, cycle, distancesBlock, null);
+			fit = SplitsBlockUtilities.computeLeastSquaresFit(distancesBlock, splits);
+			referenceFit = fit;
+		}
+
+		previousTaxa = taxaBlock.getLabels();
+		previousCycle = cycle;
+		previousSplits = splits.stream().map(ASplit::new).toList();
 
+		progress.setTasks("NNet", "post-analysis");
+
+		if (Compatibility.isCompatible(splits))
+			splitsBlock.setCompatibility(Compatibility.compatible);
+		else
+			splitsBlock.setCompatibility(Compatibility.cyclic);
+		splitsBlock.setCycle(cycle);
+		splitsBlock.setFit(fit);
+
+		splitsBlock.getSplits().addAll(splits);
+
+		if (!(progress instanceof ProgressSilent)) {
+			var seconds = (System.currentTimeMillis() - start) / 1000.0;
+			System.err.printf("NNet algorithm: %s%s taxa: %d time: %,.1fs fit: %.1f%% splits: %d%n", getOptionInferenceAlgorithm().name(), (incremental ? " (incremental)" : ""),
+					taxaBlock.getNtax(), seconds, splitsBlock.getFit(), splitsBlock.getNsplits());
+		}
+	}
+
+	/**
+	 * computes the split weights for the given cycle
+	 *
+	 * @param initialWeights starting point for the optimization, or null
+	 */
+	private ArrayList<ASplit> computeSplitWeights(ProgressListener progress, int[] cycle, DistancesBlock distancesBlock, double[] initialWeights) throws IOException {
 		progress.setTasks("NNet", "split weight optimization");
 
 		var params = new NeighborNetSplitWeightsClean.NNLSParams();
@@ -91,37 +173,20 @@ public class NeighborNet extends Distances2Splits implements IToCircularSplits {
 		else
 			params.method = NeighborNetSplitWeightsClean.NNLSParams.MethodTypes.SPLITSTREE4;
 
-		ArrayList<ASplit> splits;
 		if (getOptionInferenceAlgorithm() != InferenceAlgorithm.SplitsTree4) {
-			//splits = NeighborNetSplitWeightsClean.compute(cycle, distancesBlock.getDistances(), params, progress);
-			splits = NeighborNetSplitWeightsClean.computeUse1D(cycle, distancesBlock.getDistances(), params, progress);
-//			System.err.println("OLD");
-//			for(int i=0;i<splits.size();i++)
-//				System.err.println(splits.get(i));
-//
-//			System.err.println("NEW");
-//			for(int i=0;i<splits2.size();i++)
-//				System.err.println(splits2.get(i));
-		}
-		else
-			splits = NeighborNetSplitWeightOptimizerSplitsTree4.apply(cycle, distancesBlock);
-
-		progress.setTasks("NNet", "post-analysis");
-
-		if (Compatibility.isCompatible(splits))
-			splitsBlock.setCompatibility(Compatibility.compatible);
-		else
-			splitsBlock.setCompatibility(Compatibility.cyclic);
-		splitsBlock.setCycle(cycle);
-		splitsBlock.setFit(SplitsBlockUtilities.computeLeastSquaresFit(distancesBlock, splits));
-
-		splitsBlock.getSplits().addAll(splits);
+			//return NeighborNetSplitWeightsClean.compute(cycle, distancesBlock.getDistances(), params, progress);
+			return NeighborNetSplitWeightsClean.computeUse1D(cycle, distancesBlock.getDistances(), initialWeights, params, progress);
+		} else
+			return NeighborNetSplitWeightOptimizerSplitsTree4.apply(cycle, distancesBlock);
+	}
 
-		if (!(progress instanceof ProgressSilent)) {
-			var seconds = (System.currentTimeMillis() - start) / 1000.0;
-			System.err.printf("NNet algorithm: %s taxa: %d time: %,.1fs fit: %.1f%% splits: %d%n", getOptionInferenceAlgorithm().name(),
-					taxaBlock.getNtax(), seconds, splitsBlock.getFit(), splitsBlock.getNsplits());
-		}
+	@Override
+	public void clear() {
+		super.clear();
+		previousTaxa = null;
+		previousCycle = null;
+		previousSplits = null;
+		referenceFit = 0;
 	}
 
 	@Override
@@ -165,6 +230,30 @@ public class NeighborNet extends Distances2Splits implements IToCircularSplits {
 		this.optionActiveCleanup.set(active);
 	}
 
+	public boolean isOptionIncremental() {
+		return optionIncremental.get();
+	}
+
+	public BooleanProperty optionIncrementalProperty() {
+		return optionIncremental;
+	}
+
+	public void setOptionIncremental(boolean optionIncremental) {
+		this.optionIncremental.set(optionIncremental);
+	}
+
+	public double getOptionIncrementalFitLoss() {
+		return optionIncrementalFitLoss.get();
+	}
+
+	public DoubleProperty optionIncrementalFitLossProperty() {
+		return optionIncrementalFitLoss;
+	}
+
+	public void setOptionIncrementalFitLoss(double optionIncrementalFitLoss) {
+		this.optionIncrementalFitLoss.set(optionIncrementalFitLoss);
+	}
+
 	public CircularOrderingAlgorithm getOptionCircularOrdering() {
 		return optionCircularOrdering.get();
 	}
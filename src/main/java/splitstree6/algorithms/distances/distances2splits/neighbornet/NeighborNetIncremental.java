@@ -0,0 +1,224 @@
+/*
+ *  NeighborNetIncremental.java Copyright (C) 2023 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.distances.distances2splits.neighbornet;
+
+import splitstree6.splits.ASplit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * support for updating a neighbor-net when only a few taxa have been removed or added:
+ * new taxa are inserted into the previous cycle at the cheapest position, and the previous split weights
+ * are mapped onto the new cycle so that they can be used as a starting point for the split weight optimization
+ */
+public class NeighborNetIncremental {
+	/**
+	 * computes the index of the split {cycle[i],...,cycle[j-1]} in the one-dimensional split weight array
+	 * used by NeighborNetSplitWeightsClean.computeUse1D
+	 *
+	 * @param i position in cycle, 1 <= i < j
+	 * @param j position in cycle, i < j <= n
+	 * @param n number of taxa
+	 * @return 0-based index
+	 */
+	public static int index1D(int i, int j, int n) {
+		return (i - 1) * n - ((i - 1) * i) / 2 + (j - i - 1);
+	}
+
+	/**
+	 * computes a new cycle by removing taxa from the previous cycle and then inserting each added taxon at the
+	 * position in which it increases the length of the tour the least
+	 *
+	 * @param previousCycle previous cycle, 1-based, entries are taxa in the previous numbering
+	 * @param previous2new  maps each previous taxon to its new index, or to a value smaller than 1, if removed
+	 * @param added         new indices of added taxa
+	 * @param distances     new distances, 0-based
+	 * @return new cycle, 1-based
+	 */
+	public static int[] computeCycle(int[] previousCycle, int[] previous2new, Collection<Integer> added, double[][] distances) {
+		final var tour = new ArrayList<Integer>(distances.length);
+		for (var i = 1; i < previousCycle.length; i++) {
+			final var t = previous2new[previousCycle[i]];
+			if (t > 0)
+				tour.add(t);
+		}
+
+		for (var x : added) {
+			var bestPos = tour.size();
+			var bestCost = Double.MAX_VALUE;
+			for (var p = 0; p < tour.size(); p++) {
+				final var a = tour.get(p);
+				final var b = tour.get((p + 1) % tour.size());
+				final var cost = distances[a - 1][x - 1] + distances[x - 1][b - 1] - distances[a - 1][b - 1];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestPos = p + 1;
+				}
+			}
+			tour.add(bestPos, x);
+		}
+
+		final var cycle = new int[tour.size() + 1];
+		for (var i = 0; i < tour.size(); i++)
+			cycle[i + 1] = tour.get(i);
+		return normalizeCycle(cycle);
+	}
+
+	/**
+	 * rotates and, if necessary, reverses a cycle so that it starts with taxon 1 and its second element is smaller than its last
+	 */
+	private static int[] normalizeCycle(int[] cycle) {
+		final var n = cycle.length - 1;
+		var start = 1;
+		while (start <= n && cycle[start] != 1)
+			start++;
+		if (start > n)
+			return cycle;
+		final var result = new int[n + 1];
+		for (var i = 0; i < n; i++)
+			result[i + 1] = cycle[(start - 1 + i) % n + 1];
+		if (n > 2 && result[2] > result[n]) {
+			for (int i = 2, j = n; i < j; i++, j--) {
+				var tmp = result[i];
+				result[i] = result[j];
+				result[j] = tmp;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * maps the weights of splits that are circular with respect to a previous cycle onto a new cycle
+	 * that contains all surviving taxa in the same circular order. Splits of the previous result that
+	 * coincide on the surviving taxa have their weights summed, which gives the weights of the induced splits.
+	 *
+	 * @param previousCycle previous cycle, 1-based
+	 * @param previous2new  maps each previous taxon to its new index, or to a value smaller than 1, if removed
+	 * @param splits        previous splits, circular with respect to previous cycle
+	 * @param cycle         new cycle, 1-based
+	 * @return one-dimensional array of initial split weights for the new cycle
+	 */
+	public static double[] computeInitialWeights(int[] previousCycle, int[] previous2new, Collection<ASplit> splits, int[] cycle) {
+		final var n = cycle.length - 1;
+		final var weights = new double[n * (n - 1) / 2];
+
+		final var survivor = new boolean[n + 1];
+		for (var t = 1; t < previous2new.length; t++) {
+			if (previous2new[t] > 0)
+				survivor[previous2new[t]] = true;
+		}
+
+		// rank of each position along the new cycle among the surviving taxa, 0, if the taxon was added
+		final var survivorRank = new int[n + 1];
+		var m = 0;
+		for (var i = 1; i <= n; i++) {
+			if (survivor[cycle[i]])
+				survivorRank[i] = ++m;
+		}
+		if (m < 3)
+			return weights;
+
+		// new taxon id -> survivor rank
+		final var taxon2rank = new int[n + 1];
+		for (var i = 1; i <= n; i++)
+			taxon2rank[cycle[i]] = survivorRank[i];
+
+		// accumulate previous split weights by the interval of survivors that they induce. If the last taxon of the
+		// previous cycle was removed, the induced part may wrap around the cycle of survivors, so we always use the part
+		// that does not contain the last survivor
+		final var interval2weight = new HashMap<Long, Double>();
+		final var inPart = new boolean[m + 1];
+		for (var split : splits) {
+			Arrays.fill(inPart, false);
+			var count = 0;
+			final var part = split.getPartNotContaining(previousCycle[previousCycle.length - 1]);
+			for (var t = part.nextSetBit(0); t != -1; t = part.nextSetBit(t + 1)) {
+				if (t < previous2new.length && previous2new[t] > 0) {
+					inPart[taxon2rank[previous2new[t]]] = true;
+					count++;
+				}
+			}
+			if (count == 0 || count == m)
+				continue;
+			if (inPart[m]) {
+				for (var r = 1; r <= m; r++)
+					inPart[r] = !inPart[r];
+				count = m - count;
+			}
+			var first = 1;
+			while (!inPart[first])
+				first++;
+			final var last = first + count - 1;
+			var interval = true;
+			for (var r = first + 1; r <= last && interval; r++)
+				interval = inPart[r];
+			if (interval)
+				interval2weight.merge(intervalKey(first, last, m), split.getWeight(), Double::sum);
+		}
+
+		// assign each accumulated weight to the tightest new split that induces the same interval
+		for (var i = 1; i <= n; i++) {
+			if (survivorRank[i] == 0)
+				continue;
+			for (var j = i + 1; j <= n; j++) {
+				if (survivorRank[j - 1] == 0)
+					continue;
+				final var first = survivorRank[i];
+				final var last = survivorRank[j - 1];
+				if (last - first + 1 < m) {
+					final var weight = interval2weight.remove(intervalKey(first, last, m));
+					if (weight != null)
+						weights[index1D(i, j, n)] = weight;
+				}
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * a split of the surviving taxa that is an interval in their cycle is identified by the interval that does not contain the last survivor
+	 */
+	private static long intervalKey(int first, int last, int m) {
+		if (last == m) {
+			last = first - 1;
+			first = 1;
+		}
+		return (long) first * (m + 1) + last;
+	}
+
+	/**
+	 * computes the mapping of previous taxon ids to new ones, from taxon names
+	 *
+	 * @param previousNames previous taxon names, 0-based
+	 * @param name2new      new index for each current name
+	 * @return array mapping 1-based previous ids to 1-based new ids, or -1, if removed
+	 */
+	public static int[] computePrevious2New(String[] previousNames, Map<String, Integer> name2new) {
+		final var previous2new = new int[previousNames.length + 1];
+		for (var t = 1; t <= previousNames.length; t++) {
+			previous2new[t] = name2new.getOrDefault(previousNames[t - 1], -1);
+		}
+		return previous2new;
+	}
+}
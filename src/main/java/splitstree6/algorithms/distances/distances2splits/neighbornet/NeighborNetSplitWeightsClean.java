@@ -154,6 +154,21 @@ public class NeighborNetSplitWeightsClean {
 	}
 
 	static public ArrayList<ASplit> computeUse1D(int[] cycle, double[][] distances, NNLSParams params, ProgressListener progress) throws CanceledException {
+		return computeUse1D(cycle, distances, null, params, progress);
+	}
+
+	/**
+	 * Estimate the split weights using non-negative least squares, using one-dimensional arrays
+	 *
+	 * @param cycle          Neighbor-net cycle
+	 * @param distances      Array of distances, indexed 0..(n-1)
+	 * @param initialWeights Split weights used as starting point, if the unconstrained solution is infeasible, indexed as in NeighborNetIncremental.index1D, or null
+	 * @param params         Parameters
+	 * @param progress       Progress bar - used to implement cancel
+	 * @return Array list of splits with associated weights.
+	 * @throws CanceledException User pressed cancel in progress bar
+	 */
+	static public ArrayList<ASplit> computeUse1D(int[] cycle, double[][] distances, double[] initialWeights, NNLSParams params, ProgressListener progress) throws CanceledException {
 		var n = cycle.length - 1;  //Number of taxa
 		var npairs = n*(n-1)/2;
 
@@ -192,6 +207,8 @@ public class NeighborNetSplitWeightsClean {
 		calcAinv_y(d, x, n); //Compute unconstrained solution
 		var minVal = minArray(x);
 		if (minVal < 0) {
+			if (initialWeights != null && initialWeights.length == npairs)
+				copyArray(initialWeights, x); //Warm start from given weights
 			zeroNegativeEntries(x);
 			switch (params.method) {
 				case GRADPROJECTION -> {
@@ -21,18 +21,16 @@ package splitstree6.algorithms.distances.distances2trees;
 
 import jloda.graph.Node;
 import jloda.phylo.PhyloTree;
-import jloda.util.BitSetUtils;
 import jloda.util.CanceledException;
 import jloda.util.progress.ProgressListener;
+import splitstree6.algorithms.distances.distances2trees.neighborjoining.NeighborJoiningEngine;
 import splitstree6.algorithms.trees.IToSingleTree;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
 import splitstree6.data.TreesBlock;
 
-import java.util.BitSet;
-
 /**
- * Neighbor joining algorithm
+ * Neighbor joining algorithm, see NeighborJoiningEngine for the implementation
  *
  * @author Daniel Huson, 12.2020
  */
@@ -58,128 +56,36 @@ public class NeighborJoining extends Distances2Trees implements IToSingleTree {
 		final var tree = new PhyloTree();
 		tree.setName("NJ-tree");
 
-		final var alive = new BitSet(); // o-based
-
 		final var nodes = new Node[ntax]; // 0-based
 		for (var t = 1; t <= ntax; t++) {
 			var v = tree.newNode();
 			tree.addTaxon(v, t);
 			tree.setLabel(v, taxaBlock.getLabel(t));
 			nodes[t - 1] = v;
-			alive.set(t - 1);
 		}
 
 		if (ntax <= 1)
 			return tree;
 
-		progressListener.setMaximum(ntax);
-		progressListener.setProgress(0);
-
-		final var matrix = new float[ntax][ntax]; // 0-based
-
-		final var rowSum = new float[ntax]; // 0-based
-
-		for (var i : BitSetUtils.members(alive)) {
-			for (var j : BitSetUtils.members(alive, i + 1)) {
-				matrix[i][j] = matrix[j][i] = (float) distances.get(i + 1, j + 1);
-			}
-		}
-
-		for (var i : BitSetUtils.members(alive)) {
-			rowSum[i] = computeRowSum(alive, i, matrix);
-		}
-
-		var verbose = false;
-
-		while (alive.cardinality() > 2) {
-			var minI = -1;
-			var minJ = -1;
-			var minQ = Float.MAX_VALUE;
-
-			if (verbose) {
-				System.err.println("\nTaxa: " + alive.cardinality());
-				System.err.println("Distances:");
-				for (var i : BitSetUtils.members(alive)) {
-					System.err.print(i + 1 + ":");
-					for (var j : BitSetUtils.members(alive, i + 1)) {
-						System.err.printf(" %d", (int) matrix[i][j]);
-					}
-					System.err.println();
-				}
-			}
-
-			if (verbose)
-				System.err.println("Q:");
-
-			for (var i : BitSetUtils.members(alive)) {
-				if (verbose) System.err.print(i + 1 + ":");
-				for (var j : BitSetUtils.members(alive, i + 1)) {
-					final var q = (alive.cardinality() - 2) * matrix[i][j] - rowSum[i] - rowSum[j];
-
-					if (verbose) System.err.printf(" %f%n", q);
-
-					if (q < minQ) {
-						minQ = q;
-						minI = i;
-						minJ = j;
-					}
-				}
-				if (verbose) System.err.println();
-			}
-			if (verbose) System.err.println("minI=" + (minI + 1) + " minJ=" + (minJ + 1) + " minQ=" + (int) minQ);
-
+		final var joins = NeighborJoiningEngine.computeNJ(progressListener, distances.getDistances());
 
+		for (var k = 0; k < joins.first().length; k++) {
+			final var i = joins.first()[k];
+			final var j = joins.second()[k];
 			final var u = tree.newNode();
-			final var weightIU = 0.5f * matrix[minI][minJ] + 0.5f * (rowSum[minI] - rowSum[minJ]) / (alive.cardinality() - 2);
-			tree.setWeight(tree.newEdge(u, nodes[minI]), weightIU);
-			final var weightJU = matrix[minI][minJ] - weightIU;
-			tree.setWeight(tree.newEdge(u, nodes[minJ]), weightJU);
-
-			nodes[minI] = u;
-
-			alive.clear(minI);
-			alive.clear(minJ);
-
-			for (var k : BitSetUtils.members(alive)) {
-				rowSum[k] -= matrix[k][minI];
-				rowSum[k] -= matrix[k][minJ];
-			}
-
-			for (var k : BitSetUtils.members(alive)) {
-				matrix[minI][k] = matrix[k][minI] = (float) (0.5 * (matrix[minI][k] + matrix[minJ][k] - matrix[minI][minJ]));
-			}
-
-			for (var k : BitSetUtils.members(alive)) {
-				rowSum[k] += matrix[k][minI];
-			}
-
-			rowSum[minI] = computeRowSum(alive, minI, matrix);
-
-			alive.set(minI); // replaces both old taxa
-
-			progressListener.incrementProgress();
+			tree.setWeight(tree.newEdge(u, nodes[i]), joins.firstWeight()[k]);
+			tree.setWeight(tree.newEdge(u, nodes[j]), joins.secondWeight()[k]);
+			nodes[i] = u;
 		}
 
-		if (alive.cardinality() == 2) {
-			var i = BitSetUtils.min(alive);
-			var j = BitSetUtils.max(alive);
-
-			tree.setWeight(tree.newEdge(nodes[i], nodes[j]), matrix[i][j]);
-			tree.setRoot(nodes[i]);
-		}
-		progressListener.setProgress(ntax);
+		final var i = joins.last()[0];
+		final var j = joins.last()[1];
+		tree.setWeight(tree.newEdge(nodes[i], nodes[j]), joins.lastWeight()[0]);
+		tree.setRoot(nodes[i]);
 
 		// System.err.println(tree.toBracketString());
 
 		return tree;
 	}
-
-	private float computeRowSum(BitSet alive, int i, float[][] matrix) {
-		var r = 0f;
-		for (var j : BitSetUtils.members(alive)) {
-			r += matrix[i][j];
-		}
-		return r;
-	}
 }
 
@@ -24,14 +24,19 @@ import jloda.phylo.PhyloTree;
 import jloda.util.CanceledException;
 import jloda.util.progress.ProgressListener;
 import splitstree6.algorithms.trees.IToSingleTree;
+import splitstree6.algorithms.utils.IntHeap;
+import splitstree6.algorithms.utils.PackedDistances;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
 import splitstree6.data.TreesBlock;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
 
 /**
- * UPGMA classic n³ version
+ * UPGMA, using a packed distance matrix and a heap of the closest cluster of each cluster
  * <p>
  * Created on 2010-02-04
  *
@@ -62,52 +67,67 @@ public class UPGMA extends Distances2Trees implements IToSingleTree {
 		tree.setName("UPGMA-tree");
 		final var ntax = distances.getNtax();
 
-		final var subtrees = new Node[ntax + 1];
-		final var sizes = new int[ntax + 1];
-		var heights = new double[ntax + 1];
+		final var subtrees = new Node[ntax]; // 0-based
+		final var sizes = new int[ntax];
+		final var heights = new double[ntax];
 
 		for (var t = 1; t <= ntax; t++) {
 			final var v = tree.newNode();
-			subtrees[t] = v;
+			subtrees[t - 1] = v;
 			tree.setLabel(v, taxaBlock.getLabel(t));
 			tree.addTaxon(v, t);
-			sizes[t] = 1;
+			sizes[t - 1] = 1;
 		}
 
-		final var d = new double[ntax + 1][ntax + 1];// distance matix
+		if (ntax == 1) {
+			tree.setRoot(subtrees[0]);
+			return tree;
+		}
+
+		final var d = new PackedDistances(ntax);// distance matrix
+		final var matrix = distances.getDistances();
 
 		//Initialise d
-		//Compute the closest values for each taxa.
-		for (var i = 1; i <= ntax; i++) {
-			for (var j = i + 1; j <= ntax; j++) {
-				//d[i][j] = d[j][i] = (distances.get(i, j) + distances.get(j, i)) / 2.0;
-				final var sum = distances.get(i, j) + distances.get(j, i);
-				if (sum == distances.get(i, j) || sum == distances.get(j, i)) {
-					d[i][j] = d[j][i] = sum;
+		IntStream.range(1, ntax).parallel().forEach(j -> {
+			for (var i = 0; i < j; i++) {
+				final var sum = matrix[i][j] + matrix[j][i];
+				if (sum == matrix[i][j] || sum == matrix[j][i]) {
+					d.set(i, j, sum);
 				} else {
-					d[i][j] = d[j][i] = sum / 2.0;
+					d.set(i, j, sum / 2.0);
 				}
 			}
-		}
+		});
+
+		//Compute the closest cluster for each cluster. Ties are broken by smallest index, so that the closest pair
+		//overall is the lexicographically smallest one among all closest pairs
+		final var alive = new boolean[ntax];
+		Arrays.fill(alive, true);
+		final var nearest = new int[ntax];
+		final var nearestDistance = new double[ntax];
+		IntStream.range(0, ntax).parallel().forEach(i -> updateNearest(i, d, alive, nearest, nearestDistance));
+
+		final var heap = new IntHeap(ntax - 1, (a, b) -> {
+			var result = Double.compare(nearestDistance[a], nearestDistance[b]);
+			if (result == 0)
+				result = Integer.compare(Math.min(a, nearest[a]), Math.min(b, nearest[b]));
+			if (result == 0)
+				result = Integer.compare(Math.max(a, nearest[a]), Math.max(b, nearest[b]));
+			return result;
+		});
+		for (var i = 0; i < ntax; i++)
+			heap.add(i);
 
 		progress.setMaximum(ntax);
 		for (var clusters = ntax; clusters > 2; clusters--) {
-			var i_min = 0;
-			var j_min = 0;
 			//Find closest pair.
-			double d_min = Double.POSITIVE_INFINITY;
-			for (int i = 1; i <= clusters; i++) {
-				for (int j = i + 1; j <= clusters; j++) {
-					double dij = d[i][j];
-					if (i_min == 0 || dij < d_min) {
-						i_min = i;
-						j_min = j;
-						d_min = dij;
-					}
-				}
-			}
+			final var first = heap.poll();
+			final var i_min = Math.min(first, nearest[first]);
+			final var j_min = Math.max(first, nearest[first]);
+			heap.remove(i_min);
+			heap.remove(j_min);
 
-			final var height = d_min / 2.0;
+			final var height = nearestDistance[first] / 2.0;
 
 			final var v = tree.newNode();
 			final var e = tree.newEdge(v, subtrees[i_min]);
@@ -118,51 +138,76 @@ public class UPGMA extends Distances2Trees implements IToSingleTree {
 			subtrees[i_min] = v;
 			subtrees[j_min] = null;
 			heights[i_min] = height;
-
+			alive[j_min] = false;
 
 			final var size_i = sizes[i_min];
 			final var size_j = sizes[j_min];
 			sizes[i_min] = size_i + size_j;
 
-			for (var k = 1; k <= ntax; k++) {
-				if ((k == i_min) || k == j_min) continue;
-				final var dki = (d[k][i_min] * size_i + d[k][j_min] * size_j) / ((double) (size_i + size_j));
-				d[k][i_min] = d[i_min][k] = dki;
+			for (var k = 0; k < ntax; k++) {
+				if (!alive[k] || k == i_min) continue;
+				final var dki = (d.get(k, i_min) * size_i + d.get(k, j_min) * size_j) / ((double) (size_i + size_j));
+				d.set(k, i_min, dki);
 			}
 
-			//Copy the top row of the matrix and arrays into the empty j_min row/column.
-			if (j_min < clusters) {
-				for (var k = 1; k <= clusters; k++) {
-					d[j_min][k] = d[k][j_min] = d[clusters][k];
+			// update closest clusters, only those that were closest to one of the merged clusters need to be recomputed
+			updateNearest(i_min, d, alive, nearest, nearestDistance);
+			final var recompute = new BitSet();
+			for (var k = 0; k < ntax; k++) {
+				if (!alive[k] || k == i_min) continue;
+				if (nearest[k] == i_min || nearest[k] == j_min) {
+					recompute.set(k);
+					heap.remove(k); // remove before changing its key
+				} else {
+					final var dki = d.get(k, i_min);
+					if (dki < nearestDistance[k] || (dki == nearestDistance[k] && i_min < nearest[k])) {
+						nearest[k] = i_min;
+						nearestDistance[k] = dki;
+						heap.update(k);
+					}
 				}
-				d[j_min][j_min] = 0.0;
-				subtrees[j_min] = subtrees[clusters];
-				sizes[j_min] = sizes[clusters];
-				heights[j_min] = heights[clusters];
 			}
+			(clusters >= 1000 ? recompute.stream().parallel() : recompute.stream()).forEach(k -> updateNearest(k, d, alive, nearest, nearestDistance));
+			recompute.stream().forEach(heap::add);
+			heap.add(i_min);
 
 			progress.incrementProgress();
 		}
 
-		final var brother = 1;
-
-		var sister = brother + 1;
-		while (subtrees[sister] == null)
-			sister++;
+		final var brother = heap.poll();
+		final var sister = heap.poll();
 
 		final var root = tree.newNode();
-		final var left = tree.newEdge(root, subtrees[brother]);
-		final var right = tree.newEdge(root, subtrees[sister]);
+		final var left = tree.newEdge(root, subtrees[Math.min(brother, sister)]);
+		final var right = tree.newEdge(root, subtrees[Math.max(brother, sister)]);
 
-		final var halfTotal = 0.5 * (d[brother][sister] + heights[brother] + heights[sister]);
-		tree.setWeight(left, halfTotal - heights[brother]);
-		tree.setWeight(right, halfTotal - heights[sister]);
+		final var halfTotal = 0.5 * (d.get(brother, sister) + heights[brother] + heights[sister]);
+		tree.setWeight(left, halfTotal - heights[Math.min(brother, sister)]);
+		tree.setWeight(right, halfTotal - heights[Math.max(brother, sister)]);
 
 		tree.setRoot(root);
 
 		return tree;
 	}
 
+	/**
+	 * computes the closest other cluster to cluster i
+	 */
+	private static void updateNearest(int i, PackedDistances d, boolean[] alive, int[] nearest, double[] nearestDistance) {
+		var best = -1;
+		var bestDistance = Double.POSITIVE_INFINITY;
+		for (var k = 0; k < alive.length; k++) {
+			if (alive[k] && k != i) {
+				final var dik = d.get(i, k);
+				if (best == -1 || dik < bestDistance) {
+					best = k;
+					bestDistance = dik;
+				}
+			}
+		}
+		nearest[i] = best;
+		nearestDistance[i] = bestDistance;
+	}
 
 	@Override
 	public boolean isApplicable(TaxaBlock taxaBlock, DistancesBlock parent) {
@@ -0,0 +1,450 @@
+/*
+ * NeighborJoiningEngine.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.distances.distances2trees.neighborjoining;
+
+import jloda.util.CanceledException;
+import jloda.util.progress.ProgressListener;
+import splitstree6.algorithms.utils.PackedDistances;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * fast neighbor-joining and BioNJ, following the ideas of RapidNJ (Simonsen, Mailund and Pedersen, 2008):
+ * distances are kept in a packed triangular matrix, each row has an index of the other clusters sorted by distance,
+ * so that the search for the pair that minimizes the Q-criterion can stop scanning a row as soon as a lower bound
+ * exceeds the best value found so far, and rows are scanned in parallel.
+ * <p>
+ * The arithmetic and tie-breaking of the straight-forward implementations are reproduced exactly, so identical trees
+ * are obtained.
+ */
+public class NeighborJoiningEngine {
+	/**
+	 * minimum number of clusters for which rows are scanned in parallel
+	 */
+	private static final int PARALLEL_THRESHOLD = 1000;
+
+	/**
+	 * the computed joins. Join k merges the clusters at (0-based) indices first[k] and second[k] into a new cluster
+	 * that replaces the one at first[k]. The remaining two (NJ) or three (BioNJ) clusters are given by last
+	 * and are connected by a single edge, or to a common root, respectively.
+	 */
+	public record Joins(int[] first, int[] second, double[] firstWeight, double[] secondWeight, int[] last, double[] lastWeight) {
+	}
+
+	/**
+	 * runs neighbor joining, using single-precision arithmetic as in the original implementation
+	 *
+	 * @param distances distances, 0-based, only the upper triangle is used
+	 * @return the joins
+	 */
+	public static Joins computeNJ(ProgressListener progress, double[][] distances) throws CanceledException {
+		final var n = distances.length;
+		final var m = new float[PackedDistances.size(n)];
+		for (var j = 1; j < n; j++) {
+			final var offset = PackedDistances.offset(j);
+			for (var i = 0; i < j; i++)
+				m[offset + i] = (float) distances[i][j];
+		}
+
+		final var r = new float[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var sum = 0f;
+			for (var j = 0; j < n; j++) {
+				sum += (i == j ? 0f : m[PackedDistances.index(i, j)]);
+			}
+			r[i] = sum;
+		});
+
+		final var joins = new JoinsBuilder(Math.max(0, n - 2));
+		if (n <= 1)
+			return joins.build(new int[0], new double[0]);
+
+		final var clusters = new Clusters(n, (i, j) -> m[PackedDistances.index(i, j)]);
+
+		progress.setMaximum(n);
+		progress.setProgress(0);
+
+		while (clusters.count > 2) {
+			final var a = clusters.count - 2;
+			var maxR = Double.NEGATIVE_INFINITY;
+			var maxAbsR = 0.0;
+			for (var p = 0; p < clusters.count; p++) {
+				maxR = Math.max(maxR, r[clusters.list[p]]);
+				maxAbsR = Math.max(maxAbsR, Math.abs(r[clusters.list[p]]));
+			}
+			final var maxRowSum = maxR;
+			final var maxAbsRowSum = maxAbsR;
+
+			final var best = clusters.search(Float.MAX_VALUE, (from, to, result) -> {
+				for (var p = from; p < to; p++) {
+					final var i = clusters.list[p];
+					final var row = clusters.rows[i];
+					final var length = clusters.lengths[i];
+					final var ri = r[i];
+					for (var s = 0; s < length; s++) {
+						final var k = row[s];
+						if (!clusters.isValid(i, k))
+							continue;
+						final var d = m[PackedDistances.index(i, k)];
+						final var ad = (double) a * d;
+						if (ad - ri - maxRowSum > result.q + 1e-5 * (Math.abs(ad) + 2 * maxAbsRowSum))
+							break; // all remaining pairs in this row have larger Q
+						final var lo = Math.min(i, k);
+						final var hi = Math.max(i, k);
+						final float q = a * d - r[lo] - r[hi];
+						result.update(q, lo, hi);
+					}
+				}
+			});
+
+			final var i = best.lo;
+			final var j = best.hi;
+			final var mij = m[PackedDistances.index(i, j)];
+			final var weightIU = 0.5f * mij + 0.5f * (r[i] - r[j]) / (clusters.count - 2);
+			final var weightJU = mij - weightIU;
+			joins.add(i, j, weightIU, weightJU);
+
+			clusters.remove(i);
+			clusters.remove(j);
+
+			final var list = clusters.list;
+			final var count = clusters.count;
+			for (var p = 0; p < count; p++) {
+				final var k = list[p];
+				r[k] -= m[PackedDistances.index(k, i)];
+				r[k] -= m[PackedDistances.index(k, j)];
+			}
+			for (var p = 0; p < count; p++) {
+				final var k = list[p];
+				final var ik = PackedDistances.index(i, k);
+				m[ik] = (float) (0.5 * (m[ik] + m[PackedDistances.index(j, k)] - mij));
+			}
+			var sum = 0f;
+			for (var p = 0; p < count; p++) {
+				final var k = list[p];
+				r[k] += m[PackedDistances.index(k, i)];
+				sum += m[PackedDistances.index(i, k)];
+			}
+			r[i] = sum;
+
+			clusters.add(i);
+			progress.incrementProgress();
+		}
+
+		final var i = clusters.list[0];
+		final var j = clusters.list[1];
+		progress.setProgress(n);
+		return joins.build(new int[]{i, j}, new double[]{m[PackedDistances.index(i, j)]});
+	}
+
+	/**
+	 * runs BioNJ, using double-precision arithmetic as in the original implementation. Note that the
+	 * original implementation always uses lambda=1/2 when combining distances, which is reproduced here
+	 *
+	 * @param distances distances, 0-based, only the upper triangle is used
+	 * @return the joins
+	 */
+	public static Joins computeBioNJ(ProgressListener progress, double[][] distances) throws CanceledException {
+		final var n = distances.length;
+		final var h = new double[PackedDistances.size(n)];
+		for (var j = 1; j < n; j++) {
+			final var offset = PackedDistances.offset(j);
+			for (var i = 0; i < j; i++)
+				h[offset + i] = distances[i][j];
+		}
+
+		final var b = new double[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var sum = 0.0;
+			for (var j = 0; j < n; j++) {
+				sum += (i == j ? 0.0 : h[PackedDistances.index(i, j)]);
+			}
+			b[i] = sum;
+		});
+
+		final var joins = new JoinsBuilder(Math.max(0, n - 3));
+		if (n <= 1)
+			return joins.build(new int[0], new double[0]);
+		if (n == 2)
+			return joins.build(new int[]{0, 1}, new double[]{h[0]});
+
+		// rows are sorted by single-precision keys, which is accounted for in the pruning bound
+		final var clusters = new Clusters(n, (i, j) -> (float) h[PackedDistances.index(i, j)]);
+
+		progress.setMaximum(n);
+		while (clusters.count > 3) {
+			final var a = clusters.count - 2.0;
+			var maxB = Double.NEGATIVE_INFINITY;
+			var maxAbsB = 0.0;
+			for (var p = 0; p < clusters.count; p++) {
+				maxB = Math.max(maxB, b[clusters.list[p]]);
+				maxAbsB = Math.max(maxAbsB, Math.abs(b[clusters.list[p]]));
+			}
+			final var maxRowSum = maxB;
+			final var maxAbsRowSum = maxAbsB;
+
+			final var best = clusters.search(Double.POSITIVE_INFINITY, (from, to, result) -> {
+				for (var p = from; p < to; p++) {
+					final var i = clusters.list[p];
+					final var row = clusters.rows[i];
+					final var length = clusters.lengths[i];
+					final var bi = b[i];
+					for (var s = 0; s < length; s++) {
+						final var k = row[s];
+						if (!clusters.isValid(i, k))
+							continue;
+						final var ad = a * h[PackedDistances.index(i, k)];
+						if (ad - bi - maxRowSum > result.q + 1e-12 * maxAbsRowSum + 1e-6 * Math.abs(ad))
+							break; // all remaining pairs in this row have larger Q
+						final var lo = Math.min(i, k);
+						final var hi = Math.max(i, k);
+						final var q = a * h[PackedDistances.index(lo, hi)] - b[lo] - b[hi];
+						result.update(q, lo, hi);
+					}
+				}
+			});
+
+			final var i = best.lo;
+			final var j = best.hi;
+			final var hij = h[PackedDistances.index(i, j)];
+			final var distE = 0.5 * (hij + b[i] / a - b[j] / a);
+			final var distF = hij - distE;
+			joins.add(i, j, distE, distF);
+
+			clusters.remove(i);
+			clusters.remove(j);
+
+			final var lambda = 0.5;
+			b[i] = 0.0;
+			b[j] = 0.0;
+			final var list = clusters.list;
+			final var count = clusters.count;
+			for (var p = 0; p < count; p++) {
+				final var k = list[p];
+				final var ki = PackedDistances.index(k, i);
+				final var kj = PackedDistances.index(k, j);
+				final var temp = (1.0 - lambda) * (h[ki] - distE) + lambda * (h[kj] - distF);
+				b[k] = b[k] - h[ki] - h[kj] + temp;
+				b[i] += temp;
+				h[ki] = temp;
+			}
+
+			clusters.add(i);
+			progress.incrementProgress();
+		}
+
+		final var i = clusters.list[0];
+		final var j = clusters.list[1];
+		final var k = clusters.list[2];
+		final var hij = h[PackedDistances.index(i, j)];
+		final var hik = h[PackedDistances.index(i, k)];
+		final var hjk = h[PackedDistances.index(j, k)];
+		return joins.build(new int[]{i, j, k}, new double[]{0.5 * (hij + hik - hjk), 0.5 * (hij + hjk - hik), 0.5 * (hik + hjk - hij)});
+	}
+
+	/**
+	 * accessor for the distance used to sort rows
+	 */
+	private interface DistanceKey {
+		float get(int i, int j);
+	}
+
+	/**
+	 * scans the rows of the clusters list[from..to-1]  and updates the result
+	 */
+	private interface RowScanner {
+		void scan(int from, int to, Best result);
+	}
+
+	/**
+	 * the active clusters, each with its index of other clusters sorted by distance.
+	 * The entry for k in the row of i is valid, if k is alive and its current cluster was created no later than that of i.
+	 * Otherwise, the pair is covered by the row of k.
+	 */
+	private static class Clusters {
+		private final DistanceKey key;
+		private final boolean[] alive;
+		private final int[] created;
+		private final int[][] rows;
+		private final int[] lengths;
+		private final int[] list; // active clusters in increasing order
+		private int count;
+		private int iteration;
+		private int countAtLastCompaction;
+
+		Clusters(int n, DistanceKey key) {
+			this.key = key;
+			alive = new boolean[n];
+			created = new int[n];
+			rows = new int[n][];
+			lengths = new int[n];
+			list = new int[n];
+			for (var i = 0; i < n; i++) {
+				alive[i] = true;
+				list[i] = i;
+			}
+			count = n;
+			countAtLastCompaction = n;
+			IntStream.range(0, n).parallel().forEach(this::sortRow);
+		}
+
+		boolean isValid(int i, int k) {
+			return alive[k] && created[k] <= created[i];
+		}
+
+		void remove(int i) {
+			alive[i] = false;
+			rows[i] = null;
+			lengths[i] = 0;
+			final var p = Arrays.binarySearch(list, 0, count, i);
+			System.arraycopy(list, p + 1, list, p, count - p - 1);
+			count--;
+		}
+
+		/**
+		 * adds a newly created cluster
+		 */
+		void add(int i) {
+			final var p = -(Arrays.binarySearch(list, 0, count, i) + 1);
+			System.arraycopy(list, p, list, p + 1, count - p);
+			list[p] = i;
+			count++;
+			alive[i] = true;
+			created[i] = ++iteration;
+			sortRow(i);
+
+			if (2 * count < countAtLastCompaction) {
+				IntStream.range(0, count).parallel().forEach(q -> compactRow(list[q]));
+				countAtLastCompaction = count;
+			}
+		}
+
+		/**
+		 * sets up the row of cluster i, listing all other active clusters by increasing distance to i
+		 */
+		private void sortRow(int i) {
+			final var items = new long[count - 1];
+			var length = 0;
+			for (var p = 0; p < count; p++) {
+				final var k = list[p];
+				if (k != i) {
+					final var bits = Float.floatToIntBits(key.get(i, k));
+					final var sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+					items[length++] = ((long) sortable << 32) | k;
+				}
+			}
+			Arrays.sort(items, 0, length);
+			final var row = new int[length];
+			for (var s = 0; s < length; s++)
+				row[s] = (int) items[s];
+			rows[i] = row;
+			lengths[i] = length;
+		}
+
+		/**
+		 * removes all entries that will never be valid again
+		 */
+		private void compactRow(int i) {
+			final var row = rows[i];
+			var length = 0;
+			for (var s = 0; s < lengths[i]; s++) {
+				if (isValid(i, row[s]))
+					row[length++] = row[s];
+			}
+			lengths[i] = length;
+		}
+
+		/**
+		 * finds the best pair, scanning rows in parallel, if there are many clusters
+		 */
+		Best search(double initialQ, RowScanner scanner) {
+			if (count < PARALLEL_THRESHOLD) {
+				final var best = new Best(initialQ);
+				scanner.scan(0, count, best);
+				return best;
+			} else {
+				final var chunks = 4 * Runtime.getRuntime().availableProcessors();
+				return IntStream.range(0, chunks).parallel().mapToObj(c -> {
+					final var best = new Best(initialQ);
+					scanner.scan((int) ((long) c * count / chunks), (int) ((long) (c + 1) * count / chunks), best);
+					return best;
+				}).collect(() -> new Best(initialQ), Best::combine, Best::combine);
+			}
+		}
+	}
+
+	/**
+	 * best pair found so far. Ties are broken in favor of the lexicographically smallest pair,
+	 * which is the pair found first by a row-by-row scan
+	 */
+	private static class Best {
+		private double q;
+		private int lo = Integer.MAX_VALUE;
+		private int hi = Integer.MAX_VALUE;
+
+		Best(double q) {
+			this.q = q;
+		}
+
+		void update(double q, int lo, int hi) {
+			if (q < this.q || (q == this.q && this.lo != Integer.MAX_VALUE && (lo < this.lo || (lo == this.lo && hi < this.hi)))) {
+				this.q = q;
+				this.lo = lo;
+				this.hi = hi;
+			}
+		}
+
+		/**
+		 * merges the result of another scan into this one
+		 */
+		void combine(Best other) {
+			if (other.lo != Integer.MAX_VALUE)
+				update(other.q, other.lo, other.hi);
+		}
+	}
+
+	private static class JoinsBuilder {
+		private final int[] first;
+		private final int[] second;
+		private final double[] firstWeight;
+		private final double[] secondWeight;
+		private int size;
+
+		JoinsBuilder(int capacity) {
+			first = new int[capacity];
+			second = new int[capacity];
+			firstWeight = new double[capacity];
+			secondWeight = new double[capacity];
+		}
+
+		void add(int i, int j, double weightI, double weightJ) {
+			first[size] = i;
+			second[size] = j;
+			firstWeight[size] = weightI;
+			secondWeight[size] = weightJ;
+			size++;
+		}
+
+		Joins build(int[] last, double[] lastWeight) {
+			return new Joins(Arrays.copyOf(first, size), Arrays.copyOf(second, size), Arrays.copyOf(firstWeight, size), Arrays.copyOf(secondWeight, size), last, lastWeight);
+		}
+	}
+}
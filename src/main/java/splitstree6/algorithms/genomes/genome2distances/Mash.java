@@ -27,6 +27,7 @@ import jloda.kmers.mash.MashDistance;
 import jloda.kmers.mash.MashSketch;
 import jloda.util.*;
 import jloda.util.progress.ProgressListener;
+import splitstree6.algorithms.genomes.genome2distances.utils.PackedMashSketch;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.GenomesBlock;
 import splitstree6.data.GenomesFormat;
@@ -55,11 +56,13 @@ public class Mash extends Genomes2Distances {
 
     private final IntegerProperty optionHashSeed = new SimpleIntegerProperty(42);
 
+    private final BooleanProperty optionFastSketching = new SimpleBooleanProperty(false);
+
     private final boolean verbose = false;
 
     @Override
     public List<String> listOptions() {
-        return Arrays.asList("optionKMerSize", "optionSketchSize", "optionDistances", "optionHashSeed", "optionIgnoreUniqueKMers");
+        return Arrays.asList("optionKMerSize", "optionSketchSize", "optionDistances", "optionHashSeed", "optionIgnoreUniqueKMers", "optionFastSketching");
     }
 
     @Override
@@ -79,7 +82,15 @@ public class Mash extends Genomes2Distances {
 
             genomesBlock.checkGenomesPresent();
 
+            // if requested, for nucleotide data and the Mash distance, k-mers are packed into longs and parts stored in files are streamed.
+            // This uses a different hash function, so the sketches, and thus the distances, differ slightly from the default ones:
+            final var usePackedKMers = isOptionFastSketching() && isNucleotideData && getOptionDistances() == GenomeDistanceType.Mash && !isOptionIgnoreUniqueKMers()
+                                       && PackedMashSketch.isApplicable(getOptionKMerSize());
+
+            final var names = new String[genomesBlock.size()];
+            final var sizes = new int[genomesBlock.size()];
             final var sketches = new MashSketch[genomesBlock.size()];
+            final var packedSketches = new PackedMashSketch[genomesBlock.size()];
             {
                 final var service = Executors.newFixedThreadPool(ProgramExecutorService.getNumberOfCoresToUse());
                 final var exception = new Single<Exception>(null);
@@ -90,7 +101,15 @@ public class Mash extends Genomes2Distances {
                                 try {
                                     progress.checkForCancel();
                                     final var genome = genomesBlock.getGenome(g + 1);
-                                    sketches[g] = MashSketch.compute(genome.getName(), IteratorUtils.asList(genome.parts()), isNucleotideData, getOptionSketchSize(), getOptionKMerSize(), getOptionHashSeed(), isOptionIgnoreUniqueKMers(), progress);
+                                    if (usePackedKMers) {
+                                        packedSketches[g] = PackedMashSketch.compute(genome.getName(), genome, getOptionSketchSize(), getOptionKMerSize(), getOptionHashSeed(), progress);
+                                        sizes[g] = packedSketches[g].getValues().length;
+                                        progress.incrementProgress();
+                                    } else {
+                                        sketches[g] = MashSketch.compute(genome.getName(), IteratorUtils.asList(genome.parts()), isNucleotideData, getOptionSketchSize(), getOptionKMerSize(), getOptionHashSeed(), isOptionIgnoreUniqueKMers(), progress);
+                                        sizes[g] = sketches[g].getValues().length;
+                                    }
+                                    names[g] = genome.getName();
                                 } catch (Exception e) {
                                     exception.setIfCurrentValueIsNull(e);
                                 }
@@ -109,31 +128,33 @@ public class Mash extends Genomes2Distances {
             // todo: warn when files not found
 
             var countTooSmall = 0;
-            for (var sketch : sketches) {
-                if (sketch.getValues().length < optionSketchSize.get())
+            for (var size : sizes) {
+                if (size < optionSketchSize.get())
                     countTooSmall++;
 
             }
             if (countTooSmall > 0)
                 NotificationManager.showWarning(String.format("Too few k-mers for %,d genomes- rerun with smaller sketch size", countTooSmall));
 
-            var triplets = new ArrayList<Triplet<MashSketch, MashSketch, Double>>();
+            var triplets = new ArrayList<Triplet<Integer, Integer, Double>>();
 
-            for (var i = 0; i < sketches.length; i++) {
-                for (var j = i + 1; j < sketches.length; j++) {
-                    triplets.add(new Triplet<>(sketches[i], sketches[j], 0.0));
+            for (var i = 0; i < names.length; i++) {
+                for (var j = i + 1; j < names.length; j++) {
+                    triplets.add(new Triplet<>(i, j, 0.0));
                 }
             }
 
             progress.setSubtask("distances");
-            ExecuteInParallel.apply(triplets, t -> t.setThird(MashDistance.compute(t.getFirst(), t.getSecond(), getOptionDistances())), ProgramExecutorService.getNumberOfCoresToUse(), progress);
+            if (usePackedKMers)
+                ExecuteInParallel.apply(triplets, t -> t.setThird(MashDistance.compute(PackedMashSketch.computeJaccardIndex(packedSketches[t.getFirst()], packedSketches[t.getSecond()]), getOptionKMerSize())), ProgramExecutorService.getNumberOfCoresToUse(), progress);
+            else
+                ExecuteInParallel.apply(triplets, t -> t.setThird(MashDistance.compute(sketches[t.getFirst()], sketches[t.getSecond()], getOptionDistances())), ProgramExecutorService.getNumberOfCoresToUse(), progress);
             progress.reportTaskCompleted();
 
             var name2rank = new HashMap<String, Integer>();
 
-            for (var i = 0; i < sketches.length; i++) {
-                final String name = sketches[i].getName();
-                name2rank.put(name, i + 1);
+            for (var i = 0; i < names.length; i++) {
+                name2rank.put(names[i], i + 1);
             }
 
             distancesBlock.clear();
@@ -142,11 +163,11 @@ public class Mash extends Genomes2Distances {
 
             distancesBlock.setNtax(taxaBlock.getNtax());
             for (var triplet : triplets) {
-                final var t1 = name2rank.get(triplet.getFirst().getName());
-                final var t2 = name2rank.get(triplet.getSecond().getName());
+                final var t1 = name2rank.get(names[triplet.getFirst()]);
+                final var t2 = name2rank.get(names[triplet.getSecond()]);
                 final var dist = triplet.getThird();
                 if (verbose) {
-                    System.out.println(triplet.getFirst().getName() + "\t" + triplet.getSecond().getName() + "\t" + triplet.getThird());
+                    System.out.println(names[triplet.getFirst()] + "\t" + names[triplet.getSecond()] + "\t" + triplet.getThird());
                 }
                 distancesBlock.set(t1, t2, dist);
                 distancesBlock.set(t2, t1, dist);
@@ -166,6 +187,8 @@ public class Mash extends Genomes2Distances {
     public String getToolTip(String optionName) {
         if (optionName.endsWith("IgnoreUniqueKMers"))
             return "Use this only when input data consists of unassembled reads";
+        if (optionName.endsWith("FastSketching"))
+            return "Sketch DNA faster using packed k-mers (k at most 32, Mash distance only). Uses a different hash function, so distances differ slightly from the default";
         return super.getToolTip(optionName);
     }
 
@@ -228,5 +251,17 @@ public class Mash extends Genomes2Distances {
     public void setOptionHashSeed(int optionHashSeed) {
         this.optionHashSeed.set(optionHashSeed);
     }
+
+    public boolean isOptionFastSketching() {
+        return optionFastSketching.get();
+    }
+
+    public BooleanProperty optionFastSketchingProperty() {
+        return optionFastSketching;
+    }
+
+    public void setOptionFastSketching(boolean optionFastSketching) {
+        this.optionFastSketching.set(optionFastSketching);
+    }
 }
 
@@ -0,0 +1,298 @@
+/*
+ * PackedMashSketch.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.genomes.genome2distances.utils;
+
+import jloda.util.progress.ProgressListener;
+import splitstree6.data.parts.Genome;
+import splitstree6.io.utils.SequenceFileUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * a bottom-s MinHash sketch of the canonical k-mers of a nucleotide genome, for k<=32.
+ * <p>
+ * K-mers are encoded in two bits per base while rolling along the sequence, forward and reverse complement at the same time,
+ * and the smaller of the two codes is hashed with a 64-bit mixing function. The s smallest hash values are kept in a
+ * max-heap of primitive longs. K-mers that contain a letter other than ACGT are skipped.
+ * <p>
+ * The hash values differ from those of MashSketch, so these sketches can only be compared with each other
+ */
+public class PackedMashSketch {
+	private static final byte[] CODE = new byte[256];
+
+	static {
+		Arrays.fill(CODE, (byte) -1);
+		CODE['A'] = CODE['a'] = 0;
+		CODE['C'] = CODE['c'] = 1;
+		CODE['G'] = CODE['g'] = 2;
+		CODE['T'] = CODE['t'] = 3;
+		CODE['U'] = CODE['u'] = 3;
+	}
+
+	private final String name;
+	private final int kSize;
+	private final int sSize;
+	private final long[] values;
+
+	private PackedMashSketch(String name, int kSize, int sSize, long[] values) {
+		this.name = name;
+		this.kSize = kSize;
+		this.sSize = sSize;
+		this.values = values;
+	}
+
+	/**
+	 * can k-mers of the given size be packed into a long?
+	 */
+	public static boolean isApplicable(int kSize) {
+		return kSize >= 1 && kSize <= 32;
+	}
+
+	/**
+	 * computes the sketch of a genome. Parts that are stored in files are read block by block, without holding them in memory
+	 *
+	 * @param name   name of sketch
+	 * @param genome the genome
+	 * @param sSize  sketch size
+	 * @param kSize  k-mer size, at most 32
+	 * @param seed   hash seed
+	 * @return sketch
+	 */
+	public static PackedMashSketch compute(String name, Genome genome, int sSize, int kSize, int seed, ProgressListener progress) throws IOException {
+		final var builder = new Builder(sSize, kSize, seed);
+		for (var part : genome.getParts()) {
+			builder.startSequence();
+			part.forEachLetters(builder);
+			progress.checkForCancel();
+		}
+		return builder.build(name);
+	}
+
+	/**
+	 * computes the sketch of a collection of sequences
+	 */
+	public static PackedMashSketch compute(String name, Iterable<byte[]> sequences, int sSize, int kSize, int seed) {
+		final var builder = new Builder(sSize, kSize, seed);
+		for (var sequence : sequences) {
+			builder.startSequence();
+			builder.accept(sequence, 0, sequence.length);
+		}
+		return builder.build(name);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getKSize() {
+		return kSize;
+	}
+
+	public int getSSize() {
+		return sSize;
+	}
+
+	/**
+	 * the hash values, sorted in ascending order
+	 */
+	public long[] getValues() {
+		return values;
+	}
+
+	/**
+	 * estimates the Jaccard index from the s smallest values of the union of the two sketches
+	 */
+	public static double computeJaccardIndex(PackedMashSketch a, PackedMashSketch b) {
+		final var s = Math.min(a.sSize, b.sSize);
+		var i = 0;
+		var j = 0;
+		var union = 0;
+		var shared = 0;
+		while (union < s && i < a.values.length && j < b.values.length) {
+			if (a.values[i] < b.values[j])
+				i++;
+			else if (a.values[i] > b.values[j])
+				j++;
+			else {
+				shared++;
+				i++;
+				j++;
+			}
+			union++;
+		}
+		union += Math.min(s - union, (a.values.length - i) + (b.values.length - j));
+		return (union == 0 ? 0.0 : (double) shared / union);
+	}
+
+	/**
+	 * 64-bit mixing function of MurmurHash3, a bijection, so that different k-mers never have the same hash value
+	 */
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * accumulates the sketch of one or more sequences, which can be passed in blocks
+	 */
+	public static class Builder implements SequenceFileUtils.LettersConsumer {
+		private final int kSize;
+		private final int sSize;
+		private final long mask;
+		private final int shift;
+		private final long seedHash;
+
+		private long forward;
+		private long reverse;
+		private int valid;
+
+		// max-heap of the s smallest hash values seen so far, and an open-addressing set of the same values to detect repeats
+		private final long[] heap;
+		private int heapSize;
+		private final long[] table;
+		private final boolean[] used;
+		private final int tableMask;
+
+		public Builder(int sSize, int kSize, int seed) {
+			if (!isApplicable(kSize))
+				throw new IllegalArgumentException("k-mer size must be between 1 and 32: " + kSize);
+			this.kSize = kSize;
+			this.sSize = sSize;
+			mask = (kSize == 32 ? -1L : (1L << (2 * kSize)) - 1);
+			shift = 2 * (kSize - 1);
+			seedHash = mix(0x9E3779B97F4A7C15L * (seed + 1));
+			heap = new long[sSize];
+			final var capacity = Integer.highestOneBit(Math.max(4, 2 * sSize)) << 1;
+			table = new long[capacity];
+			used = new boolean[capacity];
+			tableMask = capacity - 1;
+		}
+
+		/**
+		 * starts a new sequence, k-mers do not span sequences
+		 */
+		public void startSequence() {
+			valid = 0;
+		}
+
+		@Override
+		public long accept(byte[] buffer, int from, int to) {
+			for (var i = from; i < to; i++) {
+				final int code = CODE[buffer[i] & 0xff];
+				if (code < 0)
+					valid = 0;
+				else {
+					forward = ((forward << 2) | code) & mask;
+					reverse = (reverse >>> 2) | ((long) (3 - code) << shift);
+					if (++valid >= kSize)
+						add(mix((Long.compareUnsigned(forward, reverse) <= 0 ? forward : reverse) ^ seedHash)); // unsigned, for k=32
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		private void add(long hash) {
+			if (heapSize == sSize) {
+				if (hash >= heap[0] || contains(hash))
+					return;
+				remove(heap[0]);
+				heap[0] = hash;
+				siftDown();
+			} else {
+				if (contains(hash))
+					return;
+				var pos = heapSize++;
+				while (pos > 0) {
+					final var parent = (pos - 1) >>> 1;
+					if (heap[parent] >= hash)
+						break;
+					heap[pos] = heap[parent];
+					pos = parent;
+				}
+				heap[pos] = hash;
+			}
+			insert(hash);
+		}
+
+		private void siftDown() {
+			final var value = heap[0];
+			var pos = 0;
+			while (true) {
+				var child = 2 * pos + 1;
+				if (child >= heapSize)
+					break;
+				if (child + 1 < heapSize && heap[child + 1] > heap[child])
+					child++;
+				if (heap[child] <= value)
+					break;
+				heap[pos] = heap[child];
+				pos = child;
+			}
+			heap[pos] = value;
+		}
+
+		private boolean contains(long hash) {
+			for (var slot = (int) hash & tableMask; used[slot]; slot = (slot + 1) & tableMask) {
+				if (table[slot] == hash)
+					return true;
+			}
+			return false;
+		}
+
+		private void insert(long hash) {
+			var slot = (int) hash & tableMask;
+			while (used[slot])
+				slot = (slot + 1) & tableMask;
+			table[slot] = hash;
+			used[slot] = true;
+		}
+
+		/**
+		 * removes a value by backward-shift deletion, so that no tombstones are needed
+		 */
+		private void remove(long hash) {
+			var slot = (int) hash & tableMask;
+			while (table[slot] != hash)
+				slot = (slot + 1) & tableMask;
+			var next = (slot + 1) & tableMask;
+			while (used[next]) {
+				final var home = (int) table[next] & tableMask;
+				// move the entry at next into the gap, if its home position is not between the gap and next:
+				if (((next - home) & tableMask) >= ((next - slot) & tableMask)) {
+					table[slot] = table[next];
+					slot = next;
+				}
+				next = (next + 1) & tableMask;
+			}
+			used[slot] = false;
+		}
+
+		public PackedMashSketch build(String name) {
+			final var values = Arrays.copyOf(heap, heapSize);
+			Arrays.sort(values);
+			return new PackedMashSketch(name, kSize, sSize, values);
+		}
+	}
+}
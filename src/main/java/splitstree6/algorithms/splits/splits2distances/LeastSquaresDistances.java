@@ -41,9 +41,7 @@ public class LeastSquaresDistances extends Splits2Distances {
 
 	@Override
 	public List<String> listOptions() {
-		// todo: optionConstrain is not implemented
-		// return Collections.singletonList(optionConstrain.getName());
-		return Collections.emptyList();
+		return Collections.singletonList(optionConstrain.getName());
 	}
 
 	@Override
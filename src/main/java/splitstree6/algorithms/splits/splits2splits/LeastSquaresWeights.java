@@ -44,9 +44,7 @@ public class LeastSquaresWeights { // extends Splits2Splits {
 	private final BooleanProperty optionConstrain = new SimpleBooleanProperty(this, "optionConstrain", false);
 
 	public List<String> listOptions() {
-		// todo: optionConstrain is not implemented
-		// return Collections.singletonList(optionConstrain.getName());
-		return Collections.emptyList();
+		return Collections.singletonList(optionConstrain.getName());
 	}
 
 	public String getToolTip(String optionName) {
@@ -28,7 +28,6 @@ import splitstree6.workflow.DataTaxaFilter;
 
 import java.io.IOException;
 import java.util.BitSet;
-import java.util.Map;
 
 public class SplitsTaxaFilter extends DataTaxaFilter<SplitsBlock, SplitsBlock> {
 
@@ -38,14 +37,14 @@ public class SplitsTaxaFilter extends DataTaxaFilter<SplitsBlock, SplitsBlock> {
 
 	@Override
 	public void filter(ProgressListener progress, TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock, SplitsBlock inputData, SplitsBlock outputData) throws IOException {
-		if (originalTaxaBlock.getTaxa().equals(modifiedTaxaBlock.getTaxa())) {
+		if (isSameTaxa(originalTaxaBlock, modifiedTaxaBlock)) {
 			outputData.copy(inputData);
 			outputData.setCycle(inputData.getCycle());
 			outputData.setCompatibility(inputData.getCompatibility());
-			setShortDescription("using all " + modifiedTaxaBlock.size() + " taxa");
+			setShortDescription("using all " + originalTaxaBlock.size() + " taxa");
 		} else {
 			progress.setMaximum(inputData.getNsplits());
-			final Map<Integer, Integer> originalIndex2ModifiedIndex = originalTaxaBlock.computeIndexMap(modifiedTaxaBlock);
+			final int[] originalIndex2ModifiedIndex = computeOriginal2Modified(originalTaxaBlock, modifiedTaxaBlock);
 			for (ASplit split : inputData.getSplits()) {
 				ASplit induced = computeInducedSplit(split, originalIndex2ModifiedIndex, modifiedTaxaBlock.getNtax());
 				if (induced != null)
@@ -66,13 +65,13 @@ public class SplitsTaxaFilter extends DataTaxaFilter<SplitsBlock, SplitsBlock> {
 	 *
 	 * @return induced split or null
 	 */
-	private static ASplit computeInducedSplit(ASplit originalSplit, Map<Integer, Integer> originalIndex2ModifiedIndex, int inducedNtax) {
+	private static ASplit computeInducedSplit(ASplit originalSplit, int[] originalIndex2ModifiedIndex, int inducedNtax) {
 		final BitSet originalA = originalSplit.getA();
 
 		final BitSet inducedA = new BitSet();
 		for (int t = originalA.nextSetBit(0); t != -1; t = originalA.nextSetBit(t + 1)) {
-			if (originalIndex2ModifiedIndex.containsKey(t))
-				inducedA.set(originalIndex2ModifiedIndex.get(t));
+			if (originalIndex2ModifiedIndex[t] > 0)
+				inducedA.set(originalIndex2ModifiedIndex[t]);
 		}
 		if (inducedA.cardinality() < inducedNtax) {
 			return new ASplit(inducedA, inducedNtax, originalSplit.getWeight());
@@ -80,13 +79,13 @@ public class SplitsTaxaFilter extends DataTaxaFilter<SplitsBlock, SplitsBlock> {
 			return null;
 	}
 
-	private static int[] computeInducedCycle(int[] originalCycle, Map<Integer, Integer> originalIndex2ModifiedIndex, int inducedNtax) {
+	private static int[] computeInducedCycle(int[] originalCycle, int[] originalIndex2ModifiedIndex, int inducedNtax) {
 		final int[] cycle = new int[inducedNtax + 1];
 
 		int i = 1;
 		for (int originalI : originalCycle) {
-			if (originalIndex2ModifiedIndex.containsKey(originalI)) {
-				cycle[i++] = originalIndex2ModifiedIndex.get(originalI);
+			if (originalI > 0 && originalIndex2ModifiedIndex[originalI] > 0) {
+				cycle[i++] = originalIndex2ModifiedIndex[originalI];
 			}
 		}
 		return cycle;
@@ -20,23 +20,27 @@
 package splitstree6.algorithms.trees.trees2distances;
 
 import jloda.fx.util.ProgramExecutorService;
+import jloda.graph.NodeArray;
+import jloda.phylo.PhyloTree;
 import jloda.util.CanceledException;
 import jloda.util.NumberUtils;
 import jloda.util.Single;
 import jloda.util.progress.ProgressListener;
-import jloda.util.progress.ProgressSilent;
-import splitstree6.algorithms.trees.trees2splits.TreeSelectorSplits;
+import splitstree6.algorithms.characters.characters2distances.utils.FixUndefinedDistances;
 import splitstree6.data.DistancesBlock;
-import splitstree6.data.SplitsBlock;
 import splitstree6.data.TaxaBlock;
 import splitstree6.data.TreesBlock;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
  * calculates average distances between taxa for a list of trees
+ * <p>
+ * For each tree and taxon, the path lengths to all other taxa are computed in one pass over the nodes in preorder.
+ * All threads add to one lower-triangular matrix, locking one row at a time. Pairs are only counted when the trees are partial
  * Daniel Huson, 10.2021
  */
 
@@ -52,8 +56,14 @@ public class AverageDistances extends Trees2Distances {
 			final var numberOfThreads = NumberUtils.min(trees.size(), ProgramExecutorService.getNumberOfCoresToUse());
 			final var executor = Executors.newFixedThreadPool(numberOfThreads);
 
-			var count = new int[numberOfThreads][nTax + 1][nTax + 1];
-			var distances = new double[numberOfThreads][nTax + 1][nTax + 1];
+			// row a contains the sums for taxa 1..a-1
+			final var distances = new double[nTax + 1][];
+			final var count = (treesBlock.isPartial() ? new int[nTax + 1][] : null);
+			for (var a = 1; a <= nTax; a++) {
+				distances[a] = new double[a - 1];
+				if (count != null)
+					count[a] = new int[a - 1];
+			}
 
 			final var exception = new Single<IOException>();
 
@@ -64,30 +74,24 @@ public class AverageDistances extends Trees2Distances {
 				final int threadNumber = t;
 				executor.execute(() -> {
 					try {
-						var selector = new TreeSelectorSplits();
+						var paths = new PathLengths(nTax);
 						for (int which = threadNumber + 1; which <= trees.size(); which += numberOfThreads) {
-							selector.setOptionWhich(which);
-							var tmpTaxa = (TaxaBlock) taxaBlock.clone();
-							var splits = new SplitsBlock();
-							selector.compute(new ProgressSilent(), tmpTaxa, treesBlock, splits); // modifies tmpTaxa, too!
-							for (var a = 1; a <= nTax; a++) {
-								for (var b = 1; b <= nTax; b++) {
-									var i = taxaBlock.indexOf(tmpTaxa.getLabel(a)); // translate numbering
-									var j = taxaBlock.indexOf(tmpTaxa.getLabel(b));
-									count[threadNumber][i][j]++;
-									count[threadNumber][j][i]++;
-								}
-							}
-							for (var s = 1; s <= splits.getNsplits(); s++) {
-								var split = splits.get(s);
-								var A = split.getA();
-								var B = split.getB();
-								for (var a = A.nextSetBit(1); a > 0; a = A.nextSetBit(a + 1)) {
-									for (var b = B.nextSetBit(1); b > 0; b = B.nextSetBit(b + 1)) {
-										var i = taxaBlock.indexOf(tmpTaxa.getLabel(a)); // translate numbering
-										var j = taxaBlock.indexOf(tmpTaxa.getLabel(b));
-										distances[threadNumber][i][j] += split.getWeight();
-										distances[threadNumber][j][i] = distances[threadNumber][i][j];
+							paths.setup(trees.get(which - 1));
+							final var taxa = paths.getTaxa();
+							// start at different rows in different threads, to reduce waiting for locks
+							for (var k = 0; k < taxa.length; k++) {
+								final var a = taxa[(k + threadNumber * taxa.length / numberOfThreads) % taxa.length];
+								if (a == 1)
+									continue;
+								final var dist = paths.computePathLengths(a);
+								final var row = distances[a];
+								synchronized (row) {
+									for (var b : taxa) {
+										if (b >= a)
+											break;
+										row[b - 1] += dist[b];
+										if (count != null)
+											count[a][b - 1]++;
 									}
 								}
 							}
@@ -113,42 +117,125 @@ public class AverageDistances extends Trees2Distances {
 				throw exception.get();
 			}
 
-			var allCounts = new int[nTax + 1][nTax + 1];
-			for (var i = 1; i < allCounts.length; i++) {
-				for (var j = 1; j < allCounts.length; j++) {
-					var value = 0;
-					for (int[][] v : count) {
-						value += v[i][j];
-					}
-					allCounts[i][j] = value;
+			// divide by count, pairs that do not occur together in any tree are undefined
+			var hasUndefined = false;
+			for (var a = 1; a <= nTax; a++) {
+				distancesBlock.set(a, a, 0);
+				for (var b = 1; b < a; b++) {
+					final var pairCount = (count != null ? count[a][b - 1] : trees.size());
+					final var value = (pairCount > 0 ? distances[a][b - 1] / pairCount : -1);
+					distancesBlock.set(a, b, value);
+					distancesBlock.set(b, a, value);
+					if (pairCount == 0)
+						hasUndefined = true;
 				}
 			}
+			if (hasUndefined)
+				FixUndefinedDistances.apply(distancesBlock);
+		}
+	}
 
-			var allDistances = new double[nTax + 1][nTax + 1];
-			for (var i = 1; i < allDistances.length; i++) {
-				for (var j = 1; j < allDistances.length; j++) {
-					var value = 0;
-					for (double[][] v : distances) {
-						value += v[i][j];
-					}
-					allDistances[i][j] = value;
-				}
+	@Override
+	public boolean isApplicable(TaxaBlock taxaBlock, TreesBlock parent) {
+		return !parent.isReticulated();
+	}
+
+	/**
+	 * a tree as arrays of nodes in preorder, used to compute path lengths from one taxon to all others in linear time
+	 */
+	private static class PathLengths {
+		private int numNodes;
+		private int[] parent = new int[0];
+		private double[] weight = new double[0];
+		private double[] nodeDistance = new double[0];
+		private boolean[] onPath = new boolean[0];
+		private final int[] taxonNode;
+		private final double[] taxonDistance;
+		private int[] taxa;
+
+		PathLengths(int nTax) {
+			taxonNode = new int[nTax + 1];
+			taxonDistance = new double[nTax + 1];
+		}
+
+		void setup(PhyloTree tree) {
+			numNodes = tree.getNumberOfNodes();
+			if (parent.length < numNodes) {
+				parent = new int[numNodes];
+				weight = new double[numNodes];
+				nodeDistance = new double[numNodes];
+				onPath = new boolean[numNodes];
+			}
+			Arrays.fill(taxonNode, -1);
+			if (tree.getRoot() == null) {
+				taxa = new int[0];
+				return;
 			}
 
-			// divide by count
-			for (var i = 1; i <= nTax; i++) {
-				for (var j = 1; j <= nTax; j++) {
-					if (allDistances[i][j] > 0)
-						distancesBlock.set(i, j, allDistances[i][j] / allCounts[i][j]);
-					else
-						distancesBlock.set(i, j, 0); // shouldn't ever happen!
-				}
+			try (NodeArray<Integer> index = tree.newNodeArray()) {
+				final var next = new int[]{0};
+				tree.preorderTraversal(v -> {
+					final var i = next[0]++;
+					index.put(v, i);
+					final var e = v.getFirstInEdge();
+					if (e == null) {
+						parent[i] = -1;
+						weight[i] = 0;
+					} else {
+						parent[i] = index.get(e.getSource());
+						weight[i] = tree.getWeight(e);
+					}
+					for (var t : tree.getTaxa(v)) {
+						if (t < taxonNode.length)
+							taxonNode[t] = i;
+					}
+				});
+				numNodes = next[0];
+			}
+			var count = 0;
+			for (var t = 1; t < taxonNode.length; t++) {
+				if (taxonNode[t] != -1)
+					count++;
+			}
+			taxa = new int[count];
+			count = 0;
+			for (var t = 1; t < taxonNode.length; t++) {
+				if (taxonNode[t] != -1)
+					taxa[count++] = t;
 			}
 		}
-	}
 
-	@Override
-	public boolean isApplicable(TaxaBlock taxaBlock, TreesBlock parent) {
-		return !parent.isPartial() && !parent.isReticulated();
+		/**
+		 * the taxa in the tree, in increasing order
+		 */
+		int[] getTaxa() {
+			return taxa;
+		}
+
+		/**
+		 * computes the path lengths from the given taxon to all taxa in the tree
+		 *
+		 * @return path lengths, indexed by taxon id. Only valid until the next call
+		 */
+		double[] computePathLengths(int a) {
+			final var source = taxonNode[a];
+			var distance = 0.0;
+			for (var v = source; v != -1; v = parent[v]) {
+				onPath[v] = true;
+				nodeDistance[v] = distance;
+				distance += weight[v];
+			}
+			for (var v = 0; v < numNodes; v++) {
+				if (!onPath[v])
+					nodeDistance[v] = nodeDistance[parent[v]] + weight[v];
+			}
+			for (var v = source; v != -1; v = parent[v]) {
+				onPath[v] = false;
+			}
+			for (var t : taxa) {
+				taxonDistance[t] = nodeDistance[taxonNode[t]];
+			}
+			return taxonDistance;
+		}
 	}
 }
@@ -37,14 +37,11 @@ public class TreesTaxaFilter extends DataTaxaFilter<TreesBlock, TreesBlock> {
 
 	@Override
 	public void filter(ProgressListener progress, TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock, TreesBlock inputData, TreesBlock outputData) throws IOException {
-		if (modifiedTaxaBlock == null || originalTaxaBlock.getTaxa().equals(modifiedTaxaBlock.getTaxa())) {
+		if (isSameTaxa(originalTaxaBlock, modifiedTaxaBlock)) {
 			outputData.copy(inputData);
 			setShortDescription("using all " + originalTaxaBlock.size() + " taxa");
 		} else {
-			final int[] oldTaxonId2NewTaxonId = new int[originalTaxaBlock.getNtax() + 1];
-			for (int t = 1; t <= originalTaxaBlock.getNtax(); t++) {
-				oldTaxonId2NewTaxonId[t] = modifiedTaxaBlock.indexOf(originalTaxaBlock.get(t).getName());
-			}
+			final int[] oldTaxonId2NewTaxonId = computeOriginal2Modified(originalTaxaBlock, modifiedTaxaBlock);
 
 			progress.setMaximum(inputData.getNTrees());
 
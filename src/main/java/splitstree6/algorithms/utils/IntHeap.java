@@ -0,0 +1,180 @@
+/*
+ * IntHeap.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.utils;
+
+import java.util.Arrays;
+
+/**
+ * binary min-heap of int items, ordered by a comparator, avoiding the boxing of java.util.PriorityQueue.
+ * If constructed with a maximum item, the heap keeps track of the position of each item, so that items
+ * can be removed and their keys can be changed
+ */
+public class IntHeap {
+	/**
+	 * compares two items
+	 */
+	public interface IntComparator {
+		int compare(int a, int b);
+	}
+
+	private final IntComparator comparator;
+	private int[] heap;
+	private int size;
+	private final int[] position; // position of each item in heap, or -1, if not contained, null, if not indexed
+
+	/**
+	 * constructs an indexed heap for the items 0..maxItem
+	 */
+	public IntHeap(int maxItem, IntComparator comparator) {
+		this.comparator = comparator;
+		this.heap = new int[maxItem + 1];
+		this.position = new int[maxItem + 1];
+		Arrays.fill(position, -1);
+	}
+
+	private IntHeap(int[] items, int size, IntComparator comparator) {
+		this.comparator = comparator;
+		this.heap = items;
+		this.size = size;
+		this.position = null;
+	}
+
+	/**
+	 * builds a heap from the given items in linear time. The array is used as is, the heap is not indexed
+	 *
+	 * @param items the items, will be reordered
+	 * @return heap
+	 */
+	public static IntHeap heapify(int[] items, IntComparator comparator) {
+		final var heap = new IntHeap(items, items.length, comparator);
+		for (var i = items.length / 2 - 1; i >= 0; i--)
+			heap.siftDown(i);
+		return heap;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * does the heap contain the item? Only for indexed heaps
+	 */
+	public boolean contains(int item) {
+		return position[item] != -1;
+	}
+
+	public void add(int item) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, Math.max(16, 2 * size));
+		heap[size] = item;
+		if (position != null)
+			position[item] = size;
+		siftUp(size++);
+	}
+
+	/**
+	 * gets the smallest item, without removing it
+	 */
+	public int peek() {
+		return heap[0];
+	}
+
+	/**
+	 * removes and returns the smallest item
+	 */
+	public int poll() {
+		final var top = heap[0];
+		removeAt(0);
+		return top;
+	}
+
+	/**
+	 * removes the item, only for indexed heaps
+	 */
+	public void remove(int item) {
+		final var pos = position[item];
+		if (pos != -1)
+			removeAt(pos);
+	}
+
+	/**
+	 * call this after the key of an item has changed, adds the item, if not contained. Only for indexed heaps
+	 */
+	public void update(int item) {
+		final var pos = position[item];
+		if (pos == -1)
+			add(item);
+		else {
+			siftUp(pos);
+			siftDown(position[item]);
+		}
+	}
+
+	private void removeAt(int pos) {
+		final var item = heap[pos];
+		size--;
+		if (position != null)
+			position[item] = -1;
+		if (pos < size) {
+			heap[pos] = heap[size];
+			if (position != null)
+				position[heap[pos]] = pos;
+			siftUp(pos);
+			siftDown(position != null ? position[heap[pos]] : pos);
+		}
+	}
+
+	private void siftUp(int pos) {
+		final var item = heap[pos];
+		while (pos > 0) {
+			final var parent = (pos - 1) >>> 1;
+			if (comparator.compare(item, heap[parent]) >= 0)
+				break;
+			set(pos, heap[parent]);
+			pos = parent;
+		}
+		set(pos, item);
+	}
+
+	private void siftDown(int pos) {
+		final var item = heap[pos];
+		final var half = size >>> 1;
+		while (pos < half) {
+			var child = 2 * pos + 1;
+			if (child + 1 < size && comparator.compare(heap[child + 1], heap[child]) < 0)
+				child++;
+			if (comparator.compare(item, heap[child]) <= 0)
+				break;
+			set(pos, heap[child]);
+			pos = child;
+		}
+		set(pos, item);
+	}
+
+	private void set(int pos, int item) {
+		heap[pos] = item;
+		if (position != null)
+			position[item] = pos;
+	}
+}
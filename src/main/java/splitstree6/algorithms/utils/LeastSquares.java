@@ -19,13 +19,13 @@
 
 package splitstree6.algorithms.utils;
 
-import jama.Matrix;
 import jloda.util.CanceledException;
 import jloda.util.progress.ProgressListener;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.SplitsBlock;
 
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * least squares
@@ -40,232 +40,284 @@ public class LeastSquares {
 	static final double EPSILON = 1e-10;
 
 	/**
-	 * Computes the optimal least squares values for split weights, with or without a positivity constraint
-	 * Uses  fairly inefficient Cholesky decomposition algorithm (with updating).
+	 * Computes the optimal least squares values for split weights, with or without a positivity constraint.
+	 * Uses a matrix-free conjugate gradient method (CGNR) on the split incidence structure, inside an active set method
+	 * when weights are constrained. Products with the topological matrix are computed in parallel and never form the
+	 * normal equations, so memory is O(n^2 + m n) for n taxa and m splits.
+	 * If the distances block has variances, then the pairs are weighted by 1/variance.
 	 *
 	 * @param splits    Splits block
 	 * @param dist      Distances block (with same number of taxa as splits block)
 	 * @param constrain Flag indicating whether to constrain to non-negative weights (true) or allow negative values
 	 */
-	//TODO: Write test unit for this.
-	//ToDo: Solve using the Conjugate Gradient method
 	static public void optimizeLS(ProgressListener progress, SplitsBlock splits, DistancesBlock dist, boolean constrain) throws CanceledException {
-		// todo: implement constrain option
-		if (constrain)
-			System.err.println("Least Squares: Constrain option not implemented, using OLS");
-
-		//if (splits.getNtax() != dist.getNtax())
-		//  throw new IllegalArgumentException("Splits and distances have different numbers of taxa");
-
-		//First compute the matrices AtWA and vector AtWd
-		// todo use varType from DistancesFormat?
-		//if (dist.getFormat().getVarType().equalsIgnoreCase("ols"))
-		var Amat = getTopoMatrixOLS(progress, dist.getNtax(), splits); //Much faster in the case of OLS
-		//else
-		//Amat = getTopoMatrixWLS(splits, dist);
-
-		var AtWd = getAtWd(splits, dist);
+		final int nsplits = splits.getNsplits();
+		if (nsplits == 0 || dist.getNtax() < 2) {
+			splits.setFit(-1);
+			return;
+		}
 
-		//Now computeConsensusAndCycle the active set method to compute the optimal weights
-		//todo
-		// ActiveSet Aset = new ActiveSet(Amat, AtWd, constrain);
+		final var problem = new Problem(splits, dist);
+		final var x = problem.solve(progress, constrain);
 
-		int nsplits = splits.getNsplits();
-		//splits.getFormat().setWeights(true);
 		for (int i = 0; i < nsplits; i++) {
-			//todo
-			// splits.getSplits().get(i).setWeight(Aset.getSoln(i - 1));
+			splits.getSplits().get(i).setWeight(x[i]);
 		}
-		splits.setFit(-1);
-		//splits.getProperties().setLSFit(-1);
+		splits.setFit(SplitsBlockUtilities.computeLeastSquaresFit(dist, splits.getSplits()));
 	}
 
-	// todo do a separate class as in ST4 ???
-	// todo DynamicCholesky
-    /*private static Matrix getActiveSet(Matrix XtX, Matrix Xty, boolean constrain){
-        final double EPSILON = 1E-10;
-        int n;
-
-        //System.out.println("Matrix argument passed is\n");
-        //XtX.printText(4,4);
-
-        DynamicCholesky A = new DynamicCholesky(XtX);
-
-        n = XtX.getRowDimension();
-        Matrix x = new Matrix(n, 1, 0.0);
-        //System.out.println("Checking Cholesky Decomposition!");
-        //A.CheckCholesky();
-
-        //Xty.printText(10,4);
-
-        if (!constrain) {
-            //Unconstrained solution. Just solve using Cholesky decomposition and exit.
-            x = A.solve(Xty);
-            //Set negative values to zero.
-            for (int i = 0; i < n; i++) {
-                if (x.get(i, 0) < 0.0)
-                    x.set(i, 0, 0.0);
-            }
-            //x.printText(4,4);
-            return;
-        }
-        //Constrained solution required.
-        //Active set stored in mask entry of A - its initially empty, as we want.
-
-        //Initial solution is arbitrary - all 1's.
-        Matrix old_x = new Matrix(n, 1, 1.0);
-        //System.out.println("Initial feasible solution");
-        //old_x.printText(10,4);
-        for (; ; ) {
-            for (; ; ) {
-                x = A.solve(Xty); // Solve current constrained solution.
-                //System.out.println("Current unconstrained solution:");
-                //x.printText(10,4);
-                //Find the last point on the path from old_x to x that is non-negative.
-                int bad_i = -1;
-                double min_delta = 100000000000.0;
-                for (int i = 0; i < n; i++) {
-                    if (x.get(i, 0) < -EPSILON) {
-                        double oldx_i = old_x.get(i, 0);
-                        double x_i = x.get(i, 0);
-                        double delta = oldx_i / (oldx_i - x_i);
-                        if (delta < min_delta) {
-                            bad_i = i;
-                            min_delta = delta;
-                        }
-                    }
-                }
-                //System.out.println(bad_i);
-                //System.out.println(min_delta);
-
-                if (bad_i == -1) {
-                    break; //This is a feasible solution. Skip to outer loop.
-                }
-
-                //Move oldx to the last feasible point on line from oldx to x
-                for (int i = 0; i < n; i++) {
-                    if (A.getmask(i))
-                        continue;
-                    double oldx_i = old_x.get(i, 0);
-                    double x_i = x.get(i, 0);
-                    oldx_i = oldx_i + min_delta * (x_i - oldx_i);
-                    old_x.set(i, 0, oldx_i);
-                }
-
-                //old_x.plusEquals(x.times(bad_val));
-                //System.out.println("This feasible solution");
-                //old_x.printText(10,4);
-                A.maskRow(bad_i);
-
-            }
-
-            //Check that gradient is non-negative for all indices in active set.
-            // and find index with smallest gradient.
-            // Note: gradient/2 = Ax - Xty
-
-            int bad_i = -1;
-            double bad_val = 100000000000.0;
-            Matrix grad;
-
-            //System.out.println("Gradient");
-            grad = XtX.times(x).minus(Xty).times(2.0);
-            //grad.printText(10,4);
-
-            for (int i = 0; i < n; i++) {
-                if (A.getmask(i)) {
-                    double grad_i = grad.get(i, 0);
-                    grad_i *= 2.0;
-                    if (grad_i < bad_val) {
-                        bad_i = i;
-                        bad_val = grad_i;
-                    }
-                } else {
-                    if (Math.abs(grad.get(i, 0)) > EPSILON) {
-                        throw new IllegalStateException("Problem in the active set method");
-                    }
-
-                }
-            }
-            if (bad_val > -EPSILON) {
-                break;
-            }
-            A.unmaskRow(bad_i); //Remove worst from mask
-
-        }
-    }*/
-
 	/**
-	 * Return matrix A'A, where A is the topological matrix for the set of splits.
-	 * Algorithm takes O(m^2n) time  where m=number of splits and n is number of taxa.
-	 *
-	 * @param splits Splits blockk
-	 * @return Matrix. The matrix A'A
+	 * the weighted least squares problem min ||W^(1/2) (A x - d)||, where A is the topological matrix of the splits,
+	 * with A_{ab,s} = 1, if split s separates taxa a and b. Matrices over pairs of taxa are stored as full 0-based
+	 * square arrays
 	 */
+	private static class Problem {
+		private final int ntax;
+		private final int nsplits;
+		private final int[][] sideA;
+		private final int[][] sideB;
+		private final boolean[][] inA;
+		private final double[][] sqrtW;
+		private final double[][] d;
+
+		Problem(SplitsBlock splits, DistancesBlock dist) {
+			ntax = dist.getNtax();
+			nsplits = splits.getNsplits();
+
+			sideA = new int[nsplits][];
+			sideB = new int[nsplits][];
+			inA = new boolean[nsplits][ntax];
+			for (var s = 0; s < nsplits; s++) {
+				final var split = splits.getSplits().get(s);
+				sideA[s] = split.getA().stream().filter(t -> t <= ntax).map(t -> t - 1).toArray();
+				sideB[s] = split.getB().stream().filter(t -> t <= ntax).map(t -> t - 1).toArray();
+				for (var a : sideA[s])
+					inA[s][a] = true;
+			}
 
-	static private Matrix getTopoMatrixOLS(ProgressListener progress, int ntaxa, SplitsBlock splits) throws CanceledException {
-		int nsplits = splits.getNsplits();
-
-		Matrix Amat = new Matrix(nsplits, nsplits);
-		BitSet I, J;
-		int Isize, Jsize;
-		progress.setMaximum(nsplits);
-		progress.setProgress(0);
-		for (int i = 0; i < nsplits; i++) {
-			I = splits.getSplits().get(i).getA(); //Note - indices off by one.
-			Isize = I.cardinality();
-			for (int j = 0; j < i; j++) {
-				J = (BitSet) splits.getSplits().get(j).getA().clone();
-				Jsize = J.cardinality();
-				J.and(I);
-				int x = J.cardinality(); //Size of intersection
-				int Aij = x * (ntaxa - Isize - Jsize + x) + (Isize - x) * (Jsize - x);
-				Amat.set(i, j, Aij);
-				Amat.set(j, i, Aij);
+			if (dist.isVariances()) {
+				sqrtW = new double[ntax][ntax];
+				for (var a = 0; a < ntax; a++) {
+					for (var b = 0; b < ntax; b++) {
+						final var variance = dist.getVariance(a + 1, b + 1);
+						sqrtW[a][b] = (a == b ? 0.0 : variance > 0 ? 1.0 / Math.sqrt(variance) : 1.0);
+					}
+				}
+			} else
+				sqrtW = null;
+
+			d = new double[ntax][ntax];
+			for (var a = 0; a < ntax; a++) {
+				for (var b = 0; b < ntax; b++) {
+					if (a != b)
+						d[a][b] = (sqrtW != null ? sqrtW[a][b] : 1.0) * dist.get(a + 1, b + 1);
+				}
 			}
-			Amat.set(i, i, Isize * (ntaxa - Isize));
-			progress.incrementProgress();
 		}
-		return Amat;
-	}
 
-	/**
-	 * Returns Atd where A is the topological matrix for the splits and W is the
-	 * diagonal matrix with 1/var on the diagonal. Variances are taken from the
-	 * distances block.
-	 *
-	 * @param splits Splits
-	 * @param dist   Distances
-	 * @return Matrix (vector) AtWd, using variances from the distances block
-	 */
+		/**
+		 * solve the problem
+		 *
+		 * @param constrain if true, weights are constrained to be non-negative, using the active set method. Otherwise, negative
+		 *                  values of the unconstrained solution are set to zero
+		 * @return the split weights
+		 */
+		double[] solve(ProgressListener progress, boolean constrain) throws CanceledException {
+			final var x = new double[nsplits];
+			final var active = new boolean[nsplits];
+			final var xstar = new double[nsplits];
+			final var grad = new double[nsplits];
+
+			final var residual = new double[ntax][ntax];
+			multiplyTransposed(d, grad);
+			final var tolerance = EPSILON * EPSILON * Math.max(1.0, sumOfSquares(grad));
+			final var maxIterations = Math.max(100, 10 * nsplits);
+
+			progress.setMaximum(-1);
+			progress.setProgress(0);
+
+			for (var iteration = 0; iteration < maxIterations; iteration++) {
+				// solve for the free variables and move as far as possible towards the solution:
+				while (true) {
+					System.arraycopy(x, 0, xstar, 0, nsplits);
+					cgnr(xstar, active, tolerance, progress);
+					if (!constrain)
+						break;
+
+					var alpha = 1.0;
+					for (var s = 0; s < nsplits; s++) {
+						if (!active[s] && xstar[s] < 0)
+							alpha = Math.min(alpha, x[s] / (x[s] - xstar[s]));
+					}
+					if (alpha == 1.0)
+						break;
+					for (var s = 0; s < nsplits; s++) {
+						if (!active[s]) {
+							x[s] += alpha * (xstar[s] - x[s]);
+							if (xstar[s] < 0 && x[s] <= EPSILON) {
+								x[s] = 0;
+								active[s] = true;
+							}
+						}
+					}
+					progress.checkForCancel();
+				}
+				System.arraycopy(xstar, 0, x, 0, nsplits);
+
+				if (!constrain) {
+					for (var s = 0; s < nsplits; s++) {
+						if (x[s] < 0)
+							x[s] = 0;
+					}
+					break;
+				}
 
-	static private Matrix getAtWd(SplitsBlock splits, DistancesBlock dist) {
-		int nsplits = splits.getNsplits();
-		int ntaxa = dist.getNtax();
+				// release the active constraint with the most negative gradient, if any:
+				computeResidual(x, residual);
+				multiplyTransposed(residual, grad); // this is the negative gradient
+				var best = -1;
+				var bestValue = Math.sqrt(tolerance);
+				for (var s = 0; s < nsplits; s++) {
+					if (active[s] && grad[s] > bestValue) {
+						best = s;
+						bestValue = grad[s];
+					}
+				}
+				if (best == -1)
+					break;
+				active[best] = false;
+				progress.setProgress(iteration);
+			}
+			return x;
+		}
 
-		//if (splits.getNtax() != dist.getNtax()) //todo test? can happens?
-		//  throw new IllegalArgumentException("Splits and distances have different numbers of taxa");
+		/**
+		 * CGNR (Saad, "Iterative Methods for Sparse Linear Systems") for minimizing ||W^(1/2)(Ax - d)||,
+		 * keeping x_s = 0 for all s in the active set
+		 *
+		 * @param x initial value, overwritten by the solution
+		 * @return number of iterations
+		 */
+		private int cgnr(double[] x, boolean[] active, double tolerance, ProgressListener progress) throws CanceledException {
+			for (var s = 0; s < nsplits; s++) {
+				if (active[s])
+					x[s] = 0;
+			}
+			final var r = new double[ntax][ntax];
+			final var w = new double[ntax][ntax];
+			final var z = new double[nsplits];
+			final var p = new double[nsplits];
+
+			computeResidual(x, r);
+			multiplyTransposed(r, z);
+			mask(z, active);
+			System.arraycopy(z, 0, p, 0, nsplits);
+			var ztz = sumOfSquares(z);
+
+			final var maxIterations = nsplits + 10;
+			var k = 0;
+			while (ztz > tolerance && k < maxIterations) {
+				multiply(p, w);
+				final var alpha = ztz / sumOfSquaresOfPairs(w);
+				for (var s = 0; s < nsplits; s++)
+					x[s] += alpha * p[s];
+				IntStream.range(0, ntax).parallel().forEach(a -> {
+					final var row = r[a];
+					final var wRow = w[a];
+					for (var b = 0; b < ntax; b++)
+						row[b] -= alpha * wRow[b];
+				});
+				multiplyTransposed(r, z);
+				mask(z, active);
+				final var ztz2 = sumOfSquares(z);
+				final var beta = ztz2 / ztz;
+				for (var s = 0; s < nsplits; s++)
+					p[s] = z[s] + beta * p[s];
+				ztz = ztz2;
+				k++;
+				progress.checkForCancel();
+			}
+			return k;
+		}
 
+		/**
+		 * computes the weighted residual W^(1/2)(d - Ax)
+		 */
+		private void computeResidual(double[] x, double[][] r) {
+			multiply(x, r);
+			IntStream.range(0, ntax).parallel().forEach(a -> {
+				final var row = r[a];
+				final var dRow = d[a];
+				for (var b = 0; b < ntax; b++)
+					row[b] = dRow[b] - row[b];
+			});
+		}
 
-		Matrix AtWd = new Matrix(nsplits, 1);
-		double AtWdi;
-		BitSet I;
-		for (int i = 0; i < nsplits; i++) {
-			AtWdi = 0.0;
-			I = splits.getSplits().get(i).getA(); //Note - indices off by one.
-			for (int a = 1; a <= ntaxa; a++) {
-				if (!I.get(a))
-					continue;
-				for (int b = 1; b <= ntaxa; b++) { //Note - have to loop through all 1..ntaxa
-					if (I.get(b))
-						continue;
-					//At this point, we know a and b are on opposite sides of I
-					AtWdi += dist.get(a, b) / dist.getVariance(a, b);
+		/**
+		 * computes y = W^(1/2) A x, in parallel over taxa. Splits with zero weight are skipped
+		 */
+		private void multiply(double[] x, double[][] y) {
+			IntStream.range(0, ntax).parallel().forEach(a -> {
+				final var row = y[a];
+				Arrays.fill(row, 0.0);
+				for (var s = 0; s < nsplits; s++) {
+					final var value = x[s];
+					if (value != 0) {
+						for (var b : (inA[s][a] ? sideB[s] : sideA[s]))
+							row[b] += value;
+					}
+				}
+				if (sqrtW != null) {
+					final var wRow = sqrtW[a];
+					for (var b = 0; b < ntax; b++)
+						row[b] *= wRow[b];
+				}
+			});
+		}
+
+		/**
+		 * computes z = A' W^(1/2) r, in parallel over splits
+		 */
+		private void multiplyTransposed(double[][] r, double[] z) {
+			IntStream.range(0, nsplits).parallel().forEach(s -> {
+				var sum = 0.0;
+				for (var a : sideA[s]) {
+					final var row = r[a];
+					if (sqrtW != null) {
+						final var wRow = sqrtW[a];
+						for (var b : sideB[s])
+							sum += wRow[b] * row[b];
+					} else {
+						for (var b : sideB[s])
+							sum += row[b];
+					}
 				}
+				z[s] = sum;
+			});
+		}
+
+		private static void mask(double[] z, boolean[] active) {
+			for (var s = 0; s < z.length; s++) {
+				if (active[s])
+					z[s] = 0;
 			}
-			AtWd.set(i, 0, AtWdi);
 		}
-		return AtWd;
-	}
 
+		private static double sumOfSquares(double[] z) {
+			var sum = 0.0;
+			for (var value : z)
+				sum += value * value;
+			return sum;
+		}
 
+		private double sumOfSquaresOfPairs(double[][] w) {
+			return IntStream.range(0, ntax).parallel().mapToDouble(a -> {
+				var sum = 0.0;
+				final var row = w[a];
+				for (var b = a + 1; b < ntax; b++)
+					sum += row[b] * row[b];
+				return sum;
+			}).sum();
+		}
+	}
 }
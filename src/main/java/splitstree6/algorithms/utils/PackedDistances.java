@@ -0,0 +1,101 @@
+/*
+ * PackedDistances.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.algorithms.utils;
+
+import splitstree6.data.DistancesBlock;
+
+/**
+ * a symmetric distance matrix with zero diagonal, stored as a packed lower triangle in a single array,
+ * using roughly half the memory of a square matrix and avoiding one array object per row
+ * <p>
+ * All indices are 0-based
+ */
+public class PackedDistances {
+	private final int n;
+	private final double[] values;
+
+	/**
+	 * constructs a matrix for n items with all distances set to 0
+	 */
+	public PackedDistances(int n) {
+		this.n = n;
+		this.values = new double[size(n)];
+	}
+
+	/**
+	 * constructs a packed copy of the upper triangle of the given distances
+	 */
+	public PackedDistances(DistancesBlock distancesBlock) {
+		this(distancesBlock.getNtax());
+		final var distances = distancesBlock.getDistances();
+		for (var i = 1; i < n; i++) {
+			final var offset = offset(i);
+			for (var j = 0; j < i; j++) {
+				values[offset + j] = distances[j][i];
+			}
+		}
+	}
+
+	/**
+	 * number of entries needed to store a packed matrix for n items
+	 */
+	public static int size(int n) {
+		final var size = (long) n * (n - 1) / 2;
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many items for packed distances: " + n);
+		return (int) size;
+	}
+
+	/**
+	 * gets the index of the first entry of row i, which holds the distances to items 0..i-1
+	 */
+	public static int offset(int i) {
+		return (int) ((long) i * (i - 1) / 2);
+	}
+
+	/**
+	 * gets the index of the entry for items i and j, which must be different
+	 */
+	public static int index(int i, int j) {
+		return (i > j ? offset(i) + j : offset(j) + i);
+	}
+
+	/**
+	 * gets the number of items
+	 */
+	public int getN() {
+		return n;
+	}
+
+	public double get(int i, int j) {
+		return (i == j ? 0.0 : values[index(i, j)]);
+	}
+
+	public void set(int i, int j, double value) {
+		values[index(i, j)] = value;
+	}
+
+	/**
+	 * gets the underlying array, see index(i,j)
+	 */
+	public double[] getValues() {
+		return values;
+	}
+}
@@ -126,6 +126,15 @@ public class DistancesBlock extends DataBlock {
 		variances[s - 1][t - 1] = value;
 	}
 
+	/**
+	 * sets the variances, 0-based. The array is used as is, not copied
+	 *
+	 * @param variances the variances, or null
+	 */
+	public void setVariances(double[][] variances) {
+		this.variances = variances;
+	}
+
 	public void clearVariances() {
 		variances = null;
 	}
@@ -175,11 +175,26 @@ public class TaxaBlock extends DataBlock {
 	 * @return number between 1 and ntax, or -1 if not found
 	 */
 	public int indexOf(String label) {
-		final int t = getLabels().indexOf(label);
-		if (t == -1)
+		final var taxon = name2taxon.get(label);
+		if (taxon == null)
 			return -1;
 		else
-			return t + 1;
+			return indexOf(taxon);
+	}
+
+	/**
+	 * get indices of taxa by label
+	 *
+	 * @param labels the labels
+	 * @return for each label, in the order of iteration, a number between 1 and ntax, or -1 if not found
+	 */
+	public int[] indexOf(Collection<String> labels) {
+		final var indices = new int[labels.size()];
+		var i = 0;
+		for (var label : labels) {
+			indices[i++] = indexOf(label);
+		}
+		return indices;
 	}
 
 	/**
@@ -238,8 +253,9 @@ public class TaxaBlock extends DataBlock {
 		final HashMap<Integer, Integer> map = new HashMap<>();
 		for (int t = 1; t <= getNtax(); t++) {
 			final Taxon taxon = get(t);
-			if (modifiedTaxaBlockBlock.getTaxa().contains(taxon)) {
-				map.put(t, modifiedTaxaBlockBlock.indexOf(taxon));
+			final var index = modifiedTaxaBlockBlock.indexOf(taxon);
+			if (index != -1) {
+				map.put(t, index);
 			}
 		}
 		return map;
@@ -252,7 +268,7 @@ public class TaxaBlock extends DataBlock {
 	 */
 	public void add(Collection<Taxon> add) {
 		for (var taxon : add) {
-			if (taxa.contains(taxon))
+			if (taxon2index.containsKey(taxon))
 				throw new RuntimeException("Duplicate taxon name: " + taxon.getName());
 			name2taxon.put(taxon.getName(), taxon);
 			taxon2index.put(taxon, taxa.size());
@@ -266,7 +282,7 @@ public class TaxaBlock extends DataBlock {
 	 * @throws RuntimeException taxon name already present
 	 */
 	public void add(Taxon taxon) {
-		if (taxa.contains(taxon))
+		if (taxon2index.containsKey(taxon))
 			throw new RuntimeException("Duplicate taxon name: " + taxon.getName());
 		name2taxon.put(taxon.getName(), taxon);
 		taxon2index.put(taxon, taxa.size());
@@ -371,7 +387,7 @@ public class TaxaBlock extends DataBlock {
 	 * compare two taxon names by the order of their occurrence
 	 */
 	public int compare(String taxonName1, String taxonName2) {
-		return Integer.compare(taxa.indexOf(get(taxonName1)), taxa.indexOf(get(taxonName2)));
+		return Integer.compare(indexOf(taxonName1), indexOf(taxonName2));
 	}
 
 	@Override
@@ -404,9 +420,12 @@ public class TaxaBlock extends DataBlock {
 	public void overwriteTaxa(TaxaBlock inputTaxaBlock) {
 		for (var i = 0; i < taxa.size(); i++) {
 			var taxon = taxa.get(i);
-			var originalTaxon = inputTaxaBlock.getTaxa().stream().filter(t -> t.getName().equals(taxon.getName())).findAny().orElse(null);
-			if (originalTaxon != null) {
+			var originalTaxon = inputTaxaBlock.get(taxon.getName());
+			if (originalTaxon != null && originalTaxon != taxon) {
 				taxa.set(i, originalTaxon);
+				name2taxon.put(originalTaxon.getName(), originalTaxon);
+				taxon2index.remove(taxon);
+				taxon2index.put(originalTaxon, i);
 			}
 		}
 	}
@@ -21,11 +21,9 @@ package splitstree6.data.parts;
 
 import jloda.fx.window.NotificationManager;
 import jloda.util.FileUtils;
-import jloda.util.StringUtils;
+import splitstree6.io.utils.SequenceFileUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Optional;
@@ -189,36 +187,12 @@ public class Genome {
                 return sequence;
             else {
                 if (file != null) {
-                    try (BufferedReader ins = new BufferedReader(new InputStreamReader(FileUtils.getInputStreamPossiblyZIPorGZIP(file)))) {
-                        long toSkip = offset;
-                        while (toSkip > 0) {
-                            toSkip -= ins.skip(toSkip);
-                            if (!ins.ready())
-                                break;
-                        }
-                        String line = ins.readLine();
-                        if (line != null && line.startsWith(">"))
-                            line = ins.readLine();
-
-                        if (line != null) {
-                            int length = 0;
-                            final ArrayList<byte[]> lines = new ArrayList<>();
-                            do {
-                                final byte[] bytes = line.getBytes();
-                                length += bytes.length;
-                                lines.add(bytes);
-                                if (length >= getLength())
-                                    break;
-                                do { // skip headers
-                                    line = ins.readLine();
-                                } while (line != null && line.startsWith(">"));
-                            }
-                            while (line != null);
-                            return StringUtils.concatenate(lines);
-                        }
+                    try {
+                        final var result = SequenceFileUtils.readSequence(file, offset, getLength());
+                        return (result.length > 0 ? result : null);
                     } catch (IOException e) {
                         NotificationManager.showError("Read file failed: " + e);
-                        if (e.getMessage().contains("Unexpected end")) {
+                        if (e.getMessage() != null && e.getMessage().contains("Unexpected end")) {
                             System.err.println("Appears to be a corrupted file, deleting: " + file);
                             FileUtils.deleteFileIfExists(file);
                         }
@@ -229,6 +203,23 @@ public class Genome {
             }
         }
 
+        /**
+         * passes the letters of this part to the consumer. If the part refers to a file, it is read block by block, rather than
+         * loaded into memory
+         */
+        public void forEachLetters(SequenceFileUtils.LettersConsumer consumer) throws IOException {
+            if (sequence != null)
+                consumer.accept(sequence, 0, sequence.length);
+            else if (file != null && length > 0) {
+                final var remaining = new long[]{length};
+                SequenceFileUtils.forEachLetters(file, offset, (buffer, from, to) -> {
+                    final var n = (int) Math.min(to - from, remaining[0]);
+                    remaining[0] -= n;
+                    return (consumer.accept(buffer, from, from + n) > 0 ? remaining[0] : 0);
+                });
+            }
+        }
+
         public void setSequence(byte[] sequence, int length) {
             if (sequence != null) {
                 file = null;
@@ -25,6 +25,8 @@ import jloda.fx.util.ProgramProperties;
 import jloda.fx.util.RecentFilesManager;
 import jloda.fx.window.NotificationManager;
 import jloda.util.FileUtils;
+import splitstree6.io.nexus.workflow.WorkflowBinaryFile;
+import splitstree6.io.nexus.workflow.WorkflowBinaryOutput;
 import splitstree6.io.nexus.workflow.WorkflowNexusOutput;
 import splitstree6.window.MainWindow;
 
@@ -50,7 +52,8 @@ public class SaveDialog {
             fileChooser.setInitialDirectory((new File(mainWindow.getFileName()).getParentFile()));
 
         if (!asWorkflowOnly) {
-            fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("SplitsTree6 Files", "*.stree6", "*.nxs", "*.nex"));
+            fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("SplitsTree6 Files", "*.stree6", "*.nxs", "*.nex"),
+					new FileChooser.ExtensionFilter("SplitsTree6 Binary Files", "*" + WorkflowBinaryFile.FILE_SUFFIX));
             fileChooser.setInitialFileName(FileUtils.getFileNameWithoutPath(FileUtils.replaceFileSuffix(mainWindow.getFileName(), ".stree6")));
         } else {
 			fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("SplitsTree6 Workflow Files", "*" + WORKFLOW_FILE_SUFFIX));
@@ -69,7 +72,10 @@ public class SaveDialog {
 			ProgramProperties.put("SaveDir", file.getParent());
 
 		try {
-			new WorkflowNexusOutput().save(mainWindow.getWorkflow(), file.getPath(), asWorkflowOnly);
+			if (file.getName().endsWith(WorkflowBinaryFile.FILE_SUFFIX))
+				new WorkflowBinaryOutput().save(mainWindow.getWorkflow(), file.getPath(), asWorkflowOnly);
+			else
+				new WorkflowNexusOutput().save(mainWindow.getWorkflow(), file.getPath(), asWorkflowOnly);
 			if (!asWorkflowOnly) {
 				mainWindow.setFileName(file.getPath());
 				mainWindow.setDirty(false);
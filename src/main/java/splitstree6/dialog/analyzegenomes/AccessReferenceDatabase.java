@@ -37,11 +37,12 @@ import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -409,59 +410,114 @@ public class AccessReferenceDatabase implements Closeable {
      * find all genomes that have non-zero Jaccard index when compared with the query
      */
     public Collection<Map.Entry<Integer, Double>> findSimilar(ProgressListener progress, double maxDistance, boolean includeStrains, Collection<byte[]> query, boolean ignoreUnusableTaxa) throws SQLException, IOException {
-        final var mash_k = getMashK();
-        final var mash_s = getMashS();
-        final var mash_seed = getMashSeed();
+        return findSimilar(progress, maxDistance, includeStrains, query, ignoreUnusableTaxa, 0);
+    }
 
+    /**
+     * find genomes that have non-zero Jaccard index when compared with the query
+     *
+     * @param maxCount if positive, only the closest maxCount genomes within the max distance are reported. Otherwise, all are reported
+     */
+    public Collection<Map.Entry<Integer, Double>> findSimilar(ProgressListener progress, double maxDistance, boolean includeStrains, Collection<byte[]> query, boolean ignoreUnusableTaxa, int maxCount) throws SQLException, IOException {
         if (verbose)
-            System.err.println("Using mash_k=" + mash_k + ", mash_s=" + mash_s + ", mash_seed=" + mash_seed);
+            System.err.println("Using mash_k=" + getMashK() + ", mash_s=" + getMashS() + ", mash_seed=" + getMashSeed());
 
         progress.setTasks("Find similar", "Sketching");
         progress.setMaximum(query.size());
         progress.setProgress(0);
         final var querySketches = new ArrayList<MashSketch>();
         try {
-            ExecuteInParallel.apply(query,
-                    q -> Collections.singleton(MashSketch.compute("", Collections.singletonList(q), true, mash_s, mash_k, mash_seed, false, true, progress)),
+            ExecuteInParallel.apply(query, q -> Collections.singleton(computeQuerySketch(Collections.singletonList(q), progress)),
                     querySketches, ProgramExecutorService.getNumberOfCoresToUse());
         } catch (Exception e) {
             throw new IOException(e);
         }
 
-        final var kmers = new HashSet<String>();
-        for (var sketch : querySketches) {
-            for (var kmer : sketch.getKmers()) {
-                kmers.add(StringUtils.toString(kmer));
-            }
-        }
-
         final var minSharedKMers = MashDistance.computeMinIntersectionSizeForMaxDistance(maxDistance, getMashK(), getMashS());
         System.err.printf("Max distance = %.3f  => min number of shared k-mers = %d%n", maxDistance, minSharedKMers);
 
-        progress.setSubtask("Searching");
-        progress.setMaximum(countBloomFilters());
-        progress.setProgress(0);
-
-        final var id2distance = new ConcurrentHashMap<Integer, Double>();
+        final var id2distance = search(progress, List.of(querySketches), minSharedKMers, maxCount, ignoreUnusableTaxa).get(0);
+        return sortAndFilter(id2distance, includeStrains, ignoreUnusableTaxa, maxCount);
+    }
 
-        final var exception = new Single<Exception>();
-        final var jobs = new AtomicInteger(1);
+    /**
+     * find the similar genomes for each of a batch of queries, descending the taxonomy only once for the whole batch
+     *
+     * @param querySketches  one sketch per query, computed using computeQuerySketch
+     * @param minSharedKMers min number of k-mers that a genome must share with a query
+     * @param maxCount       if positive, only the closest maxCount genomes are reported for each query. Otherwise, all are reported
+     * @return for each query, the similar genomes and their distances, sorted by increasing distance
+     */
+    public List<List<Map.Entry<Integer, Double>>> findSimilar(ProgressListener progress, List<MashSketch> querySketches, int minSharedKMers, boolean includeStrains, boolean ignoreUnusableTaxa, int maxCount) throws SQLException, IOException {
+        progress.setTasks("Find similar", "Searching");
+        final var results = search(progress, querySketches.stream().map(List::of).toList(), minSharedKMers, maxCount, ignoreUnusableTaxa);
+        final var list = new ArrayList<List<Map.Entry<Integer, Double>>>(results.size());
+        for (var id2distance : results) {
+            list.add(sortAndFilter(id2distance, includeStrains, ignoreUnusableTaxa, maxCount));
+        }
+        return list;
+    }
 
-        final var service = Executors.newFixedThreadPool(ProgramExecutorService.getNumberOfCoresToUse());
-        try {
-            service.submit(createTasksRec(getTaxonomyRoot(), querySketches, kmers, minSharedKMers, id2distance, progress, exception, jobs, service));
+    /**
+     * computes the sketch of a query, using the parameters of the database. The sketch keeps its k-mers
+     */
+    public MashSketch computeQuerySketch(Collection<byte[]> sequences, ProgressListener progress) throws IOException {
+        return MashSketch.compute("", sequences, true, getMashS(), getMashK(), getMashSeed(), false, true, progress);
+    }
 
-            if (exception.get() != null)
-                throw new IOException(exception.get());
-            try {
-                //noinspection ResultOfMethodCallIgnored
-                service.awaitTermination(1000, TimeUnit.DAYS);
-            } catch (InterruptedException ignored) {
+    /**
+     * searches the taxonomy for all queries, each given by one or more sketches
+     *
+     * @param maxCount           if positive, subtrees and genomes that cannot be among the closest maxCount genomes of a query are pruned
+     * @param ignoreUnusableTaxa unusable taxa do not count towards the closest maxCount genomes
+     * @return for each query, ids mapped to smallest distance
+     */
+    private List<Map<Integer, Double>> search(ProgressListener progress, List<? extends Collection<MashSketch>> querySketches, int minSharedKMers, int maxCount, boolean ignoreUnusableTaxa) throws SQLException, IOException {
+        final var queries = new ArrayList<Query>(querySketches.size());
+        for (var sketches : querySketches) {
+            final var kmers = new HashSet<String>();
+            for (var sketch : sketches) {
+                for (var kmer : sketch.getKmers()) {
+                    kmers.add(StringUtils.toString(kmer));
+                }
             }
+            queries.add(new Query(sketches, kmers));
+        }
+
+        progress.setSubtask("Searching");
+        progress.setMaximum(SearchState.PROGRESS_STEPS);
+        progress.setProgress(0);
+
+        final var state = new SearchState(queries, minSharedKMers, maxCount, (ignoreUnusableTaxa ? getUnusableTaxa() : Collections.emptySet()), getMashK(), getMashS(), progress);
+        final var active = new BitSet();
+        active.set(0, queries.size());
+        final Map<Integer, Map<Integer, Double>> query2id2distance;
+        final var pool = new ForkJoinPool(ProgramExecutorService.getNumberOfCoresToUse());
+        try {
+            query2id2distance = pool.invoke(new SearchTask(getTaxonomyRoot(), active, 1.0, state));
         } finally {
-            service.shutdown();
+            pool.shutdownNow();
         }
+        if (state.exception.get() instanceof CanceledException canceledException)
+            throw canceledException;
+        else if (state.exception.get() != null)
+            throw new IOException(state.exception.get());
+        progress.setProgress(SearchState.PROGRESS_STEPS);
+
+        System.err.printf("Queries: %,d, bloom filters tested: %,d, pruned: %,d, sketches compared: %,d, genomes found: %,d%n", queries.size(),
+                state.bloomFiltersTested.sum(), state.bloomFiltersPruned.sum(), state.sketchesCompared.sum(), query2id2distance.values().stream().mapToInt(Map::size).sum());
+
+        final var result = new ArrayList<Map<Integer, Double>>(queries.size());
+        for (var q = 0; q < queries.size(); q++) {
+            result.add(query2id2distance.getOrDefault(q, Collections.emptyMap()));
+        }
+        return result;
+    }
 
+    /**
+     * adds strains, if requested, sorts by distance and removes unusable taxa
+     */
+    private List<Map.Entry<Integer, Double>> sortAndFilter(Map<Integer, Double> id2distance, boolean includeStrains, boolean ignoreUnusableTaxa, int maxCount) throws SQLException {
         final ArrayList<Map.Entry<Integer, Double>> result;
         if (includeStrains) {
             var id2DistanceStrain = new HashMap<Integer, Double>();
@@ -480,58 +536,218 @@ public class AccessReferenceDatabase implements Closeable {
         }
 
         result.sort(Comparator.comparingDouble(Map.Entry::getValue));
-        if (ignoreUnusableTaxa && getUnusableTaxa().size() > 0) {
-            return result.stream().filter(entry -> !getUnusableTaxa().contains(entry.getKey())).collect(Collectors.toList());
+        var stream = result.stream();
+        if (ignoreUnusableTaxa && getUnusableTaxa().size() > 0)
+            stream = stream.filter(entry -> !getUnusableTaxa().contains(entry.getKey()));
+        if (maxCount > 0)
+            stream = stream.limit(maxCount);
+        return stream.collect(Collectors.toList());
+    }
+
+    /**
+     * a query, given by its sketches and the union of their k-mers
+     */
+    private record Query(Collection<MashSketch> sketches, Set<String> kmers) {
+    }
+
+    /**
+     * state shared by all tasks of one search: the queries, statistics, progress and the first exception.
+     * <p>
+     * If a max count is given, the distances of the closest maxCount genomes found so far are kept for each query.
+     * Once there are maxCount of them, the min number of shared k-mers for that query is raised to what a genome needs
+     * to be at least as close as the farthest of them. As the bloom filter of a subtree counts at least as many shared
+     * k-mers as any genome below it has, pruning with this bound still finds the closest maxCount genomes
+     */
+    private static class SearchState {
+        private static final int PROGRESS_STEPS = 10000;
+
+        private final List<Query> queries;
+        private final int maxCount;
+        private final Set<Integer> excluded;
+        private final int mashK;
+        private final int mashS;
+        private final ProgressListener progress;
+
+        private final LongAdder bloomFiltersTested = new LongAdder();
+        private final LongAdder bloomFiltersPruned = new LongAdder();
+        private final LongAdder sketchesCompared = new LongAdder();
+        private final AtomicIntegerArray minSharedKMers;
+        private final List<PriorityQueue<Double>> closest;
+        private final DoubleAdder completed = new DoubleAdder();
+        private final Single<Exception> exception = new Single<>();
+
+        private SearchState(List<Query> queries, int minSharedKMers, int maxCount, Set<Integer> excluded, int mashK, int mashS, ProgressListener progress) {
+            this.queries = queries;
+            this.maxCount = maxCount;
+            this.excluded = excluded;
+            this.mashK = mashK;
+            this.mashS = mashS;
+            this.progress = progress;
+            this.minSharedKMers = new AtomicIntegerArray(queries.size());
+            closest = new ArrayList<>(queries.size());
+            for (var q = 0; q < queries.size(); q++) {
+                this.minSharedKMers.set(q, minSharedKMers);
+                closest.add(maxCount > 0 ? new PriorityQueue<>(maxCount, Comparator.reverseOrder()) : null);
+            }
+        }
+
+        /**
+         * the current min number of k-mers that a genome or subtree must share with the given query
+         */
+        private int getMinSharedKMers(int q) {
+            return minSharedKMers.get(q);
+        }
+
+        /**
+         * reports a genome found for a query, tightening the bound for that query, if a max count is given
+         */
+        private void addFound(int q, int id, double distance) {
+            if (maxCount <= 0 || excluded.contains(id))
+                return;
+            final var queue = closest.get(q);
+            synchronized (queue) {
+                if (queue.size() < maxCount)
+                    queue.add(distance);
+                else if (distance < queue.peek()) {
+                    queue.poll();
+                    queue.add(distance);
+                } else
+                    return;
+                if (queue.size() == maxCount) {
+                    final var bound = MashDistance.computeMinIntersectionSizeForMaxDistance(queue.peek(), mashK, mashS);
+                    minSharedKMers.accumulateAndGet(q, bound, Math::max);
+                }
+            }
+        }
+
+        /**
+         * @return the given queries, empty if the search should stop because of an exception or a cancel
+         */
+        private BitSet getActive(BitSet active) {
+            return (exception.get() == null ? active : new BitSet());
+        }
+
+        /**
+         * reports that a part of the taxonomy of the given weight has been searched or pruned
+         */
+        private void addCompleted(double weight) {
+            completed.add(weight);
+            try {
+                synchronized (progress) {
+                    progress.setProgress(Math.min(PROGRESS_STEPS, Math.round(PROGRESS_STEPS * completed.sum())));
+                }
+            } catch (CanceledException ex) {
+                exception.setIfCurrentValueIsNull(ex);
+            }
         }
-        return result;
     }
 
     /**
-     * creates a task to submitted to the service. This task will recursively submit further tasks and will call shutdown() once all tasks have been completed
+     * searches the subtree below a taxon for the given active queries. Each bloom filter is tested against all active
+     * queries, and a subtree is only searched for those queries that pass the test.
+     * The weight of a task is its share of the whole taxonomy, which is split evenly between the sketches of the
+     * children and the subtrees below them, for reporting progress.
+     * Each task returns its own map of queries to ids to smallest distances, which are merged when subtasks are joined
      */
-    private Runnable createTasksRec(int taxonId, Collection<MashSketch> querySketches, Set<String> kmers, int minSharedKMers, ConcurrentHashMap<Integer, Double> id2distance,
-                                    ProgressListener progress, Single<Exception> exception, AtomicInteger jobCount, ExecutorService service) {
-        return () -> {
-            if (exception.get() == null) {
-                try {
-                    final var database = getCopy();
-                    final var ids = database.getTaxonomyChildren(taxonId);
-                    final var bloomFilters = database.getBloomFilters(ids);
-                    for (var pair : bloomFilters) {
-                        final var bloomFilter = pair.getSecond();
-                        if (bloomFilter == null || bloomFilter.cardinality() < database.getMashS() || bloomFilter.countContainedProbably(kmers) >= minSharedKMers) {
-                            final var id = pair.getFirst();
-                            jobCount.incrementAndGet();
-                            service.submit(createTasksRec(id, querySketches, kmers, minSharedKMers, id2distance, progress, exception, jobCount, service));
-                            //System.err.println("Adding bloom filter for " + id);
+    private class SearchTask extends RecursiveTask<Map<Integer, Map<Integer, Double>>> {
+        private final int taxonId;
+        private final BitSet active;
+        private final double weight;
+        private final SearchState state;
+
+        private SearchTask(int taxonId, BitSet active, double weight, SearchState state) {
+            this.taxonId = taxonId;
+            this.active = active;
+            this.weight = weight;
+            this.state = state;
+        }
+
+        @Override
+        protected Map<Integer, Map<Integer, Double>> compute() {
+            final var query2id2distance = new HashMap<Integer, Map<Integer, Double>>();
+            final var active = state.getActive(this.active);
+            if (active.isEmpty()) {
+                state.addCompleted(weight);
+                return query2id2distance;
+            }
+            final var subTasks = new ArrayList<SearchTask>();
+            var remaining = weight; // share of the sketches of the children, plus that of subtrees not yet handed on
+            try {
+                state.progress.checkForCancel();
+                final var database = getCopy();
+                final var ids = database.getTaxonomyChildren(taxonId);
+                final var bloomFilters = database.getBloomFilters(ids);
+                final var share = weight / (bloomFilters.size() + 1);
+
+                // children whose bloom filters contain more of the query k-mers are searched first:
+                final var candidates = new ArrayList<Pair<SearchTask, Long>>();
+                for (var pair : bloomFilters) {
+                    final var bloomFilter = pair.getSecond();
+                    state.bloomFiltersTested.increment();
+                    if (bloomFilter == null || bloomFilter.cardinality() < database.getMashS())
+                        candidates.add(new Pair<>(new SearchTask(pair.getFirst(), active, share, state), Long.MAX_VALUE));
+                    else {
+                        final var passed = new BitSet();
+                        var total = 0L;
+                        for (var q = active.nextSetBit(0); q >= 0; q = active.nextSetBit(q + 1)) {
+                            final var count = bloomFilter.countContainedProbably(state.queries.get(q).kmers());
+                            if (count >= state.getMinSharedKMers(q)) {
+                                passed.set(q);
+                                total += count;
+                            }
+                        }
+                        if (!passed.isEmpty())
+                            candidates.add(new Pair<>(new SearchTask(pair.getFirst(), passed, share, state), total));
+                        else {
+                            state.bloomFiltersPruned.increment();
+                            state.addCompleted(share);
+                            remaining -= share;
                         }
-                        progress.incrementProgress();
                     }
-                    final var mashSketches = database.getMashSketches(ids);
-                    for (var pair : mashSketches) {
-                        final var mashSketch = pair.getSecond();
-                        for (var sketch : querySketches) {
-                            if (MashDistance.computeIntersection(mashSketch, sketch) >= minSharedKMers) {
-                                final var id = pair.getFirst();
+                }
+                candidates.sort((a, b) -> Long.compare(b.getSecond(), a.getSecond()));
+                for (var pair : candidates) {
+                    final var subTask = pair.getFirst();
+                    subTask.fork();
+                    subTasks.add(subTask);
+                    remaining -= share;
+                }
+
+                final var mashSketches = database.getMashSketches(ids);
+                for (var pair : mashSketches) {
+                    final var mashSketch = pair.getSecond();
+                    final var id = pair.getFirst();
+                    for (var q = active.nextSetBit(0); q >= 0; q = active.nextSetBit(q + 1)) {
+                        var best = Double.MAX_VALUE;
+                        for (var sketch : state.queries.get(q).sketches()) {
+                            state.sketchesCompared.increment();
+                            if (MashDistance.computeIntersection(mashSketch, sketch) >= state.getMinSharedKMers(q)) {
                                 final var distance = MashDistance.compute(mashSketch, sketch);
-                                synchronized (id2distance) {
-                                    if (!id2distance.containsKey(id) || id2distance.get(id) > distance) {
-                                        id2distance.put(id, distance);
-                                    }
-                                }
+                                best = Math.min(best, distance);
                                 if (verbose)
                                     System.err.printf("Found similar: " + id + " " + database.getName(id) + " JI: %f dist: %.8f%n", MashDistance.computeJaccardIndex(mashSketch, sketch), distance);
                             }
                         }
-                        progress.incrementProgress();
+                        if (best < Double.MAX_VALUE) {
+                            query2id2distance.computeIfAbsent(q, k -> new HashMap<>()).merge(id, best, Math::min);
+                            state.addFound(q, id, best);
+                        }
                     }
-                } catch (IOException | SQLException ex) {
-                    exception.setIfCurrentValueIsNull(ex);
                 }
+            } catch (IOException | SQLException ex) {
+                state.exception.setIfCurrentValueIsNull(ex);
             }
-            if (jobCount.decrementAndGet() <= 0)
-                service.shutdown();
-        };
+            state.addCompleted(remaining);
+            for (var subTask : subTasks) {
+                for (var entry : subTask.join().entrySet()) {
+                    final var id2distance = query2id2distance.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+                    for (var other : entry.getValue().entrySet()) {
+                        id2distance.merge(other.getKey(), other.getValue(), Math::min);
+                    }
+                }
+            }
+            return query2id2distance;
+        }
     }
 
     public Set<Integer> getUnusableTaxa() {
@@ -543,7 +759,7 @@ public class AccessReferenceDatabase implements Closeable {
     }
 
     private AccessReferenceDatabase getCopy() {
-        return copiesForSearching[which.incrementAndGet() % copiesForSearching.length];
+        return copiesForSearching[Math.floorMod(which.incrementAndGet(), copiesForSearching.length)];
     }
 
     public Connection getConnection() {
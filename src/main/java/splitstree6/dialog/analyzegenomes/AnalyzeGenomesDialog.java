@@ -60,6 +60,7 @@ public class AnalyzeGenomesDialog {
 	private final IntegerProperty optionMinLength = new SimpleIntegerProperty(this, "optionMinLength");
 	private final DoubleProperty optionMaxDistanceToSearch = new SimpleDoubleProperty(this, "optionMaxDistanceToSearch");
 	private final BooleanProperty optionIncludeStrains = new SimpleBooleanProperty(this, "optionIncludeStrains");
+	private final IntegerProperty optionMaxNumberOfReferences = new SimpleIntegerProperty(this, "optionMaxNumberOfReferences");
 
 	{
 		ProgramProperties.track(optionInputDirectory, "");
@@ -71,6 +72,7 @@ public class AnalyzeGenomesDialog {
 		ProgramProperties.track(optionMinLength, 10000);
 		ProgramProperties.track(optionMaxDistanceToSearch, 0.4);
 		ProgramProperties.track(optionIncludeStrains, false);
+		ProgramProperties.track(optionMaxNumberOfReferences, 0);
 	}
 
 	/**
@@ -194,6 +196,21 @@ public class AnalyzeGenomesDialog {
 		this.optionMaxDistanceToSearch.set(optionMaxDistanceToSearch);
 	}
 
+	/**
+	 * max number of closest references to find, 0 for all within the max distance
+	 */
+	public int getOptionMaxNumberOfReferences() {
+		return optionMaxNumberOfReferences.get();
+	}
+
+	public IntegerProperty optionMaxNumberOfReferencesProperty() {
+		return optionMaxNumberOfReferences;
+	}
+
+	public void setOptionMaxNumberOfReferences(int optionMaxNumberOfReferences) {
+		this.optionMaxNumberOfReferences.set(optionMaxNumberOfReferences);
+	}
+
 	public boolean isOptionIncludeStrains() {
 		return optionIncludeStrains.get();
 	}
@@ -233,7 +233,7 @@ public class AnalyzeGenomesPresenter {
 					for (var record : genomesAnalyzer.iterable(getProgressListener())) {
 						queries.add(record.getSequence());
 					}
-					return accessReferenceDatabase.get().findSimilar(service.getProgressListener(), dialog.getOptionMaxDistanceToSearch(), dialog.isOptionIncludeStrains(), queries, true);
+					return accessReferenceDatabase.get().findSimilar(service.getProgressListener(), dialog.getOptionMaxDistanceToSearch(), dialog.isOptionIncludeStrains(), queries, true, dialog.getOptionMaxNumberOfReferences());
 				}
 			});
 			service.runningProperty().addListener((c, o, n) -> dialog.runningProperty().set(n));
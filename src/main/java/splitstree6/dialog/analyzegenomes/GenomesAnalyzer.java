@@ -34,6 +34,7 @@ import splitstree6.data.parts.Genome;
 import splitstree6.io.FileLoader;
 import splitstree6.io.nexus.GenomesNexusOutput;
 import splitstree6.io.nexus.TaxaNexusOutput;
+import splitstree6.io.utils.SequenceFileUtils;
 import splitstree6.window.MainWindow;
 
 import java.io.*;
@@ -83,7 +84,7 @@ public class GenomesAnalyzer {
 			{
 				while (next == null && iterator.hasNext()) {
 					final InputRecord pair = iterator.next();
-					if (pair.getSequence().length >= minLength)
+					if (pair.getLength() >= minLength)
 						next = pair;
 				}
 			}
@@ -99,7 +100,7 @@ public class GenomesAnalyzer {
 				next = null;
 				while (next == null && iterator.hasNext()) {
 					final InputRecord pair = iterator.next();
-					if (pair.getSequence().length >= minLength)
+					if (pair.getLength() >= minLength)
 						next = pair;
 				}
 				return result;
@@ -183,7 +184,7 @@ public class GenomesAnalyzer {
 									if (useFileName)
 										next.setName(FileUtils.replaceFileSuffix(FileUtils.getFileNameWithoutPath(fastaIterator.getFileName()), "") + ":" + countInFile);
 
-									System.err.println(next.getName() + ": " + next.getSequence().length);
+									System.err.println(next.getName() + ": " + next.getLength());
 								}
 							}
 						}
@@ -225,8 +226,17 @@ public class GenomesAnalyzer {
 				name = FileUtils.replaceFileSuffix(FileUtils.getFileNameWithoutPath(fileName), "");
 		}
 
-		try (var it = FastAFileIterator.getFastAOrFastQAsFastAIterator(fileName)) {
-			return new InputRecord(name, it.stream().map(Pair::getSecond).collect(Collectors.joining()).getBytes(), fileName, 0L);
+		try {
+			if (FileUtils.getFirstLineFromFile(new File(fileName)) instanceof String line && line.startsWith(">")) {
+				// FastA: if only the file location is stored, the letters are only counted, otherwise read directly as bytes
+				if (storeFileLocations)
+					return new InputRecord(name, null, fileName, 0L, (int) Math.min(Integer.MAX_VALUE, SequenceFileUtils.countLetters(fileName)));
+				else
+					return new InputRecord(name, SequenceFileUtils.readLetters(fileName), fileName, 0L);
+			}
+			try (var it = FastAFileIterator.getFastAOrFastQAsFastAIterator(fileName)) {
+				return new InputRecord(name, it.stream().map(Pair::getSecond).collect(Collectors.joining()).getBytes(), fileName, 0L);
+			}
 		} catch (IOException e) {
 			NotificationManager.showError("File " + fileName + ": " + e.getMessage());
 			return null;
@@ -267,7 +277,7 @@ public class GenomesAnalyzer {
 					final Genome.GenomePart genomePart = new Genome.GenomePart();
 					genomePart.setName("part");
 					if (storeFileLocations) {
-						genomePart.setFile(inputRecord.getFile(), inputRecord.getOffset(), inputRecord.getSequence().length);
+						genomePart.setFile(inputRecord.getFile(), inputRecord.getOffset(), inputRecord.getLength());
 					} else {
 						genomePart.setSequence(inputRecord.getSequence(), inputRecord.getSequence().length);
 					}
@@ -334,12 +344,24 @@ public class GenomesAnalyzer {
 		private final byte[] sequence;
 		private final String file;
 		private final long offset;
+		private final int length;
 
 		public InputRecord(String name, byte[] sequence, String file, long offset) {
+			this(name, sequence, file, offset, sequence.length);
+		}
+
+		/**
+		 * constructor
+		 *
+		 * @param sequence the sequence, or null, if only the file location is to be stored
+		 * @param length   the number of letters
+		 */
+		public InputRecord(String name, byte[] sequence, String file, long offset, int length) {
 			this.name = name;
 			this.sequence = sequence;
 			this.file = file;
 			this.offset = offset;
+			this.length = length;
 		}
 
 		public String getName() {
@@ -361,5 +383,9 @@ public class GenomesAnalyzer {
 		public long getOffset() {
 			return offset;
 		}
+
+		public int getLength() {
+			return length;
+		}
 	}
 }
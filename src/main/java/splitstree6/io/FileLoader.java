@@ -25,6 +25,7 @@ import jloda.fx.util.RecentFilesManager;
 import jloda.fx.window.MainWindowManager;
 import jloda.fx.window.NotificationManager;
 import splitstree6.dialog.importdialog.ImportDialog;
+import splitstree6.io.nexus.workflow.WorkflowBinaryFile;
 import splitstree6.io.nexus.workflow.WorkflowNexusInput;
 import splitstree6.io.readers.ImportManager;
 import splitstree6.tabs.inputeditor.InputEditorTab;
@@ -47,7 +48,10 @@ public class FileLoader {
 
 		if (!(new File(fileName)).canRead())
 			NotificationManager.showError("File not found or unreadable: " + fileName);
-		else if (editorTab != null && editorTab.isEmpty()) {
+		else if (WorkflowBinaryFile.isApplicable(fileName)) { // binary file can't be shown in input editor
+			var window = (editorTab != null && editorTab.isEmpty() ? mainWindow : (MainWindow) MainWindowManager.getInstance().createAndShowWindow(mainWindow));
+			WorkflowNexusInput.open(window, fileName, exceptionHandler, () -> RecentFilesManager.getInstance().insertRecentFile(fileName));
+		} else if (editorTab != null && editorTab.isEmpty()) {
 			editorTab.importFromFile(fileName);
 			mainWindow.setFileName(fileName);
 			RecentFilesManager.getInstance().insertRecentFile(fileName);
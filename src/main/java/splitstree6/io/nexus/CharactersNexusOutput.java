@@ -23,6 +23,7 @@ import jloda.util.StringUtils;
 import splitstree6.data.CharactersBlock;
 import splitstree6.data.CharactersFormat;
 import splitstree6.data.TaxaBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -160,29 +161,32 @@ public class CharactersNexusOutput extends NexusIOBase implements INexusOutput<C
 			taxaWidth = maxLabelLength(taxa) + 1;
 		}
 
-		for (int t = 1; t <= characters.getNtax(); t++) {
+		final var finalColumnWidth = columnWidth;
+		final var finalTaxaWidth = taxaWidth;
+
+		TextOutputUtils.writeRows(w, 1, characters.getNtax() + 1, (t, buf) -> {
 			//Print taxon label
 			if (format.isOptionLabels()) {
-				w.write(padLabel(taxa.getLabel(t), taxaWidth));
+				buf.append(padLabel(taxa.getLabel(t), finalTaxaWidth));
 			}
 
 			if (!format.isOptionTokens() || characters.getStateLabeler() == null) { //Write sequence without tokens
 				for (int c = 1; c <= characters.getNchar(); c++) {
 					if (format.getOptionMatchCharacter() == 0 || t == 1 || characters.get(t, c) != characters.get(1, c))
-						w.write(characters.get(t, c)); // get original?
+						buf.append(characters.get(t, c)); // get original?
 					else
-						w.write(format.getOptionMatchCharacter());
+						buf.append(format.getOptionMatchCharacter());
 				}
 			} else {  //Write with tokens
 				for (int c = 1; c <= characters.getNchar(); c++) {
 					if (format.getOptionMatchCharacter() == 0 || c == 1 || characters.get(t, c) != characters.get(1, c))
-						w.write(padLabel(characters.getStateLabeler().char2token(c, characters.get(t, c)), columnWidth));
+						buf.append(padLabel(characters.getStateLabeler().char2token(c, characters.get(t, c)), finalColumnWidth));
 					else
-						w.write(padLabel("" + format.getOptionMatchCharacter(), columnWidth));
+						buf.append(padLabel("" + format.getOptionMatchCharacter(), finalColumnWidth));
 				}
 			}
-			w.write("\n");
-		}
+			buf.append("\n");
+		});
 	}
 
 	/**
@@ -35,6 +35,8 @@ import java.util.List;
  * Daniel Huson, 2.2018
  */
 public class DistancesNexusInput extends NexusIOBase implements INexusInput<DistancesBlock> {
+	private boolean ignoreMatrix = false;
+
 	public static final String SYNTAX =
 			"""
 					BEGIN DISTANCES;
@@ -119,6 +121,12 @@ public class DistancesNexusInput extends NexusIOBase implements INexusInput<Dist
 
 			final ArrayList<String> taxonNamesFound = new ArrayList<>(distancesBlock.getNtax());
 
+			if (isIgnoreMatrix()) {
+				np.matchIgnoreCase("MATRIX");
+				np.matchEndBlock();
+				return taxonNamesFound;
+			}
+
 			{
 				np.matchIgnoreCase("MATRIX");
 				final var hasTaxonNames = taxaBlock.size() > 0;
@@ -241,4 +249,12 @@ public class DistancesNexusInput extends NexusIOBase implements INexusInput<Dist
 			}
 		}
 	}
+
+	public boolean isIgnoreMatrix() {
+		return ignoreMatrix;
+	}
+
+	public void setIgnoreMatrix(boolean ignoreMatrix) {
+		this.ignoreMatrix = ignoreMatrix;
+	}
 }
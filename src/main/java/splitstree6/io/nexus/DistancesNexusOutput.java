@@ -19,9 +19,9 @@
 
 package splitstree6.io.nexus;
 
-import jloda.util.StringUtils;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -31,6 +31,8 @@ import java.io.Writer;
  * Daniel Huson, 2.2018
  */
 public class DistancesNexusOutput extends NexusIOBase implements INexusOutput<DistancesBlock> {
+	private boolean ignoreMatrix = false;
+
 	/**
 	 * write a block in nexus format
 	 */
@@ -56,39 +58,49 @@ public class DistancesNexusOutput extends NexusIOBase implements INexusOutput<Di
 
 		final var diag = format.isOptionDiagonal() ? 0 : 1;
 
+		if (isIgnoreMatrix()) {
+			w.write("MATRIX\n");
+			w.write("END; [DISTANCES]\n");
+			return;
+		}
+
+		final var ntax = distancesBlock.getNtax();
+		final var maxLabelLength = (format.isOptionLabels() ? maxLabelLength(taxaBlock) : 0);
+
 		// write matrix:
 		{
 			w.write("MATRIX\n");
 
-			for (var s = 1; s <= distancesBlock.getNtax(); s++) {
+			TextOutputUtils.writeRows(w, 1, ntax + 1, (s, buf) -> {
 				if (format.isOptionLabels()) {
-					w.write("[" + s + "]");
-					w.write(" '" + taxaBlock.get(s).getName() + "'");
-					pad(w, taxaBlock, s);
+					buf.append("[").append(s).append("]");
+					buf.append(" '").append(taxaBlock.get(s).getName()).append("'");
+					pad(buf, taxaBlock.getLabel(s).length(), maxLabelLength);
 				}
 
-				final var buf = new StringBuilder();
+				final var rowStart = buf.length();
 				InnerLoop:
-				for (var t = 1; t <= distancesBlock.getNtax(); t++) {
+				for (var t = 1; t <= ntax; t++) {
 					switch (format.getOptionTriangle()) {
 						case Lower:
 							if (t > s || !format.isOptionDiagonal() && t == s)
 								break InnerLoop; // don't write the upper triangle
 							break;
 						case Upper:
-							if (s == distancesBlock.getNtax() && !format.isOptionDiagonal())
+							if (s == ntax && !format.isOptionDiagonal())
 								break InnerLoop;
 							if ((!format.isOptionDiagonal() && t == s + 1) || (format.isOptionDiagonal() && t == s)) {
 								// replace lower dialog by spaces
-								buf.replace(0, buf.length(), " ".repeat(buf.length()));
+								for (var i = rowStart; i < buf.length(); i++)
+									buf.setCharAt(i, ' ');
 							}
 						default:
 						case Both:
 					}
-					buf.append(StringUtils.removeTrailingZerosAfterDot(String.format(" %.6f", distancesBlock.get(s, t))));
+					TextOutputUtils.appendDouble(buf.append(' '), distancesBlock.get(s, t), 6);
 				}
-				w.write(buf + "\n");
-			}
+				buf.append("\n");
+			});
 			w.write(";\n");
 		}
 
@@ -96,12 +108,11 @@ public class DistancesNexusOutput extends NexusIOBase implements INexusOutput<Di
 		if (format.isOptionVariancesIO() && distancesBlock.isVariances()) {
 			w.write("VARMATRIX\n");
 
-			for (var t = 1; t <= distancesBlock.getNtax(); t++) {
+			TextOutputUtils.writeRows(w, 1, ntax + 1, (t, buf) -> {
 				if (format.isOptionLabels()) {
-					w.write("[" + t + "]");
-					w.write(" '" + taxaBlock.get(t).getName() + "'");
-					pad(w, taxaBlock, t);
-
+					buf.append("[").append(t).append("]");
+					buf.append(" '").append(taxaBlock.get(t).getName()).append("'");
+					pad(buf, taxaBlock.getLabel(t).length(), maxLabelLength);
 				}
 				int left;
 				int right;
@@ -114,21 +125,20 @@ public class DistancesNexusOutput extends NexusIOBase implements INexusOutput<Di
 					}
 					case Upper -> {
 						left = t + diag;//t-1+diag;
-						right = distancesBlock.getNtax();
-						for (int i = 1; i < t; i++)
-							w.write("      ");
+						right = ntax;
+						buf.append("      ".repeat(t - 1));
 					}
 					default -> {
 						left = 1;
-						right = distancesBlock.getNtax();
+						right = ntax;
 					}
 				}
 
 				for (var q = left; q <= right; q++) {
-					w.write(StringUtils.removeTrailingZerosAfterDot(String.format(" %.6f", distancesBlock.getVariance(t, q))));
+					TextOutputUtils.appendDouble(buf.append(' '), distancesBlock.getVariance(t, q), 6);
 				}
-				w.write("\n");
-			}
+				buf.append("\n");
+			});
 			w.write(";\n");
 		}
 		w.write("END; [DISTANCES]\n");
@@ -153,6 +163,17 @@ public class DistancesNexusOutput extends NexusIOBase implements INexusOutput<Di
 		}
 	}
 
+	/**
+	 * pad with white space
+	 *
+	 * @param buf            the buffer
+	 * @param labelLength    the length of the label
+	 * @param maxLabelLength the max length of all labels
+	 */
+	private static void pad(StringBuilder buf, int labelLength, int maxLabelLength) {
+		buf.append(" ".repeat(Math.max(0, maxLabelLength - labelLength + 2)));
+	}
+
 	/**
 	 * Get the max length of all the labels.
 	 *
@@ -170,4 +191,12 @@ public class DistancesNexusOutput extends NexusIOBase implements INexusOutput<Di
 		}
 		return longer;
 	}
+
+	public boolean isIgnoreMatrix() {
+		return ignoreMatrix;
+	}
+
+	public void setIgnoreMatrix(boolean ignoreMatrix) {
+		this.ignoreMatrix = ignoreMatrix;
+	}
 }
@@ -37,11 +37,19 @@ public class NexusExporter {
 	private String title;
 	private Pair<String, String> link;
 	private boolean asWorkflowOnly;
+	private boolean ignoreMatrix;
 
 	public void setAsWorkflowOnly(boolean asWorkflowOnly) {
 		this.asWorkflowOnly = asWorkflowOnly;
 	}
 
+	/**
+	 * if set, the matrix of a characters, distances or splits block is not written, used when the matrix is stored separately
+	 */
+	public void setIgnoreMatrix(boolean ignoreMatrix) {
+		this.ignoreMatrix = ignoreMatrix;
+	}
+
 	public void export(Writer w, TaxaBlock taxa) throws IOException {
 		if (prependTaxa) {
 			w.write("#nexus\n");
@@ -78,6 +86,7 @@ public class NexusExporter {
 		}
 		final var output = new CharactersNexusOutput();
 		output.setTitleAndLink(getTitle(), getLink());
+		output.setIgnoreMatrix(ignoreMatrix);
 		if (asWorkflowOnly) {
 			final var newBlock = new CharactersBlock();
 			newBlock.setDataType(block.getDataType());
@@ -112,6 +121,7 @@ public class NexusExporter {
 		}
 		final var output = new DistancesNexusOutput();
 		output.setTitleAndLink(getTitle(), getLink());
+		output.setIgnoreMatrix(ignoreMatrix);
 		if (asWorkflowOnly) {
 			final var newBlock = new DistancesBlock();
 			newBlock.setFormat(distances.getFormat());
@@ -144,6 +154,7 @@ public class NexusExporter {
 		}
 		final var output = new SplitsNexusOutput();
 		output.setTitleAndLink(getTitle(), getLink());
+		output.setIgnoreMatrix(ignoreMatrix);
 		if (asWorkflowOnly) {
 			final var newBlock = new SplitsBlock();
 			newBlock.setFormat(block.getFormat());
@@ -261,6 +272,7 @@ public class NexusExporter {
 	 * export a datablock
 	 */
 	public void export(Writer w, TaxaBlock taxaBlock, DataBlock dataBlock) throws IOException {
+		dataBlock.materialize();
 		if (dataBlock instanceof CharactersBlock charactersBlock)
 			export(w, taxaBlock, charactersBlock);
 			// else if (dataBlock instanceof GenomesBlock)
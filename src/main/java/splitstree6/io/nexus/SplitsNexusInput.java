@@ -38,6 +38,8 @@ import java.util.List;
  * Daniel Huson, 2.2018
  */
 public class SplitsNexusInput extends NexusIOBase implements INexusInput<SplitsBlock> {
+	private boolean ignoreMatrix = false;
+
 	// "\t\t[LeastSquares]\n" + // only present for compatibility with SplitsTree4
 	public static final String SYNTAX = """
 			BEGIN SPLITS;
@@ -185,8 +187,10 @@ public class SplitsNexusInput extends NexusIOBase implements INexusInput<SplitsB
 
 		if (np.peekMatchIgnoreCase("matrix")) {
 			np.matchIgnoreCase("matrix");
-			readMatrix(np, taxaBlock, nsplits, splitsBlock, format);
-			np.matchIgnoreCase(";");
+			if (!isIgnoreMatrix()) {
+				readMatrix(np, taxaBlock, nsplits, splitsBlock, format);
+				np.matchIgnoreCase(";");
+			}
 		}
 		np.matchEndBlock();
 
@@ -259,4 +263,12 @@ public class SplitsNexusInput extends NexusIOBase implements INexusInput<SplitsB
 			splitsBlock.getSplits().add(split);
 		}
 	}
+
+	public boolean isIgnoreMatrix() {
+		return ignoreMatrix;
+	}
+
+	public void setIgnoreMatrix(boolean ignoreMatrix) {
+		this.ignoreMatrix = ignoreMatrix;
+	}
 }
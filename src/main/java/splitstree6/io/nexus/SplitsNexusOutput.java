@@ -22,15 +22,19 @@ package splitstree6.io.nexus;
 import jloda.util.StringUtils;
 import splitstree6.data.SplitsBlock;
 import splitstree6.data.TaxaBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.BitSet;
 
 /**
  * splits nexus output
  * Daniel Huson, 2.2018
  */
 public class SplitsNexusOutput extends NexusIOBase implements INexusOutput<SplitsBlock> {
+	private boolean ignoreMatrix = false;
+
 	/**
 	 * write a block in nexus format
 	 */
@@ -104,26 +108,50 @@ public class SplitsNexusOutput extends NexusIOBase implements INexusOutput<Split
 		}
 
 		w.write("MATRIX\n");
+		if (isIgnoreMatrix()) {
+			w.write("END; [SPLITS]\n");
+			return;
+		}
 
-		var t = 1;
-		for (var split : splitsBlock.getSplits()) {
-			w.write("[" + (t++) + ", size=" + split.size() + "]" + " \t");
+		final var splits = splitsBlock.getSplits();
+		TextOutputUtils.writeRows(w, 0, splits.size(), (s, buf) -> {
+			final var split = splits.get(s);
+			buf.append("[").append(s + 1).append(", size=").append(split.size()).append("]").append(" \t");
 			if (format.isOptionLabels()) {
 				String lab = split.getLabel();
-				w.write(" '" + lab + "'" + " \t");
+				buf.append(" '").append(lab).append("'").append(" \t");
 			}
 			if (format.isOptionWeights()) {
-				w.write(" " + StringUtils.removeTrailingZerosAfterDot("%.8f", split.getWeight()) + " \t");
+				TextOutputUtils.appendDouble(buf.append(" "), split.getWeight(), 8).append(" \t");
 			}
 			if (writeConfidences) {
-				w.write(" " + StringUtils.removeTrailingZerosAfterDot("%.8f", split.getConfidence()) + " \t");
+				TextOutputUtils.appendDouble(buf.append(" "), split.getConfidence(), 8).append(" \t");
 			}
-			w.write(" " + StringUtils.toString(split.getA(), " "));
+			appendBits(buf.append(" "), split.getA());
 			if (format.isOptionShowBothSides())
-				w.write(" | " + StringUtils.toString(split.getB(), " "));
-			w.write(",\n");
-		}
+				appendBits(buf.append(" | "), split.getB());
+			buf.append(",\n");
+		});
 		w.write(";\n");
 		w.write("END; [SPLITS]\n");
 	}
+
+	private static void appendBits(StringBuilder buf, BitSet bits) {
+		var first = true;
+		for (var t = bits.nextSetBit(0); t != -1; t = bits.nextSetBit(t + 1)) {
+			if (first)
+				first = false;
+			else
+				buf.append(' ');
+			buf.append(t);
+		}
+	}
+
+	public boolean isIgnoreMatrix() {
+		return ignoreMatrix;
+	}
+
+	public void setIgnoreMatrix(boolean ignoreMatrix) {
+		this.ignoreMatrix = ignoreMatrix;
+	}
 }
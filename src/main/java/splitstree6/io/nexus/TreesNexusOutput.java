@@ -25,8 +25,10 @@ import jloda.phylo.PhyloTree;
 import jloda.util.StringUtils;
 import splitstree6.data.TaxaBlock;
 import splitstree6.data.TreesBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.function.Function;
 
@@ -69,14 +71,17 @@ public class TreesNexusOutput extends NexusIOBase implements INexusOutput<TreesB
 
 		w.write("[TREES]\n");
 
-		var newickIO = new NewickIO();
-		int t = 1;
-		for (var tree : treesBlock.getTrees()) {
+		final var trees = treesBlock.getTrees();
+		TextOutputUtils.writeRows(w, 0, trees.size(), (i, buf) -> {
+			final var tree = trees.get(i);
+			final var t = i + 1;
 			final String name = (tree.getName() != null && tree.getName().length() > 0 ? tree.getName() : "t" + t);
-			w.write("\t\t[" + (t++) + "] tree '" + name + "'=" + getFlags(tree) + " ");
-			newickIO.write(tree, w, format.isOptionWeights(), labeler);
-			w.write(";\n");
-		}
+			buf.append("\t\t[").append(t).append("] tree '").append(name).append("'=").append(getFlags(tree)).append(" ");
+			final var sw = new StringWriter();
+			(new NewickIO()).write(tree, sw, format.isOptionWeights(), labeler);
+			buf.append(sw.getBuffer());
+			buf.append(";\n");
+		});
 		w.write("END; [TREES]\n");
 	}
 
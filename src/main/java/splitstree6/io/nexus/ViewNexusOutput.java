@@ -39,7 +39,10 @@ public class ViewNexusOutput extends NexusIOBase {
 		writeTitleAndLink(w);
 		w.write("NAME '" + viewBlock.getName() + "';\n");
 		w.write("INPUT '" + viewBlock.getInputBlockName() + "';\n");
-		OptionIO.writeOptions(w, viewBlock.getView());
+		if (viewBlock.getView() != null)
+			OptionIO.writeOptions(w, viewBlock.getView());
+		else if (!viewBlock.getInitializationLines().isBlank()) // view not computed yet, keep the options read from file
+			w.write("OPTIONS\n\t" + viewBlock.getInitializationLines() + ";\n");
 		w.write("END; [VIEW]\n");
 	}
 }
@@ -0,0 +1,185 @@
+/*
+ * BinaryMatrixIO.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.nexus.workflow;
+
+import splitstree6.data.CharactersBlock;
+import splitstree6.data.DistancesBlock;
+import splitstree6.data.SplitsBlock;
+import splitstree6.splits.ASplit;
+import splitstree6.workflow.DataBlock;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * writes and reads the matrix of a characters, distances or splits block as length-prefixed primitive arrays,
+ * all other parts of such a block are stored in nexus format
+ */
+public class BinaryMatrixIO {
+	/**
+	 * does this block have a matrix that is stored in binary?
+	 */
+	public static boolean isSupported(DataBlock dataBlock) {
+		return dataBlock instanceof CharactersBlock || dataBlock instanceof DistancesBlock || dataBlock instanceof SplitsBlock;
+	}
+
+	/**
+	 * write the matrix of a block
+	 */
+	public static void write(DataOutputStream outs, DataBlock dataBlock) throws IOException {
+		if (dataBlock instanceof CharactersBlock charactersBlock) {
+			final var matrix = charactersBlock.getMatrix();
+			outs.writeInt(matrix.length);
+			for (var row : matrix)
+				writeChars(outs, row);
+		} else if (dataBlock instanceof DistancesBlock distancesBlock) {
+			final var matrix = distancesBlock.getDistances();
+			outs.writeInt(matrix.length);
+			for (var row : matrix)
+				writeDoubles(outs, row);
+			final var variances = distancesBlock.getVariances();
+			outs.writeBoolean(variances != null);
+			if (variances != null) {
+				for (var row : variances)
+					writeDoubles(outs, row);
+			}
+		} else if (dataBlock instanceof SplitsBlock splitsBlock) {
+			final var splits = splitsBlock.getSplits();
+			final var nsplits = splits.size();
+			outs.writeInt(nsplits);
+			// columns:
+			final var weights = new double[nsplits];
+			final var confidences = new double[nsplits];
+			for (var s = 0; s < nsplits; s++) {
+				weights[s] = splits.get(s).getWeight();
+				confidences[s] = splits.get(s).getConfidence();
+			}
+			writeDoubles(outs, weights);
+			writeDoubles(outs, confidences);
+			for (var split : splits) {
+				writeLongs(outs, split.getA().toLongArray());
+				writeLongs(outs, split.getB().toLongArray());
+			}
+			for (var split : splits) {
+				outs.writeBoolean(split.getLabel() != null);
+				if (split.getLabel() != null)
+					WorkflowBinaryFile.writeString(outs, split.getLabel());
+			}
+		} else
+			throw new IOException("Binary matrix not supported for: " + dataBlock.getBlockName());
+	}
+
+	/**
+	 * read the matrix of a block, whose other parts have already been parsed
+	 */
+	public static void read(DataInputStream ins, DataBlock dataBlock) throws IOException {
+		if (dataBlock instanceof CharactersBlock charactersBlock) {
+			final var ntax = ins.readInt();
+			if (ntax != charactersBlock.getNtax())
+				throw new IOException("Characters matrix: expected ntax=" + charactersBlock.getNtax() + ", got: " + ntax);
+			final var matrix = charactersBlock.getMatrix();
+			for (var t = 0; t < ntax; t++) {
+				final var row = readChars(ins);
+				if (row.length != charactersBlock.getNchar())
+					throw new IOException("Characters matrix: expected nchar=" + charactersBlock.getNchar() + ", got: " + row.length);
+				matrix[t] = row;
+			}
+		} else if (dataBlock instanceof DistancesBlock distancesBlock) {
+			final var ntax = ins.readInt();
+			if (ntax != distancesBlock.getNtax())
+				throw new IOException("Distances matrix: expected ntax=" + distancesBlock.getNtax() + ", got: " + ntax);
+			final var matrix = distancesBlock.getDistances();
+			for (var t = 0; t < ntax; t++)
+				matrix[t] = readDoubles(ins, ntax);
+			if (ins.readBoolean()) {
+				final var variances = new double[ntax][];
+				for (var t = 0; t < ntax; t++)
+					variances[t] = readDoubles(ins, ntax);
+				distancesBlock.setVariances(variances);
+			}
+		} else if (dataBlock instanceof SplitsBlock splitsBlock) {
+			final var nsplits = ins.readInt();
+			final var weights = readDoubles(ins, nsplits);
+			final var confidences = readDoubles(ins, nsplits);
+			final var splits = splitsBlock.getSplits();
+			splits.ensureCapacity(nsplits);
+			for (var s = 0; s < nsplits; s++) {
+				final var a = BitSet.valueOf(readLongs(ins));
+				final var b = BitSet.valueOf(readLongs(ins));
+				splits.add(new ASplit(a, b, weights[s], confidences[s]));
+			}
+			for (var s = 0; s < nsplits; s++) {
+				if (ins.readBoolean())
+					splits.get(s).setLabel(WorkflowBinaryFile.readString(ins));
+			}
+		} else
+			throw new IOException("Binary matrix not supported for: " + dataBlock.getBlockName());
+	}
+
+	private static void writeDoubles(DataOutputStream outs, double[] values) throws IOException {
+		final var buffer = ByteBuffer.allocate(8 * values.length);
+		buffer.asDoubleBuffer().put(values);
+		outs.writeInt(values.length);
+		outs.write(buffer.array());
+	}
+
+	private static double[] readDoubles(DataInputStream ins, int expectedLength) throws IOException {
+		final var length = ins.readInt();
+		if (length != expectedLength)
+			throw new IOException("Array: expected length=" + expectedLength + ", got: " + length);
+		final var bytes = new byte[8 * length];
+		ins.readFully(bytes);
+		final var values = new double[length];
+		ByteBuffer.wrap(bytes).asDoubleBuffer().get(values);
+		return values;
+	}
+
+	private static void writeLongs(DataOutputStream outs, long[] values) throws IOException {
+		outs.writeInt(values.length);
+		for (var value : values)
+			outs.writeLong(value);
+	}
+
+	private static long[] readLongs(DataInputStream ins) throws IOException {
+		final var values = new long[ins.readInt()];
+		for (var i = 0; i < values.length; i++)
+			values[i] = ins.readLong();
+		return values;
+	}
+
+	private static void writeChars(DataOutputStream outs, char[] values) throws IOException {
+		final var buffer = ByteBuffer.allocate(2 * values.length);
+		buffer.asCharBuffer().put(values);
+		outs.writeInt(values.length);
+		outs.write(buffer.array());
+	}
+
+	private static char[] readChars(DataInputStream ins) throws IOException {
+		final var length = ins.readInt();
+		final var bytes = new byte[2 * length];
+		ins.readFully(bytes);
+		final var values = new char[length];
+		ByteBuffer.wrap(bytes).asCharBuffer().get(values);
+		return values;
+	}
+}
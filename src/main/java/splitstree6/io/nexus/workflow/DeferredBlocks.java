@@ -0,0 +1,77 @@
+/*
+ * DeferredBlocks.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.nexus.workflow;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.util.Basic;
+import splitstree6.workflow.DataBlock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * the data blocks of a workflow being opened whose content is only parsed when first needed, see DataBlock.materialize().
+ * Once the workflow has been set up, all blocks that are still deferred are loaded in file order in the background
+ */
+class DeferredBlocks {
+	private final ArrayList<DataBlock> blocks = new ArrayList<>();
+
+	/**
+	 * creates an empty placeholder for the named block that is filled by the given loader
+	 *
+	 * @return the placeholder, or null, if blocks of this type are always parsed immediately
+	 */
+	DataBlock add(String blockName, DataBlock.Loader loader) {
+		final var dataBlock = NexusDataBlockInput.createPlaceholder(blockName);
+		if (dataBlock != null) {
+			dataBlock.setLoader(loader);
+			blocks.add(dataBlock);
+		}
+		return dataBlock;
+	}
+
+	/**
+	 * loads all blocks that are still deferred on the program executor, in order, and then closes the source that they are read from
+	 *
+	 * @param source the source, or null
+	 */
+	void loadInBackground(Closeable source) {
+		ProgramExecutorService.getInstance().submit(() -> {
+			try {
+				for (var dataBlock : blocks) {
+					try {
+						dataBlock.materialize();
+					} catch (IOException ex) {
+						Basic.caught(ex);
+					}
+				}
+			} finally {
+				blocks.clear();
+				if (source != null) {
+					try {
+						source.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		});
+	}
+}
@@ -36,15 +36,23 @@ import java.io.IOException;
 public class NexusDataBlockInput {
 	private String title;
 	private Pair<String, String> link;
+	private boolean ignoreMatrix = false;
 
 	/**
 	 * parse a nexus datablock
 	 */
 	public DataBlock parse(NexusStreamParser np, TaxaBlock taxa) throws IOException {
+		return parse(np, taxa, null);
+	}
+
+	/**
+	 * parse a nexus datablock into the given target block, or into a new block, if the target is null
+	 */
+	public DataBlock parse(NexusStreamParser np, TaxaBlock taxa, DataBlock target) throws IOException {
 		try {
 			if (np.peekMatchBeginBlock(TaxaBlock.BLOCK_NAME)) {
 				final var input = new TaxaNexusInput();
-				final var dataBlock = new TaxaBlock();
+				final var dataBlock = (target != null ? (TaxaBlock) target : new TaxaBlock());
 				input.parse(np, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -53,21 +61,22 @@ public class NexusDataBlockInput {
 			}
             else if (np.peekMatchBeginBlock(TraitsBlock.BLOCK_NAME)) {
 				final var input = new TraitsNexusInput();
-				final var dataBlock = new TraitsBlock();
+				final var dataBlock = (target != null ? (TraitsBlock) target : new TraitsBlock());
 				input.parse(np, taxa, dataBlock);
 				title = input.getTitle();
 				link = input.getLink();
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(SetsBlock.BLOCK_NAME)) {
 				final var input = new SetsNexusInput();
-				final var dataBlock = new SetsBlock();
+				final var dataBlock = (target != null ? (SetsBlock) target : new SetsBlock());
 				input.parse(np, taxa, dataBlock);
 				title = input.getTitle();
 				link = input.getLink();
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(CharactersBlock.BLOCK_NAME)) {
 				final var input = new CharactersNexusInput();
-				final var dataBlock = new CharactersBlock();
+				input.setIgnoreMatrix(ignoreMatrix);
+				final var dataBlock = (target != null ? (CharactersBlock) target : new CharactersBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -75,14 +84,15 @@ public class NexusDataBlockInput {
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(GenomesBlock.BLOCK_NAME)) {
 				final var input = new GenomesNexusInput();
-				final var dataBlock = new GenomesBlock();
+				final var dataBlock = (target != null ? (GenomesBlock) target : new GenomesBlock());
 				input.parse(np, taxa, dataBlock);
 				title = input.getTitle();
 				link = input.getLink();
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(DistancesBlock.BLOCK_NAME)) {
 				final var input = new DistancesNexusInput();
-				final var dataBlock = new DistancesBlock();
+				input.setIgnoreMatrix(ignoreMatrix);
+				final var dataBlock = (target != null ? (DistancesBlock) target : new DistancesBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -90,7 +100,8 @@ public class NexusDataBlockInput {
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(SplitsBlock.BLOCK_NAME)) {
 				final var input = new SplitsNexusInput();
-				final var dataBlock = new SplitsBlock();
+				input.setIgnoreMatrix(ignoreMatrix);
+				final var dataBlock = (target != null ? (SplitsBlock) target : new SplitsBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -98,7 +109,7 @@ public class NexusDataBlockInput {
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(TreesBlock.BLOCK_NAME)) {
 				final var input = new TreesNexusInput();
-				final var dataBlock = new TreesBlock();
+				final var dataBlock = (target != null ? (TreesBlock) target : new TreesBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -106,7 +117,7 @@ public class NexusDataBlockInput {
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(NetworkBlock.BLOCK_NAME)) {
 				final var input = new NetworkNexusInput();
-				final var dataBlock = new NetworkBlock();
+				final var dataBlock = (target != null ? (NetworkBlock) target : new NetworkBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -114,7 +125,7 @@ public class NexusDataBlockInput {
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(ViewBlock.BLOCK_NAME)) {
 				final var input = new ViewNexusInput();
-				final var dataBlock = new ViewBlock();
+				final var dataBlock = (target != null ? (ViewBlock) target : new ViewBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -122,7 +133,7 @@ public class NexusDataBlockInput {
 				return dataBlock;
 			} else if (np.peekMatchBeginBlock(ReportBlock.BLOCK_NAME)) {
 				final var input = new ReportNexusInput();
-				final var dataBlock = new ReportBlock();
+				final var dataBlock = (target != null ? (ReportBlock) target : new ReportBlock());
 				input.parse(np, taxa, dataBlock);
 				dataBlock.updateShortDescription();
 				title = input.getTitle();
@@ -136,6 +147,41 @@ public class NexusDataBlockInput {
 		throw new IOExceptionWithLineNumber("Unknown block type", np.lineno());
 	}
 
+	/**
+	 * parses only the begin statement, title and link of a block, used to set up a placeholder for it
+	 */
+	public void parseTitleAndLink(NexusStreamParser np, String blockName) throws IOException {
+		np.matchBeginBlock(blockName);
+		final var input = new NexusIOBase();
+		input.parseTitleAndLink(np);
+		title = input.getTitle();
+		link = input.getLink();
+	}
+
+	/**
+	 * creates an empty placeholder for a block whose parsing can be deferred when opening a workflow
+	 *
+	 * @return new empty block, or null, if blocks of the given name are always parsed immediately (taxa, traits, sets and views)
+	 */
+	public static DataBlock createPlaceholder(String blockName) {
+		if (blockName.equalsIgnoreCase(CharactersBlock.BLOCK_NAME))
+			return new CharactersBlock();
+		else if (blockName.equalsIgnoreCase(GenomesBlock.BLOCK_NAME))
+			return new GenomesBlock();
+		else if (blockName.equalsIgnoreCase(DistancesBlock.BLOCK_NAME))
+			return new DistancesBlock();
+		else if (blockName.equalsIgnoreCase(SplitsBlock.BLOCK_NAME))
+			return new SplitsBlock();
+		else if (blockName.equalsIgnoreCase(TreesBlock.BLOCK_NAME))
+			return new TreesBlock();
+		else if (blockName.equalsIgnoreCase(NetworkBlock.BLOCK_NAME))
+			return new NetworkBlock();
+		else if (blockName.equalsIgnoreCase(ReportBlock.BLOCK_NAME))
+			return new ReportBlock();
+		else
+			return null;
+	}
+
 	public String getTitle() {
 		return title;
 	}
@@ -144,6 +190,13 @@ public class NexusDataBlockInput {
 		return link;
 	}
 
+	/**
+	 * if set, the matrix of a characters, distances or splits block is not parsed, used when the matrix is stored separately
+	 */
+	public void setIgnoreMatrix(boolean ignoreMatrix) {
+		this.ignoreMatrix = ignoreMatrix;
+	}
+
 	public TaxaBlock parse(NexusStreamParser np) throws IOException {
 		var taxaBlock = new TaxaBlock();
 		var input = new TaxaNexusInput();
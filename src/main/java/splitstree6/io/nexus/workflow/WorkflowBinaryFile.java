@@ -0,0 +1,354 @@
+/*
+ * WorkflowBinaryFile.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.nexus.workflow;
+
+import splitstree6.workflow.DataBlock;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * binary container for saved workflows, a faster alternative to the nexus format.
+ * <p>
+ * The file consists of a header followed by one section per block, in the same order as in the nexus format.
+ * Each section has a small uncompressed header (block name, title, whether it has a binary matrix, payload length),
+ * followed by a compressed payload that contains the block in nexus format and, for characters, distances and splits blocks,
+ * the matrix as length-prefixed primitive arrays. Because the payload length is known, the sections can be indexed
+ * without decompressing or parsing them, and then loaded individually.
+ * <p>
+ * The compressed payload is written and read as a sequence of length-prefixed chunks, terminated by an empty chunk,
+ * so that neither writing nor reading a section requires it to be held in memory. Strings are stored as the length
+ * of their UTF-8 encoding, followed by the bytes.
+ */
+public class WorkflowBinaryFile {
+	public static final String FILE_SUFFIX = ".stree6b";
+
+	private static final int MAGIC = 0x53543642; // ST6B
+	private static final int VERSION = 2;
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * a section of the file
+	 *
+	 * @param blockName name of block, e.g. DISTANCES or ALGORITHM
+	 * @param title     title of block, or empty string
+	 * @param hasMatrix is the matrix of the block stored in binary
+	 * @param offset    file offset of compressed payload
+	 * @param length    length of compressed payload, including chunk headers
+	 */
+	public record Section(String blockName, String title, boolean hasMatrix, long offset, long length) {
+	}
+
+	/**
+	 * the payload of a section. Closing it releases the inflater of the matrix input
+	 *
+	 * @param nexus       the block in nexus format, without matrix, if the matrix is stored in binary
+	 * @param matrixInput input stream positioned at the start of the binary matrix
+	 */
+	public record Payload(Section section, String nexus, DataInputStream matrixInput) implements Closeable {
+		@Override
+		public void close() throws IOException {
+			matrixInput.close();
+		}
+	}
+
+	/**
+	 * is this a binary workflow file?
+	 */
+	public static boolean isApplicable(String fileName) {
+		try (var ins = new DataInputStream(new FileInputStream(fileName))) {
+			return ins.readInt() == MAGIC;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * writes a binary workflow file, one section at a time
+	 */
+	public static class Writer implements Closeable {
+		private final FileOutputStream fileOuts;
+		private final DataOutputStream outs;
+		private int count = 0;
+
+		public Writer(String fileName) throws IOException {
+			fileOuts = new FileOutputStream(fileName);
+			outs = new DataOutputStream(new BufferedOutputStream(fileOuts, 1 << 16));
+			outs.writeInt(MAGIC);
+			outs.writeInt(VERSION);
+		}
+
+		/**
+		 * write a section
+		 *
+		 * @param nexus       the block in nexus format
+		 * @param matrixBlock the block whose matrix is to be written in binary, or null
+		 */
+		public void write(String blockName, String title, String nexus, DataBlock matrixBlock) throws IOException {
+			writeString(outs, blockName);
+			writeString(outs, title == null ? "" : title);
+			outs.writeBoolean(matrixBlock != null);
+			outs.flush();
+			final var lengthPosition = fileOuts.getChannel().position();
+			outs.writeLong(0); // set below, once known
+
+			final var chunks = new ChunkOutputStream(outs);
+			final var deflater = new Deflater(Deflater.BEST_SPEED);
+			try (var payload = new DataOutputStream(new DeflaterOutputStream(chunks, deflater, 1 << 16))) {
+				final var text = nexus.getBytes(StandardCharsets.UTF_8);
+				payload.writeInt(text.length);
+				payload.write(text);
+				if (matrixBlock != null)
+					BinaryMatrixIO.write(payload, matrixBlock);
+			} finally {
+				deflater.end();
+			}
+			outs.flush();
+			fileOuts.getChannel().write(ByteBuffer.allocate(8).putLong(0, chunks.getLength()), lengthPosition);
+			count++;
+		}
+
+		/**
+		 * number of sections written
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			outs.close();
+		}
+	}
+
+	/**
+	 * reads a binary workflow file. The constructor only reads the section headers, payloads are read on demand
+	 */
+	public static class Reader implements Closeable {
+		private final RandomAccessFile file;
+		private final List<Section> sections = new ArrayList<>();
+
+		public Reader(String fileName) throws IOException {
+			file = new RandomAccessFile(fileName, "r");
+			try {
+				if (file.readInt() != MAGIC)
+					throw new IOException("Not a binary workflow file: " + fileName);
+				final var version = file.readInt();
+				if (version != VERSION)
+					throw new IOException("Binary workflow file has unsupported version: " + version);
+				while (file.getFilePointer() < file.length()) {
+					final var blockName = readString(file);
+					final var title = readString(file);
+					final var hasMatrix = file.readBoolean();
+					final var length = file.readLong();
+					final var offset = file.getFilePointer();
+					if (length < 0 || offset + length > file.length())
+						throw new IOException("Binary workflow file truncated: " + fileName);
+					sections.add(new Section(blockName, title, hasMatrix, offset, length));
+					file.seek(offset + length);
+				}
+			} catch (IOException ex) {
+				file.close();
+				throw ex;
+			}
+		}
+
+		public List<Section> getSections() {
+			return Collections.unmodifiableList(sections);
+		}
+
+		/**
+		 * read the payload of a section. The compressed payload is streamed from the file one chunk at a time. Thread safe
+		 */
+		public Payload read(Section section) throws IOException {
+			final var inflater = new Inflater();
+			final var ins = new DataInputStream(new InflaterInputStream(new ChunkInputStream(file, section), inflater, 1 << 16) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			});
+			try {
+				final var text = new byte[ins.readInt()];
+				ins.readFully(text);
+				return new Payload(section, new String(text, StandardCharsets.UTF_8), ins);
+			} catch (IOException ex) {
+				ins.close();
+				throw ex;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	/**
+	 * writes a string as the length of its UTF-8 encoding, followed by the bytes
+	 */
+	static void writeString(DataOutput outs, String string) throws IOException {
+		final var bytes = string.getBytes(StandardCharsets.UTF_8);
+		outs.writeInt(bytes.length);
+		outs.write(bytes);
+	}
+
+	/**
+	 * reads a string written by writeString
+	 */
+	static String readString(DataInput ins) throws IOException {
+		final var length = ins.readInt();
+		if (length < 0)
+			throw new IOException("Invalid string length: " + length);
+		final var bytes = new byte[length];
+		ins.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * splits the bytes written to it into length-prefixed chunks. Closing writes the last chunk and
+	 * the empty terminating chunk, but does not close the underlying stream
+	 */
+	private static class ChunkOutputStream extends OutputStream {
+		private final DataOutputStream outs;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int size = 0;
+		private long length = 0;
+		private boolean closed = false;
+
+		ChunkOutputStream(DataOutputStream outs) {
+			this.outs = outs;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (size == buffer.length)
+				flushChunk();
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (size == buffer.length)
+					flushChunk();
+				final var count = Math.min(len, buffer.length - size);
+				System.arraycopy(b, off, buffer, size, count);
+				size += count;
+				off += count;
+				len -= count;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (size > 0) {
+				outs.writeInt(size);
+				outs.write(buffer, 0, size);
+				length += 4 + size;
+				size = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				flushChunk();
+				outs.writeInt(0);
+				length += 4;
+				closed = true;
+			}
+		}
+
+		/**
+		 * number of bytes written to the underlying stream, including chunk headers
+		 */
+		long getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * reads the chunks of a section from a file that may be shared by several threads
+	 */
+	private static class ChunkInputStream extends InputStream {
+		private final RandomAccessFile file;
+		private final long end;
+		private long position;
+		private byte[] buffer = new byte[0];
+		private int size = 0;
+		private int next = 0;
+		private boolean done = false;
+
+		ChunkInputStream(RandomAccessFile file, Section section) {
+			this.file = file;
+			this.position = section.offset();
+			this.end = section.offset() + section.length();
+		}
+
+		private boolean nextChunk() throws IOException {
+			while (!done && next == size) {
+				if (position + 4 > end)
+					throw new IOException("Binary workflow section truncated");
+				synchronized (file) {
+					file.seek(position);
+					size = file.readInt();
+					if (size < 0 || position + 4 + size > end)
+						throw new IOException("Binary workflow section has invalid chunk length: " + size);
+					if (size > buffer.length)
+						buffer = new byte[size];
+					file.readFully(buffer, 0, size);
+				}
+				position += 4 + size;
+				next = 0;
+				done = (size == 0);
+			}
+			return next < size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return nextChunk() ? buffer[next++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextChunk())
+				return -1;
+			final var count = Math.min(len, size - next);
+			System.arraycopy(buffer, next, b, off, count);
+			next += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * WorkflowBinaryInput.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.nexus.workflow;
+
+import jloda.util.Basic;
+import jloda.util.Pair;
+import jloda.util.parse.NexusStreamParser;
+import jloda.util.progress.ProgressListener;
+import splitstree6.algorithms.taxa.taxa2taxa.TaxaFilter;
+import splitstree6.data.*;
+import splitstree6.io.nexus.AlgorithmNexusInput;
+import splitstree6.io.nexus.SplitsTree6NexusInput;
+import splitstree6.io.nexus.TaxaNexusInput;
+import splitstree6.workflow.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+
+/**
+ * reads a workflow in binary format, see WorkflowBinaryFile
+ */
+public class WorkflowBinaryInput {
+	/**
+	 * input a work flow from a binary file. Only the taxa, the input and working data, the algorithms and the views are parsed
+	 * immediately. All other data blocks are set up as placeholders that are read from the file when first needed, or else in
+	 * the background. The file is kept open until all of them have been loaded
+	 */
+	public static void input(ProgressListener progress, Workflow workflow, String fileName) throws IOException {
+		final var reader = new WorkflowBinaryFile.Reader(fileName);
+		try {
+			final var sections = new Sections(reader, progress);
+
+			final var splitsTree6Block = new SplitsTree6Block();
+			(new SplitsTree6NexusInput()).parse(sections.nextParser(SplitsTree6Block.BLOCK_NAME), splitsTree6Block);
+
+			final var dataInput = new NexusDataBlockInput();
+
+			final var inputTaxaBlock = sections.nextTaxaBlock(dataInput);
+			sections.nextTraitsAndSets(inputTaxaBlock);
+
+			var taxaFilter = sections.nextAlgorithm(new AlgorithmNexusInput());
+			if (!(taxaFilter instanceof TaxaFilter))
+				throw new IOException("Expected TaxaFilter");
+			var workingTaxaBlock = sections.nextTaxaBlock(dataInput);
+			workingTaxaBlock.overwriteTaxa(inputTaxaBlock);
+			var workingTaxaTitle = dataInput.getTitle();
+			sections.nextTraitsAndSets(workingTaxaBlock);
+
+			var inputDataBlock = sections.nextDataBlock(inputTaxaBlock).dataBlock();
+			var dataTaxaFilter = sections.nextAlgorithm(new AlgorithmNexusInput());
+			if (!(dataTaxaFilter instanceof DataTaxaFilter))
+				throw new IOException("Expected DataTaxaFilter");
+			if (dataTaxaFilter.getFromClass() != inputDataBlock.getClass())
+				throw new IOException("Input data and DataTaxaFilter of incompatible types");
+			var workingData = sections.nextDataBlock(workingTaxaBlock);
+			var workingDataBlock = workingData.dataBlock();
+			var workingDataTitle = workingData.title();
+			if (dataTaxaFilter.getToClass() != workingDataBlock.getClass())
+				throw new IOException("Working data and DataTaxaFilter of incompatible types");
+
+			workflow.setupInputAndWorkingNodes(new SourceBlock(), inputTaxaBlock, (TaxaFilter) taxaFilter, workingTaxaBlock, inputDataBlock, (DataTaxaFilter) dataTaxaFilter, workingDataBlock);
+
+			final var titleNodeMap = new HashMap<String, DataNode>();
+			titleNodeMap.put(workingTaxaTitle, workflow.getWorkingTaxaNode());
+			titleNodeMap.put(workingDataTitle, workflow.getWorkingDataNode());
+
+			final var title2algorithmAndLink = new HashMap<String, Pair<Algorithm, String>>();
+
+			// the remaining data blocks only depend on the working taxa, a copy of which is used when they are loaded later
+			final var deferred = new DeferredBlocks();
+			final var deferredTaxaBlock = new TaxaBlock(workingTaxaBlock);
+
+			while (sections.hasNext()) {
+				if (sections.peekBlockName().equalsIgnoreCase(Algorithm.BLOCK_NAME)) {
+					final var algorithmInput = new AlgorithmNexusInput();
+					final var algorithm = sections.nextAlgorithm(algorithmInput);
+					title2algorithmAndLink.put(algorithmInput.getTitle(), new Pair<>(algorithm, algorithmInput.getLink().getSecond()));
+				} else {
+					final var newData = sections.nextDeferredDataBlock(workingTaxaBlock, deferred, deferredTaxaBlock);
+					final var newDataNode = workflow.newDataNode(newData.dataBlock());
+					if (newData.link() != null) {
+						final var algorithmAndLink = title2algorithmAndLink.get(newData.link().getSecond());
+						final var algorithm = algorithmAndLink.getFirst();
+						final var parentDataNode = titleNodeMap.get(algorithmAndLink.getSecond());
+						workflow.newAlgorithmNode(algorithm, workflow.getWorkingTaxaNode(), parentDataNode, newDataNode);
+					}
+					titleNodeMap.put(newData.title(), newDataNode);
+				}
+			}
+			deferred.loadInBackground(reader);
+		} catch (Exception ex) {
+			reader.close();
+			Basic.caught(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * a parsed data block, together with its title and link
+	 */
+	private record ParsedDataBlock(DataBlock dataBlock, String title, Pair<String, String> link) {
+	}
+
+	/**
+	 * iterates over the sections of a file, in order
+	 */
+	private static class Sections {
+		private final WorkflowBinaryFile.Reader reader;
+		private final ProgressListener progress;
+		private int next = 0;
+
+		Sections(WorkflowBinaryFile.Reader reader, ProgressListener progress) {
+			this.reader = reader;
+			this.progress = progress;
+			progress.setMaximum(reader.getSections().size());
+			progress.setProgress(0);
+		}
+
+		boolean hasNext() {
+			return next < reader.getSections().size();
+		}
+
+		String peekBlockName() {
+			return hasNext() ? reader.getSections().get(next).blockName() : "";
+		}
+
+		/**
+		 * reads the next section
+		 *
+		 * @param blockName expected block name, or null
+		 */
+		private WorkflowBinaryFile.Payload nextPayload(String blockName) throws IOException {
+			if (!hasNext())
+				throw new IOException("Unexpected end of file" + (blockName != null ? ", expected: " + blockName : ""));
+			final var section = reader.getSections().get(next++);
+			if (blockName != null && !section.blockName().equalsIgnoreCase(blockName))
+				throw new IOException("Expected " + blockName + " block, got: " + section.blockName());
+			progress.setProgress(next);
+			return reader.read(section);
+		}
+
+		/**
+		 * reads the next section and returns a parser for its nexus text
+		 *
+		 * @param blockName expected block name, or null
+		 */
+		NexusStreamParser nextParser(String blockName) throws IOException {
+			try (var payload = nextPayload(blockName)) {
+				return createParser(payload);
+			}
+		}
+
+		TaxaBlock nextTaxaBlock(NexusDataBlockInput dataInput) throws IOException {
+			final var np = nextParser(TaxaBlock.BLOCK_NAME);
+			final var taxaBlock = dataInput.parse(np);
+			TaxaNexusInput.captureComments(np, taxaBlock);
+			return taxaBlock;
+		}
+
+		void nextTraitsAndSets(TaxaBlock taxaBlock) throws IOException {
+			if (peekBlockName().equalsIgnoreCase(TraitsBlock.BLOCK_NAME))
+				taxaBlock.setTraitsBlock((TraitsBlock) nextDataBlock(taxaBlock).dataBlock());
+			if (peekBlockName().equalsIgnoreCase(SetsBlock.BLOCK_NAME))
+				taxaBlock.setSetsBlock((SetsBlock) nextDataBlock(taxaBlock).dataBlock());
+		}
+
+		ParsedDataBlock nextDataBlock(TaxaBlock taxaBlock) throws IOException {
+			return parseDataBlock(nextPayload(null), taxaBlock);
+		}
+
+		/**
+		 * gets the next data block. If parsing of its type can be deferred, only its title and link are parsed now and an
+		 * empty placeholder is returned, which is filled from the section when first needed
+		 *
+		 * @param taxaBlock         taxa used, if the block is parsed now
+		 * @param deferred          the deferred blocks
+		 * @param deferredTaxaBlock taxa of which a copy is used, when a deferred block is loaded
+		 */
+		ParsedDataBlock nextDeferredDataBlock(TaxaBlock taxaBlock, DeferredBlocks deferred, TaxaBlock deferredTaxaBlock) throws IOException {
+			final var section = (hasNext() ? reader.getSections().get(next) : null);
+			final var placeholder = (section != null ? deferred.add(section.blockName(), target -> parseDataBlock(reader.read(section), new TaxaBlock(deferredTaxaBlock), target)) : null);
+			if (placeholder == null)
+				return nextDataBlock(taxaBlock);
+			try (var payload = nextPayload(null)) {
+				final var dataInput = new NexusDataBlockInput();
+				dataInput.parseTitleAndLink(createParser(payload), section.blockName());
+				return new ParsedDataBlock(placeholder, dataInput.getTitle(), dataInput.getLink());
+			}
+		}
+
+		Algorithm nextAlgorithm(AlgorithmNexusInput algorithmInput) throws IOException {
+			return algorithmInput.parse(nextParser(Algorithm.BLOCK_NAME));
+		}
+
+		private static ParsedDataBlock parseDataBlock(WorkflowBinaryFile.Payload payload, TaxaBlock taxaBlock) throws IOException {
+			return parseDataBlock(payload, taxaBlock, null);
+		}
+
+		/**
+		 * parses a data section into the given target block, or into a new block, if target is null
+		 */
+		private static ParsedDataBlock parseDataBlock(WorkflowBinaryFile.Payload payload, TaxaBlock taxaBlock, DataBlock target) throws IOException {
+			try (payload) {
+				final var dataInput = new NexusDataBlockInput();
+				dataInput.setIgnoreMatrix(payload.section().hasMatrix());
+				final var dataBlock = dataInput.parse(createParser(payload), taxaBlock, target);
+				if (payload.section().hasMatrix()) {
+					BinaryMatrixIO.read(payload.matrixInput(), dataBlock);
+					dataBlock.updateShortDescription();
+				}
+				return new ParsedDataBlock(dataBlock, dataInput.getTitle(), dataInput.getLink());
+			}
+		}
+
+		private static NexusStreamParser createParser(WorkflowBinaryFile.Payload payload) {
+			final var np = new NexusStreamParser(new StringReader(payload.nexus()));
+			np.setCollectAllComments(false);
+			np.setCollectAllCommentsWithExclamationMark(true);
+			return np;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * WorkflowBinaryOutput.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.nexus.workflow;
+
+import jloda.fx.util.ProgramProperties;
+import jloda.fx.window.NotificationManager;
+import jloda.fx.workflow.WorkflowNode;
+import jloda.util.Pair;
+import splitstree6.data.SplitsTree6Block;
+import splitstree6.data.TaxaBlock;
+import splitstree6.io.nexus.NexusExporter;
+import splitstree6.io.nexus.SplitsTree6NexusOutput;
+import splitstree6.io.nexus.TaxaNexusOutput;
+import splitstree6.workflow.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedList;
+
+/**
+ * write workflow in binary format, see WorkflowBinaryFile
+ */
+public class WorkflowBinaryOutput {
+	/**
+	 * save the workflow in binary format
+	 */
+	public void save(Workflow workflow, final String fileName, boolean asWorkflowOnly) throws IOException {
+		var file = new File(fileName);
+		if (file.getParentFile() != null && file.getParentFile().isDirectory())
+			ProgramProperties.put("SaveDir", file.getParent());
+
+		workflow.materializeDataBlocks(); // before the file is truncated, it might be the one that deferred blocks are read from
+		try (var writer = new WorkflowBinaryFile.Writer(fileName)) {
+			final var count = save(workflow, writer, asWorkflowOnly);
+			NotificationManager.showInformation("Saved " + count + " blocks to: " + fileName);
+		}
+	}
+
+	/**
+	 * write a workflow, using the same blocks and order as WorkflowNexusOutput
+	 */
+	public int save(Workflow workflow, WorkflowBinaryFile.Writer writer, boolean asWorkflowOnly) throws IOException {
+		final var splitsTree6Block = new SplitsTree6Block();
+		splitsTree6Block.setOptionNumberOfDataNodes(workflow.getNumberOfDataNodes());
+		splitsTree6Block.setOptionNumberOfAlgorithms(workflow.getNumberOfAlgorithmNodes());
+
+		final var nexusExporter = new NexusExporter();
+		nexusExporter.setAsWorkflowOnly(asWorkflowOnly);
+		nexusExporter.setPrependTaxa(false);
+
+		{
+			final var w = new StringWriter();
+			(new SplitsTree6NexusOutput()).write(w, splitsTree6Block);
+			writer.write(SplitsTree6Block.BLOCK_NAME, "", w.toString(), null);
+		}
+
+		{
+			final var w = new StringWriter();
+			if (workflow.getInputTaxaBlock() != null)
+				TaxaNexusOutput.writeComments(w, workflow.getInputTaxaBlock());
+			setupExporter(workflow.getInputTaxaNode(), nexusExporter);
+			nexusExporter.export(w, workflow.getInputTaxaBlock());
+			writer.write(TaxaBlock.BLOCK_NAME, nexusExporter.getTitle(), w.toString(), null);
+		}
+		writeTraitsAndSets(writer, nexusExporter, workflow.getInputTaxaBlock(), "Input");
+
+		setupExporter(workflow.getInputTaxaFilterNode(), nexusExporter);
+		writeAlgorithm(writer, nexusExporter, workflow.getInputTaxaFilterNode().getAlgorithm());
+
+		{
+			final var w = new StringWriter();
+			setupExporter(workflow.getWorkingTaxaNode(), nexusExporter);
+			nexusExporter.export(w, workflow.getWorkingTaxaBlock());
+			writer.write(TaxaBlock.BLOCK_NAME, nexusExporter.getTitle(), w.toString(), null);
+		}
+		writeTraitsAndSets(writer, nexusExporter, workflow.getWorkingTaxaBlock(), "Working");
+
+		setupExporter(workflow.getInputDataNode(), nexusExporter);
+		writeDataBlock(writer, nexusExporter, workflow.getInputTaxaBlock(), workflow.getInputDataNode().getDataBlock(), asWorkflowOnly);
+
+		setupExporter(workflow.getInputDataFilterNode(), nexusExporter);
+		writeAlgorithm(writer, nexusExporter, workflow.getInputDataFilterNode().getAlgorithm());
+
+		final var queue = new LinkedList<WorkflowNode>();
+		queue.add(workflow.getWorkingDataNode());
+		while (queue.size() > 0) {
+			final WorkflowNode node = queue.poll();
+			if (node instanceof final DataNode dataNode) {
+				setupExporter(dataNode, nexusExporter);
+				writeDataBlock(writer, nexusExporter, workflow.getWorkingTaxaBlock(), dataNode.getDataBlock(), asWorkflowOnly);
+			} else {
+				final var algorithm = (AlgorithmNode) node;
+				setupExporter(algorithm, nexusExporter);
+				writeAlgorithm(writer, nexusExporter, algorithm.getAlgorithm());
+			}
+			queue.addAll(node.getChildren());
+		}
+		return splitsTree6Block.size();
+	}
+
+	private static void writeTraitsAndSets(WorkflowBinaryFile.Writer writer, NexusExporter nexusExporter, TaxaBlock taxaBlock, String prefix) throws IOException {
+		if (taxaBlock.getTraitsBlock() != null && taxaBlock.getTraitsBlock().getNTraits() > 0) {
+			nexusExporter.setTitle(prefix + " Traits");
+			writeDataBlock(writer, nexusExporter, taxaBlock, taxaBlock.getTraitsBlock(), false);
+		}
+		if (taxaBlock.getSetsBlock() != null && taxaBlock.getSetsBlock().size() > 0) {
+			nexusExporter.setTitle(prefix + " Sets");
+			writeDataBlock(writer, nexusExporter, taxaBlock, taxaBlock.getSetsBlock(), false);
+		}
+	}
+
+	private static void writeDataBlock(WorkflowBinaryFile.Writer writer, NexusExporter nexusExporter, TaxaBlock taxaBlock, DataBlock dataBlock, boolean asWorkflowOnly) throws IOException {
+		final var binaryMatrix = !asWorkflowOnly && BinaryMatrixIO.isSupported(dataBlock);
+		final var w = new StringWriter();
+		nexusExporter.setIgnoreMatrix(binaryMatrix);
+		try {
+			nexusExporter.export(w, taxaBlock, dataBlock);
+		} finally {
+			nexusExporter.setIgnoreMatrix(false);
+		}
+		writer.write(dataBlock.getBlockName(), nexusExporter.getTitle(), w.toString(), binaryMatrix ? dataBlock : null);
+	}
+
+	private static void writeAlgorithm(WorkflowBinaryFile.Writer writer, NexusExporter nexusExporter, Algorithm algorithm) throws IOException {
+		final var w = new StringWriter();
+		nexusExporter.export(w, algorithm);
+		writer.write(Algorithm.BLOCK_NAME, nexusExporter.getTitle(), w.toString(), null);
+	}
+
+	private static void setupExporter(DataNode dataNode, NexusExporter nexusExporter) {
+		nexusExporter.setTitle(dataNode.getTitle());
+		if (dataNode.getPreferredParent() != null)
+			nexusExporter.setLink(new Pair<>(Algorithm.BLOCK_NAME, dataNode.getPreferredParent().getTitle()));
+	}
+
+	private static void setupExporter(AlgorithmNode algorithmNode, NexusExporter nexusExporter) {
+		nexusExporter.setTitle(algorithmNode.getTitle());
+		if (algorithmNode.getPreferredParent() != null)
+			nexusExporter.setLink(new Pair<>(algorithmNode.getPreferredParent().getDataBlock().getBlockName(), algorithmNode.getPreferredParent().getTitle()));
+	}
+}
@@ -19,6 +19,9 @@
 
 package splitstree6.io.nexus.workflow;
 
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import jloda.fx.util.AService;
 import jloda.fx.window.NotificationManager;
 import jloda.util.Basic;
@@ -28,10 +31,7 @@ import jloda.util.parse.NexusStreamParser;
 import jloda.util.progress.ProgressListener;
 import jloda.util.progress.ProgressPercentage;
 import splitstree6.algorithms.taxa.taxa2taxa.TaxaFilter;
-import splitstree6.data.SourceBlock;
-import splitstree6.data.SplitsTree6Block;
-import splitstree6.data.TraitsBlock;
-import splitstree6.data.ViewBlock;
+import splitstree6.data.*;
 import splitstree6.io.nexus.AlgorithmNexusInput;
 import splitstree6.io.nexus.SplitsTree6NexusInput;
 import splitstree6.io.nexus.TaxaNexusInput;
@@ -42,7 +42,11 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -79,8 +83,12 @@ public class WorkflowNexusInput {
 			var service = new AService<Workflow>(mainWindow.getController().getBottomFlowPane());
 			service.setCallable(() -> {
 				var inputWorkFlow = new Workflow(mainWindow);
-				try (var reader = new BufferedReader(new FileReader(fileName))) {
-					input(service.getProgressListener(), inputWorkFlow, reader);
+				if (WorkflowBinaryFile.isApplicable(fileName))
+					WorkflowBinaryInput.input(service.getProgressListener(), inputWorkFlow, fileName);
+				else {
+					try (var reader = new BufferedReader(new FileReader(fileName))) {
+						input(service.getProgressListener(), inputWorkFlow, reader);
+					}
 				}
 				return inputWorkFlow;
 			});
@@ -92,11 +100,7 @@ public class WorkflowNexusInput {
 				workflow.ensureAlignmentView();
 
 				if (!isWorkflowFile(fileName)) {
-					for (var node : workflow.algorithmNodes()) {
-						if (((AlgorithmNode) node).getAlgorithm().getToClass() == ViewBlock.class) {
-							node.restart();
-						}
-					}
+					restartViews(workflow);
 					if (runOnSuccess != null)
 						runOnSuccess.run();
 				} else
@@ -113,18 +117,53 @@ public class WorkflowNexusInput {
 			service.setOnCancelled(e -> NotificationManager.showError("Open file : canceled"));
 			service.start();
 		}
-		if (fileName.endsWith(".stree6"))
+		if (fileName.endsWith(".stree6") || fileName.endsWith(WorkflowBinaryFile.FILE_SUFFIX))
 			mainWindow.setHasSplitsTree6File(true);
 		mainWindow.setFileName(fileName);
 	}
 
 	/**
-	 * input a work flow from a reader
+	 * restarts the views of a newly opened workflow. Only views whose tab is currently selected are computed immediately,
+	 * all others are computed when their tab is selected for the first time
+	 */
+	private static void restartViews(Workflow workflow) {
+		// view tabs are created in a later pulse, so wait for them:
+		Platform.runLater(() -> {
+			for (var node : workflow.algorithmNodes()) {
+				var algorithmNode = (AlgorithmNode) node;
+				if (algorithmNode.getAlgorithm().getToClass() == ViewBlock.class) {
+					if (algorithmNode.getPreferredChild() instanceof DataNode dataNode && dataNode.getDataBlock() instanceof ViewBlock viewBlock
+						&& viewBlock.getViewTab() != null && !viewBlock.getViewTab().isSelected()) {
+						var viewTab = viewBlock.getViewTab();
+						viewTab.selectedProperty().addListener(new ChangeListener<>() {
+							@Override
+							public void changed(ObservableValue<? extends Boolean> v, Boolean o, Boolean n) {
+								if (n) {
+									viewTab.selectedProperty().removeListener(this);
+									if (algorithmNode.getOwner() == workflow && viewBlock.getView() == null)
+										algorithmNode.restart();
+								}
+							}
+						});
+					} else
+						algorithmNode.restart();
+				}
+			}
+		});
+	}
+
+	/**
+	 * input a work flow from a reader. The text is first split into blocks. Only the taxa, the input and working data, the
+	 * algorithms and the views are parsed immediately. All other data blocks are set up as placeholders that are parsed from
+	 * their text when first needed, or else in the background
 	 */
 	public static void input(ProgressListener progress, Workflow workflow, Reader reader) throws IOException {
-		try (NexusStreamParser np = new NexusStreamParser(reader)) {
-			np.setCollectAllComments(false);
-			np.setCollectAllCommentsWithExclamationMark(true);
+		try {
+			final var text = new StringWriter();
+			reader.transferTo(text);
+			final var blocks = new Blocks(splitIntoBlocks(text.toString()), progress);
+
+			var np = blocks.nextParser();
 			np.matchIgnoreCase("#nexus");
 
 			final SplitsTree6Block splitsTree6Block = new SplitsTree6Block();
@@ -133,28 +172,32 @@ public class WorkflowNexusInput {
 
 			final NexusDataBlockInput dataInput = new NexusDataBlockInput();
 
+			np = blocks.nextParser();
 			var inputTaxaBlock = dataInput.parse(np);
 			TaxaNexusInput.captureComments(np, inputTaxaBlock);
 
-			if (np.peekMatchBeginBlock("traits")) {
-				inputTaxaBlock.setTraitsBlock((TraitsBlock) dataInput.parse(np, inputTaxaBlock));
+			if (blocks.peekBlockName().equalsIgnoreCase("traits")) {
+				inputTaxaBlock.setTraitsBlock((TraitsBlock) dataInput.parse(blocks.nextParser(), inputTaxaBlock));
 			}
 
+			np = blocks.nextParser();
 			var taxaFilter = (new AlgorithmNexusInput()).parse(np);
 			if (!(taxaFilter instanceof TaxaFilter))
 				throw new IOExceptionWithLineNumber("Expected TaxaFilter", np.lineno());
-			var workingTaxaBlock = dataInput.parse(np);
+			var workingTaxaBlock = dataInput.parse(blocks.nextParser());
 			workingTaxaBlock.overwriteTaxa(inputTaxaBlock);
-			if (np.peekMatchBeginBlock("traits")) {
-				workingTaxaBlock.setTraitsBlock((TraitsBlock) dataInput.parse(np, workingTaxaBlock));
+			if (blocks.peekBlockName().equalsIgnoreCase("traits")) {
+				workingTaxaBlock.setTraitsBlock((TraitsBlock) dataInput.parse(blocks.nextParser(), workingTaxaBlock));
 			}
 			var workingTaxaTitle = dataInput.getTitle();
-			var inputDataBlock = dataInput.parse(np, inputTaxaBlock);
+			var inputDataBlock = dataInput.parse(blocks.nextParser(), inputTaxaBlock);
+			np = blocks.nextParser();
 			var dataTaxaFilter = (new AlgorithmNexusInput()).parse(np);
 			if (!(dataTaxaFilter instanceof DataTaxaFilter))
 				throw new IOExceptionWithLineNumber("Expected DataTaxaFilter", np.lineno());
 			if (dataTaxaFilter.getFromClass() != inputDataBlock.getClass())
 				throw new IOExceptionWithLineNumber("Input data and DataTaxaFilter of incompatible types", np.lineno());
+			np = blocks.nextParser();
 			var workingDataBlock = dataInput.parse(np, workingTaxaBlock);
 			var workingDataTitle = dataInput.getTitle();
 			if (dataTaxaFilter.getToClass() != workingDataBlock.getClass())
@@ -168,18 +211,23 @@ public class WorkflowNexusInput {
 
 			final var title2algorithmAndLink = new HashMap<String, Pair<Algorithm, String>>();
 
-			while (np.peekMatchIgnoreCase("begin")) {
-				if (np.peekMatchBeginBlock("algorithm")) {
+			// the remaining data blocks only depend on the working taxa, a copy of which is used when they are loaded later
+			final var deferred = new DeferredBlocks();
+			final var deferredTaxaBlock = new TaxaBlock(workingTaxaBlock);
+
+			while (blocks.hasNext()) {
+				if (blocks.peekBlockName().equalsIgnoreCase("algorithm")) {
 					final AlgorithmNexusInput algorithmInput = new AlgorithmNexusInput();
-					final Algorithm algorithm = algorithmInput.parse(np);
+					final Algorithm algorithm = algorithmInput.parse(blocks.nextParser());
 					title2algorithmAndLink.put(algorithmInput.getTitle(), new Pair<>(algorithm, algorithmInput.getLink().getSecond()));
 				} else {
-					final DataBlock newDataBlock = dataInput.parse(np, workingTaxaBlock);
-					/*
-					if (dataBlock instanceof TraitsBlock)
-						taxaBlock.setTraitsBlock((TraitsBlock) dataBlock);
-
-					 */
+					final var blockName = blocks.peekBlockName();
+					final var blockText = blocks.nextText();
+					DataBlock newDataBlock = deferred.add(blockName, target -> (new NexusDataBlockInput()).parse(createParser(blockText), new TaxaBlock(deferredTaxaBlock), target));
+					if (newDataBlock != null)
+						dataInput.parseTitleAndLink(createParser(blockText), blockName);
+					else
+						newDataBlock = dataInput.parse(createParser(blockText), workingTaxaBlock);
 					final DataNode newDataNode = workflow.newDataNode(newDataBlock);
 					if (dataInput.getLink() != null) {
 						final var algorithmAndLink = title2algorithmAndLink.get(dataInput.getLink().getSecond());
@@ -189,14 +237,121 @@ public class WorkflowNexusInput {
 					}
 					titleNodeMap.put(dataInput.getTitle(), newDataNode);
 				}
-				progress.setProgress(np.lineno());
 			}
+			deferred.loadInBackground(null);
 		} catch (Exception ex) {
 			Basic.caught(ex);
 			throw ex;
 		}
 	}
 
+	/**
+	 * splits nexus text into blocks, given as pairs of block name and text. The text of a block starts directly after the
+	 * end of the previous block, so that comments between blocks are kept. Quoted text and comments are skipped
+	 */
+	static List<Pair<String, String>> splitIntoBlocks(String text) throws IOException {
+		final var blocks = new ArrayList<Pair<String, String>>();
+		var start = 0;
+		String blockName = null;
+		var commentDepth = 0;
+		var quoted = false;
+		for (var i = 0; i < text.length(); i++) {
+			final var ch = text.charAt(i);
+			if (quoted) {
+				if (ch == '\\')
+					i++; // escaped character
+				else if (ch == '\'')
+					quoted = false;
+			} else if (commentDepth > 0) {
+				if (ch == '[')
+					commentDepth++;
+				else if (ch == ']')
+					commentDepth--;
+			} else if (ch == '\'')
+				quoted = true;
+			else if (ch == '[')
+				commentDepth++;
+			else if (Character.isLetter(ch) && (i == 0 || !isWordCharacter(text.charAt(i - 1)))) {
+				var end = wordEnd(text, i);
+				if (blockName == null && end - i == 5 && text.regionMatches(true, i, "begin", 0, 5)) {
+					final var nameStart = skipWhitespace(text, end);
+					end = wordEnd(text, nameStart);
+					blockName = text.substring(nameStart, end);
+				} else if (blockName != null && (end - i == 3 && text.regionMatches(true, i, "end", 0, 3) || end - i == 8 && text.regionMatches(true, i, "endblock", 0, 8))) {
+					final var semicolon = skipWhitespace(text, end);
+					if (semicolon < text.length() && text.charAt(semicolon) == ';') {
+						end = semicolon + 1;
+						blocks.add(new Pair<>(blockName, text.substring(start, end)));
+						start = end;
+						blockName = null;
+					}
+				}
+				i = end - 1;
+			}
+		}
+		if (blockName != null)
+			throw new IOException("Unexpected end of file in block: " + blockName);
+		return blocks;
+	}
+
+	private static boolean isWordCharacter(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_';
+	}
+
+	private static int wordEnd(String text, int pos) {
+		while (pos < text.length() && isWordCharacter(text.charAt(pos)))
+			pos++;
+		return pos;
+	}
+
+	private static int skipWhitespace(String text, int pos) {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		return pos;
+	}
+
+	private static NexusStreamParser createParser(String text) {
+		final var np = new NexusStreamParser(new StringReader(text));
+		np.setCollectAllComments(false);
+		np.setCollectAllCommentsWithExclamationMark(true);
+		return np;
+	}
+
+	/**
+	 * iterates over the blocks of a text, in order. Parser line numbers are relative to the start of the current block text
+	 */
+	private static class Blocks {
+		private final List<Pair<String, String>> blocks;
+		private final ProgressListener progress;
+		private int next = 0;
+
+		Blocks(List<Pair<String, String>> blocks, ProgressListener progress) {
+			this.blocks = blocks;
+			this.progress = progress;
+			progress.setMaximum(blocks.size());
+			progress.setProgress(0);
+		}
+
+		boolean hasNext() {
+			return next < blocks.size();
+		}
+
+		String peekBlockName() {
+			return hasNext() ? blocks.get(next).getFirst() : "";
+		}
+
+		String nextText() throws IOException {
+			if (!hasNext())
+				throw new IOException("Unexpected end of file");
+			final var text = blocks.get(next++).getSecond();
+			progress.setProgress(next);
+			return text;
+		}
+
+		NexusStreamParser nextParser() throws IOException {
+			return createParser(nextText());
+		}
+	}
 
 	private static boolean isWorkflowFile(String inputFile) {
 		return inputFile.toLowerCase().endsWith(WORKFLOW_FILE_SUFFIX) || inputFile.toLowerCase().endsWith(WORKFLOW_FILE_SUFFIX + ".gz");
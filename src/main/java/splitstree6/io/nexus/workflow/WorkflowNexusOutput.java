@@ -55,6 +55,7 @@ public class WorkflowNexusOutput {
 			if (file.getParentFile() != null && file.getParentFile().isDirectory())
 				ProgramProperties.put("SaveDir", file.getParent());
 		}
+		workflow.materializeDataBlocks(); // before the file is truncated, it might be the one that deferred blocks are read from
 		try (var w = FileUtils.getOutputWriterPossiblyZIPorGZIP(fileName)) {
 			final var count = save(workflow, w, asWorkflowOnly);
 			NotificationManager.showInformation("Saved " + count + " blocks to: " + fileName);
@@ -25,6 +25,7 @@ import splitstree6.options.IOptionsCarrier;
 import splitstree6.workflow.DataBlock;
 import splitstree6.workflow.interfaces.HasFromClass;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
@@ -40,7 +41,7 @@ public abstract class DataBlockWriter<T extends DataBlock> extends ReaderWriterB
 	public abstract void write(Writer w, TaxaBlock taxaBlock, T dataBlock) throws IOException;
 
 	public void write(String fileName, TaxaBlock taxaBlock, T dataBlock) throws IOException {
-		try (var w = new OutputStreamWriter(FileUtils.getOutputStreamPossiblyZIPorGZIP(fileName))) {
+		try (var w = new BufferedWriter(new OutputStreamWriter(FileUtils.getOutputStreamPossiblyZIPorGZIP(fileName)), 1 << 16)) {
 			write(w, taxaBlock, dataBlock);
 		}
 	}
@@ -0,0 +1,164 @@
+/*
+ * SequenceFileUtils.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.utils;
+
+import jloda.util.FileUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * reads sequence letters directly from FastA files, possibly gzipped, without creating a string per line.
+ * Header lines are skipped, so a stretch of a file that contains several records is read as one sequence
+ */
+public class SequenceFileUtils {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * consumes a block of sequence letters
+	 */
+	public interface LettersConsumer {
+		/**
+		 * @return the number of letters still wanted, stop if <=0
+		 */
+		long accept(byte[] buffer, int from, int to);
+	}
+
+	/**
+	 * reads the sequence letters that start at the given offset
+	 *
+	 * @param file   FastA file, possibly zipped or gzipped
+	 * @param offset offset of the first header or sequence line, in the uncompressed file
+	 * @param length number of letters to read
+	 * @return the letters, fewer than length, if the end of the file is reached
+	 */
+	public static byte[] readSequence(String file, long offset, int length) throws IOException {
+		final var sequence = new byte[length];
+		final var count = new int[]{0};
+		if (length > 0) {
+			forEachLetters(file, offset, (buffer, from, to) -> {
+				final var n = Math.min(to - from, length - count[0]);
+				System.arraycopy(buffer, from, sequence, count[0], n);
+				count[0] += n;
+				return length - count[0];
+			});
+		}
+		return (count[0] == length ? sequence : Arrays.copyOf(sequence, count[0]));
+	}
+
+	/**
+	 * reads all sequence letters of a FastA file, possibly zipped or gzipped, concatenating all records
+	 */
+	public static byte[] readLetters(String file) throws IOException {
+		final var sequence = new byte[][]{new byte[BUFFER_SIZE]};
+		final var count = new int[]{0};
+		forEachLetters(file, 0L, (buffer, from, to) -> {
+			final var n = to - from;
+			if (count[0] + n > sequence[0].length) {
+				if ((long) count[0] + n > Integer.MAX_VALUE - 8)
+					throw new IllegalStateException("Sequence too long: " + file);
+				sequence[0] = Arrays.copyOf(sequence[0], (int) Math.min(Integer.MAX_VALUE - 8, Math.max(count[0] + n, 2L * sequence[0].length)));
+			}
+			System.arraycopy(buffer, from, sequence[0], count[0], n);
+			count[0] += n;
+			return Long.MAX_VALUE;
+		});
+		return Arrays.copyOf(sequence[0], count[0]);
+	}
+
+	/**
+	 * counts all sequence letters in a FastA file, possibly zipped or gzipped
+	 */
+	public static long countLetters(String file) throws IOException {
+		final var count = new long[]{0};
+		forEachLetters(file, 0L, (buffer, from, to) -> {
+			count[0] += to - from;
+			return Long.MAX_VALUE;
+		});
+		return count[0];
+	}
+
+	/**
+	 * passes all blocks of sequence letters found from the given offset onward to the consumer, until the end of the file
+	 * or the consumer asks to stop. Header lines and white space are skipped
+	 */
+	public static void forEachLetters(String file, long offset, LettersConsumer consumer) throws IOException {
+		try (var ins = open(file, offset)) {
+			final var buffer = new byte[BUFFER_SIZE];
+			var atLineStart = true;
+			var inHeader = false;
+			int read;
+			while ((read = ins.read(buffer)) != -1) {
+				var start = -1; // start of the current run of letters
+				for (var i = 0; i < read; i++) {
+					final var ch = buffer[i];
+					if (inHeader) {
+						if (ch == '\n') {
+							inHeader = false;
+							atLineStart = true;
+						}
+					} else if (atLineStart && ch == '>') {
+						inHeader = true;
+						atLineStart = false;
+					} else if (ch == '\n' || ch == '\r' || ch == ' ' || ch == '\t') {
+						if (start != -1) {
+							if (consumer.accept(buffer, start, i) <= 0)
+								return;
+							start = -1;
+						}
+						atLineStart = (ch == '\n' || (ch == '\r' && atLineStart));
+					} else {
+						if (start == -1)
+							start = i;
+						atLineStart = false;
+					}
+				}
+				if (start != -1 && consumer.accept(buffer, start, read) <= 0)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * opens a file at the given offset. Uncompressed files are positioned directly, compressed ones are skipped to the offset
+	 */
+	private static InputStream open(String file, long offset) throws IOException {
+		final var lower = file.toLowerCase();
+		if (lower.endsWith(".gz") || lower.endsWith(".zip")) {
+			final var ins = FileUtils.getInputStreamPossiblyZIPorGZIP(file);
+			try {
+				ins.skipNBytes(offset);
+			} catch (IOException ex) {
+				ins.close();
+				throw ex;
+			}
+			return ins;
+		} else {
+			final var channel = FileChannel.open(Path.of(file), StandardOpenOption.READ);
+			channel.position(offset);
+			return Channels.newInputStream(channel);
+		}
+	}
+}
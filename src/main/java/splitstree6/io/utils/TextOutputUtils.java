@@ -0,0 +1,171 @@
+/*
+ * TextOutputUtils.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.io.utils;
+
+import jloda.util.StringUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * utilities for writing large blocks in text formats: fast formatting of numbers and formatting of independent rows in parallel
+ */
+public class TextOutputUtils {
+	private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L};
+
+	/**
+	 * target number of characters buffered per chunk of rows
+	 */
+	private static final int CHUNK_CHARACTERS = 1 << 24;
+
+	/**
+	 * formats a row of output
+	 */
+	public interface RowFormatter {
+		/**
+		 * append the text for the given row to the buffer. Is called from multiple threads, so must only read shared data
+		 */
+		void format(int row, StringBuilder buf) throws IOException;
+	}
+
+	/**
+	 * formats a double with the given number of decimals and removes trailing zeros after the dot,
+	 * equivalent to StringUtils.removeTrailingZerosAfterDot("%.{decimals}f", value), but always uses a dot as decimal separator
+	 */
+	public static String formatDouble(double value, int decimals) {
+		return appendDouble(new StringBuilder(), value, decimals).toString();
+	}
+
+	/**
+	 * appends a double with the given number of decimals and removes trailing zeros after the dot,
+	 * equivalent to StringUtils.removeTrailingZerosAfterDot("%.{decimals}f", value), but always uses a dot as decimal separator
+	 *
+	 * @return the buffer
+	 */
+	public static StringBuilder appendDouble(StringBuilder buf, double value, int decimals) {
+		if (decimals >= 0 && decimals < POWERS_OF_TEN.length && Double.isFinite(value)) {
+			final var scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+			if (scaled < 1e15) {
+				final var floor = Math.floor(scaled);
+				final var fraction = scaled - floor;
+				// near a tie, the multiplication might round differently from the formatter, so leave those to the formatter
+				if (Math.abs(fraction - 0.5) > 1e-9 + 1e-15 * scaled) {
+					final var units = (long) floor + (fraction > 0.5 ? 1 : 0);
+					if (value < 0 || (value == 0 && 1 / value < 0))
+						buf.append('-');
+					final var power = POWERS_OF_TEN[decimals];
+					buf.append(units / power);
+					var remainder = units % power;
+					if (remainder != 0) {
+						var digits = decimals;
+						while (remainder % 10 == 0) {
+							remainder /= 10;
+							digits--;
+						}
+						buf.append('.');
+						for (var p = POWERS_OF_TEN[digits - 1]; p > remainder; p /= 10)
+							buf.append('0');
+						buf.append(remainder);
+					}
+					return buf;
+				}
+			}
+		}
+		return buf.append(StringUtils.removeTrailingZerosAfterDot(String.format(Locale.ROOT, "%." + decimals + "f", value)));
+	}
+
+	/**
+	 * writes rows from (inclusive) to (exclusive). Rows are formatted in parallel, in chunks, and written in order
+	 *
+	 * @param w         the writer
+	 * @param from      first row
+	 * @param to        last row + 1
+	 * @param formatter formats a single row
+	 * @return number of characters written
+	 */
+	public static long writeRows(Writer w, int from, int to, RowFormatter formatter) throws IOException {
+		var chunkSize = Math.max(1, Math.min(to - from, 4 * Runtime.getRuntime().availableProcessors()));
+		var buffers = new StringBuilder[0];
+		var characters = 0L;
+
+		for (var start = from; start < to; ) {
+			final var first = start;
+			final var end = Math.min(to, start + chunkSize);
+			if (buffers.length < end - start) {
+				var tmp = new StringBuilder[end - start];
+				System.arraycopy(buffers, 0, tmp, 0, buffers.length);
+				buffers = tmp;
+			}
+			final var rows = buffers;
+			try {
+				IntStream.range(start, end).parallel().forEach(row -> {
+					var buf = rows[row - first];
+					if (buf == null)
+						rows[row - first] = buf = new StringBuilder();
+					else
+						buf.setLength(0);
+					try {
+						formatter.format(row, buf);
+					} catch (IOException ex) {
+						throw new UncheckedIOException(ex);
+					}
+				});
+			} catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+
+			var chunkCharacters = 0L;
+			for (var i = 0; i < end - start; i++) {
+				final var buf = rows[i];
+				w.append(buf);
+				chunkCharacters += buf.length();
+				if (buf.capacity() > CHUNK_CHARACTERS / 16)
+					rows[i] = null; // don't hold on to very large buffers
+			}
+			characters += chunkCharacters;
+
+			// adjust the chunk size so that a chunk holds about CHUNK_CHARACTERS characters:
+			final var average = Math.max(1L, chunkCharacters / (end - start));
+			chunkSize = (int) Math.max(Runtime.getRuntime().availableProcessors(), Math.min(65536, CHUNK_CHARACTERS / average));
+			start = end;
+		}
+		return characters;
+	}
+
+	/**
+	 * format a throughput
+	 *
+	 * @param bytes        number of bytes
+	 * @param milliseconds time taken
+	 * @return human-readable throughput
+	 */
+	public static String formatThroughput(long bytes, long milliseconds) {
+		final var bytesPerSecond = 1000.0 * bytes / Math.max(1, milliseconds);
+		if (bytesPerSecond >= 1024 * 1024)
+			return String.format("%.1f MB/s", bytesPerSecond / (1024 * 1024));
+		else if (bytesPerSecond >= 1024)
+			return String.format("%.1f KB/s", bytesPerSecond / 1024);
+		else
+			return String.format("%.0f B/s", bytesPerSecond);
+	}
+}
@@ -25,6 +25,7 @@ import jloda.util.FileUtils;
 import splitstree6.data.TaxaBlock;
 import splitstree6.io.utils.DataBlockWriter;
 import splitstree6.io.utils.ReaderWriterBase;
+import splitstree6.io.utils.TextOutputUtils;
 import splitstree6.workflow.DataBlock;
 
 import java.io.BufferedWriter;
@@ -137,11 +138,14 @@ public class ExportManager {
 	 * write a datablock using the named exporter
 	 */
 	public void exportFile(String fileName, TaxaBlock taxaBlock, DataBlock dataBlock, String exporterName) throws IOException {
-		try (var w = new BufferedWriter(FileUtils.getOutputWriterPossiblyZIPorGZIP(fileName))) {
+		final var start = System.currentTimeMillis();
+		try (var w = new BufferedWriter(FileUtils.getOutputWriterPossiblyZIPorGZIP(fileName), 1 << 16)) {
 			write(taxaBlock, dataBlock, exporterName, w);
 		}
 		RecentFilesManager.getInstance().insertRecentFile(fileName);
-		NotificationManager.showInformation(String.format("Wrote %,d bytes to file: %s", (new File(fileName)).length(), fileName));
+		final var bytes = (new File(fileName)).length();
+		NotificationManager.showInformation(String.format("Wrote %,d bytes to file: %s (%s)", bytes, fileName,
+				TextOutputUtils.formatThroughput(bytes, System.currentTimeMillis() - start)));
 	}
 
 	/**
@@ -152,6 +156,7 @@ public class ExportManager {
 		var exporterName = (exporterName0.equals("NexusWithTaxa") ? "Nexus" : exporterName0);
 		var exporter = getExporterByName(dataBlock.getClass(), exporterName);
 		if (exporter != null) {
+			dataBlock.materialize();
 			if (prependTaxa && exporter instanceof IHasPrependTaxa nexusWriter)
 				nexusWriter.optionPrependTaxaProperty().set(true);
 			if (dataBlock.getClass() == exporter.getFromClass())
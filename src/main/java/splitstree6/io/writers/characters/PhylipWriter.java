@@ -26,6 +26,7 @@ import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import splitstree6.data.CharactersBlock;
 import splitstree6.data.TaxaBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -82,14 +83,14 @@ public class PhylipWriter extends CharactersWriterBase {
 				w.write("\n");
 			}
 		} else {
-			for (var t = 1; t <= ntax; t++) {
-				var sequence = new StringBuilder();
+			TextOutputUtils.writeRows(w, 1, ntax + 1, (t, buf) -> {
+				buf.append(get10CharLabel(labels[t]));
 				for (var j = 1; j <= nchar; j++) {
-					if ((j - 1) % 10 == 0 && (j - 1) != 0) sequence.append(" "); // set space after every 10 chars
-					sequence.append(characters.get(t, j));
+					if ((j - 1) % 10 == 0 && (j - 1) != 0) buf.append(" "); // set space after every 10 chars
+					buf.append(Character.toUpperCase(characters.get(t, j)));
 				}
-				w.write(get10CharLabel(labels[t]) + sequence.toString().toUpperCase() + "\n");
-			}
+				buf.append("\n");
+			});
 		}
 	}
 
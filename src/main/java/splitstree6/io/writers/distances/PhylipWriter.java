@@ -21,9 +21,9 @@ package splitstree6.io.writers.distances;
 
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
-import jloda.util.StringUtils;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -53,39 +53,37 @@ public class PhylipWriter extends DistancesWriterBase {
 
 		if (!isOptionTriangular()) {
 			// System.err.println("standard");
-			for (var i = 1; i <= distances.getDistances().length; i++) {
-				var buf = new StringBuilder();
+			TextOutputUtils.writeRows(w, 1, distances.getDistances().length + 1, (i, buf) -> {
+				appendLabel(buf, taxa.getLabel(i));
+				buf.append("\t");
 				for (int j = 1; j <= distances.getDistances()[i - 1].length; j++) {
-					buf.append(StringUtils.removeTrailingZerosAfterDot("%.5f ", distances.get(i, j)));
+					TextOutputUtils.appendDouble(buf, distances.get(i, j), 5).append(" ");
 				}
-				if (taxa.getLabel(i).length() >= 10)
-					w.write(taxa.getLabel(i).substring(0, 10));
-				else {
-					w.write(taxa.getLabel(i));
-					for (var k = 0; k < 10 - taxa.getLabel(i).length(); k++) {
-						w.write(" ");
-					}
-				}
-				w.write("\t" + buf + "\n");
-			}
+				buf.append("\n");
+			});
 		} else {
 			//System.err.println("triangular");
 			w.write(taxa.getLabel(1) + "\n");
-			for (var i = 2; i <= distances.getDistances().length; i++) {
-				var buf = new StringBuilder();
+			TextOutputUtils.writeRows(w, 2, distances.getDistances().length + 1, (i, buf) -> {
+				appendLabel(buf, taxa.getLabel(i));
+				buf.append("\t");
 				for (var j = 1; j <= i - 1; j++) {
-					buf.append(StringUtils.removeTrailingZerosAfterDot("%.5f ", distances.get(i, j)));
-				}
-				if (taxa.getLabel(i).length() >= 10)
-					w.write(taxa.getLabel(i).substring(0, 10));
-				else {
-					w.write(taxa.getLabel(i));
-					for (int k = 0; k < 10 - taxa.getLabel(i).length(); k++) {
-						w.write(" ");
-					}
+					TextOutputUtils.appendDouble(buf, distances.get(i, j), 5).append(" ");
 				}
-				w.write("\t" + buf + "\n");
-			}
+				buf.append("\n");
+			});
+		}
+	}
+
+	/**
+	 * append label, truncated or padded to 10 characters
+	 */
+	private static void appendLabel(StringBuilder buf, String label) {
+		if (label.length() >= 10)
+			buf.append(label, 0, 10);
+		else {
+			buf.append(label);
+			buf.append(" ".repeat(10 - label.length()));
 		}
 	}
 
@@ -23,9 +23,9 @@ import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
-import jloda.util.StringUtils;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -57,39 +57,39 @@ public class PlainTextWriter extends DistancesWriterBase {
 						w.write(taxa.get(i).getName());
 					}
 				}
-				for (var i = 1; i <= ntax; i++) {
+				TextOutputUtils.writeRows(w, 1, ntax + 1, (i, buf) -> {
 					for (var j = 1; j <= ntax; j++) {
 						if (j > 1)
-							w.write("\t");
-						w.write(StringUtils.removeTrailingZerosAfterDot(String.format("%.8f", distances.get(i, j))));
+							buf.append("\t");
+						TextOutputUtils.appendDouble(buf, distances.get(i, j), 8);
 					}
-					w.write("\n");
-				}
+					buf.append("\n");
+				});
 				w.write("\n");
 			}
 			case OrderedPairs -> {
 				w.write("# Ordered pairs of distances D(1,2), D(1,3), ..,D(1,n), D(2,3), ... :\n");
-				for (var i = 1; i <= ntax; i++) {
+				TextOutputUtils.writeRows(w, 1, ntax + 1, (i, buf) -> {
 					for (var j = i + 1; j <= ntax; j++) {
 						if (optionLabels.get()) {
-							w.write(taxa.get(i).getName() + "\t" + taxa.get(j) + "\t");
+							buf.append(taxa.get(i).getName()).append("\t").append(taxa.get(j)).append("\t");
 						}
-						w.write(StringUtils.removeTrailingZerosAfterDot(String.format("%.8f", distances.get(i, j))) + "\n");
+						TextOutputUtils.appendDouble(buf, distances.get(i, j), 8).append("\n");
 					}
-				}
+				});
 				w.write("\n");
 				w.flush();
 			}
 			case AllPairs -> {
 				w.write("# All pairs of distances D(1,1), D(1,2), ..., D(2,1), D(2,2), D(2,3), ...\n");
-				for (var i = 1; i <= ntax; i++) {
+				TextOutputUtils.writeRows(w, 1, ntax + 1, (i, buf) -> {
 					for (var j = 1; j <= ntax; j++) {
 						if (optionLabels.get()) {
-							w.write(taxa.get(i).getName() + "\t" + taxa.get(j) + "\t");
+							buf.append(taxa.get(i).getName()).append("\t").append(taxa.get(j)).append("\t");
 						}
-						w.write(StringUtils.removeTrailingZerosAfterDot(String.format("%.8f", distances.get(i, j))) + "\n");
+						TextOutputUtils.appendDouble(buf, distances.get(i, j), 8).append("\n");
 					}
-				}
+				});
 				w.write("\n");
 				w.flush();
 			}
@@ -24,6 +24,7 @@ import javafx.beans.property.SimpleBooleanProperty;
 import jloda.phylo.NewickIO;
 import splitstree6.data.TaxaBlock;
 import splitstree6.data.TreesBlock;
+import splitstree6.io.utils.TextOutputUtils;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -41,15 +42,15 @@ public class NewickWriter extends TreesWriterBase {
 
 	@Override
 	public void write(Writer w, TaxaBlock taxaBlock, TreesBlock trees) throws IOException {
-		var newickIO = new NewickIO();
 		var format = new NewickIO.OutputFormat(isOptionEdgeWeights(), isOptionEdgeConfidences(), isOptionEdgeConfidences(), false, false);
 
 		if (trees != null) {
-			for (var i = 1; i <= trees.getNTrees(); i++) {
+			TextOutputUtils.writeRows(w, 1, trees.getNTrees() + 1, (i, buf) -> {
 				var tree = trees.getTree(i);
+				var newickIO = new NewickIO();
 				newickIO.setNewickNodeCommentSupplier(v -> (v == tree.getRoot() && tree.getName() != null && !tree.getName().startsWith("tree-") ? "&&NHX:GN=" + tree.getName() : null));
-				w.write(newickIO.toBracketString(tree, format) + ";\n");
-			}
+				buf.append(newickIO.toBracketString(tree, format)).append(";\n");
+			});
 		}
 		w.flush();
 	}
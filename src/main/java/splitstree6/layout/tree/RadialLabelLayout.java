@@ -23,23 +23,24 @@ import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyDoubleProperty;
 import jloda.fx.util.AService;
 import jloda.fx.util.GeometryUtilsFX;
-import jloda.graph.Graph;
-import jloda.graph.Node;
-import jloda.util.IteratorUtils;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Random;
+
+import java.util.*;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 /**
  * do radial layout of labels
  * Label items are added to the item list and then the layout labels method is called
+ * Overlaps are found using a grid index. When the same items are laid out again, for example after zooming,
+ * the previous choices are reused if they still don't overlap
  * Daniel Huson, 12.2021
  */
 public class RadialLabelLayout {
+	/**
+	 * number of choices of placement per label
+	 */
+	private static final int CHOICES = 3;
 
 	private final AService<Boolean> layoutService = new AService<>();
 
@@ -51,6 +52,8 @@ public class RadialLabelLayout {
 
 	private LayoutOrientation orientation;
 
+	private volatile Placements cache;
+
 	public RadialLabelLayout() {
 		setupLayoutService();
 	}
@@ -86,6 +89,7 @@ public class RadialLabelLayout {
 	public void clear() {
 		items.clear();
 		avoidList.clear();
+		cache = null;
 	}
 
 	/**
@@ -138,160 +142,236 @@ public class RadialLabelLayout {
 	 */
 	private void setupLayoutService() {
 		layoutService.setCallable(() -> {
-			// create graph:
-					var graph = new Graph();
-					var itemNodesMap = new HashMap<LayoutItem, ArrayList<Node>>();
-					var itemBestChoiceMap = new HashMap<LayoutItem, Choice>();
-
-					// nodes:
-					for (var item : items) {
-						for (var choice : computeChoices(item)) {
-							itemBestChoiceMap.putIfAbsent(item, choice);
-							var ok = true;
-							for (var avoid : avoidList) {
-								if (avoid.intersects(choice)) {
-									ok = false;
-									break;
-								}
-							}
-							if (ok) {
-								var v = graph.newNode();
-								v.setData(choice);
-								itemNodesMap.computeIfAbsent(item, k -> new ArrayList<>()).add(v);
-							}
-						}
-					}
+			final var items = new ArrayList<>(this.items);
+			final var orientation = this.orientation;
+			final var n = items.size();
+
+			// avoidable boxes and label sizes are read once:
+			final var avoidIndex = new GridIndex(computeCellSize(items));
+			for (var avoid : new ArrayList<>(avoidList)) {
+				avoidIndex.add(new Choice(avoid.x().get(), avoid.y().get(), avoid.width().get(), avoid.height().get(), 0, -1));
+			}
 
-					// edges:
-					for (var v : graph.nodes()) {
-						var vBox = (Choice) v.getData();
-						for (var w : graph.nodes(v)) {
-							var wBox = (Choice) w.getData();
-							if (vBox.item() != wBox.item() && vBox.intersects(wBox))
-								graph.newEdge(v, w);
-						}
-					}
+			// choices for all items, computed in parallel, choice c belongs to item c/CHOICES:
+			final var choices = new Choice[CHOICES * n];
+			final var ok = new boolean[CHOICES * n];
+			IntStream.range(0, n).parallel().forEach(i -> {
+				var itemChoices = computeChoices(items.get(i), i, orientation);
+				for (var slot = 0; slot < CHOICES; slot++) {
+					choices[CHOICES * i + slot] = itemChoices[slot];
+					ok[CHOICES * i + slot] = !avoidIndex.intersectsAny(itemChoices[slot]);
+				}
+			});
+
+			var selected = (cache != null && cache.isValidFor(items, orientation) ? reuseSlots(cache.slots(), choices, ok) : null);
+			if (selected == null)
+				selected = chooseSlots(choices, ok);
 
-					// greedily choose locations for as many items as possible:
-					var nodeList = new LinkedList<>(IteratorUtils.asCollection(IteratorUtils.randomize(graph.nodes(), new Random(666)), new LinkedList<>()));
-					nodeList.sort(RadialLabelLayout::compare);
-
-					var remainingItems = new ArrayList<>(items);
-					var selectedChoices = new ArrayList<Choice>();
-
-					while (nodeList.size() > 0) {
-						var v = nodeList.remove(0);
-						var mustReSort = (v.getDegree() > 0);
-						var item = ((Choice) v.getData()).item();
-						remainingItems.remove(item);
-
-						var choice = (Choice) v.getData();
-
-						Platform.runLater(() -> {
-							item.xSetter().accept(choice.x() - item.anchorX());
-							item.ySetter().accept(choice.y() - item.anchorY());
-						});
-						selectedChoices.add(choice);
-
-						// remove nodes from graph:
-						for (var w : v.adjacentNodes()) { // adjacent placements can't be used
-							if (w.getOwner() != null) {
-								graph.deleteNode(w);
-							}
-							nodeList.remove(w);
-						}
-						for (var w : itemNodesMap.get(item)) {
-							for (var e : w.adjacentEdges()) { // other placements of v no-longer compete with placements of other nodes
-								graph.deleteEdge(e);
-							}
-							if (w.getOwner() != null) {
-								graph.deleteNode(w);
-							}
-							nodeList.remove(w);
-						}
-						if (mustReSort)
-							nodeList.sort(RadialLabelLayout::compare);
+			// remaining items are pushed outward:
+			final var selectedIndex = new GridIndex(avoidIndex.getCellSize());
+			for (var i = 0; i < n; i++) {
+				if (selected[i] != -1)
+					selectedIndex.add(choices[CHOICES * i + selected[i]]);
+			}
+			final var placed = new Choice[n];
+			for (var i = 0; i < n; i++) {
+				if (selected[i] != -1)
+					placed[i] = choices[CHOICES * i + selected[i]];
+			}
+			for (var i = 0; i < n; i++) {
+				if (placed[i] == null) {
+					var item = items.get(i);
+					var choice = choices[CHOICES * i];
+
+					var deltaX = 5 * Math.cos(GeometryUtilsFX.deg2rad(orientation.apply(item.angle())));
+					var deltaY = 5 * Math.sin(GeometryUtilsFX.deg2rad(orientation.apply(item.angle())));
+
+					var x = choice.x();
+					var y = choice.y();
+					var count = 0;
+					while (count++ < 1000 && (avoidIndex.intersectsAny(choice) || selectedIndex.intersectsAny(choice))) {
+						x += deltaX;
+						y += deltaY;
+						choice = choice.copyWithUpdatedXY(x, y);
 					}
+					placed[i] = choice;
+					selectedIndex.add(choice);
+				}
+			}
+
+			cache = new Placements(items, orientation, selected);
+
+			Platform.runLater(() -> {
+				for (var i = 0; i < n; i++) {
+					var item = items.get(i);
+					item.xSetter().accept(placed[i].x() - item.anchorX());
+					item.ySetter().accept(placed[i].y() - item.anchorY());
+				}
+			});
+			return true;
+		});
+	}
 
-					// remaining items are pushed outward:
-					for (var item : remainingItems) {
-						var choice = itemBestChoiceMap.get(item);
-
-						var ok = false;
-						var deltaX = 5 * Math.cos(GeometryUtilsFX.deg2rad(orientation.apply(item.angle())));
-						var deltaY = 5 * Math.sin(GeometryUtilsFX.deg2rad(orientation.apply(item.angle())));
-
-						var x = choice.x();
-						var y = choice.y();
-						var i = 0;
-						while (!ok && i++ < 1000) {
-							ok = true;
-							for (var avoid : avoidList) {
-								if (avoid.intersects(choice)) {
-									ok = false;
-									break;
-								}
-							}
-							if (ok) {
-								for (var other : selectedChoices) {
-									if (other.intersects(choice)) {
-										ok = false;
-										break;
-									}
-								}
-							}
-							if (!ok) {
-								x += deltaX;
-								y += deltaY;
-								choice = choice.copyWithUpdatedXY(x, y);
-							}
-						}
-						var theChoice = choice;
-						Platform.runLater(() -> {
-							item.xSetter().accept(theChoice.x() - item.anchorX());
-							item.ySetter().accept(theChoice.y() - item.anchorY());
-						});
-						selectedChoices.add(choice);
+	/**
+	 * greedily choose locations for as many items as possible: repeatedly selects the available choice that overlaps the
+	 * fewest other available choices, with ties broken by priority and then randomly, and removes all choices that overlap it
+	 *
+	 * @return the selected slot for each item, or -1
+	 */
+	private static int[] chooseSlots(Choice[] choices, boolean[] ok) {
+		final var n = choices.length / CHOICES;
+		final var choiceIndex = new GridIndex(computeCellSize(choices));
+		for (var c = 0; c < choices.length; c++) {
+			if (ok[c])
+				choiceIndex.add(c, choices[c]);
+		}
+
+		// overlaps between choices of different items, computed in parallel:
+		final var adjacent = new int[choices.length][];
+		IntStream.range(0, choices.length).parallel().forEach(c -> {
+			if (ok[c]) {
+				var choice = choices[c];
+				adjacent[c] = choiceIndex.findIntersecting(choice).filter(d -> choices[d].item() != choice.item()).toArray();
+			}
+		});
+
+		final var degree = new int[choices.length];
+		final var rank = new int[choices.length];
+		final var alive = ok.clone();
+		{
+			var random = new Random(666);
+			for (var c = 0; c < choices.length; c++) {
+				final var r = random.nextInt(c + 1);
+				rank[c] = rank[r];
+				rank[r] = c;
+			}
+		}
+		final var queue = new PriorityQueue<int[]>((a, b) -> {
+			if (a[0] != b[0])
+				return Integer.compare(a[0], b[0]);
+			else if (choices[a[2]].priority() != choices[b[2]].priority())
+				return Integer.compare(choices[a[2]].priority(), choices[b[2]].priority());
+			else
+				return Integer.compare(a[1], b[1]);
+		});
+		for (var c = 0; c < choices.length; c++) {
+			if (alive[c]) {
+				degree[c] = adjacent[c].length;
+				queue.add(new int[]{degree[c], rank[c], c});
+			}
+		}
+
+		final var selected = new int[n];
+		Arrays.fill(selected, -1);
+		while (!queue.isEmpty()) {
+			var entry = queue.poll();
+			var c = entry[2];
+			if (!alive[c] || degree[c] != entry[0])
+				continue; // outdated entry
+			var item = choices[c].item();
+			selected[item] = c % CHOICES;
+
+			// adjacent placements can't be used, and other placements of the item are no longer needed:
+			for (var d : adjacent[c]) {
+				remove(d, alive, degree, rank, adjacent, queue);
+			}
+			for (var slot = 0; slot < CHOICES; slot++) {
+				remove(CHOICES * item + slot, alive, degree, rank, adjacent, queue);
+			}
+		}
+		return selected;
+	}
+
+	private static void remove(int c, boolean[] alive, int[] degree, int[] rank, int[][] adjacent, PriorityQueue<int[]> queue) {
+		if (alive[c]) {
+			alive[c] = false;
+			for (var d : adjacent[c]) {
+				if (alive[d]) {
+					degree[d]--;
+					queue.add(new int[]{degree[d], rank[d], d});
+				}
+			}
+		}
+	}
+
+	/**
+	 * tries to reuse the slots of a previous layout of the same items, for example after zooming or changing the font size.
+	 * Items that were previously pushed outward get the first free slot, if any.
+	 *
+	 * @return the slots, or null, if some of the previous slots now overlap
+	 */
+	private static int[] reuseSlots(int[] previousSlots, Choice[] choices, boolean[] ok) {
+		final var n = choices.length / CHOICES;
+		final var index = new GridIndex(computeCellSize(choices));
+		final var selected = previousSlots.clone();
+		for (var i = 0; i < n; i++) {
+			if (selected[i] != -1) {
+				var c = CHOICES * i + selected[i];
+				if (!ok[c] || index.intersectsAny(choices[c]))
+					return null;
+				index.add(choices[c]);
+			}
+		}
+		for (var i = 0; i < n; i++) {
+			if (selected[i] == -1) {
+				for (var slot = 0; slot < CHOICES; slot++) {
+					var c = CHOICES * i + slot;
+					if (ok[c] && !index.intersectsAny(choices[c])) {
+						selected[i] = slot;
+						index.add(choices[c]);
+						break;
 					}
-					return true;
 				}
-		);
+			}
+		}
+		return selected;
 	}
 
-	private Choice[] computeChoices(LayoutItem item) {
+	/**
+	 * the cell size for the spatial index is the average label extent
+	 */
+	private static double computeCellSize(List<LayoutItem> items) {
+		return Math.max(1.0, items.stream().mapToDouble(item -> Math.max(item.width(), item.height())).average().orElse(1.0));
+	}
+
+	private static double computeCellSize(Choice[] choices) {
+		return Math.max(1.0, Arrays.stream(choices).mapToDouble(choice -> Math.max(choice.width(), choice.height())).average().orElse(1.0));
+	}
+
+	private Choice[] computeChoices(LayoutItem item, int index, LayoutOrientation orientation) {
 		var angle = GeometryUtilsFX.modulo360(orientation.apply(item.angle()));
 		var angleRadian = GeometryUtilsFX.deg2rad(angle);
-		var choices = new Choice[3];
+		var choices = new Choice[CHOICES];
 
 		if (angle >= 45 && angle <= 135) { // up
 			var x = item.anchorX() + gap * Math.cos(angleRadian) - 0.5 * item.width();
 			var y = item.anchorY() + gap * Math.sin(angleRadian);
 
-			choices[0] = new Choice(x, y, item.width(), item.height(), 0, item);
-			choices[1] = new Choice(x + 0.5 * item.width(), y, item.width(), item.height(), 1, item);
-			choices[2] = new Choice(x - 0.5 * item.width(), y, item.width(), item.height(), 2, item);
+			choices[0] = new Choice(x, y, item.width(), item.height(), 0, index);
+			choices[1] = new Choice(x + 0.5 * item.width(), y, item.width(), item.height(), 1, index);
+			choices[2] = new Choice(x - 0.5 * item.width(), y, item.width(), item.height(), 2, index);
 		} else if (angle > 135 && angle <= 225) { // left
 			var x = item.anchorX() + gap * Math.cos(angleRadian) - item.width();
 			var y = item.anchorY() + gap * Math.sin(angleRadian) - 0.5 * item.height();
 
-			choices[0] = new Choice(x, y, item.width(), item.height(), 0, item);
-			choices[1] = new Choice(x, y + 0.5 * item.height(), item.width(), item.height(), 1, item);
-			choices[2] = new Choice(x, y - 0.5 * item.height(), item.width(), item.height(), 2, item);
+			choices[0] = new Choice(x, y, item.width(), item.height(), 0, index);
+			choices[1] = new Choice(x, y + 0.5 * item.height(), item.width(), item.height(), 1, index);
+			choices[2] = new Choice(x, y - 0.5 * item.height(), item.width(), item.height(), 2, index);
 
 		} else if (angle > 225 && angle <= 315) { // down
 			var x = item.anchorX() + gap * Math.cos(angleRadian) - 0.5 * item.width();
 			var y = item.anchorY() + gap * Math.sin(angleRadian) - item.height();
 
-			choices[0] = new Choice(x, y, item.width(), item.height(), 0, item);
-			choices[1] = new Choice(x + 0.5 * item.width(), y, item.width(), item.height(), 1, item);
-			choices[2] = new Choice(x - 0.5 * item.width(), y, item.width(), item.height(), 2, item);
+			choices[0] = new Choice(x, y, item.width(), item.height(), 0, index);
+			choices[1] = new Choice(x + 0.5 * item.width(), y, item.width(), item.height(), 1, index);
+			choices[2] = new Choice(x - 0.5 * item.width(), y, item.width(), item.height(), 2, index);
 		} else { // right
 			var x = item.anchorX() + gap * Math.cos(angleRadian);
 			var y = item.anchorY() + gap * Math.sin(angleRadian) - 0.5 * item.height();
 
-			choices[0] = new Choice(x, y, item.width(), item.height(), 0, item);
-			choices[1] = new Choice(x, y + 0.5 * item.height(), item.width(), item.height(), 1, item);
-			choices[2] = new Choice(x, y - 0.5 * item.height(), item.width(), item.height(), 2, item);
+			choices[0] = new Choice(x, y, item.width(), item.height(), 0, index);
+			choices[1] = new Choice(x, y + 0.5 * item.height(), item.width(), item.height(), 1, index);
+			choices[2] = new Choice(x, y - 0.5 * item.height(), item.width(), item.height(), 2, index);
 		}
 		return choices;
 	}
@@ -328,7 +408,12 @@ public class RadialLabelLayout {
 		}
 	}
 
-    private record Choice(double x, double y, double width, double height, int priority, LayoutItem item) {
+	/**
+	 * a possible placement of the label of an item
+	 *
+	 * @param item index of the item
+	 */
+    private record Choice(double x, double y, double width, double height, int priority, int item) {
         private boolean intersects(Choice other) {
             return (x + width >= other.x && x <= other.x + other.width) && (y + height >= other.y && y <= other.y + other.height);
         }
@@ -338,18 +423,97 @@ public class RadialLabelLayout {
         }
     }
 
-	private static int compare(Node v, Node w) {
-		if (v.getDegree() < w.getDegree())
-			return -1;
-		else if (v.getDegree() > w.getDegree())
-			return 1;
-		else
-			return Integer.compare(((Choice) v.getData()).priority(), ((Choice) w.getData()).priority());
+	/**
+	 * the slots selected in the last layout, used when the same items are laid out again
+	 */
+	private record Placements(List<LayoutItem> items, LayoutOrientation orientation, int[] slots) {
+		boolean isValidFor(List<LayoutItem> items, LayoutOrientation orientation) {
+			return this.orientation == orientation && this.items.equals(items);
+		}
+	}
+
+	/**
+	 * a uniform grid of rectangles, used to find overlapping labels without comparing all pairs.
+	 * Rectangles that cover many cells are kept in a separate list
+	 */
+	private static class GridIndex {
+		private static final int MAX_CELLS = 64;
+		private final double cellSize;
+		private final ArrayList<Choice> rectangles = new ArrayList<>();
+		private final ArrayList<Integer> ids = new ArrayList<>();
+		private final HashMap<Long, ArrayList<Integer>> cells = new HashMap<>();
+		private final ArrayList<Integer> large = new ArrayList<>();
+
+		GridIndex(double cellSize) {
+			this.cellSize = cellSize;
+		}
+
+		double getCellSize() {
+			return cellSize;
+		}
+
+		void add(Choice rectangle) {
+			add(rectangles.size(), rectangle);
+		}
+
+		/**
+		 * adds a rectangle with the given id
+		 */
+		void add(int id, Choice rectangle) {
+			var position = rectangles.size();
+			rectangles.add(rectangle);
+			ids.add(id);
+			var x0 = cell(rectangle.x());
+			var x1 = cell(rectangle.x() + rectangle.width());
+			var y0 = cell(rectangle.y());
+			var y1 = cell(rectangle.y() + rectangle.height());
+			if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS)
+				large.add(position);
+			else {
+				for (var cx = x0; cx <= x1; cx++) {
+					for (var cy = y0; cy <= y1; cy++) {
+						cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(position);
+					}
+				}
+			}
+		}
+
+		/**
+		 * does any rectangle intersect the given one?
+		 */
+		boolean intersectsAny(Choice rectangle) {
+			return findIntersecting(rectangle).findAny().isPresent();
+		}
+
+		/**
+		 * finds all rectangles that intersect the given one. Safe to call from multiple threads, once all rectangles have been added
+		 *
+		 * @return ids of intersecting rectangles, each reported once
+		 */
+		IntStream findIntersecting(Choice rectangle) {
+			var x0 = cell(rectangle.x());
+			var x1 = cell(rectangle.x() + rectangle.width());
+			var y0 = cell(rectangle.y());
+			var y1 = cell(rectangle.y() + rectangle.height());
+			var candidates = IntStream.concat(large.stream().mapToInt(Integer::intValue),
+					IntStream.rangeClosed(x0, x1).flatMap(cx -> IntStream.rangeClosed(y0, y1).flatMap(cy -> {
+						var list = cells.get(key(cx, cy));
+						return (list == null ? IntStream.empty() : list.stream().mapToInt(Integer::intValue));
+					})));
+			if (x1 > x0 || y1 > y0)
+				candidates = candidates.distinct();
+			return candidates.filter(position -> rectangles.get(position).intersects(rectangle)).map(ids::get);
+		}
+
+		private int cell(double coordinate) {
+			return (int) Math.floor(coordinate / cellSize);
+		}
+
+		private static long key(int cx, int cy) {
+			return ((long) cx << 32) ^ (cy & 0xffffffffL);
+		}
 	}
 
 	public record Box(Supplier<Double> x, Supplier<Double> y, Supplier<Double> width, Supplier<Double> height) {
-		private boolean intersects(Choice other) {
-			return (x.get() + width.get() >= other.x() && x.get() <= other.x() + other.width()) && (y.get() + height.get() >= other.y() && y.get() <= other.y() + other.height());
-        }
-    }
+	}
 }
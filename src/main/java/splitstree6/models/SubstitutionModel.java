@@ -92,6 +92,15 @@ public interface SubstitutionModel {
 	 */
 	int getNstates();
 
+	/**
+	 * Returns the transition probabilities, if this model provides them for computing P(t) efficiently
+	 *
+	 * @return transition probabilities or null
+	 */
+	default TransitionProbabilities getTransitionProbabilities() {
+		return null;
+	}
+
 	//boolean isGroupBased();
 }
 
@@ -0,0 +1,158 @@
+/*
+ * TransitionProbabilities.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.models;
+
+/**
+ * computes transition probability matrices P(t) of a reversible substitution model from the eigen decomposition
+ * V'DV = Pi^(1/2) Q Pi^(-1/2), so that P(t) = Pi^(-1/2) V' exp(Dt) V Pi^(1/2).
+ * <p>
+ * The products of eigenvectors and frequencies are computed once. Each thread keeps a small cache of recently used matrices,
+ * and single entries of P(t) can be evaluated from exp(Dt), for callers that only need a few of them.
+ * Instances are immutable and thread-safe
+ */
+public class TransitionProbabilities {
+	private static final int CACHE_SIZE = 4;
+
+	private final int nStates;
+	private final double[] evals;
+	private final double pinv;
+	private final double gamma;
+	/**
+	 * for each pair of states i,j and each eigenvalue k: sqrt(pi_j)/sqrt(pi_i) V_ik V_jk
+	 */
+	private final double[] products;
+
+	private final ThreadLocal<Cache> cache;
+
+	/**
+	 * constructor
+	 *
+	 * @param sqrtf square roots of base frequencies
+	 * @param evals eigenvalues of Pi^(1/2) Q Pi^(-1/2)
+	 * @param evecs eigenvectors of Pi^(1/2) Q Pi^(-1/2)
+	 * @param pinv  proportion of invariable sites
+	 * @param gamma gamma parameter, values <=0 mean equal rates
+	 */
+	public TransitionProbabilities(double[] sqrtf, double[] evals, double[][] evecs, double pinv, double gamma) {
+		this.nStates = evals.length;
+		this.evals = evals.clone();
+		this.pinv = pinv;
+		this.gamma = gamma;
+
+		products = new double[nStates * nStates * nStates];
+		for (var i = 0; i < nStates; i++) {
+			for (var j = 0; j < nStates; j++) {
+				final var offset = (i * nStates + j) * nStates;
+				final var factor = sqrtf[j] / sqrtf[i];
+				for (var k = 0; k < nStates; k++) {
+					products[offset + k] = factor * evecs[i][k] * evecs[j][k];
+				}
+			}
+		}
+		cache = ThreadLocal.withInitial(() -> new Cache(nStates));
+	}
+
+	/**
+	 * gets the transition probability matrix for time t, using a per-thread cache of recently used values of t
+	 *
+	 * @param t time
+	 * @return P(t), must not be modified and is only valid until the next few calls from the same thread
+	 */
+	public double[][] getP(double t) {
+		return cache.get().get(this, t);
+	}
+
+	/**
+	 * computes the diagonal of exp(Dt), taking gamma into account
+	 *
+	 * @param t    time
+	 * @param expD array of length nStates to write to
+	 */
+	public void computeExpD(double t, double[] expD) {
+		for (var k = 0; k < nStates; k++) {
+			if (gamma > 0)
+				expD[k] = Math.pow(1.0 - gamma * evals[k] * t, -1.0 - gamma);
+			else
+				expD[k] = Math.exp(evals[k] * t);
+		}
+	}
+
+	/**
+	 * computes a single entry of P(t)
+	 *
+	 * @param expD diagonal of exp(Dt), as computed by computeExpD
+	 * @return P_ij(t)
+	 */
+	public double getP(int i, int j, double[] expD) {
+		final var offset = (i * nStates + j) * nStates;
+		var value = 0.0;
+		for (var k = 0; k < nStates; k++)
+			value += products[offset + k] * expD[k];
+		if (pinv != 0.0) {
+			value *= (1.0 - pinv);
+			if (i == j)
+				value += pinv;
+		}
+		return value;
+	}
+
+	private void computeP(double t, double[][] P, double[] expD) {
+		computeExpD(t, expD);
+		for (var i = 0; i < nStates; i++) {
+			for (var j = 0; j < nStates; j++) {
+				P[i][j] = getP(i, j, expD);
+			}
+		}
+	}
+
+	public int getNstates() {
+		return nStates;
+	}
+
+	/**
+	 * per-thread cache of recently computed matrices, replaced round-robin
+	 */
+	private static class Cache {
+		private final double[] times = new double[CACHE_SIZE];
+		private final double[][][] matrices;
+		private final double[] expD;
+		private int size = 0;
+		private int next = 0;
+
+		Cache(int nStates) {
+			matrices = new double[CACHE_SIZE][nStates][nStates];
+			expD = new double[nStates];
+		}
+
+		double[][] get(TransitionProbabilities owner, double t) {
+			for (var c = 0; c < size; c++) {
+				if (times[c] == t)
+					return matrices[c];
+			}
+			final var slot = next;
+			next = (next + 1) % CACHE_SIZE;
+			if (size < CACHE_SIZE)
+				size++;
+			owner.computeP(t, matrices[slot], expD);
+			times[slot] = t;
+			return matrices[slot];
+		}
+	}
+}
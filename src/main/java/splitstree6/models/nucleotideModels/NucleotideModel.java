@@ -37,6 +37,7 @@ import splitstree6.algorithms.utils.SplitsException;
 import splitstree6.data.CharactersBlock;
 import splitstree6.data.DistancesBlock;
 import splitstree6.models.SubstitutionModel;
+import splitstree6.models.TransitionProbabilities;
 
 /**
  * @author bryant
@@ -54,9 +55,8 @@ public abstract class NucleotideModel implements SubstitutionModel {
 	private double[] evals; /* evalues of Pi^(1/2) Q Pi^(-1/2) */
 	private double[][] evecs; /* evectors of Pi^(1/2) Q Pi^(-1/2) */
 
-	private double[][] Pmatrix; /* Current P matrix */
+	private TransitionProbabilities transitionProbabilities; /* P(t), computed from the current diagonalisation */
 	private double[][] Qmatrix; /* Current Q matrix */
-	private double tval;
 	private double propInvariableSites; /* Proportion of invariant sites */
 	private double gamma = 0.0;
 
@@ -131,11 +131,7 @@ public abstract class NucleotideModel implements SubstitutionModel {
 		evals = EX.getRealEigenvalues();
 		evecs = (EX.getV().getArrayCopy());
 
-		/* Default Pvalue is for tval = 0 */
-		Pmatrix = new double[4][4];
-		tval = 0.0;
-		for (int i = 0; i < 4; i++)
-			Pmatrix[i][i] = 1.0;
+		updateTransitionProbabilities();
 	}
 
 	/**
@@ -163,42 +159,20 @@ public abstract class NucleotideModel implements SubstitutionModel {
 	}
 
 	/**
-	 * Compute the transition probabilities. These can be extracted using getP
-	 *
-	 * @param t length of branch
+	 * Recompute the transition probabilities after a change of the diagonalisation, the proportion of invariable sites or gamma.
+	 * These can be extracted using getP
 	 */
-	protected void computeP(double t) {
-
-		double[] expD = new double[4];
-		for (int i = 0; i < 4; i++) {
-			if (gamma <= 0.0)
-				expD[i] = Math.exp(evals[i] * t);
-			else
-				expD[i] = Math.pow(1.0 - gamma * evals[i] * t, -1.0 - gamma);
-		}
-		for (int i = 0; i < 4; i++) {
-			for (int j = 0; j < 4; j++) {
-				double Xij = 0.0;
-				for (int k = 0; k < 4; k++) {
-					Xij += evecs[i][k] * expD[k] * evecs[j][k];
-
-				}
-				//System.err.println(Xij);
-				Pmatrix[i][j] = (1.0 / sqrtf[i]) * Xij * sqrtf[j];
-			}
-		}
-
-		//Handle invariant sites
+	private void updateTransitionProbabilities() {
+		transitionProbabilities = new TransitionProbabilities(sqrtf, evals, evecs, propInvariableSites, gamma);
+	}
 
-		if (propInvariableSites != 0.0) {
-			for (int i = 0; i < 4; i++) {
-				for (int j = 0; j < 4; j++) {
-					Pmatrix[i][j] *= (1.0 - propInvariableSites);
-				}
-				Pmatrix[i][i] += propInvariableSites;
-			}
-		}
-		tval = t;
+	/**
+	 * Get the transition probabilities of this model
+	 *
+	 * @return transition probabilities, for computing P(t) or single entries of it
+	 */
+	public TransitionProbabilities getTransitionProbabilities() {
+		return transitionProbabilities;
 	}
 
 	/**
@@ -211,10 +185,7 @@ public abstract class NucleotideModel implements SubstitutionModel {
 	 * @return double X_ij(t) value
 	 */
 	public double getX(int i, int j, double t) {
-		if (t != tval) {
-			computeP(t);
-		}
-		return freqs[i] * Pmatrix[i][j];
+		return freqs[i] * transitionProbabilities.getP(t)[i][j];
 	}
 
 	/**
@@ -227,11 +198,7 @@ public abstract class NucleotideModel implements SubstitutionModel {
 	 * @return double P_ij(t) value
 	 */
 	public double getP(int i, int j, double t) {
-		if (t != tval) {
-			computeP(t);
-		}
-
-		return Pmatrix[i][j];
+		return transitionProbabilities.getP(t)[i][j];
 	}
 
 	/**
@@ -251,8 +218,8 @@ public abstract class NucleotideModel implements SubstitutionModel {
 	public void setPropInvariableSites(double p) {
 		if (p != propInvariableSites) {
 			propInvariableSites = p;
-			if (tval != 0.0)
-				computeP(tval);
+			if (transitionProbabilities != null)
+				updateTransitionProbabilities();
 		}
 	}
 
@@ -274,9 +241,8 @@ public abstract class NucleotideModel implements SubstitutionModel {
 //Note: negative gamma -> equals rates.
 		if (val != gamma) {
 			gamma = val;
-			if (tval != 0.0) {
-				computeP(tval);
-			}
+			if (transitionProbabilities != null)
+				updateTransitionProbabilities();
 		}
 	}
 
@@ -318,7 +284,7 @@ public abstract class NucleotideModel implements SubstitutionModel {
 			evals[i] /= r;
 
 		//Recompute transition probabilities
-		computeP(this.tval);
+		updateTransitionProbabilities();
 	}
 
 //    /**
@@ -26,6 +26,7 @@
 package splitstree6.models.proteinModels;
 
 import splitstree6.models.SubstitutionModel;
+import splitstree6.models.TransitionProbabilities;
 
 import java.util.Random;
 
@@ -42,8 +43,7 @@ public abstract class ProteinModel implements SubstitutionModel {
 	double[] evals; /* evalues of Pi^(1/2) Q Pi^(-1/2) */
 	double[][] evecs; /* evectors of Pi^(1/2) Q Pi^(-1/2) */
 
-	double[][] Pmatrix; /* Current P matrix */
-	double tval;
+	TransitionProbabilities transitionProbabilities; /* P(t), computed from the diagonalisation, pinv and gamma */
 
 	double gamma; /* Gamma parameter. This is 0 for no gamma */
 	double pinv; /* Proportion of invariant sites */
@@ -57,24 +57,15 @@ public abstract class ProteinModel implements SubstitutionModel {
 	/**
 	 * init
 	 * <p/>
-	 * Sets P matrix to the identity, tval to zero, and computes sqrts of pi values.
+	 * Computes sqrts of pi values and sets up the transition probabilities.
 	 */
 	protected void init() {
-
-		tval = 0.0;
-		Pmatrix = new double[20][20];
-		for (int i = 0; i < 20; i++)
-			for (int j = 0; j < 20; j++)
-				if (i == j)
-					Pmatrix[i][j] = 1.0;
-				else
-					Pmatrix[i][j] = 0.0;
-
 		sqrtf = new double[20];
 		for (int i = 0; i < 20; i++)
 			sqrtf[i] = Math.sqrt(freqs[i]);
 		pinv = 0.0;
 		gamma = 0.0;
+		updateTransitionProbabilities();
 	}
 
 	public double getPi(int i) {
@@ -82,51 +73,42 @@ public abstract class ProteinModel implements SubstitutionModel {
 	}
 
 	/**
-	 * computeP
+	 * get the eigenvalues of Pi^(1/2) Q Pi^(-1/2)
 	 *
-	 * @param t Computes the P matrix for time t.
-	 *          <p/>
-	 *          If V = evecs and D = diag(evals) then
-	 *          V'DV = Pi^(1/2) Q Pi^(-1/2)
-	 *          <p/>
-	 *          Hence
-	 *          V' exp(D) V = Pi^(1/2) exp(Q) Pi^(-1/2)
-	 *          and
-	 *          P(t) = Pi^(-1/2) V' exp(D) V Pi^(1/2)
+	 * @return eigenvalues, not to be modified
 	 */
-	protected void computeP(double t) {
-
-		double[] expD = new double[20];
-		for (int i = 0; i < 20; i++) {
-			if (this.gamma > 0)
-				expD[i] = Math.pow(1.0 - gamma * evals[i] * t, -1.0 - gamma);
-			else
-				expD[i] = Math.exp(evals[i] * t);
-		}
-
-		for (int i = 0; i < 20; i++) {
-			for (int j = 0; j < 20; j++) {
-				double Xij = 0.0;
-				for (int k = 0; k < 20; k++) {
-					Xij += evecs[i][k] * expD[k] * evecs[j][k];
+	public double[] getEigenValues() {
+		return evals;
+	}
 
-				}
-				//System.err.println(Xij);
-				Pmatrix[i][j] = (1.0 / sqrtf[i]) * Xij * sqrtf[j];
-			}
-		}
+	/**
+	 * get the eigenvectors of Pi^(1/2) Q Pi^(-1/2), such that V'DV = Pi^(1/2) Q Pi^(-1/2)
+	 *
+	 * @return eigenvectors, not to be modified
+	 */
+	public double[][] getEigenVectors() {
+		return evecs;
+	}
 
-		//Handle invariant sites
+	/**
+	 * recompute the transition probabilities after a change of pinv or gamma.
+	 * <p/>
+	 * If V = evecs and D = diag(evals) then
+	 * V'DV = Pi^(1/2) Q Pi^(-1/2)
+	 * and hence
+	 * P(t) = Pi^(-1/2) V' exp(D) V Pi^(1/2)
+	 */
+	private void updateTransitionProbabilities() {
+		transitionProbabilities = new TransitionProbabilities(sqrtf, evals, evecs, pinv, gamma);
+	}
 
-		if (pinv != 0.0) {
-			for (int i = 0; i < 20; i++) {
-				for (int j = 0; j < 20; j++) {
-					Pmatrix[i][j] *= (1.0 - pinv);
-				}
-				Pmatrix[i][i] += pinv;
-			}
-		}
-		tval = t;
+	/**
+	 * get the transition probabilities of this model
+	 *
+	 * @return transition probabilities, for computing P(t) or single entries of it
+	 */
+	public TransitionProbabilities getTransitionProbabilities() {
+		return transitionProbabilities;
 	}
 
 	/**
@@ -167,19 +149,12 @@ public abstract class ProteinModel implements SubstitutionModel {
 
 
 	public double getX(int i, int j, double t) {
-		if (t != tval) {
-			computeP(t);
-		}
-		return freqs[i] * Pmatrix[i][j];
+		return freqs[i] * transitionProbabilities.getP(t)[i][j];
 	}
 
 
 	public double getP(int i, int j, double t) {
-		if (t != tval) {
-			computeP(t);
-		}
-
-		return Pmatrix[i][j];
+		return transitionProbabilities.getP(t)[i][j];
 	}
 
 
@@ -190,8 +165,7 @@ public abstract class ProteinModel implements SubstitutionModel {
 	public void setPinv(double p) {
 		if (p != pinv) {
 			pinv = p;
-			if (tval != 0.0)
-				computeP(tval);
+			updateTransitionProbabilities();
 		}
 	}
 
@@ -202,8 +176,7 @@ public abstract class ProteinModel implements SubstitutionModel {
 	public void setGamma(double val) {
 		if (gamma != val) {
 			gamma = val;
-			if (tval != 0.0)
-				computeP(tval);
+			updateTransitionProbabilities();
 		}
 	}
 
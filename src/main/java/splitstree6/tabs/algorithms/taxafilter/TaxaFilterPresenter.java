@@ -172,7 +172,7 @@ public class TaxaFilterPresenter implements IDisplayTabPresenter {
 		controller.getDeactivateSelectedMenuItem().disableProperty().bind(Bindings.isEmpty(tableView.getSelectionModel().getSelectedItems()));
 
 		controller.getSelectCurrentlyActiveMenuItem().setOnAction(e -> tableView.getItems().stream()
-				.filter(item -> workingTaxonBlock.getTaxa().contains(item.getTaxon()))
+				.filter(item -> workingTaxonBlock.indexOf(item.getTaxon()) != -1)
 				.forEach(item -> tableView.getSelectionModel().select(item)));
 
 		controller.getSelectActivatedMenuItem().setOnAction(e -> tableView.getItems().stream()
@@ -0,0 +1,147 @@
+/*
+ * BenchmarkMashSketches.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.tools;
+
+import jloda.fx.util.ArgsOptions;
+import jloda.kmers.GenomeDistanceType;
+import jloda.kmers.mash.MashDistance;
+import jloda.kmers.mash.MashSketch;
+import jloda.util.*;
+import jloda.util.progress.ProgressSilent;
+import splitstree6.algorithms.genomes.genome2distances.utils.PackedMashSketch;
+import splitstree6.io.utils.SequenceFileUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * compares the speed of default and packed k-mer mash sketching of DNA, and the resulting distances
+ */
+public class BenchmarkMashSketches {
+	/**
+	 * main
+	 */
+	public static void main(String[] args) {
+		try {
+			ProgramProperties.setProgramName("BenchmarkMashSketches");
+			ProgramProperties.setProgramVersion(splitstree6.main.Version.SHORT_DESCRIPTION);
+			PeakMemoryUsageMonitor.start();
+			(new BenchmarkMashSketches()).run(args);
+			PeakMemoryUsageMonitor.report();
+			System.exit(0);
+		} catch (Exception ex) {
+			Basic.caught(ex);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * run the program
+	 */
+	public void run(String[] args) throws Exception {
+		final ArgsOptions options = new ArgsOptions(args, this.getClass(), "Compares default and packed k-mer mash sketching of DNA");
+		options.setVersion(ProgramProperties.getProgramVersion());
+		options.setLicense("This is free software, licensed under the terms of the GNU General Public License, Version 3.");
+		options.setAuthors("Daniel H. Huson");
+
+		options.comment("Input");
+		final String[] input = options.getOptionMandatory("-i", "input", "Input DNA fastA files (directory or .gz ok)", new String[0]);
+
+		options.comment("Mash parameters");
+		final int kParameter = options.getOption("-k", "kmerSize", "Word size k", 21);
+		final int sParameter = options.getOption("-s", "sketchSize", "Sketch size", 1000);
+		final int randomSeed = options.getOption("-rs", "randomSeed", "Hashing random seed", 42);
+
+		options.comment(ArgsOptions.OTHER);
+		final int repeats = options.getOption("-r", "repeats", "Number of timed repeats per file", 3);
+		options.done();
+
+		if (!PackedMashSketch.isApplicable(kParameter))
+			throw new UsageException("Packed k-mers not applicable for k=" + kParameter);
+		if (repeats < 1)
+			throw new UsageException("repeats must be at least 1");
+
+		final ArrayList<String> inputFiles = new ArrayList<>();
+		for (String name : input) {
+			if (FileUtils.fileExistsAndIsNonEmpty(name))
+				inputFiles.add(name);
+			else if (FileUtils.isDirectory(name)) {
+				inputFiles.addAll(FileUtils.getAllFilesInDirectory(name, true, ".fasta", ".fna", ".fasta.gz", ".fna.gz"));
+			}
+		}
+		if (inputFiles.size() == 0)
+			throw new UsageException("No input files");
+
+		final var sequences = new ArrayList<byte[]>();
+		var totalLetters = 0L;
+		for (String name : inputFiles) {
+			FileUtils.checkFileReadableNonEmpty(name);
+			final var sequence = SequenceFileUtils.readLetters(name);
+			sequences.add(sequence);
+			totalLetters += sequence.length;
+		}
+		System.err.printf("Input: %,d files, %,d letters%n", inputFiles.size(), totalLetters);
+
+		final var sketches = new MashSketch[inputFiles.size()];
+		final var packedSketches = new PackedMashSketch[inputFiles.size()];
+
+		// warm up both code paths on the first file, so that the JIT has compiled them before timing:
+		final var warmUp = List.of(sequences.get(0));
+		MashSketch.compute("warmup", warmUp, true, sParameter, kParameter, randomSeed, false, new ProgressSilent());
+		PackedMashSketch.compute("warmup", warmUp, sParameter, kParameter, randomSeed);
+
+		var defaultNanos = 0L;
+		var packedNanos = 0L;
+		for (var r = 0; r < repeats; r++) {
+			for (var i = 0; i < inputFiles.size(); i++) {
+				final var list = List.of(sequences.get(i));
+				var start = System.nanoTime();
+				sketches[i] = MashSketch.compute(inputFiles.get(i), list, true, sParameter, kParameter, randomSeed, false, new ProgressSilent());
+				defaultNanos += System.nanoTime() - start;
+				start = System.nanoTime();
+				packedSketches[i] = PackedMashSketch.compute(inputFiles.get(i), list, sParameter, kParameter, randomSeed);
+				packedNanos += System.nanoTime() - start;
+			}
+		}
+
+		final var megaBases = (double) repeats * totalLetters / 1000000.0;
+		System.err.printf("Default sketching: %,.1f s, %,.1f Mbp/s%n", defaultNanos / 1.0e9, megaBases / (defaultNanos / 1.0e9));
+		System.err.printf("Packed sketching:  %,.1f s, %,.1f Mbp/s%n", packedNanos / 1.0e9, megaBases / (packedNanos / 1.0e9));
+		System.err.printf("Speed-up: %.2f%n", (double) defaultNanos / packedNanos);
+
+		if (inputFiles.size() > 1) {
+			// the two paths use different hash functions, so distances agree only up to sketching noise:
+			var maxDifference = 0.0;
+			var sumDifference = 0.0;
+			var count = 0;
+			for (var i = 0; i < inputFiles.size(); i++) {
+				for (var j = i + 1; j < inputFiles.size(); j++) {
+					final var defaultDistance = MashDistance.compute(sketches[i], sketches[j], GenomeDistanceType.Mash);
+					final var packedDistance = MashDistance.compute(PackedMashSketch.computeJaccardIndex(packedSketches[i], packedSketches[j]), kParameter);
+					final var difference = Math.abs(defaultDistance - packedDistance);
+					maxDifference = Math.max(maxDifference, difference);
+					sumDifference += difference;
+					count++;
+				}
+			}
+			System.err.printf("Mash distances, %,d pairs: mean absolute difference %.6f, max absolute difference %.6f%n", count, sumDifference / count, maxDifference);
+		}
+	}
+}
@@ -0,0 +1,442 @@
+/*
+ * BuildReferenceDatabase.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.tools;
+
+import jloda.fx.util.ArgsOptions;
+import jloda.fx.util.ProgramExecutorService;
+import jloda.kmers.bloomfilter.BloomFilter;
+import jloda.kmers.mash.MashSketch;
+import jloda.thirdparty.HexUtils;
+import jloda.util.*;
+import jloda.util.progress.ProgressPercentage;
+import jloda.util.progress.ProgressSilent;
+import splitstree6.dialog.analyzegenomes.AccessReferenceDatabase;
+import splitstree6.dialog.analyzegenomes.DatabaseConnector;
+import splitstree6.io.utils.SequenceFileUtils;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * builds a reference database for genome analysis, as used by AccessReferenceDatabase, from a taxonomy and a list of genomes.
+ * <p>
+ * In a single parallel pass over the genomes, the mash sketch of each genome is computed and its k-mers are added to the
+ * bloom filters of all of its ancestors. Genomes are processed in batches. At each checkpoint, the sketches of all batches
+ * since the previous checkpoint are committed in one transaction, together with the current state of the bloom filters that
+ * they touched. So, a genome has a sketch in the database if and only if its k-mers are contained in the stored bloom filters,
+ * and an interrupted build is resumed by loading the stored bloom filters and sketching the remaining genomes. A build can
+ * only be resumed with the same taxonomy, genomes and mash parameters. Finally, the database is read back using AccessReferenceDatabase.
+ * <p>
+ * Requires SQLite support, see DatabaseConnector
+ */
+public class BuildReferenceDatabase {
+	/**
+	 * main
+	 */
+	public static void main(String[] args) {
+		try {
+			ProgramProperties.setProgramName("BuildReferenceDatabase");
+			ProgramProperties.setProgramVersion(splitstree6.main.Version.SHORT_DESCRIPTION);
+
+			PeakMemoryUsageMonitor.start();
+			(new BuildReferenceDatabase()).run(args);
+			PeakMemoryUsageMonitor.report();
+			System.exit(0);
+		} catch (Exception ex) {
+			Basic.caught(ex);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * run the program
+	 */
+	public void run(String[] args) throws Exception {
+		final var options = new ArgsOptions(args, this.getClass(), "Builds a reference database of mash sketches and bloom filters for a taxonomy");
+		options.setVersion(ProgramProperties.getProgramVersion());
+		options.setLicense("This is free software, licensed under the terms of the GNU General Public License, Version 3.");
+		options.setAuthors("Daniel H. Huson");
+
+		options.comment("Input and output");
+		final var taxonomyFile = options.getOptionMandatory("-tx", "taxonomy", "Taxonomy file, tab-separated lines: taxon_id, parent_id (0 for root), taxon_name, optional display name", "");
+		final var genomesFile = options.getOptionMandatory("-g", "genomes", "Genomes file, tab-separated lines: taxon_id, accession, FastA file (.gz ok), optional URL", "");
+		final var databaseFile = options.getOptionMandatory("-o", "output", "Output database file (use suffix .db or .st5db), an incomplete database is resumed", "");
+
+		options.comment("Mash parameters");
+		final var kParameter = options.getOption("-k", "kmerSize", "Word size k", 21);
+		final var sParameter = options.getOption("-s", "sketchSize", "Sketch size", 1000);
+		final var randomSeed = options.getOption("-rs", "randomSeed", "Hashing random seed", 42);
+
+		options.comment("Bloom filter parameters");
+		final var fpProbability = options.getOption("-fp", "fpProb", "Probability of false positive error in Bloom filter", 0.0001);
+		final var maxBytes = (int) Basic.parseKiloMegaGiga(options.getOption("-mb", "maxBytes", "Maximum number of bytes for a Bloom filter", "10M"));
+
+		options.comment(ArgsOptions.OTHER);
+		final var batchSize = Math.max(1, options.getOption("-bs", "batchSize", "Number of genomes to sketch in parallel per batch", 100));
+		final var checkpointSeconds = Math.max(0, options.getOption("-cp", "checkpoint", "Minimum number of seconds between writes of the bloom filters, together with the sketches computed since the last write", 600));
+		ProgramExecutorService.setNumberOfCoresToUse(options.getOption("-t", "threads", "Number of threads", Runtime.getRuntime().availableProcessors()));
+		options.done();
+
+		FileUtils.checkFileReadableNonEmpty(taxonomyFile);
+		FileUtils.checkFileReadableNonEmpty(genomesFile);
+
+		final var taxa = readTaxonomy(taxonomyFile);
+		final var genomes = readGenomes(genomesFile, taxa);
+		System.err.printf("Taxa: %,d, genomes: %,d%n", taxa.size(), genomes.size());
+
+		final var resume = FileUtils.fileExistsAndIsNonEmpty(databaseFile);
+		final var connection = DatabaseConnector.createSQLiteConnection(databaseFile, false);
+		try {
+			try (var statement = connection.createStatement()) {
+				if (statement == null) // DatabaseConnector returns an empty connection when SQLite support is not enabled
+					throw new UsageException("SQLite support is not enabled in this build, cannot write database: " + databaseFile);
+			}
+			connection.setAutoCommit(false);
+			if (resume) {
+				System.err.println("Resuming: " + databaseFile);
+				checkParameters(connection, kParameter, sParameter, randomSeed);
+				checkInput(connection, taxa, genomes);
+			} else
+				initialize(connection, taxa, genomes, kParameter, sParameter, randomSeed);
+
+			final var haveSketch = new HashSet<>(queryIds(connection, "SELECT taxon_id FROM mash_sketches;"));
+			final var bloomFilters = readBloomFilters(connection);
+			System.err.printf("Bloom filters loaded: %,d%n", bloomFilters.size());
+
+			// each taxon other than the root gets a bloom filter for the k-mers of all genomes strictly below it:
+			final var genomesBelow = new HashMap<Integer, Integer>();
+			for (var genome : genomes) {
+				for (var ancestor : getAncestors(taxa, genome.taxonId())) {
+					genomesBelow.merge(ancestor, 1, Integer::sum);
+				}
+			}
+			for (var entry : genomesBelow.entrySet()) {
+				if (!bloomFilters.containsKey(entry.getKey()))
+					bloomFilters.put(entry.getKey(), new BloomFilter((int) Math.min(Integer.MAX_VALUE, (long) entry.getValue() * sParameter), fpProbability, maxBytes));
+			}
+
+			final var todo = genomes.stream().filter(genome -> !haveSketch.contains(genome.taxonId())).toList();
+			System.err.printf("Genomes to sketch: %,d%n", todo.size());
+
+			computeSketches(connection, todo, taxa, bloomFilters, kParameter, sParameter, randomSeed, batchSize, checkpointSeconds);
+			reportBloomFilters(taxa, bloomFilters);
+		} finally {
+			connection.close();
+		}
+		verify(databaseFile, genomes, kParameter, sParameter, randomSeed);
+	}
+
+	/**
+	 * sketches the genomes in parallel, one batch at a time, and adds their k-mers to the bloom filters of their ancestors.
+	 * At each checkpoint and at the end, the sketches since the last checkpoint and the bloom filters that they touched are
+	 * committed in one transaction. Large bloom filters are touched by most batches, so they are only rewritten per checkpoint
+	 */
+	private static void computeSketches(Connection connection, List<GenomeEntry> genomes, Map<Integer, TaxonEntry> taxa, Map<Integer, BloomFilter> bloomFilters,
+										int kParameter, int sParameter, int randomSeed, int batchSize, int checkpointSeconds) throws Exception {
+		final var start = System.currentTimeMillis();
+		var totalLetters = 0L;
+		var lastCheckpoint = start;
+		final var touched = new TreeSet<Integer>();
+		try (var progress = new ProgressPercentage("Sketching genomes", genomes.size());
+			 var insertSketch = connection.prepareStatement("INSERT OR REPLACE INTO mash_sketches (taxon_id, mash_sketch) VALUES (?, ?);");
+			 var updateSize = connection.prepareStatement("UPDATE genomes SET genome_size=? WHERE taxon_id=?;");
+			 var insertBloomFilter = connection.prepareStatement("INSERT OR REPLACE INTO bloom_filters (taxon_id, bloom_filter) VALUES (?, ?);")) {
+			for (var first = 0; first < genomes.size(); first += batchSize) {
+				final var batch = genomes.subList(first, Math.min(genomes.size(), first + batchSize));
+				final var results = new ArrayList<SketchResult>();
+				ExecuteInParallel.apply(batch, genome -> {
+					final var sequence = SequenceFileUtils.readLetters(genome.file());
+					final var sketch = MashSketch.compute(genome.accession(), Collections.singleton(sequence), true, sParameter, kParameter, randomSeed, false, true, new ProgressSilent());
+					final var kmers = new ArrayList<byte[]>();
+					for (var kmer : sketch.getKmers()) {
+						kmers.add(kmer);
+					}
+					for (var ancestor : getAncestors(taxa, genome.taxonId())) {
+						final var bloomFilter = bloomFilters.get(ancestor);
+						if (bloomFilter != null) {
+							synchronized (bloomFilter) {
+								bloomFilter.addAll(kmers);
+							}
+						}
+					}
+					synchronized (progress) {
+						progress.incrementProgress();
+					}
+					return Collections.singleton(new SketchResult(genome.taxonId(), sketch, sequence.length));
+				}, results, ProgramExecutorService.getNumberOfCoresToUse());
+
+				for (var result : results) {
+					insertSketch.setInt(1, result.taxonId());
+					insertSketch.setString(2, HexUtils.encodeHexString(result.sketch().getBytes()));
+					insertSketch.addBatch();
+					updateSize.setLong(1, result.length());
+					updateSize.setInt(2, result.taxonId());
+					updateSize.addBatch();
+					touched.addAll(getAncestors(taxa, result.taxonId()));
+					totalLetters += result.length();
+				}
+				insertSketch.executeBatch();
+				updateSize.executeBatch();
+
+				if (first + batchSize >= genomes.size() || System.currentTimeMillis() - lastCheckpoint >= 1000L * checkpointSeconds) {
+					for (var taxonId : touched) {
+						insertBloomFilter.setInt(1, taxonId);
+						insertBloomFilter.setString(2, HexUtils.encodeHexString(bloomFilters.get(taxonId).getBytes()));
+						insertBloomFilter.addBatch();
+					}
+					insertBloomFilter.executeBatch();
+					connection.commit();
+					touched.clear();
+					lastCheckpoint = System.currentTimeMillis();
+				}
+			}
+		}
+		final var seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000.0);
+		System.err.printf("Sketched %,d genomes (%,d bp) in %.1fs: %,.1f genomes per minute, %,.1f Mbp per second%n",
+				genomes.size(), totalLetters, seconds, 60 * genomes.size() / seconds, totalLetters / seconds / 1000000.0);
+	}
+
+	/**
+	 * checks that the database can be read by AccessReferenceDatabase and contains a sketch for each genome and the expected parameters
+	 */
+	private static void verify(String databaseFile, List<GenomeEntry> genomes, int kParameter, int sParameter, int randomSeed) throws IOException, SQLException {
+		try (var database = new AccessReferenceDatabase(databaseFile, null, 0, true)) {
+			if (database.getMashK() != kParameter || database.getMashS() != sParameter || database.getMashSeed() != randomSeed)
+				throw new IOException("Verification failed: database has wrong mash parameters");
+			if (database.countGenomes() != genomes.size() || database.countMashSketches() != genomes.size())
+				throw new IOException("Verification failed: expected %,d genomes and sketches, found: %,d and %,d".formatted(genomes.size(), database.countGenomes(), database.countMashSketches()));
+			final var taxonIds = genomes.stream().limit(10).map(GenomeEntry::taxonId).toList();
+			if (database.getMashSketches(taxonIds).size() != taxonIds.size())
+				throw new IOException("Verification failed: could not read sketches");
+			final var ancestors = new TreeSet<Integer>();
+			database.getAncestors(taxonIds).values().forEach(ancestors::addAll);
+			ancestors.remove(database.getTaxonomyRoot());
+			if (database.getBloomFilters(ancestors).size() != ancestors.size())
+				throw new IOException("Verification failed: could not read bloom filters");
+			database.getTaxonomy();
+			System.err.printf("Verified: %,d genomes, %,d bloom filters%n", database.countMashSketches(), database.countBloomFilters());
+		}
+	}
+
+	/**
+	 * reads the bloom filters written so far
+	 */
+	private static Map<Integer, BloomFilter> readBloomFilters(Connection connection) throws SQLException, IOException {
+		final var bloomFilters = new HashMap<Integer, BloomFilter>();
+		try (var statement = connection.createStatement(); var rs = statement.executeQuery("SELECT taxon_id, bloom_filter FROM bloom_filters;")) {
+			while (rs.next()) {
+				bloomFilters.put(rs.getInt(1), BloomFilter.parseBytes(HexUtils.decodeHexString(rs.getString(2))));
+			}
+		}
+		return bloomFilters;
+	}
+
+	/**
+	 * reports the sizes of the bloom filters per level of the taxonomy
+	 */
+	private static void reportBloomFilters(Map<Integer, TaxonEntry> taxa, Map<Integer, BloomFilter> bloomFilters) {
+		final var level2count = new TreeMap<Integer, Integer>();
+		final var level2bytes = new TreeMap<Integer, Long>();
+		final var level2maxBytes = new TreeMap<Integer, Integer>();
+
+		for (var entry : bloomFilters.entrySet()) {
+			final var bytes = entry.getValue().getBytes();
+			final var level = getAncestors(taxa, entry.getKey()).size();
+			level2count.merge(level, 1, Integer::sum);
+			level2bytes.merge(level, (long) bytes.length, Long::sum);
+			level2maxBytes.merge(level, bytes.length, Math::max);
+		}
+
+		if (!level2count.isEmpty()) {
+			System.err.println("Level\tFilters\tTotal size\tAverage size\tMax size");
+			for (var level : level2count.keySet()) {
+				final var count = level2count.get(level);
+				final var bytes = level2bytes.get(level);
+				System.err.printf("%d\t%,d\t%s\t%s\t%s%n", level, count, Basic.getMemorySizeString(bytes), Basic.getMemorySizeString(bytes / count),
+						Basic.getMemorySizeString(level2maxBytes.get(level)));
+			}
+		}
+	}
+
+	/**
+	 * creates the tables and writes the taxonomy, the genomes and the mash parameters
+	 */
+	private static void initialize(Connection connection, Map<Integer, TaxonEntry> taxa, List<GenomeEntry> genomes, int kParameter, int sParameter, int randomSeed) throws SQLException {
+		try (var statement = connection.createStatement()) {
+			for (var command : AccessReferenceDatabase.getSchema().split("\n")) {
+				if (!command.isBlank())
+					statement.executeUpdate(command);
+			}
+		}
+		try (var insertInfo = connection.prepareStatement("INSERT INTO info (key, value) VALUES (?, ?);")) {
+			for (var pair : List.of(new Pair<>("mash_k", kParameter), new Pair<>("mash_s", sParameter), new Pair<>("mash_seed", randomSeed))) {
+				insertInfo.setString(1, pair.getFirst());
+				insertInfo.setString(2, String.valueOf(pair.getSecond()));
+				insertInfo.addBatch();
+			}
+			insertInfo.executeBatch();
+		}
+		try (var insertTaxon = connection.prepareStatement("INSERT INTO taxa (taxon_id, taxon_name, taxon_display_name, parent_id) VALUES (?, ?, ?, ?);")) {
+			for (var taxon : taxa.values()) {
+				insertTaxon.setInt(1, taxon.taxonId());
+				insertTaxon.setString(2, taxon.name());
+				insertTaxon.setString(3, taxon.displayName());
+				insertTaxon.setInt(4, taxon.parentId());
+				insertTaxon.addBatch();
+			}
+			insertTaxon.executeBatch();
+		}
+		try (var insertGenome = connection.prepareStatement("INSERT INTO genomes (taxon_id, genome_accession, fasta_url) VALUES (?, ?, ?);")) {
+			for (var genome : genomes) {
+				insertGenome.setInt(1, genome.taxonId());
+				insertGenome.setString(2, genome.accession());
+				insertGenome.setString(3, genome.url());
+				insertGenome.addBatch();
+			}
+			insertGenome.executeBatch();
+		}
+		connection.commit();
+	}
+
+	/**
+	 * checks that the mash parameters of a database that is resumed are the requested ones
+	 */
+	private static void checkParameters(Connection connection, int kParameter, int sParameter, int randomSeed) throws SQLException, UsageException {
+		for (var pair : List.of(new Pair<>("mash_k", kParameter), new Pair<>("mash_s", sParameter), new Pair<>("mash_seed", randomSeed))) {
+			final var values = queryIds(connection, "SELECT value FROM info WHERE key='" + pair.getFirst() + "';");
+			if (values.size() != 1 || !values.get(0).equals(pair.getSecond()))
+				throw new UsageException("Database to resume has different value for " + pair.getFirst() + ": " + values);
+		}
+	}
+
+	/**
+	 * checks that the taxonomy and genomes of a database that is resumed are the given ones
+	 */
+	private static void checkInput(Connection connection, Map<Integer, TaxonEntry> taxa, List<GenomeEntry> genomes) throws SQLException, UsageException {
+		final var storedTaxa = new HashMap<Integer, TaxonEntry>();
+		try (var statement = connection.createStatement(); var rs = statement.executeQuery("SELECT taxon_id, parent_id, taxon_name, taxon_display_name FROM taxa;")) {
+			while (rs.next()) {
+				storedTaxa.put(rs.getInt(1), new TaxonEntry(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4)));
+			}
+		}
+		if (!storedTaxa.equals(taxa))
+			throw new UsageException("Database to resume has a different taxonomy");
+
+		final var storedGenomes = new HashMap<Integer, String>();
+		try (var statement = connection.createStatement(); var rs = statement.executeQuery("SELECT taxon_id, genome_accession, fasta_url FROM genomes;")) {
+			while (rs.next()) {
+				storedGenomes.put(rs.getInt(1), rs.getString(2) + "\t" + rs.getString(3));
+			}
+		}
+		final var givenGenomes = new HashMap<Integer, String>();
+		for (var genome : genomes) {
+			givenGenomes.put(genome.taxonId(), genome.accession() + "\t" + genome.url());
+		}
+		if (!storedGenomes.equals(givenGenomes))
+			throw new UsageException("Database to resume has a different list of genomes");
+	}
+
+	private static ArrayList<Integer> queryIds(Connection connection, String query) throws SQLException {
+		final var result = new ArrayList<Integer>();
+		try (var statement = connection.createStatement(); var rs = statement.executeQuery(query)) {
+			while (rs.next()) {
+				result.add(rs.getInt(1));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * gets all proper ancestors of a taxon, not including the root
+	 */
+	private static List<Integer> getAncestors(Map<Integer, TaxonEntry> taxa, int taxonId) {
+		final var ancestors = new ArrayList<Integer>();
+		var taxon = taxa.get(taxa.get(taxonId).parentId());
+		while (taxon != null && taxon.parentId() != 0) {
+			ancestors.add(taxon.taxonId());
+			taxon = taxa.get(taxon.parentId());
+		}
+		return ancestors;
+	}
+
+	private static Map<Integer, TaxonEntry> readTaxonomy(String fileName) throws IOException, UsageException {
+		final var taxa = new HashMap<Integer, TaxonEntry>();
+		try (var it = new FileLineIterator(fileName)) {
+			while (it.hasNext()) {
+				final var line = it.next();
+				if (!line.isBlank() && !line.startsWith("#")) {
+					final var tokens = line.split("\t");
+					if (tokens.length < 3 || !NumberUtils.isInteger(tokens[0]) || !NumberUtils.isInteger(tokens[1]))
+						throw new IOExceptionWithLineNumber(it.getLineNumber(), "Expected taxon_id, parent_id and name: " + line);
+					final var taxonId = Integer.parseInt(tokens[0]);
+					final var parentId = (tokens[0].equals(tokens[1]) ? 0 : Integer.parseInt(tokens[1]));
+					taxa.put(taxonId, new TaxonEntry(taxonId, parentId, tokens[2], tokens.length > 3 ? tokens[3] : tokens[2]));
+				}
+			}
+		}
+		final var roots = taxa.values().stream().filter(taxon -> taxon.parentId() == 0).count();
+		if (roots != 1)
+			throw new UsageException("Taxonomy must have exactly one root, found: " + roots);
+		for (var taxon : taxa.values()) {
+			if (taxon.parentId() != 0 && !taxa.containsKey(taxon.parentId()))
+				throw new UsageException("Taxon " + taxon.taxonId() + ": unknown parent " + taxon.parentId());
+			var steps = 0;
+			for (var other = taxon; other.parentId() != 0; other = taxa.get(other.parentId())) {
+				if (++steps > taxa.size())
+					throw new UsageException("Taxonomy contains a cycle at taxon " + taxon.taxonId());
+			}
+		}
+		return taxa;
+	}
+
+	private static List<GenomeEntry> readGenomes(String fileName, Map<Integer, TaxonEntry> taxa) throws IOException, UsageException {
+		final var genomes = new ArrayList<GenomeEntry>();
+		final var seen = new HashSet<Integer>();
+		try (var it = new FileLineIterator(fileName)) {
+			while (it.hasNext()) {
+				final var line = it.next();
+				if (!line.isBlank() && !line.startsWith("#")) {
+					final var tokens = line.split("\t");
+					if (tokens.length < 3 || !NumberUtils.isInteger(tokens[0]))
+						throw new IOExceptionWithLineNumber(it.getLineNumber(), "Expected taxon_id, accession and file: " + line);
+					final var taxonId = Integer.parseInt(tokens[0]);
+					if (!taxa.containsKey(taxonId))
+						throw new IOExceptionWithLineNumber(it.getLineNumber(), "Unknown taxon: " + taxonId);
+					if (!seen.add(taxonId))
+						throw new IOExceptionWithLineNumber(it.getLineNumber(), "More than one genome for taxon: " + taxonId);
+					FileUtils.checkFileReadableNonEmpty(tokens[2]);
+					genomes.add(new GenomeEntry(taxonId, tokens[1], tokens[2], tokens.length > 3 ? tokens[3] : tokens[2]));
+				}
+			}
+		}
+		return genomes;
+	}
+
+	private record TaxonEntry(int taxonId, int parentId, String name, String displayName) {
+	}
+
+	private record GenomeEntry(int taxonId, String accession, String file, String url) {
+	}
+
+	private record SketchResult(int taxonId, MashSketch sketch, long length) {
+	}
+}
@@ -26,6 +26,7 @@ import jloda.thirdparty.HexUtils;
 import jloda.util.*;
 import jloda.util.progress.ProgressPercentage;
 import jloda.util.progress.ProgressSilent;
+import splitstree6.io.utils.SequenceFileUtils;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -34,7 +35,6 @@ import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * compute mash sketches
@@ -170,9 +170,7 @@ public class ComputeMashSketches {
 	}
 
 	private byte[] readSequences(String fileName) throws IOException {
-		try (FileLineIterator it = new FileLineIterator(fileName)) {
-			return it.stream().filter(line -> !line.startsWith(">")).map(line -> line.replaceAll("\\s+", "")).collect(Collectors.joining()).getBytes();
-		}
+		return SequenceFileUtils.readLetters(fileName);
 	}
 
 	private void saveSketch(String outputFile, MashSketch sketch, String outputFormat) throws IOException {
@@ -22,12 +22,15 @@ package splitstree6.tools;
 import jloda.fx.util.ArgsOptions;
 import jloda.fx.util.ProgramExecutorService;
 import jloda.kmers.mash.MashDistance;
+import jloda.kmers.mash.MashSketch;
 import jloda.seq.FastAFileIterator;
 import jloda.util.*;
 import jloda.util.progress.ProgressPercentage;
 import jloda.util.progress.ProgressSilent;
 import splitstree6.dialog.analyzegenomes.AccessReferenceDatabase;
+import splitstree6.io.utils.SequenceFileUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -35,6 +38,7 @@ import java.io.Writer;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * compute the genome context of a set of sequences
@@ -90,6 +94,10 @@ public class GenomeContext {
         final var reportLCA = options.getOption("-rlca", "reportLCA", "Report LCA of references", true);
         final var includeStrains = options.getOption("-is", "includeStrains", "Include the genomes of strains for the detected species", false);
 
+        options.comment("Batch mode:");
+        final var batchMode = options.getOption("-b", "batch", "Search for all queries together and write results as tab-separated lines", false);
+        final var batchSize = options.getOption("-bs", "batchSize", "Number of input files to process together in batch mode", 1000);
+
         options.comment(ArgsOptions.OTHER);
         ProgramExecutorService.setNumberOfCoresToUse(options.getOption("-t", "threads", "Number of threads to use", Runtime.getRuntime().availableProcessors()));
         options.done();
@@ -113,6 +121,11 @@ public class GenomeContext {
             if (maxDistance < 1)
                 minSketchIntersection = Math.max(minSketchIntersection, computeMinSketchIntersection(maxDistance, database.getMashK(), database.getMashS()));
 
+            if (batchMode) {
+                final var columns = new Columns(reportName, reportId, reportFile, reportDistance, reportLCA);
+                runBatch(database, inputFiles, perFastARecord, useFastAHeaders, Math.max(1, batchSize), minSketchIntersection, includeStrains, Math.max(1, maxCount), best, columns, w);
+                return;
+            }
 
             try (final ProgressPercentage progress = new ProgressPercentage("Processing input files (" + inputFiles.size() + "):", inputFiles.size())) {
                 for (var fileName : inputFiles) {
@@ -139,7 +152,7 @@ public class GenomeContext {
                     }
 
                     for (var pair : pairs) {
-                        final Collection<Map.Entry<Integer, Double>> list = database.findSimilar(new ProgressSilent(), minSketchIntersection, includeStrains, Collections.singleton(pair.getSecond().getBytes()), false);
+                        final Collection<Map.Entry<Integer, Double>> list = database.findSimilar(new ProgressSilent(), minSketchIntersection, includeStrains, Collections.singleton(pair.getSecond().getBytes()), false, maxCount);
 
                         final Map<Integer, String> id2name = new HashMap<>();
                         if (reportName) {
@@ -201,6 +214,141 @@ public class GenomeContext {
         }
     }
 
+    /**
+     * batch mode: the queries of batchSize input files at a time are read and sketched in parallel and then searched
+     * together, so that the taxonomy is descended once per batch. The results of each batch are written as tab-separated lines
+     */
+    private static void runBatch(AccessReferenceDatabase database, List<String> inputFiles, boolean perFastARecord, boolean useFastAHeaders, int batchSize,
+                                 int minSketchIntersection, boolean includeStrains, int maxCount, boolean best, Columns columns, Writer w) throws Exception {
+        final var header = new StringBuilder("#Query\tRank");
+        if (columns.name())
+            header.append("\tName");
+        if (columns.id())
+            header.append("\tId");
+        if (columns.file())
+            header.append("\tFile");
+        if (columns.distance())
+            header.append("\tDistance");
+        w.write(header + "\n");
+
+        final var start = System.currentTimeMillis();
+        var numQueries = 0L;
+        for (var first = 0; first < inputFiles.size(); first += batchSize) {
+            final var files = inputFiles.subList(first, Math.min(inputFiles.size(), first + batchSize));
+            final var queries = readQueries(database, files, perFastARecord, useFastAHeaders);
+            final var results = database.findSimilar(new ProgressSilent(), queries.stream().map(Query::sketch).toList(), minSketchIntersection, includeStrains, false, maxCount);
+
+            // apply max count and best, then look up the names and files of all references of the batch at once:
+            final var selected = new ArrayList<List<Map.Entry<Integer, Double>>>(results.size());
+            final var ids = new HashSet<Integer>();
+            for (var list : results) {
+                final var smallestDistance = (list.isEmpty() ? 0.0 : list.get(0).getValue());
+                final var top = list.stream().limit(maxCount).filter(result -> !best || result.getValue() <= smallestDistance).toList();
+                top.forEach(result -> ids.add(result.getKey()));
+                selected.add(top);
+            }
+            final var lcas = new HashMap<Integer, Integer>();
+            if (columns.lca()) {
+                for (var q = 0; q < selected.size(); q++) {
+                    if (!selected.get(q).isEmpty()) {
+                        final var lca = computeLCA(database, selected.get(q).stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+                        lcas.put(q, lca);
+                        ids.add(lca);
+                    }
+                }
+            }
+            final Map<Integer, String> id2name = (columns.name() || columns.lca() ? database.getNames(ids) : Collections.emptyMap());
+            final Map<Integer, String> id2file = (columns.file() ? database.getFiles(ids) : Collections.emptyMap());
+
+            for (var q = 0; q < queries.size(); q++) {
+                final var buf = new StringBuilder();
+                var rank = 0;
+                for (var result : selected.get(q)) {
+                    buf.append(queries.get(q).name()).append("\t").append(++rank);
+                    if (columns.name())
+                        buf.append("\t").append(id2name.get(result.getKey()));
+                    if (columns.id())
+                        buf.append("\t").append(result.getKey());
+                    if (columns.file())
+                        buf.append("\t").append(id2file.get(result.getKey()));
+                    if (columns.distance())
+                        buf.append("\t").append(result.getValue());
+                    buf.append("\n");
+                }
+                if (lcas.containsKey(q)) {
+                    final var lca = lcas.get(q);
+                    buf.append(queries.get(q).name()).append("\tLCA");
+                    if (columns.name())
+                        buf.append("\t").append(id2name.get(lca));
+                    if (columns.id())
+                        buf.append("\t").append(lca);
+                    buf.append("\n");
+                }
+                w.write(buf.toString());
+            }
+            w.flush();
+
+            numQueries += queries.size();
+            final var minutes = Math.max(0.001, (System.currentTimeMillis() - start) / 60000.0);
+            System.err.printf("Files: %,d of %,d, queries: %,d, queries per minute: %,.1f%n", first + files.size(), inputFiles.size(), numQueries, numQueries / minutes);
+        }
+    }
+
+    /**
+     * reads and sketches the queries contained in the given files, in parallel. The queries are returned in input order
+     */
+    private static List<Query> readQueries(AccessReferenceDatabase database, List<String> files, boolean perFastARecord, boolean useFastAHeaders) throws Exception {
+        final var queries = new ArrayList<Query>();
+        ExecuteInParallel.apply(IntStream.range(0, files.size()).boxed().toList(), fileIndex -> {
+            final var fileName = files.get(fileIndex);
+            var name = FileUtils.replaceFileSuffix(FileUtils.getFileNameWithoutPath(fileName), "");
+            final var list = new ArrayList<Query>();
+            if (perFastARecord) {
+                try (var it = new FastAFileIterator(fileName)) {
+                    while (it.hasNext()) {
+                        final var pair = it.next();
+                        final var recordName = (useFastAHeaders ? pair.getFirst() : name + (list.size() + 1));
+                        list.add(new Query(fileIndex, list.size(), recordName, database.computeQuerySketch(List.of(pair.getSecond().getBytes()), new ProgressSilent())));
+                    }
+                }
+            } else if (!fileName.equals("stdin") && new File(fileName).isFile()) {
+                if (useFastAHeaders) {
+                    try (var it = new FastAFileIterator(fileName)) {
+                        if (it.hasNext())
+                            name = it.next().getFirst();
+                    }
+                }
+                list.add(new Query(fileIndex, 0, name, database.computeQuerySketch(List.of(SequenceFileUtils.readLetters(fileName)), new ProgressSilent())));
+            } else { // stdin or other stream that can only be read once
+                final var sequence = new ByteArrayOutputStream();
+                try (var it = new FastAFileIterator(fileName)) {
+                    while (it.hasNext()) {
+                        final var pair = it.next();
+                        if (useFastAHeaders && sequence.size() == 0)
+                            name = pair.getFirst();
+                        for (var a : pair.getSecond().getBytes()) {
+                            if (!Character.isWhitespace(a))
+                                sequence.write(a);
+                        }
+                    }
+                }
+                list.add(new Query(fileIndex, 0, name, database.computeQuerySketch(List.of(sequence.toByteArray()), new ProgressSilent())));
+            }
+            return list;
+        }, queries, ProgramExecutorService.getNumberOfCoresToUse());
+        queries.sort(Comparator.comparingInt(Query::fileIndex).thenComparingInt(Query::recordIndex));
+        return queries;
+    }
+
+    private record Query(int fileIndex, int recordIndex, String name, MashSketch sketch) {
+    }
+
+    /**
+     * the columns to report in batch mode
+     */
+    private record Columns(boolean name, boolean id, boolean file, boolean distance, boolean lca) {
+    }
+
     public static int computeMinSketchIntersection(double maxDistance, int mashK, int mashS) {
         for (int i = mashS; i > 1; i--) {
             final double distance = MashDistance.compute((double) (i - 1) / (double) mashS, mashK);
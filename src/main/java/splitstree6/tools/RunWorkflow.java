@@ -30,6 +30,9 @@ import jloda.fx.util.ResourceManagerFX;
 import jloda.fx.window.NotificationManager;
 import jloda.util.*;
 import jloda.util.progress.ProgressPercentage;
+import splitstree6.io.nexus.workflow.WorkflowBinaryFile;
+import splitstree6.io.nexus.workflow.WorkflowBinaryInput;
+import splitstree6.io.nexus.workflow.WorkflowBinaryOutput;
 import splitstree6.io.nexus.workflow.WorkflowNexusInput;
 import splitstree6.io.nexus.workflow.WorkflowNexusOutput;
 import splitstree6.io.readers.ImportManager;
@@ -104,6 +107,7 @@ public class RunWorkflow extends Application {
 		final var nodeName = options.getOption("-n", "node", "Title of node to be exported (if none given, will save whole file)", "");
 		final var exportFormat = options.getOption("-e", "exporter", "Name of exporter to use",
 				CollectionUtils.concatenate(ExportManager.getInstance().getExporterNames(), List.of("NexusWithTaxa")), "");
+		final var binary = options.getOption("-b", "binary", "Save complete workflow in binary format (default for output files ending on " + WorkflowBinaryFile.FILE_SUFFIX + ")", false);
 
 		options.comment(ArgsOptions.OTHER);
 		final var inputFileExtension = options.getOption("-x", "inputExt", "File extension for input files (when providing directory for input)", "");
@@ -163,7 +167,7 @@ public class RunWorkflow extends Application {
 				if (output.isDirectory()) {
 					final String extension;
 					if (exportCompleteWorkflow)
-						extension = ".stree6";
+						extension = (binary ? WorkflowBinaryFile.FILE_SUFFIX : ".stree6");
 					else {
 						extension = "." + ExportManager.getInstance().getExporterByName(exportFormat).getFileExtensions().get(0);
 					}
@@ -183,15 +187,24 @@ public class RunWorkflow extends Application {
 			}
 		}
 
-		if (!WorkflowNexusInput.isApplicable(inputWorkflowFile.getPath()))
+		if (exportCompleteWorkflow && binary && outputFiles[0].equals("stdout"))
+			throw new IOException("Binary format can't be written to stdout");
+
+		if (!WorkflowNexusInput.isApplicable(inputWorkflowFile.getPath()) && !WorkflowBinaryFile.isApplicable(inputWorkflowFile.getPath()))
 			throw new IOException("Workflow not valid: " + inputWorkflowFile);
 
 		final var mainWindow = new MainWindow();
 		final var workflow = mainWindow.getWorkflow();
 
-		try (final var progress = new ProgressPercentage("Loading workflow from file: " + inputWorkflowFile);
-			 var r = FileUtils.getReaderPossiblyZIPorGZIP(inputWorkflowFile.getPath())) {
-			WorkflowNexusInput.input(progress, workflow, r);
+		if (WorkflowBinaryFile.isApplicable(inputWorkflowFile.getPath())) {
+			try (final var progress = new ProgressPercentage("Loading workflow from binary file: " + inputWorkflowFile)) {
+				WorkflowBinaryInput.input(progress, workflow, inputWorkflowFile.getPath());
+			}
+		} else {
+			try (final var progress = new ProgressPercentage("Loading workflow from file: " + inputWorkflowFile);
+				 var r = FileUtils.getReaderPossiblyZIPorGZIP(inputWorkflowFile.getPath())) {
+				WorkflowNexusInput.input(progress, workflow, r);
+			}
 		}
 
 		final var inputTaxaNode = workflow.getInputTaxaNode();
@@ -258,7 +271,10 @@ public class RunWorkflow extends Application {
 				final var outputFile = (outputFiles.length == inputFiles.length ? outputFiles[i] : outputFiles[0]);
 				System.err.println("Saving to: " + outputFile);
 				if (exportCompleteWorkflow) {
-					(new WorkflowNexusOutput()).save(workflow, outputFile, false);
+					if (binary || outputFile.endsWith(WorkflowBinaryFile.FILE_SUFFIX))
+						(new WorkflowBinaryOutput()).save(workflow, outputFile, false);
+					else
+						(new WorkflowNexusOutput()).save(workflow, outputFile, false);
 					System.err.println("done");
 					System.err.println("Saved workflow has " + workflow.getNumberOfDataNodes() + " data nodes and " + IteratorUtils.size(workflow.algorithmNodes()) + " algorithms");
 				} else {
@@ -12,45 +12,157 @@ import java.util.*;
 
 /**
  * attempts to stabilize the layout of taxa across multiple rooted trees
+ * <p>
+ * The hardwired clusters of all trees are counted once, and the counts are updated when setup is called again with a
+ * collection in which trees have been added or removed. Trees are identified by object identity. The ordering is only
+ * recomputed if the set of trees has changed
  */
 public class Stabilizer {
     private int[] tax2pos;
 
+    private final Map<BitSet, Integer> cluster2id = new HashMap<>();
+    private final ArrayList<BitSet> clusters = new ArrayList<>();
+    private int[] clusterCounts = new int[0];
+    private final Map<PhyloTree, int[]> tree2clusterIds = new IdentityHashMap<>();
+    private boolean valid = false;
+
     /**
      * setup an ordering that will hopefully work
      *
      * @param trees input trees
      */
-    public void setup(Collection<PhyloTree> trees) {
-        var taxa = new BitSet();
-        trees.forEach(t -> taxa.or(BitSetUtils.asBitSet(t.getTaxa())));
+    public synchronized void setup(Collection<PhyloTree> trees) {
+        var current = Collections.newSetFromMap(new IdentityHashMap<PhyloTree, Boolean>());
+        current.addAll(trees);
+
+        var changed = false;
+        for (var iterator = tree2clusterIds.entrySet().iterator(); iterator.hasNext(); ) {
+            var entry = iterator.next();
+            if (!current.contains(entry.getKey())) {
+                for (var id : entry.getValue()) {
+                    clusterCounts[id]--;
+                }
+                iterator.remove();
+                changed = true;
+            }
+        }
+
+        var added = current.stream().filter(tree -> !tree2clusterIds.containsKey(tree)).toList();
+        if (!added.isEmpty()) {
+            // collecting the clusters is the expensive part, so it is done in parallel:
+            var addedClusters = added.parallelStream().map(Stabilizer::collectClusters).toList();
+            for (var i = 0; i < added.size(); i++) {
+                var treeClusters = addedClusters.get(i);
+                var ids = new int[treeClusters.size()];
+                var count = 0;
+                for (var cluster : treeClusters) {
+                    ids[count++] = cluster2id.computeIfAbsent(cluster, k -> {
+                        clusters.add(k);
+                        return clusters.size() - 1;
+                    });
+                }
+                if (clusterCounts.length < clusters.size())
+                    clusterCounts = Arrays.copyOf(clusterCounts, Math.max(clusters.size(), 2 * clusterCounts.length));
+                for (var id : ids) {
+                    clusterCounts[id]++;
+                }
+                tree2clusterIds.put(added.get(i), ids);
+            }
+            changed = true;
+        }
+
+        if (changed)
+            compact();
+
+        if (changed || !valid) {
+            computeOrdering(trees);
+            valid = true;
+        }
+    }
+
+    /**
+     * computes the ordering from the current cluster counts, most frequent clusters first
+     */
+    private void computeOrdering(Collection<PhyloTree> trees) {
+        var taxa = trees.parallelStream().map(t -> BitSetUtils.asBitSet(t.getTaxa())).reduce(new BitSet(), (a, b) -> {
+            var union = (BitSet) a.clone();
+            union.or(b);
+            return union;
+        });
         if (taxa.cardinality() > 0) {
             var pqTree = new PQTree(taxa);
-            var clusterCountMap = new HashMap<BitSet, Integer>();
-            trees.forEach(tree -> {
-                for (var cluster : TreesUtils.collectAllHardwiredClusters(tree)) {
-                    if (cluster.cardinality() > 1)
-                        clusterCountMap.put(cluster, clusterCountMap.getOrDefault(cluster, 0) + 1);
-                }
-            });
-            clusterCountMap.entrySet().stream().sorted((a, b) -> -Integer.compare(a.getValue(), b.getValue())).map(Map.Entry::getKey).forEach(pqTree::accept);
+            var ids = new ArrayList<Integer>();
+            for (var id = 0; id < clusters.size(); id++) {
+                if (clusterCounts[id] > 0)
+                    ids.add(id);
+            }
+            // ties are broken by the order in which clusters were first seen, so the result does not depend on hashing:
+            ids.sort((a, b) -> clusterCounts[a] != clusterCounts[b] ? -Integer.compare(clusterCounts[a], clusterCounts[b]) : Integer.compare(a, b));
+            for (var id : ids) {
+                pqTree.accept((BitSet) clusters.get(id).clone());
+            }
 
             var bestOrder = pqTree.extractAnOrdering();
-            tax2pos = new int[bestOrder.size() + 1];
+            var newTax2pos = new int[taxa.length() + 1];
             int pos = 1;
             for (var t : bestOrder) {
-                tax2pos[t] = pos++;
+                newTax2pos[t] = pos++;
             }
+            tax2pos = newTax2pos;
         } else
             tax2pos = null;
     }
 
+    /**
+     * removes clusters that no longer occur in any tree, once they make up more than half of all clusters
+     */
+    private void compact() {
+        var used = 0;
+        for (var id = 0; id < clusters.size(); id++) {
+            if (clusterCounts[id] > 0)
+                used++;
+        }
+        if (clusters.size() - used <= Math.max(1024, used))
+            return;
+
+        var old2new = new int[clusters.size()];
+        var newClusters = new ArrayList<BitSet>(used);
+        var newCounts = new int[used];
+        cluster2id.clear();
+        for (var id = 0; id < clusters.size(); id++) {
+            if (clusterCounts[id] > 0) {
+                old2new[id] = newClusters.size();
+                newCounts[newClusters.size()] = clusterCounts[id];
+                cluster2id.put(clusters.get(id), newClusters.size());
+                newClusters.add(clusters.get(id));
+            }
+        }
+        for (var ids : tree2clusterIds.values()) {
+            for (var i = 0; i < ids.length; i++) {
+                ids[i] = old2new[ids[i]];
+            }
+        }
+        clusters.clear();
+        clusters.addAll(newClusters);
+        clusterCounts = newCounts;
+    }
+
+    /**
+     * collects the hardwired clusters of a tree that contain more than one taxon
+     */
+    private static List<BitSet> collectClusters(PhyloTree tree) {
+        if (tree.getRoot() == null)
+            return List.of();
+        return TreesUtils.collectAllHardwiredClusters(tree).stream().filter(cluster -> cluster.cardinality() > 1).toList();
+    }
+
     /**
      * apply the ordering to a tree, rearranging the order of children to attempt to attain the setup ordering
      *
      * @param tree phylo tree
      */
     public void apply(PhyloTree tree) {
+        var tax2pos = this.tax2pos;
         if (tax2pos != null) {
             try (var smallestBelow = tree.newNodeIntArray()) {
                 tree.postorderTraversal(tree.getRoot(), v -> !smallestBelow.containsKey(v), v -> {
@@ -58,7 +170,7 @@ public class Stabilizer {
                         var e = v.getFirstInEdge();
                         var smallest = Integer.MAX_VALUE;
                         for (var t : tree.getTaxa(v))
-                            smallest = Math.min(smallest, tax2pos[t]);
+                            smallest = Math.min(smallest, t < tax2pos.length ? tax2pos[t] : 0);
                         for (var w : v.children()) {
                             smallest = Math.min(smallest, smallestBelow.get(w));
                         }
@@ -105,6 +105,7 @@ public class DisplayDataPresenter {
 			if (exporter.get() != null) {
 				try (var w = new StringWriter()) {
 					var dataBlock = dataNode.getDataBlock();
+					dataBlock.materialize();
 
 					if (exporter.get().getName().startsWith("Nexus") && !(dataNode.getDataBlock() instanceof TaxaBlock)) {
 						try (var sw = new StringWriter()) {
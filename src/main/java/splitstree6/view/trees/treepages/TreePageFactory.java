@@ -26,26 +26,45 @@ import javafx.beans.binding.BooleanBinding;
 import javafx.beans.property.*;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Worker;
 import javafx.geometry.Dimension2D;
 import javafx.scene.Node;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
+import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
 import javafx.util.Callback;
 import jloda.fx.util.BasicFX;
+import jloda.fx.util.ProgramExecutorService;
 import jloda.fx.util.RunAfterAWhile;
 import jloda.phylo.PhyloTree;
 import jloda.util.CanceledException;
 import jloda.util.progress.ProgressSilent;
+import splitstree6.layout.tree.HeightAndAngles;
 import splitstree6.layout.tree.LayoutOrientation;
+import splitstree6.layout.tree.TreeDiagramType;
 import splitstree6.view.format.edges.LabelEdgesBy;
 import splitstree6.view.trees.tanglegram.optimize.EmbeddingOptimizer;
 import splitstree6.window.MainWindow;
 
+import java.util.*;
+
 /**
  * tree-page factory
+ * <p>
+ * Tree panes are kept in an LRU cache keyed on tree, diagram type, averaging and size, and the panes of the previous and next
+ * pages are computed in the background, so that flipping through pages does not recompute layouts. Pages that show many trees
+ * are drawn as images, which are kept beside the cached tree panes and are retaken from them when the display changes
  * Daniel Huson, 11.2021
  */
 public class TreePageFactory implements Callback<Integer, Node> {
+	/**
+	 * number of pages before and after the current page whose tree layouts are computed ahead of time
+	 */
+	private static final int PREFETCH_PAGES = 1;
+
 	private final MainWindow mainWindow;
 	private final TreePagesView treePagesView;
 	private final ObservableList<PhyloTree> trees;
@@ -57,10 +76,23 @@ public class TreePageFactory implements Callback<Integer, Node> {
 	private final ObjectProperty<GridPane> gridPane = new SimpleObjectProperty<>();
 
 	private final InvalidationListener updater;
+	private final InvalidationListener cacheClearer;
+	private final InvalidationListener thumbnailsUpdater;
 
 	private final IntegerProperty numberChangingOrientation = new SimpleIntegerProperty(this, "numberChangingOrientation", 0);
 
+	/**
+	 * cached tree panes and their thumbnail images, in least-recently-used order. Only accessed in the FX thread
+	 */
+	private final Map<LayoutKey, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<LayoutKey, CacheEntry> eldest) {
+			return size() > (2 * PREFETCH_PAGES + 2) * rows.get() * cols.get();
+		}
+	};
+
 	private int page;
+	private boolean showingThumbnails = false;
 
 	public TreePageFactory(MainWindow mainWindow, TreePagesView treePagesView, ObservableList<PhyloTree> trees, ReadOnlyIntegerProperty rows, ReadOnlyIntegerProperty cols, ReadOnlyObjectProperty<Dimension2D> dimensions) {
 		this.mainWindow = mainWindow;
@@ -87,65 +119,189 @@ public class TreePageFactory implements Callback<Integer, Node> {
 		cols.addListener(new WeakInvalidationListener(updater));
 		dimensions.addListener(new WeakInvalidationListener(updater));
 
+		cacheClearer = e -> cache.clear();
+		trees.addListener(new WeakInvalidationListener(cacheClearer));
+
+		// images don't follow changes of the display, so they are retaken from the cached tree panes, which do:
+		thumbnailsUpdater = e -> {
+			if (isThumbnails() || showingThumbnails) {
+				for (var entry : cache.values())
+					entry.thumbnail = null;
+				updater.invalidated(e);
+			}
+		};
+		treePagesView.optionOrientationProperty().addListener(new WeakInvalidationListener(thumbnailsUpdater));
+		treePagesView.optionFontScaleFactorProperty().addListener(new WeakInvalidationListener(thumbnailsUpdater));
+		treePagesView.optionTreeLabelsProperty().addListener(new WeakInvalidationListener(thumbnailsUpdater));
+		treePagesView.optionZoomFactorProperty().addListener(new WeakInvalidationListener(thumbnailsUpdater));
+		treePagesView.optionThumbnailThresholdProperty().addListener(new WeakInvalidationListener(thumbnailsUpdater));
+		mainWindow.getTaxonSelectionModel().getSelectedItems().addListener(new WeakInvalidationListener(thumbnailsUpdater));
+
 		treePagesView.optionZoomFactorProperty().addListener((v, o, n) -> {
-			for (var treeViewPane : BasicFX.findRecursively(gridPane.get(), p -> p.getId() != null && p.getId().equals("treeView"))) {
-				treeViewPane.setScaleX(treeViewPane.getScaleX() / o.doubleValue() * n.doubleValue());
-				treeViewPane.setScaleY(treeViewPane.getScaleY() / o.doubleValue() * n.doubleValue());
+			// also apply to cached panes, so that they have the correct zoom when shown again:
+			var treePanes = new HashSet<Pane>();
+			for (var entry : cache.values())
+				treePanes.add(entry.treePane);
+			for (var node : gridPane.get().getChildren()) {
+				if (node instanceof TreePane pane)
+					treePanes.add(pane);
+			}
+			for (var treePane : treePanes) {
+				for (var treeViewPane : BasicFX.findRecursively(treePane, p -> p.getId() != null && p.getId().equals("treeView"))) {
+					treeViewPane.setScaleX(treeViewPane.getScaleX() / o.doubleValue() * n.doubleValue());
+					treeViewPane.setScaleY(treeViewPane.getScaleY() / o.doubleValue() * n.doubleValue());
+				}
 			}
 		});
 	}
 
 	private void update() {
-		var taxaBlock = mainWindow.getWorkflow().getWorkingTaxaBlock();
-		var taxonSelectionModel = mainWindow.getTaxonSelectionModel();
+		var grid = gridPane.get();
+		Platform.runLater(() -> grid.getChildren().clear());
 
-		Platform.runLater(() -> gridPane.get().getChildren().clear());
+		var thumbnails = isThumbnails();
+		showingThumbnails = thumbnails;
+		var used = new HashSet<TreePane>();
 
 		var start = page * rows.get() * cols.get();
 		var top = Math.min(trees.size(), start + rows.get() * cols.get());
 		var r = 0;
 		var c = 0;
 		for (int which = start; which < top; which++) {
-			var tree = trees.get(which);
-			if (tree.isReticulated()) {
-				tree = new PhyloTree(tree);
-				try {
-					EmbeddingOptimizer.apply(tree, new ProgressSilent());
-				} catch (CanceledException ignored) {
-				}
-			}
-			var name = (tree.getName() != null ? tree.getName() : "tree-" + (which + 1));
-
 			Pane pane;
 			if (dimensions.get().getWidth() > 0 && dimensions.get().getHeight() > 0) {
-				var treePane = new TreePane(mainWindow.getStage(), taxaBlock, tree, taxonSelectionModel, dimensions.get().getWidth(), dimensions.get().getHeight(),
-						treePagesView.getOptionDiagram(), LabelEdgesBy.None, treePagesView.getOptionAveraging(), treePagesView.optionOrientationProperty(),
-						treePagesView.optionFontScaleFactorProperty(), treePagesView.optionTreeLabelsProperty(), null,
-						FXCollections.observableHashMap(), FXCollections.observableHashMap());
-				treePane.changingOrientationProperty().addListener((v, o, n) -> numberChangingOrientation.set(numberChangingOrientation.get() + (n ? 1 : -1)));
-				treePane.setRunAfterUpdate(() -> {
-					for (var treeViewPane : BasicFX.findRecursively(treePane, p -> p.getId() != null && p.getId().equals("treeView"))) {
-						treeViewPane.setScaleX(treeViewPane.getScaleX() * treePagesView.getOptionZoomFactor());
-						treeViewPane.setScaleY(treeViewPane.getScaleY() * treePagesView.getOptionZoomFactor());
-					}
-				});
-				treePane.drawTree();
-				pane = treePane;
-			} else
+				var key = createKey(which);
+				var entry = getEntry(key, which);
+				if (!used.add(entry.treePane)) { // same tree appears more than once on the page
+					var treePane = createTreePane(which);
+					treePane.drawTree();
+					pane = treePane;
+				} else if (thumbnails && entry.thumbnail != null) {
+					pane = entry.thumbnail;
+				} else {
+					pane = entry.treePane;
+					if (thumbnails)
+						replaceByThumbnail(key, entry);
+				}
+			} else {
 				pane = new Pane();
-
-			pane.setPrefSize(dimensions.get().getWidth(), dimensions.get().getHeight());
-			pane.setMinSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
-			pane.setMaxSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
+				pane.setPrefSize(dimensions.get().getWidth(), dimensions.get().getHeight());
+				pane.setMinSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
+				pane.setMaxSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
+			}
 
 			GridPane.setRowIndex(pane, r);
 			GridPane.setColumnIndex(pane, c);
-			Platform.runLater(() -> gridPane.get().getChildren().add(pane));
+			var finalPane = pane;
+			Platform.runLater(() -> grid.getChildren().add(finalPane));
 			if (++c == cols.get()) {
 				r++;
 				c = 0;
 			}
 		}
+		var currentPage = page;
+		Platform.runLater(() -> prefetch(currentPage));
+	}
+
+	/**
+	 * computes the tree panes of the neighboring pages in the background
+	 */
+	private void prefetch(int currentPage) {
+		if (currentPage != page || dimensions.get().getWidth() <= 0 || dimensions.get().getHeight() <= 0)
+			return;
+		var pageSize = rows.get() * cols.get();
+		for (var delta = 1; delta <= PREFETCH_PAGES; delta++) {
+			for (var other : new int[]{currentPage + delta, currentPage - delta}) {
+				var start = other * pageSize;
+				if (start >= 0 && start < trees.size()) {
+					var top = Math.min(trees.size(), start + pageSize);
+					for (var which = start; which < top; which++) {
+						getEntry(createKey(which), which);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * gets the cache entry for the given tree, or creates a new tree pane and starts to draw it
+	 */
+	private CacheEntry getEntry(LayoutKey key, int which) {
+		var entry = cache.get(key);
+		if (entry == null) {
+			var treePane = createTreePane(which);
+			treePane.drawTree();
+			entry = new CacheEntry(treePane);
+			cache.put(key, entry);
+		}
+		return entry;
+	}
+
+	private TreePane createTreePane(int which) {
+		var taxaBlock = mainWindow.getWorkflow().getWorkingTaxaBlock();
+		var taxonSelectionModel = mainWindow.getTaxonSelectionModel();
+
+		var tree = trees.get(which);
+		if (tree.isReticulated()) {
+			tree = new PhyloTree(tree);
+			try {
+				EmbeddingOptimizer.apply(tree, new ProgressSilent());
+			} catch (CanceledException ignored) {
+			}
+		}
+
+		var treePane = new TreePane(mainWindow.getStage(), taxaBlock, tree, taxonSelectionModel, dimensions.get().getWidth(), dimensions.get().getHeight(),
+				treePagesView.getOptionDiagram(), LabelEdgesBy.None, treePagesView.getOptionAveraging(), treePagesView.optionOrientationProperty(),
+				treePagesView.optionFontScaleFactorProperty(), treePagesView.optionTreeLabelsProperty(), null,
+				FXCollections.observableHashMap(), FXCollections.observableHashMap());
+		treePane.changingOrientationProperty().addListener((v, o, n) -> numberChangingOrientation.set(numberChangingOrientation.get() + (n ? 1 : -1)));
+		treePane.setRunAfterUpdate(() -> {
+			for (var treeViewPane : BasicFX.findRecursively(treePane, p -> p.getId() != null && p.getId().equals("treeView"))) {
+				treeViewPane.setScaleX(treeViewPane.getScaleX() * treePagesView.getOptionZoomFactor());
+				treeViewPane.setScaleY(treeViewPane.getScaleY() * treePagesView.getOptionZoomFactor());
+			}
+		});
+		return treePane;
+	}
+
+	/**
+	 * once the tree pane has been drawn and is showing, replaces it in the grid by an image of itself, which is kept in its cache entry
+	 */
+	private void replaceByThumbnail(LayoutKey key, CacheEntry entry) {
+		var treePane = entry.treePane;
+		if (treePane.getService().getState() != Worker.State.SUCCEEDED) {
+			var runAfterUpdate = treePane.getRunAfterUpdate();
+			treePane.setRunAfterUpdate(() -> {
+				runAfterUpdate.run();
+				treePane.setRunAfterUpdate(runAfterUpdate);
+				replaceByThumbnail(key, entry);
+			});
+			return;
+		}
+		// wait for labels to be laid out:
+		ProgramExecutorService.submit(250, () -> Platform.runLater(() -> {
+			if (treePane.getParent() instanceof GridPane grid && grid == gridPane.get() && cache.get(key) == entry && isThumbnails()) {
+				var parameters = new SnapshotParameters();
+				parameters.setFill(Color.TRANSPARENT);
+				var thumbnail = new StackPane(new ImageView(treePane.snapshot(parameters, null)));
+				thumbnail.setPrefSize(treePane.getPrefWidth(), treePane.getPrefHeight());
+				thumbnail.setMinSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
+				thumbnail.setMaxSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
+				GridPane.setRowIndex(thumbnail, GridPane.getRowIndex(treePane));
+				GridPane.setColumnIndex(thumbnail, GridPane.getColumnIndex(treePane));
+				grid.getChildren().set(grid.getChildren().indexOf(treePane), thumbnail);
+				entry.thumbnail = thumbnail;
+			}
+		}));
+	}
+
+	private boolean isThumbnails() {
+		var threshold = treePagesView.getOptionThumbnailThreshold();
+		return threshold > 0 && rows.get() * cols.get() >= threshold;
+	}
+
+	private LayoutKey createKey(int which) {
+		return new LayoutKey(trees.get(which), treePagesView.getOptionDiagram(), treePagesView.getOptionAveraging(), dimensions.get().getWidth(), dimensions.get().getHeight());
 	}
 
 	@Override
@@ -168,4 +324,32 @@ public class TreePageFactory implements Callback<Integer, Node> {
 	public BooleanBinding changingOrientationBinding() {
 		return numberChangingOrientation.greaterThan(0);
 	}
+
+	/**
+	 * a cached tree pane and, if taken, its thumbnail image
+	 */
+	private static class CacheEntry {
+		private final TreePane treePane;
+		private Pane thumbnail;
+
+		CacheEntry(TreePane treePane) {
+			this.treePane = treePane;
+		}
+	}
+
+	/**
+	 * key for cached tree panes. The tree is compared by identity
+	 */
+	private record LayoutKey(PhyloTree tree, TreeDiagramType diagram, HeightAndAngles.Averaging averaging, double width, double height) {
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof LayoutKey that && tree == that.tree && diagram == that.diagram && averaging == that.averaging
+				   && width == that.width && height == that.height;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(tree), diagram, averaging, width, height);
+		}
+	}
 }
@@ -72,6 +72,8 @@ public class TreePagesView implements IView {
 	private final DoubleProperty optionZoomFactor = new SimpleDoubleProperty(this, "optionZoomFactor", 1.0);
 	private final DoubleProperty optionFontScaleFactor = new SimpleDoubleProperty(this, "optionFontScaleFactor", 1.0);
 
+	private final IntegerProperty optionThumbnailThreshold = new SimpleIntegerProperty(this, "optionThumbnailThreshold");
+
 	private final ObjectProperty<Bounds> targetBounds = new SimpleObjectProperty<>(this, "targetBounds");
 
 	{
@@ -79,6 +81,7 @@ public class TreePagesView implements IView {
 		ProgramProperties.track(optionCols, 1);
 		ProgramProperties.track(optionAveraging, HeightAndAngles.Averaging::valueOf, HeightAndAngles.Averaging.ChildAverage);
 		ProgramProperties.track(optionTreeLabels, TreeLabel::valueOf, TreeLabel.Name);
+		ProgramProperties.track(optionThumbnailThreshold, 25);
 	}
 
 	public List<String> listOptions() {
@@ -292,6 +295,21 @@ public class TreePagesView implements IView {
 		this.optionTreeLabels.set(optionTreeLabel);
 	}
 
+	/**
+	 * pages that show at least this many trees are drawn as images, 0 = never
+	 */
+	public int getOptionThumbnailThreshold() {
+		return optionThumbnailThreshold.get();
+	}
+
+	public IntegerProperty optionThumbnailThresholdProperty() {
+		return optionThumbnailThreshold;
+	}
+
+	public void setOptionThumbnailThreshold(int optionThumbnailThreshold) {
+		this.optionThumbnailThreshold.set(optionThumbnailThreshold);
+	}
+
 	public ViewTab getViewTab() {
 		return viewTab.get();
 	}
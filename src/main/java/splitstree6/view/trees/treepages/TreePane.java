@@ -21,6 +21,7 @@ package splitstree6.view.trees.treepages;
 
 import javafx.application.Platform;
 import javafx.beans.InvalidationListener;
+import javafx.beans.WeakInvalidationListener;
 import javafx.beans.property.*;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.WeakChangeListener;
@@ -63,6 +64,10 @@ public class TreePane extends StackPane {
 
 	private final ChangeListener<Number> fontScaleChangeListener;
 
+	private final ChangeListener<LayoutOrientation> orientationChangeListener;
+
+	private InvalidationListener treeLabelsListener;
+
 	private Consumer<LayoutOrientation> orientationConsumer;
 
 	private final StringProperty infoString = new SimpleStringProperty("");
@@ -107,13 +112,17 @@ public class TreePane extends StackPane {
 		service = new AService<>();
 		service.setExecutor(ProgramExecutorService.getInstance());
 
-		orientation.addListener((v, o, n) -> {
+		// weak listeners, so that panes that are no longer cached by the tree-page factory can be garbage collected
+		orientationChangeListener = (v, o, n) -> {
+			if (pane == null)
+				return;
 			if (diagram == TreeDiagramType.RadialPhylogram) {
 				var shapes = BasicFX.getAllRecursively(pane, a -> "graph-node".equals(a.getId()));
 				splitstree6.layout.LayoutUtils.applyOrientation(shapes, o, n, orientationConsumer, changingOrientation);
 			} else
 				LayoutUtils.applyOrientation(pane, n, o, false, changingOrientation);
-		});
+		};
+		orientation.addListener(new WeakChangeListener<>(orientationChangeListener));
 
 		service.setCallable(() -> {
 			edgeSelectionModel.clearSelection();
@@ -185,7 +194,7 @@ public class TreePane extends StackPane {
 			if (showTreeLabels != null) {
 				final var treeLabel = new CopyableLabel();
 				treeLabel.setPadding(new Insets(0, 0, 0, 5));
-				final InvalidationListener listener = e -> {
+				treeLabelsListener = e -> {
 					switch (showTreeLabels.get()) {
 						case None -> {
 							treeLabel.setText("");
@@ -201,8 +210,8 @@ public class TreePane extends StackPane {
 						}
 					}
 				};
-				showTreeLabels.addListener(listener);
-				listener.invalidated(null);
+				showTreeLabels.addListener(new WeakInvalidationListener(treeLabelsListener));
+				treeLabelsListener.invalidated(null);
 				getChildren().setAll(new VBox(treeLabel, pane));
 			} else
 				getChildren().setAll(pane);
@@ -70,6 +70,15 @@ public abstract class Algorithm<S extends DataBlock, T extends DataBlock> extend
 	public void compute(ProgressListener progress, Collection<jloda.fx.workflow.DataBlock> inputData, Collection<jloda.fx.workflow.DataBlock> outputData) throws IOException {
 		progress.setTasks("Running", getName());
 
+		for (var dataBlock : inputData) {
+			if (dataBlock instanceof DataBlock block)
+				block.materialize();
+		}
+		for (var dataBlock : outputData) { // output is recomputed, so any deferred content is obsolete
+			if (dataBlock instanceof DataBlock block)
+				block.setLoader(null);
+		}
+
 		var taxaBlock = inputData.stream().filter(d -> d instanceof TaxaBlock).map(d -> (TaxaBlock) d).findFirst().orElse(null);
 		var inputBlock = inputData.stream().filter(d -> !(d instanceof TaxaBlock)).map(d -> (S) d).findFirst().orElse(null);
 		var outputBlock = outputData.stream().filter(d -> !(d instanceof TaxaBlock)).map(d -> (T) d).findFirst().orElse(null);
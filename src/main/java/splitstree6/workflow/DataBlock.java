@@ -22,6 +22,8 @@ package splitstree6.workflow;
 import jloda.util.Basic;
 import splitstree6.cite.IHasCitations;
 
+import java.io.IOException;
+
 /**
  * splitstree data block
  * Daniel Huson, 10.2021
@@ -30,6 +32,8 @@ public abstract class DataBlock extends jloda.fx.workflow.DataBlock implements I
 
 	private DataNode node;
 
+	private Loader loader;
+
 	public DataBlock() {
 		setName(getClass().getSimpleName().replaceAll("Block$", ""));
 	}
@@ -77,4 +81,36 @@ public abstract class DataBlock extends jloda.fx.workflow.DataBlock implements I
 	public String getCitation() {
 		return null;
 	}
+
+	/**
+	 * defers the content of this block: it is loaded by the given loader when first needed, see materialize(). Used when
+	 * opening saved workflows. Setting null discards deferred content that has not been loaded yet
+	 */
+	public synchronized void setLoader(Loader loader) {
+		this.loader = loader;
+	}
+
+	public synchronized boolean isDeferred() {
+		return loader != null;
+	}
+
+	/**
+	 * loads the content of this block, if it is deferred. Waits, if another thread is currently loading it
+	 */
+	public synchronized void materialize() throws IOException {
+		if (loader != null) {
+			try {
+				loader.load(this);
+			} finally {
+				loader = null;
+			}
+		}
+	}
+
+	/**
+	 * loads deferred content into a block
+	 */
+	public interface Loader {
+		void load(DataBlock target) throws IOException;
+	}
 }
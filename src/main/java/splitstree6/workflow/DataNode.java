@@ -36,8 +36,10 @@ public class DataNode<S extends DataBlock> extends jloda.fx.workflow.DataNode {
 		title.set(getName());
 
 		validProperty().addListener((v, o, n) -> {
-			if (!n && getDataBlock() != null)
+			if (!n && getDataBlock() != null) {
+				getDataBlock().setLoader(null);
 				getDataBlock().clear();
+			}
 		});
 
 		dataBlockProperty().addListener((v, o, n) -> {
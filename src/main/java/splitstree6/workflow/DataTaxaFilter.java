@@ -45,6 +45,42 @@ public abstract class DataTaxaFilter<S extends DataBlock, T extends DataBlock> e
 
 	public abstract void filter(ProgressListener progress, TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock, S inputData, T outputData) throws IOException;
 
+	/**
+	 * determines whether the modified taxa are the same as the original ones
+	 *
+	 * @return true, if no filtering is required
+	 */
+	public static boolean isSameTaxa(TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock) {
+		return modifiedTaxaBlock == null || originalTaxaBlock.getTaxa().equals(modifiedTaxaBlock.getTaxa());
+	}
+
+	/**
+	 * computes the index remapping from the modified taxa to the original ones, so that filters can address
+	 * the input data directly, rather than looking up each taxon for each cell
+	 *
+	 * @return array with entry w set to the 1-based original index of the w-th modified taxon, entry 0 unused
+	 */
+	public static int[] computeModified2Original(TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock) {
+		final var modified2original = new int[modifiedTaxaBlock.getNtax() + 1];
+		for (var w = 1; w <= modifiedTaxaBlock.getNtax(); w++) {
+			modified2original[w] = originalTaxaBlock.indexOf(modifiedTaxaBlock.get(w));
+		}
+		return modified2original;
+	}
+
+	/**
+	 * computes the index remapping from the original taxa to the modified ones
+	 *
+	 * @return array with entry t set to the 1-based modified index of the t-th original taxon, or -1, if the taxon has been removed, entry 0 unused
+	 */
+	public static int[] computeOriginal2Modified(TaxaBlock originalTaxaBlock, TaxaBlock modifiedTaxaBlock) {
+		final var original2modified = new int[originalTaxaBlock.getNtax() + 1];
+		for (var t = 1; t <= originalTaxaBlock.getNtax(); t++) {
+			original2modified[t] = modifiedTaxaBlock.indexOf(originalTaxaBlock.get(t));
+		}
+		return original2modified;
+	}
+
 	@Override
 	public String getCitation() {
 		return null;
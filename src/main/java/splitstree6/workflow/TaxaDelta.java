@@ -0,0 +1,79 @@
+/*
+ * TaxaDelta.java Copyright (C) 2023 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package splitstree6.workflow;
+
+import splitstree6.data.TaxaBlock;
+
+import java.util.*;
+
+/**
+ * the difference between two sets of taxa, given by the names of the removed and added taxa
+ *
+ * @param removed names of taxa that are only contained in the previous set
+ * @param added   names of taxa that are only contained in the current set
+ * @param common  number of taxa contained in both sets
+ */
+public record TaxaDelta(List<String> removed, List<String> added, int common) {
+	/**
+	 * computes the delta between a previous list of taxon names and the current taxa
+	 *
+	 * @param previous  previous taxon names, in order, may be null
+	 * @param taxaBlock current taxa
+	 * @return delta, or null, if previous is null
+	 */
+	public static TaxaDelta compute(List<String> previous, TaxaBlock taxaBlock) {
+		if (previous == null)
+			return null;
+		var current = new HashSet<String>(taxaBlock.getNtax());
+		for (var taxon : taxaBlock.getTaxa())
+			current.add(taxon.getName());
+		var removed = new ArrayList<String>();
+		var common = 0;
+		for (var name : previous) {
+			if (current.contains(name))
+				common++;
+			else
+				removed.add(name);
+		}
+		var previousSet = new HashSet<>(previous);
+		var added = new ArrayList<String>();
+		for (var taxon : taxaBlock.getTaxa()) {
+			if (!previousSet.contains(taxon.getName()))
+				added.add(taxon.getName());
+		}
+		return new TaxaDelta(removed, added, common);
+	}
+
+	/**
+	 * total number of removed and added taxa
+	 */
+	public int size() {
+		return removed.size() + added.size();
+	}
+
+	public boolean isEmpty() {
+		return removed.isEmpty() && added.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "removed " + removed.size() + ", added " + added.size() + " taxa";
+	}
+}
@@ -34,6 +34,7 @@ import splitstree6.data.ViewBlock;
 import splitstree6.view.alignment.AlignmentView;
 import splitstree6.window.MainWindow;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -434,10 +435,22 @@ public class Workflow extends jloda.fx.workflow.Workflow {
 		return null;
 	}
 
+	/**
+	 * loads the content of all data blocks that are still deferred, e.g. before the workflow is saved to the file that it was opened from
+	 */
+	public void materializeDataBlocks() throws IOException {
+		for (var node : dataNodes()) {
+			if (node instanceof DataNode dataNode && dataNode.getDataBlock() != null)
+				dataNode.getDataBlock().materialize();
+		}
+	}
+
 	public void clearData() {
 		if (getInputTaxaBlock() != null)
 			getInputTaxaBlock().setComments(null);
 		for (var dataNode : dataNodes()) {
+			if (dataNode.getDataBlock() instanceof DataBlock dataBlock)
+				dataBlock.setLoader(null);
 			dataNode.getDataBlock().clear();
 			dataNode.getDataBlock().updateShortDescription();
 		}